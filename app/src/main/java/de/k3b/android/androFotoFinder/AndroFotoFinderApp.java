@@ -20,6 +20,11 @@
 package de.k3b.android.androFotoFinder;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -37,7 +42,10 @@ import de.k3b.android.androFotoFinder.queries.FotoSql;
 import de.k3b.android.androFotoFinder.queries.FotoSqlBase;
 import de.k3b.android.osmdroid.forge.MapsForgeSupport;
 import de.k3b.android.util.LogCat;
+import de.k3b.android.util.MediaFolderWatcher;
 import de.k3b.database.QueryParameter;
+import de.k3b.database.QueryStatistics;
+import de.k3b.tagDB.TagRepository;
 import uk.co.senab.photoview.PhotoViewAttacher;
 import uk.co.senab.photoview.gestures.CupcakeGestureDetector;
 
@@ -50,6 +58,22 @@ import uk.co.senab.photoview.gestures.CupcakeGestureDetector;
 public class AndroFotoFinderApp extends Application {
     private LogCat mCrashSaveToFile = null;
 
+    /** changes by other apps (i.e. camera or media scanner) make cached query results invalid */
+    private final ContentObserver mMediaObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // android before 4.1 does not tell which uri has changed
+            FotoSql.invalidateQueryCache("media changed", null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            FotoSql.invalidateQueryCache("media changed " + uri, uri);
+        }
+    };
+
+    /** updates the media db when photos are changed by other apps without media scanner. see {@link Global#watchMediaFolders} */
+    private MediaFolderWatcher mMediaFolderWatcher = null;
 
     /*
         private RefWatcher refWatcher;
@@ -91,6 +115,8 @@ public class AndroFotoFinderApp extends Application {
 
         ThumbNailUtils.init(this, null);
 
+        getContentResolver().registerContentObserver(Uri.parse("content://media/external/"), true, mMediaObserver);
+
         //https://github.com/osmdroid/osmdroid/issues/366
         //super important. Many tile servers, including open street maps, will BAN applications by user
         OpenStreetMapTileProviderConstants.setUserAgentValue(getAppId() + " https://github.com/k3b/APhotoManager"); // BuildConfig.APPLICATION_ID);
@@ -106,6 +132,43 @@ public class AndroFotoFinderApp extends Application {
         return getString(R.string.app_name) + " " + GuiUtil.getAppVersionName(this);
     }
 
+    /** starts or stops watching the photo folders depending on {@link Global#watchMediaFolders}. Called when the gallery is visible */
+    public void updateMediaFolderWatcher() {
+        if (Global.watchMediaFolders) {
+            if (mMediaFolderWatcher == null) mMediaFolderWatcher = new MediaFolderWatcher(this);
+            mMediaFolderWatcher.start(
+                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getPath(),
+                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES).getPath());
+        } else if (mMediaFolderWatcher != null) {
+            mMediaFolderWatcher.stop();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // no ui is visible any more
+            if (mMediaFolderWatcher != null) mMediaFolderWatcher.stop();
+
+            // onTerminate() is never called on real devices
+            compactTagRepositoryInBackground();
+        }
+    }
+
+    /** fold tag-journal into tagDB.txt */
+    private void compactTagRepositoryInBackground() {
+        final TagRepository repository = TagRepository.getInstance();
+        if ((repository != null) && repository.isCompactionPending()) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    repository.compact();
+                }
+            });
+        }
+    }
+
     @Override
     public void onTerminate() {
         Log.i(Global.LOG_CONTEXT, getAppId() + " terminated");
@@ -118,6 +181,8 @@ public class AndroFotoFinderApp extends Application {
 
     public void saveToFile() {
         if (mCrashSaveToFile != null) {
+            // so that query statistics become part of the saved logcat
+            Log.i(Global.LOG_CONTEXT, "Query statistics:\n" + QueryStatistics.dump() + FotoSql.sQueryCache);
             mCrashSaveToFile.saveToFile();
         }
     }
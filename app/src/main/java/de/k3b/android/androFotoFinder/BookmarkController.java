@@ -28,9 +28,11 @@ import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -220,10 +222,10 @@ public class BookmarkController {
             } else {
                 File inFile = getFile(fileName);
 
-                String sql;
+                Reader reader = null;
                 try {
-                    sql = FileUtils.readFile(inFile);
-                    QueryParameter query = QueryParameter.parse(sql);
+                    reader = new FileReader(inFile);
+                    QueryParameter query = QueryParameter.parse(reader);
                     consumer.setQuery(fileName, query);
                 } catch (Exception e) {
                     Toast.makeText(mContext,
@@ -231,6 +233,8 @@ public class BookmarkController {
                             Toast.LENGTH_LONG).show();
                     Log.e(Global.LOG_CONTEXT, "Error load query file '" + inFile.getAbsolutePath() + "'", e);
                     e.printStackTrace();
+                } finally {
+                    FileUtils.close(reader, inFile);
                 }
             }
         }
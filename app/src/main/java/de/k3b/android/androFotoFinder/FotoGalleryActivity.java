@@ -62,6 +62,7 @@ import de.k3b.database.QueryParameter;
 import de.k3b.database.SelectedItems;
 import de.k3b.io.Directory;
 import de.k3b.io.DirectoryFormatter;
+import de.k3b.io.GalleryFilterKey;
 import de.k3b.io.GalleryFilterParameter;
 import de.k3b.io.GeoRectangle;
 import de.k3b.io.IDirectory;
@@ -545,6 +546,7 @@ public class FotoGalleryActivity extends LocalizedActivity implements Common,
     protected void onResume() {
         Global.debugMemory(mDebugPrefix, "onResume");
         super.onResume();
+        ((AndroFotoFinderApp) getApplication()).updateMediaFolderWatcher();
     }
 
     @Override
@@ -696,6 +698,14 @@ public class FotoGalleryActivity extends LocalizedActivity implements Common,
     }
 
     private void onFilterChanged(IGalleryFilter filter, String why) {
+        if ((filter != null) && !mGalleryQueryParameter.hasUserDefinedQuery()
+                && GalleryFilterKey.equals(filter, mGalleryQueryParameter.getCurrentFilterSettings())) {
+            // same photos as before: no need to reload
+            if (Global.debugEnabled) {
+                Log.i(Global.LOG_CONTEXT, mDebugPrefix + "onFilterChanged(" + why + ") unchanged " + filter);
+            }
+            return;
+        }
         if (filter != null) {
             this.mGalleryQueryParameter.setCurrentFilterSettings(filter);
             this.mGalleryQueryParameter.setHasUserDefinedQuery(false);
@@ -89,6 +89,12 @@ public class Global {
      */
     public static boolean clearSelectionAfterCommand = false;
 
+    /**
+     * If checked the photo folders are watched while the gallery is visible and the media db is updated
+     * when other apps change photos without the media scanner.
+     */
+    public static boolean watchMediaFolders = false;
+
     /**
      * true update only if media scanner is not running. false=risky=always allow.
      */
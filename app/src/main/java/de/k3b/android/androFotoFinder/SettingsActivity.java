@@ -46,6 +46,7 @@ import de.k3b.android.util.MediaScanner;
 import de.k3b.android.util.MediaScannerEx;
 import de.k3b.android.widget.AboutDialogPreference;
 import de.k3b.android.widget.LocalizedActivity;
+import de.k3b.database.QueryStatistics;
 import de.k3b.tagDB.TagRepository;
 import io.github.lonamiwebs.stringlate.utilities.Api;
 import uk.co.senab.photoview.PhotoViewAttacher;
@@ -133,6 +134,7 @@ public class SettingsActivity extends PreferenceActivity {
         prefs.putBoolean("debugEnableLibs", PhotoViewAttacher.DEBUG);
 
         prefs.putBoolean("clearSelectionAfterCommand", Global.clearSelectionAfterCommand);
+        prefs.putBoolean("watchMediaFolders", Global.watchMediaFolders);
         prefs.putBoolean("mapsForgeEnabled", Global.mapsForgeEnabled);
 
         prefs.putString("imageDetailThumbnailIfBiggerThan", "" + Global.imageDetailThumbnailIfBiggerThan);
@@ -163,6 +165,7 @@ public class SettingsActivity extends PreferenceActivity {
 
         Global.debugEnabledViewItem = getPref(prefs, "debugEnabledViewItem", Global.debugEnabledViewItem);
         Global.debugEnabledSql = getPref(prefs, "debugEnabledSql", Global.debugEnabledSql);
+        QueryStatistics.enabled = Global.debugEnabled || Global.debugEnabledSql;
 
         Global.debugEnabledMap = getPref(prefs, "debugEnabledMap", Global.debugEnabledMap);
 
@@ -186,6 +189,7 @@ public class SettingsActivity extends PreferenceActivity {
         Global.initialImageDetailResolutionHigh = getPref(prefs, "initialImageDetailResolutionHigh", Global.initialImageDetailResolutionHigh);
 
         Global.clearSelectionAfterCommand = getPref(prefs, "clearSelectionAfterCommand", Global.clearSelectionAfterCommand);
+        Global.watchMediaFolders = getPref(prefs, "watchMediaFolders", Global.watchMediaFolders);
 
         Global.mapsForgeEnabled = getPref(prefs, "mapsForgeEnabled", Global.mapsForgeEnabled);
 
@@ -214,6 +218,7 @@ public class SettingsActivity extends PreferenceActivity {
         debugEnabledMemory
         initialImageDetailResolutionHigh
         clearSelectionAfterCommand
+        watchMediaFolders
 
         // int
         maxSelectionMarkersInMap
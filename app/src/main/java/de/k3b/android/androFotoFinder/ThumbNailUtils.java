@@ -81,6 +81,12 @@ public class ThumbNailUtils {
         ImageLoader.getInstance().displayImage(FotoSql.getUriString(iconID), imageView, mDisplayImageOptions);
     }
 
+    /** imageView shows the loading image instead of a thumbnail that may still load into the recycled view */
+    public static void showLoading(ImageView imageView) {
+        ImageLoader.getInstance().cancelDisplayTask(imageView);
+        imageView.setImageResource(R.drawable.image_loading);
+    }
+
     public static void getThumb(String fullPath, ImageView imageView) {
 
         if ((imageView != null) && (fullPath != null) && (fullPath.length() > 0)) {
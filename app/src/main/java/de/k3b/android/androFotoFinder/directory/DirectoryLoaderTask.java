@@ -21,7 +21,6 @@ package de.k3b.android.androFotoFinder.directory;
 
 import android.app.Activity;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 
@@ -95,8 +94,7 @@ public class DirectoryLoaderTask extends AsyncTask<QueryParameter, Integer, IDir
         }
         Cursor cursor = null;
         try {
-            cursor = context.getContentResolver().query(Uri.parse(queryParameters.toFrom()), queryParameters.toColumns(),
-                    queryParameters.toAndroidWhere(), queryParameters.toAndroidParameters(), queryParameters.toOrderBy());
+            cursor = FotoSql.createCursorForQueryCached("DirectoryLoaderTask", context, queryParameters);
 
             int itemCount = cursor.getCount();
             final int expectedCount = itemCount + itemCount;
@@ -66,10 +66,14 @@ import de.k3b.io.FileUtils;
 import de.k3b.io.GalleryFilterParameter;
 import de.k3b.io.IDirectory;
 import de.k3b.io.OSDirectory;
+import de.k3b.io.OSDirectoryCrawler;
 
 import java.io.File;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 // import static android.view.MenuItem.SHOW_AS_ACTION_NEVER;
 
 /**
@@ -161,6 +165,37 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
     private int mLastIconID = -1;
     private int mContextMenue = 0;
 
+    private static final int PREFETCH_THREAD_COUNT = 2;
+    // grandfather, expandable children and their children
+    private static final int PREFETCH_DEPTH = 3;
+    // more dirs are loaded on demand
+    private static final int PREFETCH_QUEUE_SIZE = 256;
+
+    // shared by all pickers so that prefetches of several navigations do not pile up threads.
+    // cancelPrefetch() removes the queued dirs of the previous navigation.
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(
+            PREFETCH_THREAD_COUNT, PREFETCH_THREAD_COUNT, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE));
+
+    static {
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    // not null while os sub directories are loaded in the background
+    private OSDirectoryCrawler mCrawler = null;
+
+    // true while the os directory tree is loaded in the background
+    private boolean mLoadingOSDirectoryRoot = false;
+    private boolean mDestroyed = false;
+
+    // os dirs that changed since the last snapshot are shown when the background refresh finds them
+    private final OSDirectoryTree.OnChangedListener mOSDirectoryChangedListener = new OSDirectoryTree.OnChangedListener() {
+        @Override
+        public void onDirectoryChanged(IDirectory dir) {
+            if (mAdapter != null) mAdapter.notifyDataSetChanged();
+        }
+    };
+
     // not null when renumber dialog is open.
     private AsyncTask mSubTask = null;
     private AlertDialog mSubDialog = null;
@@ -431,7 +466,7 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
                 onParentPathBarButtonClick(newChild);
             } else {
                 msgId = R.string.mk_err_failed_format;
-                parentDir.getChildren().remove(newChild);
+                ((OSDirectory) parentDir).removeChild(newChild);
                 newChild.destroy();
             }
             Toast.makeText(getActivity(), getActivity().getString(msgId, newPathAbsolute),
@@ -576,7 +611,7 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
         super.onResume();
 
         // after rotation dlg has no more data: close it
-        if (this.getShowsDialog() && (this.mNavigation == null) && isResumed()) {
+        if (this.getShowsDialog() && (this.mNavigation == null) && !mLoadingOSDirectoryRoot && isResumed()) {
             // isResumed() else Can not perform this action after onSaveInstanceState
             // http://stackoverflow.com/a/23034285/519334
             dismiss();
@@ -588,11 +623,32 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
         mSubDialog = null;
         if (mSubTask != null) mSubTask.cancel(false);
         mSubTask = null;
+        cancelPrefetch();
+    }
+
+    /** os dirs only: load the next levels below dir in the background so expanding them is fast */
+    private void prefetch(IDirectory dir) {
+        cancelPrefetch();
+        if (dir instanceof OSDirectory) {
+            mCrawler = new OSDirectoryCrawler(PREFETCH_EXECUTOR, PREFETCH_DEPTH);
+            mCrawler.start((OSDirectory) dir);
+        }
+    }
+
+    private void cancelPrefetch() {
+        if (mCrawler != null) mCrawler.cancel();
+        mCrawler = null;
     }
 
     @Override
     public void onDestroy() {
+        mDestroyed = true;
         closeAll();
+        OSDirectoryTree.removeListener(mOSDirectoryChangedListener);
+        if ((mContext != null) && (mNavigation != null) && (mNavigation.getRoot() instanceof OSDirectory)) {
+            // remember os dirs loaded on demand
+            OSDirectoryTree.save(mContext);
+        }
         super.onDestroy();
         // RefWatcher refWatcher = AndroFotoFinderApp.getRefWatcher(getActivity());
         // refWatcher.watch(this);
@@ -779,10 +835,30 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
         mDirTypId = dirTypId;
         if (root != null)
             mNavigation = new DirectoryNavigator(root);
+        if (root instanceof OSDirectory) {
+            OSDirectoryTree.addListener(mOSDirectoryChangedListener);
+        }
 
         navigateTo(initialAbsolutePath);
     }
 
+    /**
+     * Same as {@link #defineDirectoryNavigation(IDirectory, int, String)} for the os directory tree
+     * which may still be loaded in the background.
+     */
+    public void defineOSDirectoryNavigation(Context context, final int dirTypId, final String initialAbsolutePath) {
+        mLoadingOSDirectoryRoot = true;
+        OSDirectoryTree.getRoot(context, new OSDirectoryTree.OnRootLoadedListener() {
+            @Override
+            public void onRootLoaded(OSDirectory root) {
+                mLoadingOSDirectoryRoot = false;
+                if (!mDestroyed) {
+                    defineDirectoryNavigation(root, dirTypId, initialAbsolutePath);
+                }
+            }
+        });
+    }
+
     /**
      * refreshLocal tree to new newGrandParent by preserving selection
      */
@@ -791,6 +867,7 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
             Log.d(TAG, debugPrefix + "navigateTo(" +
                     newGrandParent.getAbsolute() + ")");
             mNavigation.setCurrentGrandFather(newGrandParent);
+            prefetch(newGrandParent);
             this.mTreeView.setAdapter(mAdapter);
             if (newGroupSelection >= 0) {
                 /// find selectedChild as new selectedGroup and expand it
@@ -811,6 +888,7 @@ public class DirectoryPickerFragment extends DialogFragment implements Directory
         if ((mNavigation != null) && (absolutePath != null)) {
             mCurrentSelection = mNavigation.getRoot().find(absolutePath);
             mNavigation.navigateTo(mCurrentSelection);
+            prefetch(mCurrentSelection);
         }
 
         // does nothing if OnCreate() has not been called yet
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.androFotoFinder.directory;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.io.FileUtils;
+import de.k3b.io.IDirectory;
+import de.k3b.io.OSDirectory;
+import de.k3b.io.OSDirectorySnapshot;
+
+/**
+ * The os directory tree shared by all directory pickers.
+ *
+ * On first use the tree is loaded in the background from a snapshot in the app's data dir without
+ * listing dirs. Then dirs that changed since the snapshot are listed again in the background
+ * (at most once per {@link #REFRESH_INTERVAL_MILLIS}) and {@link OnChangedListener}s are notified in the gui thread.
+ */
+public class OSDirectoryTree {
+    private static final String SNAPSHOT_FILE_NAME = "osDirectories.txt";
+    private static final String ENCODING = "UTF-8";
+    private static final String ROOT = "/";
+
+    /** dirs are checked for changes at most once in this time */
+    private static final long REFRESH_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    /** gui thread is notified about changes of the tree */
+    public interface OnChangedListener {
+        void onDirectoryChanged(IDirectory dir);
+    }
+
+    /** gui thread receives the tree when it is loaded */
+    public interface OnRootLoadedListener {
+        void onRootLoaded(OSDirectory root);
+    }
+
+    private static OSDirectory sRoot = null;
+    private static OSDirectorySnapshot sRefresh = null;
+    private static long sLastRefreshStart = 0;
+    private static final List<OnChangedListener> sListeners = new ArrayList<OnChangedListener>();
+    /** not empty while the snapshot is loaded */
+    private static final List<OnRootLoadedListener> sRootLoadedListeners = new ArrayList<OnRootLoadedListener>();
+    private static final Handler sGuiHandler = new Handler(Looper.getMainLooper());
+
+    /** saves one after the other without blocking AsyncTask.SERIAL_EXECUTOR of the gui */
+    private static final ThreadPoolExecutor sSaveExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sSaveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Calls listener with the tree that is refreshed in the background. The first time the snapshot
+     * is loaded in the background, else listener is called immediately. Must be called in gui thread.
+     */
+    public static void getRoot(Context context, OnRootLoadedListener listener) {
+        final Context appContext = context.getApplicationContext();
+        OSDirectory root;
+        synchronized (OSDirectoryTree.class) {
+            root = sRoot;
+        }
+        if (root != null) {
+            refreshIfDue(appContext, root);
+            listener.onRootLoaded(root);
+            return;
+        }
+
+        sRootLoadedListeners.add(listener);
+        if (sRootLoadedListeners.size() > 1) return; // already loading
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                OSDirectory loaded = loadSnapshot(appContext);
+                final OSDirectory root = (loaded != null) ? loaded : new OSDirectory(ROOT, null);
+                sGuiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (OSDirectoryTree.class) {
+                            sRoot = root;
+                        }
+                        refreshIfDue(appContext, root);
+                        List<OnRootLoadedListener> listeners = new ArrayList<OnRootLoadedListener>(sRootLoadedListeners);
+                        sRootLoadedListeners.clear();
+                        for (OnRootLoadedListener listener : listeners) {
+                            listener.onRootLoaded(root);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** must be called in gui thread */
+    public static void addListener(OnChangedListener listener) {
+        if (!sListeners.contains(listener)) sListeners.add(listener);
+    }
+
+    /** must be called in gui thread */
+    public static void removeListener(OnChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /** saves the loaded part of the tree in the background, so that it is available next time */
+    public static void save(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final OSDirectory root;
+        synchronized (OSDirectoryTree.class) {
+            root = sRoot;
+        }
+        if (root != null) {
+            sSaveExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    saveSnapshot(appContext, root);
+                }
+            });
+        }
+    }
+
+    private static synchronized void refreshIfDue(Context appContext, OSDirectory root) {
+        long now = System.currentTimeMillis();
+        if ((sRefresh == null) && (now - sLastRefreshStart >= REFRESH_INTERVAL_MILLIS)) {
+            sLastRefreshStart = now;
+            refresh(appContext, root);
+        }
+    }
+
+    private static void refresh(final Context appContext, final OSDirectory root) {
+        final OSDirectorySnapshot refresh = new OSDirectorySnapshot();
+        sRefresh = refresh;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                int count = 0;
+                try {
+                    count = refresh.refresh(root, new OSDirectorySnapshot.OnDirectoryChangedListener() {
+                        @Override
+                        public void onDirectoryChanged(final OSDirectory dir, final Runnable apply) {
+                            sGuiHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    apply.run();
+                                    for (OnChangedListener listener : new ArrayList<OnChangedListener>(sListeners)) {
+                                        listener.onDirectoryChanged(dir);
+                                    }
+                                }
+                            });
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    Log.w(Global.LOG_CONTEXT, "OSDirectoryTree.refresh(" + root + ") failed", ex);
+                } finally {
+                    synchronized (OSDirectoryTree.class) {
+                        sRefresh = null;
+                    }
+                }
+                if (Global.debugEnabled) {
+                    Log.i(Global.LOG_CONTEXT, "OSDirectoryTree.refresh(" + root + ") : " + count + " dirs changed");
+                }
+                // after the changes that were posted to the gui thread have been applied
+                sGuiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        save(appContext);
+                    }
+                });
+            }
+        });
+    }
+
+    private static File getSnapshotFile(Context appContext) {
+        return new File(appContext.getFilesDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    private static OSDirectory loadSnapshot(Context appContext) {
+        File file = getSnapshotFile(appContext);
+        if (!file.exists()) return null;
+
+        long start = System.currentTimeMillis();
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), ENCODING);
+            OSDirectory result = OSDirectorySnapshot.load(reader, FileUtils.tryGetCanonicalFile(ROOT));
+            if (Global.debugEnabled) {
+                Log.i(Global.LOG_CONTEXT, "OSDirectoryTree.loadSnapshot(" + file + ") in "
+                        + (System.currentTimeMillis() - start) + " ms" + ((result == null) ? " : invalid" : ""));
+            }
+            return result;
+        } catch (IOException ex) {
+            Log.w(Global.LOG_CONTEXT, "OSDirectoryTree.loadSnapshot(" + file + ") failed", ex);
+            return null;
+        } finally {
+            FileUtils.close(reader, file);
+        }
+    }
+
+    private static void saveSnapshot(Context appContext, OSDirectory root) {
+        File file = getSnapshotFile(appContext);
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), ENCODING);
+            OSDirectorySnapshot.save(root, writer);
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(Global.LOG_CONTEXT, "OSDirectoryTree.saveSnapshot(" + file + ") cannot rename " + tempFile);
+            }
+        } catch (IOException ex) {
+            Log.w(Global.LOG_CONTEXT, "OSDirectoryTree.saveSnapshot(" + file + ") failed", ex);
+        } finally {
+            FileUtils.close(writer, tempFile);
+        }
+    }
+}
@@ -135,7 +135,11 @@ public class GalleryCursorAdapter extends CursorAdapter implements SelectedItems
             if (Global.debugEnabledViewItem)
                 Log.i(Global.LOG_CONTEXT, mDebugPrefix + "bindView for " + holder);
         } else {
-            Log.w(Global.LOG_CONTEXT, mDebugPrefix + "bindView for " + holder + ": no uri found in col " + FotoSql.SQL_COL_PATH);
+            ThumbNailUtils.showLoading(holder.image);
+            // imageID 0: placeholder of KeysetPagedCursor while the row is loaded in the background
+            if (imageID != 0) {
+                Log.w(Global.LOG_CONTEXT, mDebugPrefix + "bindView for " + holder + ": no uri found in col " + FotoSql.SQL_COL_PATH);
+            }
         }
     }
 
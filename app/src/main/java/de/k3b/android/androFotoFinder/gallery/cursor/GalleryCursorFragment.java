@@ -22,10 +22,13 @@ package de.k3b.android.androFotoFinder.gallery.cursor;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.LoaderManager;
+import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -47,6 +50,7 @@ import android.widget.Toast;
 import org.osmdroid.api.IGeoPoint;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -59,6 +63,7 @@ import de.k3b.android.androFotoFinder.directory.DirectoryGui;
 import de.k3b.android.androFotoFinder.directory.DirectoryPickerFragment;
 import de.k3b.android.androFotoFinder.imagedetail.ImageDetailActivityViewPager;
 import de.k3b.android.androFotoFinder.imagedetail.ImageDetailMetaDialogBuilder;
+import de.k3b.android.androFotoFinder.queries.DatabaseHelper;
 import de.k3b.android.androFotoFinder.queries.FotoSql;
 import de.k3b.android.androFotoFinder.queries.FotoViewerParameter;
 import de.k3b.android.androFotoFinder.queries.Queryable;
@@ -66,11 +71,15 @@ import de.k3b.android.androFotoFinder.queries.SqlJobTaskBase;
 import de.k3b.android.androFotoFinder.tagDB.TagTask;
 import de.k3b.android.androFotoFinder.tagDB.TagWorflow;
 import de.k3b.android.androFotoFinder.tagDB.TagsPickerFragment;
+import de.k3b.android.androFotoFinder.transactionlog.TransactionLogSql;
 import de.k3b.android.util.AndroidFileCommands;
 import de.k3b.android.util.AndroidFileCommands44;
 import de.k3b.android.util.DBUtils;
+import de.k3b.android.util.DeltaMergedCursor;
+import de.k3b.android.util.KeysetPagedCursor;
 import de.k3b.android.util.MediaScanner;
 import de.k3b.android.widget.Dialogs;
+import de.k3b.database.IncrementalQuery;
 import de.k3b.database.QueryParameter;
 import de.k3b.database.SelectedFiles;
 import de.k3b.database.SelectedItems;
@@ -81,7 +90,6 @@ import de.k3b.io.Directory;
 import de.k3b.io.GalleryFilterParameter;
 import de.k3b.io.IDirectory;
 import de.k3b.io.IGalleryFilter;
-import de.k3b.io.OSDirectory;
 import de.k3b.tagDB.Tag;
 
 /**
@@ -147,6 +155,20 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
 
     private int mode = MODE_VIEW;
 
+    /** if there are more changes than this since the last query the full query is executed again */
+    private static final int MAX_DELTA_ROWS = 1000;
+
+    /** after this many incremental updates the full query is executed again */
+    private static final int MAX_DELTA_DEPTH = 20;
+
+    /**
+     * loader of the cursor in mAdapter. Keeps the state for incremental updates after media db changes
+     * so that it survives rotation.
+     */
+    private GalleryLoader mGalleryLoader = null;
+    private DeltaLoaderTask mDeltaLoader = null;
+    private boolean mDeltaPending = false;
+
     /**************** construction ******************/
     /**
      * 使用此工厂方法使用提供的参数创建此片段的新实例.
@@ -179,13 +201,18 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
         public Loader<Cursor> onCreateLoader(int aLoaderID, Bundle bundle) {
             if (loaderID == aLoaderID) {
                 QueryParameter query = getCurrentQuery();
+                FotoSql.setWhereVisibility(query, IGalleryFilter.VISIBILITY_DEFAULT);
+                IncrementalQuery incrementalQuery = new IncrementalQuery(query, FotoSql.SQL_COL_PK);
+                query = incrementalQuery.createFullQuery();
+
                 mRequeryInstanceCount++;
                 if (Global.debugEnabledSql) {
                     Log.i(Global.LOG_CONTEXT, mDebugPrefix + " onCreateLoader"
                             + getDebugContext() +
                             " : query = " + query);
                 }
-                return FotoSql.createCursorLoader(getActivity().getApplicationContext(), query);
+                return new GalleryLoader(getActivity().getApplicationContext(), incrementalQuery)
+                        .setOnContentChangedListener(mOnContentChangedListener);
             }
 
             // An invalid id was passed in
@@ -202,10 +229,13 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
             final Activity context = getActivity();
             if (data == null) {
                 FotoSql.CursorLoaderWithException loader = (FotoSql.CursorLoaderWithException) _loader;
-                String title;
-                String message = context.getString(R.string.global_err_sql_message_format, loader.getException().getMessage(), loader.getQuery().toSqlString());
                 if (loader.getException() != null) {
-                    if (0 != loader.getQuery().toSqlString().compareTo(getCurrentQuery(FotoSql.queryDetail).toSqlString())) {
+                    String title;
+                    String message = context.getString(R.string.global_err_sql_message_format, loader.getException().getMessage(), loader.getQuery().toSqlString());
+                    // without the sort key columns of IncrementalQuery
+                    QueryParameter query = (loader instanceof GalleryLoader)
+                            ? ((GalleryLoader) loader).mIncrementalQuery.getQuery() : loader.getQuery();
+                    if (0 != query.toSqlString().compareTo(getCurrentQuery(FotoSql.queryDetail).toSqlString())) {
                         // query is not default query. revert to default query
                         mGalleryContentQuery = FotoSql.queryDetail;
                         requery("requery after query-errror");
@@ -219,8 +249,15 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
                 }
             }
 
+            mGalleryLoader = (_loader instanceof GalleryLoader) ? (GalleryLoader) _loader : null;
+            GalleryLoader.Loaded loaded = (mGalleryLoader == null) ? null : mGalleryLoader.getLoaded(data);
+            if (loaded != null) {
+                // the result may have been updated incrementally i.e. before rotation
+                data = loaded.mShown;
+            }
+
             // do change the data
-            mAdapter.swapCursor(data);
+            closeIfMerged(mAdapter.swapCursor(data));
 
             if (mLastVisiblePosition > 0) {
                 mGalleryView.smoothScrollToPosition(mLastVisiblePosition);
@@ -261,7 +298,8 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
             // rember position where we have to scroll to after refreshLocal is finished.
             mLastVisiblePosition = mGalleryView.getLastVisiblePosition();
 
-            mAdapter.swapCursor(null);
+            mGalleryLoader = null;
+            closeIfMerged(mAdapter.swapCursor(null));
             mAdapter.notifyDataSetChanged();
         }
 
@@ -276,6 +314,20 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
 
     protected LocalCursorLoader mCurorLoader = null;
 
+    /** media db has changed: update current result incrementally if possible */
+    private final FotoSql.CursorLoaderWithException.OnContentChangedListener mOnContentChangedListener
+            = new FotoSql.CursorLoaderWithException.OnContentChangedListener() {
+        @Override
+        public boolean onContentChanged(FotoSql.CursorLoaderWithException loader) {
+            return requeryIncremental("onContentChanged");
+        }
+    };
+
+    /** merged cursors own their base/delta cursors that are not closed by the loader */
+    private static void closeIfMerged(Cursor oldCursor) {
+        if (oldCursor instanceof DeltaMergedCursor) oldCursor.close();
+    }
+
     protected class LocalFileCommands extends AndroidFileCommands44 {
 
         @Override
@@ -290,6 +342,9 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
             if ((mAdapter.isInArrayMode()) && ((opCode == OP_RENAME) || (opCode == OP_MOVE) || (opCode == OP_DELETE))) {
                 mAdapter.refreshLocal();
                 mGalleryView.setAdapter(mAdapter);
+            } else if (modifyCount > 0) {
+                // transaction log is complete now. media db change notifications may have come earlier.
+                requeryIncremental(what);
             }
         }
     }
@@ -551,6 +606,253 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
         }
     }
 
+    /**
+     * Initiates loading only the items that changed since the last query in the background
+     * and merging them into the current result.
+     *
+     * @return false if this is not possible and the full query must be executed again.
+     */
+    private boolean requeryIncremental(String why) {
+        Cursor current = (mAdapter == null) ? null : mAdapter.getCursor();
+        GalleryLoader.Loaded loaded = (mGalleryLoader == null) ? null : mGalleryLoader.mLoaded;
+        if ((getActivity() == null) || (loaded == null) || (current == null) || (current != loaded.mShown)
+                || mAdapter.isInArrayMode()
+                // not supported by query or paged: merging would load all pages. reloading the visible page is cheap
+                || (loaded.mRowKeys == null)
+                || (DeltaMergedCursor.getDepth(current) >= MAX_DELTA_DEPTH)) {
+            return false;
+        }
+
+        if (mDeltaLoader != null) {
+            // load again after current delta is finished
+            mDeltaPending = true;
+        } else {
+            mDeltaLoader = new DeltaLoaderTask(why, mGalleryLoader, loaded);
+            mDeltaLoader.execute();
+        }
+        return true;
+    }
+
+    /** loads the items that changed since the last query */
+    private class DeltaLoaderTask extends AsyncTask<Void, Void, Cursor> {
+        private final String mWhy;
+        private final Context mContext;
+        private final SQLiteDatabase mTransactionLogDb;
+        private final GalleryLoader mLoader;
+        /** state of mLoader that the delta is based on */
+        private final GalleryLoader.Loaded mLoaded;
+        private final IncrementalQuery mQuery;
+        private final long mSinceTransactionLogId;
+        private final long mSinceMillis;
+        private final long mStartMillis = System.currentTimeMillis();
+        /** delta is merged into this cursor. Only its keys are read in the background */
+        private final Cursor mCurrent;
+        private final IncrementalQuery.RowKeys mCurrentKeys;
+
+        private final HashSet<Long> mChangedIds = new HashSet<Long>();
+        private long mNewTransactionLogId;
+        private int[] mMerged = null;
+        private IncrementalQuery.RowKeys mMergedKeys = null;
+
+        DeltaLoaderTask(String why, GalleryLoader loader, GalleryLoader.Loaded loaded) {
+            mWhy = why;
+            mContext = getActivity().getApplicationContext();
+            mTransactionLogDb = DatabaseHelper.getWritableDatabase(getActivity());
+            mLoader = loader;
+            mLoaded = loaded;
+            mQuery = loader.mIncrementalQuery;
+            mSinceTransactionLogId = loaded.mTransactionLogId;
+            mSinceMillis = loaded.mQueryMillis;
+            mCurrent = loaded.mShown;
+            mCurrentKeys = loaded.mRowKeys;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Cursor delta = null;
+            try {
+                mNewTransactionLogId = TransactionLogSql.getModifiedMediaIds(mTransactionLogDb,
+                        mSinceTransactionLogId, MAX_DELTA_ROWS, mChangedIds);
+                if (mNewTransactionLogId < 0) return null;
+
+                // media db stores seconds. -1 in case the clock second changed while inserting.
+                String sinceSeconds = Long.toString(mSinceMillis / 1000 - 1);
+                QueryParameter deltaQuery = mQuery.createDeltaQuery(mChangedIds, FotoSql.SQL_EXPR_MODIFIED_SINCE,
+                        sinceSeconds, sinceSeconds);
+                // null: too many changed ids
+                if (deltaQuery == null) return null;
+
+                delta = FotoSql.createCursorForQuery(mDebugPrefix + "DeltaLoaderTask " + mWhy, mContext, deltaQuery);
+                if (delta.getCount() > MAX_DELTA_ROWS) {
+                    delta.close();
+                    return null;
+                }
+
+                IncrementalQuery.RowKeys deltaKeys = IncrementalQuery.RowKeys.copy(
+                        new DeltaMergedCursor.Rows(delta, mQuery), mQuery.getSortKeyCount());
+                int[] merged = mQuery.merge(mCurrentKeys, mChangedIds, deltaKeys);
+
+                // used to detect changes that are neither in the transaction log nor in delta (i.e. deleted by other app)
+                int count = FotoSql.execGetCount(mDebugPrefix + "DeltaLoaderTask " + mWhy, mContext, mQuery.createCountQuery());
+                if (merged.length != count) {
+                    if (Global.debugEnabled) {
+                        Log.i(Global.LOG_CONTEXT, mDebugPrefix + "DeltaLoaderTask " + mWhy + " expected "
+                                + count + " rows but merged " + merged.length);
+                    }
+                    delta.close();
+                    return null;
+                }
+                mMerged = merged;
+                mMergedKeys = mCurrentKeys.merge(merged, deltaKeys);
+                return delta;
+            } catch (Exception ex) {
+                Log.e(Global.LOG_CONTEXT, mDebugPrefix + "DeltaLoaderTask " + mWhy + " failed", ex);
+                if (delta != null) delta.close();
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor delta) {
+            mDeltaLoader = null;
+            if (!onDeltaLoaded(this, delta)) {
+                mDeltaPending = false;
+                if (mAdapter != null) requery(mWhy + " (full requery)");
+            } else if (mDeltaPending) {
+                mDeltaPending = false;
+                if (!requeryIncremental(mWhy)) requery(mWhy + " (full requery)");
+            }
+        }
+    }
+
+    /**
+     * Full query that also remembers the watermark and the sort keys of its result
+     * in the loader thread so that {@link DeltaLoaderTask} can merge without touching the cursor.
+     *
+     * The loader is kept by the LoaderManager during rotation but re-delivers its own cursor.
+     * {@link Loaded#mShown} is the incrementally updated result that must be shown instead.
+     */
+    private static class GalleryLoader extends FotoSql.CursorLoaderWithException {
+        /** immutable state of a loaded cursor */
+        private static class Loaded {
+            /** loaded by this loader */
+            private final Cursor mCursor;
+            /** mCursor or a {@link DeltaMergedCursor} based on it */
+            private final Cursor mShown;
+            /** watermark: last processed {@link TransactionLogSql} id */
+            private final long mTransactionLogId;
+            /** watermark: time of last query for media items that were added or modified outside the transaction log */
+            private final long mQueryMillis;
+            /** ids and sort keys of mShown. null: cannot be updated incrementally */
+            private final IncrementalQuery.RowKeys mRowKeys;
+
+            Loaded(Cursor cursor, Cursor shown, long transactionLogId, long queryMillis, IncrementalQuery.RowKeys rowKeys) {
+                mCursor = cursor;
+                mShown = shown;
+                mTransactionLogId = transactionLogId;
+                mQueryMillis = queryMillis;
+                mRowKeys = rowKeys;
+            }
+        }
+
+        private final IncrementalQuery mIncrementalQuery;
+        private volatile Loaded mLoaded = null;
+
+        GalleryLoader(Context context, IncrementalQuery query) {
+            super(context, query.createFullQuery());
+            mIncrementalQuery = query;
+            setPaging(query);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            // watermark before the query: later changes are loaded by the next DeltaLoaderTask
+            long transactionLogId = TransactionLogSql.getLastId(DatabaseHelper.getWritableDatabase(getContext()));
+            long queryMillis = System.currentTimeMillis();
+
+            Cursor result = super.loadInBackground();
+            IncrementalQuery.RowKeys rowKeys = null;
+            if ((result != null) && !(result instanceof KeysetPagedCursor) && mIncrementalQuery.isSupported()) {
+                rowKeys = IncrementalQuery.RowKeys.copy(new DeltaMergedCursor.Rows(result, mIncrementalQuery),
+                        mIncrementalQuery.getSortKeyCount());
+            }
+            setLoaded(new Loaded(result, result, transactionLogId, queryMillis, rowKeys));
+            return result;
+        }
+
+        private synchronized void setLoaded(Loaded loaded) {
+            mLoaded = loaded;
+        }
+
+        /**
+         * called in gui thread after a delta has been merged.
+         *
+         * @return false if expected is obsolete because a new result was loaded in the meantime
+         */
+        synchronized boolean replaceLoaded(Loaded expected, Loaded merged) {
+            if (mLoaded != expected) return false;
+            mLoaded = merged;
+            return true;
+        }
+
+        @Override
+        protected void onReset() {
+            Loaded loaded = mLoaded;
+            super.onReset();
+            // the merged cursor owns the delta cursors
+            if ((loaded != null) && (loaded.mShown instanceof DeltaMergedCursor)) loaded.mShown.close();
+            setLoaded(null);
+        }
+
+        /** @return watermark and keys of cursor or null if unknown */
+        Loaded getLoaded(Cursor cursor) {
+            Loaded loaded = mLoaded;
+            return ((loaded != null) && (loaded.mCursor == cursor)) ? loaded : null;
+        }
+    }
+
+    /**
+     * merges delta into current result
+     *
+     * @return false if the full query must be executed again
+     */
+    private boolean onDeltaLoaded(DeltaLoaderTask task, Cursor delta) {
+        if ((mAdapter == null) || (task.mLoader != mGalleryLoader) || (mAdapter.getCursor() != task.mCurrent)) {
+            // fragment destroyed or new full query in progress or loaded: delta is obsolete
+            if (delta != null) delta.close();
+            return true;
+        }
+
+        if (delta == null) return false;
+
+        int[] merged = task.mMerged;
+        Cursor mergedCursor = new DeltaMergedCursor(task.mCurrent, delta, merged);
+        if (!task.mLoader.replaceLoaded(task.mLoaded, new GalleryLoader.Loaded(task.mLoaded.mCursor, mergedCursor,
+                task.mNewTransactionLogId, task.mStartMillis, task.mMergedKeys))) {
+            // new full result is about to be delivered. Closing mergedCursor would close current, too
+            delta.close();
+            return true;
+        }
+
+        int firstVisiblePosition = mGalleryView.getFirstVisiblePosition();
+
+        // current becomes part of the new cursor and must not be closed
+        mAdapter.swapCursor(mergedCursor);
+        mAdapter.notifyDataSetChanged();
+        mGalleryView.setSelection(IncrementalQuery.getNewPosition(merged, firstVisiblePosition));
+
+        if (Global.debugEnabled) {
+            Log.i(Global.LOG_CONTEXT, mDebugPrefix + " onDeltaLoaded(" + task.mWhy + ") "
+                    + delta.getCount() + " changed rows merged into " + merged.length);
+        }
+
+        Activity context = getActivity();
+        if (context instanceof OnGalleryInteractionListener) {
+            ((OnGalleryInteractionListener) context).setResultCount(merged.length);
+        }
+        return true;
+    }
+
     private QueryParameter getCurrentQuery() {
         return getCurrentQuery(mGalleryContentQuery);
     }
@@ -903,7 +1205,7 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
             Bundle args = new Bundle();
             args.putBoolean("move", move);
 
-            args.putSerializable(EXTRA_SELECTED_ITEM_PATHS, srcFotos.toString());
+            args.putSerializable(EXTRA_SELECTED_ITEM_PATHS, srcFotos.toCompactString());
             args.putSerializable(EXTRA_SELECTED_ITEM_IDS, srcFotos.toIdString());
 
             f.setArguments(args);
@@ -945,7 +1247,7 @@ public class GalleryCursorFragment extends Fragment implements Queryable, Direct
         if (AndroidFileCommands.canProcessFile(this.getActivity())) {
             MoveOrCopyDestDirPicker destDir = MoveOrCopyDestDirPicker.newInstance(move, fotos);
 
-            destDir.defineDirectoryNavigation(new OSDirectory("/", null),
+            destDir.defineOSDirectoryNavigation(this.getActivity(),
                     (move) ? FotoSql.QUERY_TYPE_GROUP_MOVE : FotoSql.QUERY_TYPE_GROUP_COPY,
                     lastCopyToPath);
             destDir.setContextMenuId(R.menu.menu_context_osdir);
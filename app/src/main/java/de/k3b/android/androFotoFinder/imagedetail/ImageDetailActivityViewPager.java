@@ -64,6 +64,7 @@ import de.k3b.android.util.MediaScannerAsyncTask;
 import de.k3b.android.widget.AboutDialogPreference;
 import de.k3b.android.widget.Dialogs;
 import de.k3b.android.widget.LocalizedActivity;
+import de.k3b.database.IncrementalQuery;
 import de.k3b.database.QueryParameter;
 import de.k3b.database.SelectedFiles;
 import de.k3b.geo.api.GeoPointDto;
@@ -71,7 +72,7 @@ import de.k3b.geo.io.GeoUri;
 import de.k3b.io.FileUtils;
 import de.k3b.io.GalleryFilterParameter;
 import de.k3b.io.IDirectory;
-import de.k3b.io.OSDirectory;
+import de.k3b.io.IGalleryFilter;
 import de.k3b.media.MediaUtil;
 import de.k3b.tagDB.Tag;
 
@@ -168,7 +169,9 @@ public class ImageDetailActivityViewPager extends LocalizedActivity implements C
                                 getDebugContext() +
                                 " : query = " + mGalleryContentQuery);
                     }
-                    return FotoSql.createCursorLoader(getApplicationContext(), mGalleryContentQuery);
+                    FotoSql.setWhereVisibility(mGalleryContentQuery, IGalleryFilter.VISIBILITY_DEFAULT);
+                    return FotoSql.createCursorLoader(getApplicationContext(),
+                            new IncrementalQuery(mGalleryContentQuery, FotoSql.SQL_COL_PK));
                 default:
                     // An invalid id was passed in
                     return null;
@@ -271,7 +274,7 @@ public class ImageDetailActivityViewPager extends LocalizedActivity implements C
             // Supply index input as an argument.
             Bundle args = new Bundle();
             args.putBoolean("move", move);
-            args.putSerializable(EXTRA_SELECTED_ITEM_PATHS, srcFotos.toString());
+            args.putSerializable(EXTRA_SELECTED_ITEM_PATHS, srcFotos.toCompactString());
             args.putSerializable(EXTRA_SELECTED_ITEM_IDS, srcFotos.toIdString());
             f.setArguments(args);
 
@@ -984,7 +987,7 @@ public class ImageDetailActivityViewPager extends LocalizedActivity implements C
         if (AndroidFileCommands.canProcessFile(this)) {
             MoveOrCopyDestDirPicker destDir = MoveOrCopyDestDirPicker.newInstance(move, fotos);
 
-            destDir.defineDirectoryNavigation(new OSDirectory("/", null),
+            destDir.defineOSDirectoryNavigation(this,
                     (move) ? FotoSql.QUERY_TYPE_GROUP_MOVE : FotoSql.QUERY_TYPE_GROUP_COPY,
                     lastCopyToPath);
             destDir.setContextMenuId(R.menu.menu_context_osdir);
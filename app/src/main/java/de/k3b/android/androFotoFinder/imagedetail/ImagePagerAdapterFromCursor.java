@@ -22,12 +22,14 @@ package de.k3b.android.androFotoFinder.imagedetail;
 import android.app.Activity;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
 import android.support.v4.view.PagerAdapter;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
@@ -41,6 +43,7 @@ import de.k3b.android.androFotoFinder.queries.FotoSql;
 import de.k3b.android.util.DBUtils;
 import de.k3b.android.util.GarbageCollector;
 import de.k3b.android.util.JpgMetaWorkflow;
+import de.k3b.android.util.KeysetPagedCursor;
 import de.k3b.database.SelectedItems;
 
 /**
@@ -51,6 +54,8 @@ import de.k3b.database.SelectedItems;
  */
 public class ImagePagerAdapterFromCursor extends PagerAdapter implements SelectedItems.Id2FileNameConverter {
     private static final int MAX_IMAGE_DIMENSION = HugeImageLoader.getMaxTextureSize();
+    /** tag of the views of rows that are not loaded yet. See {@link KeysetPagedCursor} */
+    private static final String TAG_PLACEHOLDER = "placeholder";
     // debug support
     private static int id = 0;
     protected final String mDebugPrefix;
@@ -63,6 +68,14 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter implements Selecte
 
     protected DisplayImageOptions mDisplayImageOptions;
 
+    /** a page of a {@link KeysetPagedCursor} was loaded: placeholder views can be replaced */
+    private final DataSetObserver mCursorObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            notifyDataSetChanged();
+        }
+    };
+
     public ImagePagerAdapterFromCursor(final Activity context, String name) {
         mActivity = context;
         mDebugPrefix = "ImagePagerAdapterFromCursor#" + (id++) + "@" + name + " ";
@@ -98,7 +111,9 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter implements Selecte
             return null;
         }
         Cursor oldCursor = mCursor;
+        if (oldCursor != null) oldCursor.unregisterDataSetObserver(mCursorObserver);
         mCursor = newCursor;
+        if (newCursor != null) newCursor.registerDataSetObserver(mCursorObserver);
         return oldCursor;
     }
 
@@ -194,10 +209,37 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter implements Selecte
                 return createViewWithContent(position, container, fullPhotoPath, "instantiateItemFromCursor(#", size);
             }
 
+            // page of the row is loaded in the background
+            return createPlaceholderView(position, container);
         }
         return null;
     }
 
+    /** shows {@link R.drawable#image_loading} until {@link #mCursorObserver} reports the loaded row */
+    private View createPlaceholderView(int position, ViewGroup container) {
+        ImageView view = new ImageView(container.getContext());
+        view.setImageResource(R.drawable.image_loading);
+        view.setTag(TAG_PLACEHOLDER);
+        if (Global.debugEnabledViewItem) {
+            Log.i(Global.LOG_CONTEXT, mDebugPrefix + "instantiateItemPlaceholder(#" + position + ")");
+        }
+
+        container.addView(view, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
+        return view;
+    }
+
+    /**
+     * Implementation for PagerAdapter:
+     * Placeholders are recreated by {@link #notifyDataSetChanged()}. Other pages stay.
+     */
+    @Override
+    public int getItemPosition(Object object) {
+        if ((object instanceof View) && TAG_PLACEHOLDER.equals(((View) object).getTag())) {
+            return POSITION_NONE;
+        }
+        return POSITION_UNCHANGED;
+    }
+
     /**
      * internal helper. return null if position is not available
      */
@@ -214,7 +256,10 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter implements Selecte
      */
     public int getPositionFromPath(String path) {
         int result = -1;
-        if ((this.mCursor != null) && (path != null)) {
+        if ((this.mCursor instanceof KeysetPagedCursor) && (path != null)) {
+            // reading all rows of a paged cursor would load every page
+            result = ((KeysetPagedCursor) this.mCursor).getPositionFromPath(mActivity, path);
+        } else if ((this.mCursor != null) && (path != null)) {
             int index = mCursor.getColumnIndex(FotoSql.SQL_COL_DISPLAY_TEXT);
             if ((index >= 0) && (mCursor.moveToFirst())) {
                 do {
@@ -88,10 +88,10 @@ public class GeoEditActivity extends LocalizedActivity implements Common {
 
         if ((selectedFiles != null) && (selectedFiles.size() > 0)) {
             intent.putExtra(EXTRA_SELECTED_ITEM_IDS, selectedFiles.toIdString());
-            intent.putExtra(EXTRA_SELECTED_ITEM_PATHS, selectedFiles.toString());
+            intent.putExtra(EXTRA_SELECTED_ITEM_PATHS, selectedFiles.toCompactString());
 
             Long id = selectedFiles.getId(0);
-            IGeoPointInfo initialPoint = MediaScanner.getInstance(context).getPositionFromFile(selectedFiles.getFileNames()[0], (id != null) ? id.toString() : null);
+            IGeoPointInfo initialPoint = MediaScanner.getInstance(context).getPositionFromFile(selectedFiles.getFileName(0), (id != null) ? id.toString() : null);
             if (initialPoint != null) {
                 initalUri = Uri.parse(PARSER.toUriString(initialPoint));
                 intent.setData(initalUri);
@@ -81,7 +81,7 @@ public class MapGeoPickerActivity extends LocalizedActivity implements Common {
                 MapGeoPickerActivity.class);
 
         if ((selectedItems != null) && (selectedItems.size() > 0)) {
-            intent.putExtra(EXTRA_SELECTED_ITEM_PATHS, selectedItems.toString());
+            intent.putExtra(EXTRA_SELECTED_ITEM_PATHS, selectedItems.toCompactString());
             intent.putExtra(EXTRA_SELECTED_ITEM_IDS, selectedItems.toIdString());
 
             IGeoPoint initialPoint = FotoSql.execGetPosition(context, null, selectedItems.getId(0));
@@ -22,7 +22,6 @@ package de.k3b.android.androFotoFinder.locationmap;
 import android.app.Activity;
 import android.database.Cursor;
 import android.graphics.drawable.BitmapDrawable;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.SystemClock;
 import android.util.Log;
@@ -96,8 +95,7 @@ public abstract class MarkerLoaderTask<MARKER extends ClickableIconOverlay> exte
 
         Cursor cursor = null;
         try {
-            cursor = mContext.getContentResolver().query(Uri.parse(queryParameters.toFrom()), queryParameters.toColumns(),
-                    queryParameters.toAndroidWhere(), queryParameters.toAndroidParameters(), queryParameters.toOrderBy());
+            cursor = FotoSql.createCursorForQuery(mDebugPrefix, mContext, queryParameters);
 
             int itemCount = cursor.getCount();
             final int expectedCount = itemCount + itemCount;
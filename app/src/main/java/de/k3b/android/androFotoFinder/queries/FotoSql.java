@@ -19,7 +19,6 @@
 
 package de.k3b.android.androFotoFinder.queries;
 
-import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -44,8 +43,15 @@ import java.util.Map;
 import de.k3b.FotoLibGlobal;
 import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.R;
+import de.k3b.android.util.CursorSnapshot;
 import de.k3b.android.util.DBUtils;
+import de.k3b.android.util.KeysetPagedCursor;
+import de.k3b.database.CompiledQuery;
+import de.k3b.database.CompressedPathList;
+import de.k3b.database.IncrementalQuery;
+import de.k3b.database.QueryCache;
 import de.k3b.database.QueryParameter;
+import de.k3b.database.QueryStatistics;
 import de.k3b.database.SelectedFiles;
 import de.k3b.database.SelectedItems;
 import de.k3b.io.DirectoryFormatter;
@@ -129,9 +135,20 @@ public class FotoSql extends FotoSqlBase {
     public static final String SQL_COL_PATH = MediaStore.Images.Media.DATA;
     protected static final String FILTER_EXPR_PATH_LIKE = "(" + SQL_COL_PATH + " like ?)";
 
+    /** parameters: seconds since 1970 (twice). Matches items that were inserted or whose file was modified since then. */
+    public static final String SQL_EXPR_MODIFIED_SINCE = "(" + MediaStore.MediaColumns.DATE_ADDED + " >= ? OR "
+            + MediaStore.MediaColumns.DATE_MODIFIED + " >= ?)";
+
     // same format as dir. i.e. description='/2014/12/24/' or '/mnt/sdcard/pictures/'
     public static final String SQL_EXPR_DAY = "strftime('/%Y/%m/%d/', " + SQL_COL_DATE_TAKEN + " /1000, 'unixepoch', 'localtime')";
 
+    /** results of {@link #createCursorForQueryCached(String, Context, QueryParameter)} with more rows are not cached */
+    private static final int QUERY_CACHE_MAX_ROWS = 2000;
+
+    /** cached query results. Hit/miss statistics are available via {@link QueryCache#toString()} */
+    public static final QueryCache<CursorSnapshot> sQueryCache = new QueryCache<CursorSnapshot>(
+            2 * 1024 * 1024, CursorSnapshot.SIZE_ESTIMATOR);
+
     public static final QueryParameter queryGroupByDate = new QueryParameter()
             .setID(QUERY_TYPE_GROUP_DATE)
             .addColumn(
@@ -214,9 +231,27 @@ public class FotoSql extends FotoSqlBase {
         return result;
     }
 
+    /** compiled templates of {@link #getQueryGroupByPlace(double)} by groupingFactor (one per zoomlevel) */
+    private static final Map<Double, QueryParameter> sQueryGroupByPlaceTemplates = new HashMap<Double, QueryParameter>();
+
     public static final QueryParameter queryGroupByPlace = getQueryGroupByPlace(100);
 
+    /** @return new modifyable query. Its rendered sql parts are shared with a compiled template
+     * so map pan/zoom requeries only render what they change. */
     public static QueryParameter getQueryGroupByPlace(double groupingFactor) {
+        QueryParameter template;
+        synchronized (sQueryGroupByPlaceTemplates) {
+            template = sQueryGroupByPlaceTemplates.get(groupingFactor);
+            if (template == null) {
+                template = createQueryGroupByPlace(groupingFactor);
+                template.compile();
+                sQueryGroupByPlaceTemplates.put(groupingFactor, template);
+            }
+        }
+        return new QueryParameter(template);
+    }
+
+    private static QueryParameter createQueryGroupByPlace(double groupingFactor) {
         //String SQL_EXPR_LAT = "(round(" + SQL_COL_LAT + " - 0.00499, 2))";
         //String SQL_EXPR_LON = "(round(" + SQL_COL_LON + " - 0.00499, 2))";
 
@@ -349,10 +384,12 @@ public class FotoSql extends FotoSqlBase {
         }
     }
 
+    /** for more than {@link QueryParameter#MAX_SQL_PARAMETERS} fileNames use {@link QueryParameter#forEachInChunk(String, List, int, QueryParameter.ChunkProcessor)} */
     public static void setWhereFileNames(QueryParameter query, String... fileNames) {
-        if ((query != null) && (fileNames != null) && (fileNames.length > 0)) {
+        List<String> names = getFileNamesWithoutSidecar(fileNames);
+        if ((query != null) && (names.size() > 0)) {
             query.clearWhere()
-                    .addWhere(getWhereInFileNames(fileNames))
+                    .addWhereIn(SQL_COL_PATH, names)
             ;
         }
     }
@@ -541,7 +578,7 @@ public class FotoSql extends FotoSqlBase {
     public static String execGetFotoPath(Context context, Uri uriWithID) {
         Cursor c = null;
         try {
-            c = createCursorForQuery("execGetFotoPath", context, uriWithID.toString(), null, null, null, FotoSql.SQL_COL_PATH);
+            c = createCursorForQuery("execGetFotoPath", context, QUERY_TYPE_UNDEFINED, uriWithID.toString(), null, null, null, FotoSql.SQL_COL_PATH);
             if (c.moveToFirst()) {
                 return DBUtils.getString(c, FotoSql.SQL_COL_PATH, null);
             }
@@ -561,7 +598,7 @@ public class FotoSql extends FotoSqlBase {
 
         Cursor c = null;
         try {
-            c = createCursorForQuery("execGetFotoPaths", context, SQL_TABLE_EXTERNAL_CONTENT_URI_FILE_NAME,
+            c = createCursorForQuery("execGetFotoPaths", context, QUERY_TYPE_UNDEFINED, SQL_TABLE_EXTERNAL_CONTENT_URI_FILE_NAME,
                     FotoSql.SQL_COL_PATH + " like ? and " + FILTER_EXPR_PRIVATE_PUBLIC,
                     new String[]{pathFilter}, FotoSql.SQL_COL_PATH, FotoSql.SQL_COL_PATH);
             while (c.moveToNext()) {
@@ -597,20 +634,104 @@ public class FotoSql extends FotoSqlBase {
 
     public static Cursor createCursorForQuery(String dbgContext, final Context context, QueryParameter parameters, int visibility) {
         setWhereVisibility(parameters, visibility);
-        return createCursorForQuery(dbgContext, context, parameters.toFrom(), parameters.toAndroidWhere(),
-                parameters.toAndroidParameters(), parameters.toOrderBy(),
-                parameters.toColumns()
+        return createCursorForQuery(dbgContext, context, parameters);
+    }
+
+    public static Cursor createCursorForQuery(String dbgContext, final Context context, QueryParameter parameters) {
+        CompiledQuery query = parameters.compile();
+        return createCursorForQuery(dbgContext, context, query.getID(), query.toFrom(), query.toAndroidWhere(),
+                query.toAndroidParameters(), query.toOrderBy(),
+                query.toColumns()
         );
     }
 
     /**
-     * every cursor query should go through this. adds logging if enabled
+     * Same as {@link #createCursorForQuery(String, Context, QueryParameter)}
+     * but results with up to {@link #QUERY_CACHE_MAX_ROWS} rows are cached in {@link #sQueryCache}
+     * until their table changes (see {@link #invalidateQueryCache(String)}).
+     *
+     * Only for read only gallery queries that are repeated when the filter toggles back and forth.
+     */
+    public static Cursor createCursorForQueryCached(String dbgContext, final Context context, QueryParameter parameters) {
+        CompiledQuery key = parameters.compileNormalized();
+        CursorSnapshot cached = sQueryCache.get(key);
+        if (cached != null) {
+            QueryStatistics.addCacheHit(parameters.getID(), cached.getCount());
+            if (Global.debugEnabledSql) {
+                Log.i(Global.LOG_CONTEXT, dbgContext + ": FotoSql.createCursorForQueryCached from cache:\n" +
+                        key + "\n" + sQueryCache);
+            }
+            return cached.toCursor();
+        }
+
+        // results of queries started before a change are not cached
+        long generation = sQueryCache.getGeneration();
+        CompiledQuery query = parameters.compile();
+        Cursor result = createCursorForQuery(dbgContext, context, query.getID(), query.toFrom(), query.toAndroidWhere(),
+                query.toAndroidParameters(), query.toOrderBy(),
+                query.toColumns()
+        );
+        if (result != null) {
+            sQueryCache.put(key, CursorSnapshot.create(result, QUERY_CACHE_MAX_ROWS), generation);
+        }
+        return result;
+    }
+
+    /** @return value of the first column of the first row of query, i.e. "count(*)". -1 on error */
+    public static int execGetCount(String dbgContext, final Context context, QueryParameter query) {
+        Cursor c = null;
+        try {
+            c = createCursorForQuery(dbgContext, context, query);
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } catch (Exception ex) {
+            Log.e(Global.LOG_CONTEXT, dbgContext + ": FotoSql.execGetCount() error :" + query, ex);
+            return -1;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Remove all cached results of the media files table.
+     * Must be called after every change of the media database.
+     */
+    public static void invalidateQueryCache(String why) {
+        int removed = sQueryCache.invalidate(SQL_TABLE_EXTERNAL_CONTENT_URI_FILE_NAME);
+        if (Global.debugEnabledSql) {
+            Log.i(Global.LOG_CONTEXT, "FotoSql.invalidateQueryCache(" + why + "): " + removed +
+                    " removed. " + sQueryCache);
+        }
+    }
+
+    /**
+     * Same as {@link #invalidateQueryCache(String)} for a change notification of the media content provider.
+     * Images, videos and other media of the external volume are all rows of the files table
+     * while the thumbnail tables and other volumes are not used by cached queries.
+     */
+    public static void invalidateQueryCache(String why, Uri changed) {
+        List<String> segments = (changed == null) ? null : changed.getPathSegments();
+        if ((segments == null) || segments.isEmpty()
+                || ("external".equals(segments.get(0)) && !segments.contains("thumbnails"))) {
+            invalidateQueryCache(why);
+        }
+    }
+
+    /**
+     * every cursor query should go through this. adds logging and {@link QueryStatistics} if enabled
      */
-    private static Cursor createCursorForQuery(String dbgContext, final Context context, final String from, final String sqlWhereStatement,
+    private static Cursor createCursorForQuery(String dbgContext, final Context context, int queryTypeId,
+                                               final String from, final String sqlWhereStatement,
                                                final String[] sqlWhereParameters, final String sqlSortOrder,
                                                final String... sqlSelectColums) {
         ContentResolver resolver = context.getContentResolver();
+        long start = QueryStatistics.now();
         Cursor query = resolver.query(Uri.parse(from), sqlSelectColums, sqlWhereStatement, sqlWhereParameters, sqlSortOrder);
+        if ((start != 0) && (query != null)) {
+            long queried = QueryStatistics.now();
+            // getCount() fills the cursor window
+            int rowCount = query.getCount();
+            QueryStatistics.add(queryTypeId, start, queried, QueryStatistics.now(), rowCount);
+        }
         if (Global.debugEnabledSql) {
             Log.i(Global.LOG_CONTEXT, dbgContext + ": FotoSql.createCursorForQuery:\n" +
                     QueryParameter.toString(sqlSelectColums, null, from, sqlWhereStatement,
@@ -699,51 +820,51 @@ public class FotoSql extends FotoSqlBase {
     /**
      * @return returns a hashmap filename => mediaID
      */
-    public static Map<String, Long> execGetPathIdMap(Context context, String... fileNames) {
-        Map<String, Long> result = new HashMap<String, Long>();
-
-        String whereFileNames = getWhereInFileNames(fileNames);
-        if (whereFileNames != null) {
-            QueryParameter query = new QueryParameter()
-                    .setID(QUERY_TYPE_UNDEFINED)
-                    .addColumn(SQL_COL_PK, SQL_COL_PATH)
-                    .addFrom(SQL_TABLE_EXTERNAL_CONTENT_URI_FILE_NAME)
-                    .addWhere(whereFileNames);
-
-            Cursor c = null;
-            try {
-                c = createCursorForQuery("execGetPathIdMap", context, query, IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
-                while (c.moveToNext()) {
-                    result.put(c.getString(1), c.getLong(0));
-                }
-            } catch (Exception ex) {
-                Log.e(Global.LOG_CONTEXT, "FotoSql.execGetPathIdMap: error executing " + query, ex);
-            } finally {
-                if (c != null) c.close();
-            }
-        }
+    public static Map<String, Long> execGetPathIdMap(final Context context, String... fileNames) {
+        final Map<String, Long> result = new HashMap<String, Long>();
+
+        QueryParameter query = new QueryParameter()
+                .setID(QUERY_TYPE_UNDEFINED)
+                .addColumn(SQL_COL_PK, SQL_COL_PATH)
+                .addFrom(SQL_TABLE_EXTERNAL_CONTENT_URI_FILE_NAME);
+        setWhereVisibility(query, IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
+
+        query.forEachInChunk(SQL_COL_PATH, getFileNamesWithoutSidecar(fileNames), QueryParameter.MAX_SQL_PARAMETERS,
+                new QueryParameter.ChunkProcessor() {
+                    @Override
+                    public int process(QueryParameter chunk) {
+                        Cursor c = null;
+                        try {
+                            c = createCursorForQuery("execGetPathIdMap", context, chunk);
+                            while (c.moveToNext()) {
+                                result.put(c.getString(1), c.getLong(0));
+                            }
+                            return c.getCount();
+                        } catch (Exception ex) {
+                            Log.e(Global.LOG_CONTEXT, "FotoSql.execGetPathIdMap: error executing " + chunk, ex);
+                        } finally {
+                            if (c != null) c.close();
+                        }
+                        return 0;
+                    }
+                });
         return result;
     }
 
-    public static String getWhereInFileNames(String... fileNames) {
+    /**
+     * @return fileNames without null and sidecar files (i.e. xmp) to be used with
+     * {@link QueryParameter#forEachInChunk(String, List, int, QueryParameter.ChunkProcessor)}
+     */
+    public static List<String> getFileNamesWithoutSidecar(String... fileNames) {
+        List<String> result = new ArrayList<String>((fileNames == null) ? 0 : fileNames.length);
         if (fileNames != null) {
-            StringBuilder filter = new StringBuilder();
-            filter.append(SQL_COL_PATH).append(" in (");
-
-            int count = 0;
             for (String fileName : fileNames) {
                 if ((fileName != null) && !FileCommands.isSidecar(fileName)) {
-                    if (count > 0) filter.append(", ");
-                    filter.append("'").append(fileName).append("'");
-                    count++;
+                    result.add(fileName);
                 }
             }
-
-            filter.append(")");
-
-            if (count > 0) return filter.toString();
         }
-        return null;
+        return result;
     }
 
     public static int execUpdate(String dbgContext, Context context, long id, ContentValues values) {
@@ -761,6 +882,7 @@ public class FotoSql extends FotoSqlBase {
         int result = context.getContentResolver().update(SQL_TABLE_EXTERNAL_CONTENT_URI_FILE,
                 values, sqlWhere,
                 selectionArgs);
+        invalidateQueryCache(dbgContext);
         if (Global.debugEnabledSql) {
             Log.i(Global.LOG_CONTEXT, dbgContext + ":FotoSql.exexUpdate\n" +
                     QueryParameter.toString(null, values.toString(), SQL_TABLE_EXTERNAL_CONTENT_URI_FILE_NAME,
@@ -779,6 +901,7 @@ public class FotoSql extends FotoSqlBase {
      */
     public static Uri execInsert(String dbgContext, Context context, ContentValues values) {
         Uri result = context.getContentResolver().insert(SQL_TABLE_EXTERNAL_CONTENT_URI, values);
+        invalidateQueryCache(dbgContext);
         if (Global.debugEnabledSql) {
             Log.i(Global.LOG_CONTEXT, dbgContext + ":FotoSql.execInsert" +
                     values.toString() + " => " + result);
@@ -793,7 +916,17 @@ public class FotoSql extends FotoSqlBase {
         return loader;
     }
 
-    public static int execDeleteByPath(String dbgContext, Activity context, String parentDirString, int visibility) {
+    /**
+     * Loader for {@link IncrementalQuery#createFullQuery()}. Results with more than
+     * {@link CursorLoaderWithException#PAGED_MIN_ROWS} rows are loaded page by page
+     * via {@link KeysetPagedCursor}.
+     */
+    @NonNull
+    public static CursorLoaderWithException createCursorLoader(Context context, IncrementalQuery query) {
+        return new CursorLoaderWithException(context, query.createFullQuery()).setPaging(query);
+    }
+
+    public static int execDeleteByPath(String dbgContext, Context context, String parentDirString, int visibility) {
         int delCount = FotoSql.deleteMedia(dbgContext, context, getFilterExprPathLikeWithVisibility(visibility), new String[]{parentDirString + "/%"}, true);
         return delCount;
     }
@@ -842,6 +975,8 @@ public class FotoSql extends FotoSqlBase {
             Log.e(Global.LOG_CONTEXT, msg, ex);
 
         }
+        // also after exception: some items may have been changed
+        invalidateQueryCache(dbgContext);
         return delCount;
     }
 
@@ -876,17 +1011,17 @@ public class FotoSql extends FotoSqlBase {
             c = FotoSql.createCursorForQuery("getSelectedfiles", context, query, IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
             int len = c.getCount();
             Long[] ids = new Long[len];
-            String[] paths = new String[len];
+            CompressedPathList.Builder paths = new CompressedPathList.Builder(len);
             int pkColNo = c.getColumnIndex(FotoSql.SQL_COL_PK);
             int pathColNo = c.getColumnIndex(FotoSql.SQL_COL_PATH);
             int row = 0;
             while (c.moveToNext()) {
-                paths[row] = c.getString(pathColNo);
+                paths.add(c.getString(pathColNo));
                 ids[row] = c.getLong(pkColNo);
                 row++;
             }
 
-            result = new SelectedFiles(paths, ids);
+            result = new SelectedFiles(paths.build(), ids);
         } catch (Exception ex) {
             Log.e(Global.LOG_CONTEXT, "FotoSql.getSelectedfiles() error :", ex);
         } finally {
@@ -973,8 +1108,21 @@ public class FotoSql extends FotoSqlBase {
     }
 
     public static class CursorLoaderWithException extends CursorLoader {
+        /** results with more rows are loaded page by page if {@link #setPaging(IncrementalQuery)} */
+        public static final int PAGED_MIN_ROWS = 5000;
+        private static final int PAGE_SIZE = 500;
+        private static final int PAGE_MAX_COUNT = 8;
+
+        /** Alternative to reloading the full query if the media db has changed */
+        public interface OnContentChangedListener {
+            /** @return true if the change was handled. false: reload full query */
+            boolean onContentChanged(CursorLoaderWithException loader);
+        }
+
         private final QueryParameter query;
         private Exception mException;
+        private OnContentChangedListener mOnContentChangedListener = null;
+        private IncrementalQuery mPaging = null;
 
         public CursorLoaderWithException(Context context, QueryParameter query) {
             super(context, Uri.parse(query.toFrom()), query.toColumns(), query.toAndroidWhere(), query.toAndroidParameters(), query.toOrderBy());
@@ -985,7 +1133,18 @@ public class FotoSql extends FotoSqlBase {
         public Cursor loadInBackground() {
             mException = null;
             try {
+                long start = QueryStatistics.now();
                 Cursor result = super.loadInBackground();
+                if ((start != 0) && (result != null)) {
+                    // CursorLoader has already filled the cursor
+                    long filled = QueryStatistics.now();
+                    QueryStatistics.add(query.getID(), start, filled, filled, result.getCount());
+                }
+                if ((mPaging != null) && (result != null) && (result.getCount() > PAGED_MIN_ROWS)) {
+                    // the limited query is full: huge result
+                    result.close();
+                    result = loadPagedInBackground();
+                }
                 return result;
             } catch (Exception ex) {
                 final String msg = "FotoSql.createCursorLoader()#loadInBackground failed:\n\t" + query.toSqlString();
@@ -995,6 +1154,50 @@ public class FotoSql extends FotoSqlBase {
             }
         }
 
+        /** @return {@link KeysetPagedCursor} for a result with more than {@link #PAGED_MIN_ROWS} rows */
+        private Cursor loadPagedInBackground() {
+            final Context context = getContext();
+            int count = execGetCount("CursorLoaderWithException.loadPagedInBackground", context,
+                    mPaging.createCountQuery());
+
+            Cursor result = new KeysetPagedCursor(context, mPaging, count, PAGE_SIZE, PAGE_MAX_COUNT);
+            // same as CursorLoader: reload after media db has changed
+            result.setNotificationUri(context.getContentResolver(), getUri());
+            result.registerContentObserver(new ForceLoadContentObserver());
+            if (Global.debugEnabledSql) {
+                Log.i(Global.LOG_CONTEXT, "FotoSql.createCursorLoader()#loadInBackground paged " + result);
+            }
+            return result;
+        }
+
+        @Override
+        public void onContentChanged() {
+            if (isStarted() && (mOnContentChangedListener != null)
+                    && mOnContentChangedListener.onContentChanged(this)) {
+                return;
+            }
+            super.onContentChanged();
+        }
+
+        public CursorLoaderWithException setOnContentChangedListener(OnContentChangedListener listener) {
+            mOnContentChangedListener = listener;
+            return this;
+        }
+
+        /**
+         * load results with more than {@link #PAGED_MIN_ROWS} rows page by page. query must belong to this.
+         *
+         * The query is limited to {@link #PAGED_MIN_ROWS} + 1 rows so small results need no extra count(*):
+         * only a full limited result is counted and loaded page by page.
+         */
+        public CursorLoaderWithException setPaging(IncrementalQuery query) {
+            mPaging = ((query != null) && query.isSupported()) ? query : null;
+            if (mPaging != null) {
+                setSortOrder(mPaging.createPageQuery(0, PAGED_MIN_ROWS + 1).toOrderBy());
+            }
+            return this;
+        }
+
         public QueryParameter getQuery() {
             return query;
         }
@@ -214,8 +214,11 @@ public class TagsPickerFragment extends DialogFragment {
         }
 
         TagRepository.getInstance().includeIfNotFound(mAddNames, mRemoveNames, mAffectedNames, mBookMarkNames);
+        loadTagRepositoryItems(true);
+
+        // the adapter gets its own copy so the gui cannot interfere with background tag-updates
         this.mDataAdapter = new TagListArrayAdapter(this.getActivity(),
-                loadTagRepositoryItems(true),
+                new ArrayList<Tag>(TagRepository.getInstance().getSnapshot()),
                 mAddNames, mRemoveNames, mAffectedNames, mBookMarkNames
         );
 
@@ -545,7 +548,13 @@ public class TagsPickerFragment extends DialogFragment {
     private List<Tag> loadTagRepositoryItems(boolean reload) {
         List<Tag> result = reload ? TagRepository.getInstance().reload() : TagRepository.getInstance().load();
         if (result.size() == 0) {
-            TagRepository.include(result, null, null, getString(R.string.tags_defaults));
+            final String defaults = getString(R.string.tags_defaults);
+            TagRepository.getInstance().edit(new TagRepository.Editor() {
+                @Override
+                public int edit(List<Tag> items) {
+                    return (items.size() == 0) ? TagRepository.include(items, null, null, defaults) : 0;
+                }
+            });
         }
         return result;
     }
@@ -564,7 +573,7 @@ public class TagsPickerFragment extends DialogFragment {
     }
 
 
-    private boolean tagDelete(Tag item, boolean recursive, boolean deleteFromPhotos) {
+    private boolean tagDelete(final Tag item, final boolean recursive, boolean deleteFromPhotos) {
         if (item != null) {
             List<Tag> existingItems = loadTagRepositoryItems(false);
             List<Tag> children = (recursive) ? item.getChildren(existingItems, true, false) : null;
@@ -577,7 +586,13 @@ public class TagsPickerFragment extends DialogFragment {
                 new TagDeleteWithDbUpdateTask().execute(affectedTags);
             }
 
-            if ((existingItems != null) && (item.delete(existingItems, recursive) > 0)) {
+            int deleteCount = TagRepository.getInstance().edit(new TagRepository.Editor() {
+                @Override
+                public int edit(List<Tag> items) {
+                    return item.delete(items, recursive);
+                }
+            });
+            if (deleteCount > 0) {
                 updateKnownLists(null, item.getName(), true);
                 mDataAdapter.remove(item);
                 if (children != null) {
@@ -670,7 +685,7 @@ public class TagsPickerFragment extends DialogFragment {
         }
     }
 
-    private void tagRename(Tag oldTag, String newName, boolean updateDatabase, boolean updateAffected) {
+    private void tagRename(final Tag oldTag, final String newName, boolean updateDatabase, boolean updateAffected) {
         String oldName = oldTag.getName();
 
         if ((newName != null) && (newName.compareTo(oldName) != 0)) {
@@ -680,7 +695,13 @@ public class TagsPickerFragment extends DialogFragment {
             }
             updateKnownLists(newName, oldName, updateAffected);
             mDataAdapter.remove(oldTag);
-            oldTag.setName(newName);
+            TagRepository.getInstance().edit(new TagRepository.Editor() {
+                @Override
+                public int edit(List<Tag> items) {
+                    oldTag.setName(newName);
+                    return 1;
+                }
+            });
             mDataAdapter.add(oldTag);
             mDataAdapter.reloadList();
         }
@@ -708,17 +729,23 @@ public class TagsPickerFragment extends DialogFragment {
         return changes;
     }
 
-    private void tagAdd(Tag parent, String itemExpression) {
-        List<Tag> existingItems = loadTagRepositoryItems(false);
-        int changeCount = TagRepository.include(existingItems, parent, null, itemExpression);
-
-        if (changeCount > 0) {
-
-            int len = existingItems.size();
+    private void tagAdd(final Tag parent, final String itemExpression) {
+        loadTagRepositoryItems(false);
+        final List<Tag> added = new ArrayList<Tag>();
+        TagRepository.getInstance().edit(new TagRepository.Editor() {
+            @Override
+            public int edit(List<Tag> existingItems) {
+                int changeCount = TagRepository.include(existingItems, parent, null, itemExpression);
+                int len = existingItems.size();
+                for (int i = len - changeCount; i < len; i++) {
+                    added.add(existingItems.get(i));
+                }
+                return changeCount;
+            }
+        });
 
-            for (int i = len - changeCount; i < len; i++) {
-                Tag t = existingItems.get(i);
-                // existingItems.add(t);
+        if (added.size() > 0) {
+            for (Tag t : added) {
                 mDataAdapter.add(t);
             }
 
@@ -730,11 +757,20 @@ public class TagsPickerFragment extends DialogFragment {
         }
     }
 
-    private void tagChange(Tag tag, Tag parent) {
-        List<Tag> existingItems = loadTagRepositoryItems(false);
-        tag.setParent(parent);
-        if (!existingItems.contains(tag)) {
-            existingItems.add(tag);
+    private void tagChange(final Tag tag, final Tag parent) {
+        loadTagRepositoryItems(false);
+        int added = TagRepository.getInstance().edit(new TagRepository.Editor() {
+            @Override
+            public int edit(List<Tag> existingItems) {
+                tag.setParent(parent);
+                if (!existingItems.contains(tag)) {
+                    existingItems.add(tag);
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        if (added > 0) {
             mDataAdapter.add(tag);
             mDataAdapter.reloadList();
         }
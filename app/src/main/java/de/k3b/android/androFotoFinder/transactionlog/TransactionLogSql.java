@@ -20,6 +20,10 @@
 package de.k3b.android.androFotoFinder.transactionlog;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collection;
 
 import de.k3b.transactionlog.MediaTransactionLogEntryType;
 
@@ -62,4 +66,38 @@ public class TransactionLogSql {
         values.put(COL_commandData, commandData);
         return values;
     }
+
+    /** @return highest transaction id. Can be used as watermark for {@link #getModifiedMediaIds(SQLiteDatabase, long, int, Collection)} */
+    public static long getLastId(SQLiteDatabase db) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT max(" + COL_PK + ") FROM " + TABLE, null);
+            return (c.moveToFirst()) ? c.getLong(0) : 0;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Collects the mediaID-s of all transactions after afterId.
+     *
+     * @return highest transaction id found (afterId if there are none) or -1 if there are more than maxCount transactions.
+     */
+    public static long getModifiedMediaIds(SQLiteDatabase db, long afterId, int maxCount, Collection<Long> mediaIds) {
+        Cursor c = null;
+        try {
+            c = db.query(TABLE, new String[]{COL_PK, COL_mediaID}, COL_PK + " > ?",
+                    new String[]{Long.toString(afterId)}, null, null, COL_PK, Integer.toString(maxCount + 1));
+            if (c.getCount() > maxCount) return -1;
+
+            long lastId = afterId;
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                mediaIds.add(c.getLong(1));
+            }
+            return lastId;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
 }
@@ -49,7 +49,6 @@ import de.k3b.database.SelectedFiles;
 import de.k3b.io.DirectoryFormatter;
 import de.k3b.io.FileCommands;
 import de.k3b.io.IDirectory;
-import de.k3b.io.OSDirectory;
 import de.k3b.transactionlog.MediaTransactionLogEntryType;
 
 /**
@@ -210,8 +209,7 @@ public class AndroidFileCommands extends FileCommands {
 
             setLastCopyToPath(copyToPath);
 
-            String[] selectedFileNames = srcFotos.getFileNames();
-            moveOrCopyFilesTo(move, destDirFolder, srcFotos.getIds(), SelectedFiles.getFiles(selectedFileNames));
+            moveOrCopyFilesTo(move, destDirFolder, srcFotos.getIds(), srcFotos.getFiles());
         }
     }
 
@@ -356,7 +354,7 @@ public class AndroidFileCommands extends FileCommands {
             };
 
             destDir.setTitleId(R.string.scanner_dir_question);
-            destDir.defineDirectoryNavigation(new OSDirectory("/", null),
+            destDir.defineOSDirectoryNavigation(mContext,
                     FotoSql.QUERY_TYPE_UNDEFINED,
                     getLastCopyToPath());
             destDir.setContextMenuId(R.menu.menu_context_osdir);
@@ -414,7 +412,7 @@ public class AndroidFileCommands extends FileCommands {
             // in case that current activity is destroyed while running async, applicationContext will allow to finish database operation
             int itemcount = 0;
             int countdown = 0;
-            File[] files = SelectedFiles.getFiles(selectedItems.getFileNames());
+            File[] files = selectedItems.getFiles();
             String errorMessage = checkWriteProtected(R.string.geo_edit_menu_title, files);
 
             if (errorMessage != null) {
@@ -521,6 +519,9 @@ public class AndroidFileCommands extends FileCommands {
             ContentValues values = TransactionLogSql.set(null, currentMediaID, fileFullPath, modificationDate,
                     mediaTransactionLogEntryType, commandData);
             db.insert(TransactionLogSql.TABLE, null, values);
+
+            // every logged transaction changed a media item
+            FotoSql.invalidateQueryCache("addTransactionLog " + mediaTransactionLogEntryType);
         }
     }
 }
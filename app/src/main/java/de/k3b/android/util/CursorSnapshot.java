@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package de.k3b.android.util;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import de.k3b.database.QueryCache;
+
+/**
+ * Immutable copy of the rows of a {@link Cursor} that can be kept in a {@link QueryCache}
+ * after the original cursor was closed.
+ */
+public class CursorSnapshot {
+    /** approximate heap usage of a snapshot */
+    public static final QueryCache.SizeEstimator<CursorSnapshot> SIZE_ESTIMATOR = new QueryCache.SizeEstimator<CursorSnapshot>() {
+        @Override
+        public long getSize(CursorSnapshot value) {
+            return value.mSize;
+        }
+    };
+
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+    private final long mSize;
+
+    private CursorSnapshot(String[] columnNames, Object[][] rows, long size) {
+        mColumnNames = columnNames;
+        mRows = rows;
+        mSize = size;
+    }
+
+    /**
+     * Copy all rows of cursor. The cursor is positioned before the first row afterwards.
+     *
+     * @return null if cursor has more than maxRows rows.
+     */
+    public static CursorSnapshot create(Cursor cursor, int maxRows) {
+        if ((cursor == null) || (cursor.getCount() > maxRows)) return null;
+
+        String[] columnNames = cursor.getColumnNames();
+        int columnCount = columnNames.length;
+        Object[][] rows = new Object[cursor.getCount()][];
+        long size = 64;
+        int row = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] values = new Object[columnCount];
+            size += 16 + 8 * columnCount;
+            for (int column = 0; column < columnCount; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[column] = cursor.getLong(column);
+                        size += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[column] = cursor.getDouble(column);
+                        size += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String text = cursor.getString(column);
+                        values[column] = text;
+                        size += 40 + 2 * text.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(column);
+                        values[column] = blob;
+                        size += 16 + blob.length;
+                        break;
+                    default:
+                        // FIELD_TYPE_NULL
+                        break;
+                }
+            }
+            rows[row++] = values;
+        }
+        cursor.moveToPosition(-1);
+        return new CursorSnapshot(columnNames, rows, size);
+    }
+
+    /** @return new cursor over the copied rows */
+    public Cursor toCursor() {
+        MatrixCursor result = new MatrixCursor(mColumnNames, mRows.length);
+        for (Object[] row : mRows) {
+            result.addRow(row);
+        }
+        return result;
+    }
+
+    public int getCount() {
+        return mRows.length;
+    }
+}
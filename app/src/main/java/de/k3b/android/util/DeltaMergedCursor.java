@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package de.k3b.android.util;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import de.k3b.database.IncrementalQuery;
+
+/**
+ * Read only view of a query result that was updated via {@link IncrementalQuery#merge}
+ * without copying the rows: every position is mapped either to the old result or to the delta.
+ *
+ * Both cursors must have the same columns (both created by {@link IncrementalQuery}) and are
+ * closed together with this.
+ */
+public class DeltaMergedCursor extends AbstractCursor {
+    private final Cursor mBase;
+    private final Cursor mDelta;
+    private final int[] mPositions;
+    private final int mDepth;
+
+    /** either mBase or mDelta, positioned at the current row */
+    private Cursor mCurrent;
+
+    /**
+     * @param positions result of {@link IncrementalQuery#merge(IncrementalQuery.Rows, java.util.Collection, IncrementalQuery.Rows)}
+     */
+    public DeltaMergedCursor(Cursor base, Cursor delta, int[] positions) {
+        mBase = base;
+        mDelta = delta;
+        mPositions = positions;
+        mCurrent = base;
+        mDepth = (base instanceof DeltaMergedCursor) ? ((DeltaMergedCursor) base).mDepth + 1 : 1;
+    }
+
+    /** @return number of merges since the last full query */
+    public static int getDepth(Cursor cursor) {
+        return (cursor instanceof DeltaMergedCursor) ? ((DeltaMergedCursor) cursor).mDepth : 0;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int deltaPosition = IncrementalQuery.toDeltaPosition(mPositions[newPosition]);
+        if (deltaPosition >= 0) {
+            mCurrent = mDelta;
+            return mDelta.moveToPosition(deltaPosition);
+        }
+        mCurrent = mBase;
+        return mBase.moveToPosition(mPositions[newPosition]);
+    }
+
+    @Override
+    public int getCount() {
+        return mPositions.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mBase.getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrent.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrent.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrent.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrent.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrent.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrent.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrent.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrent.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrent.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mBase.close();
+        mDelta.close();
+    }
+
+    /** {@link IncrementalQuery.Rows} on top of a cursor created by {@link IncrementalQuery}. */
+    public static class Rows implements IncrementalQuery.Rows {
+        private final Cursor mCursor;
+        private final int mIdColumn;
+        private final int[] mSortKeyColumns;
+
+        public Rows(Cursor cursor, IncrementalQuery query) {
+            mCursor = cursor;
+            mIdColumn = cursor.getColumnIndexOrThrow(query.getIdColumn());
+            mSortKeyColumns = new int[query.getSortKeyCount()];
+            for (int i = 0; i < mSortKeyColumns.length; i++) {
+                mSortKeyColumns[i] = cursor.getColumnIndexOrThrow(IncrementalQuery.SORT_KEY_PREFIX + i);
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return mCursor.getCount();
+        }
+
+        @Override
+        public long getId(int position) {
+            mCursor.moveToPosition(position);
+            return mCursor.getLong(mIdColumn);
+        }
+
+        @Override
+        public Object getSortKey(int position, int key) {
+            mCursor.moveToPosition(position);
+            int column = mSortKeyColumns[key];
+            switch (mCursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mCursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return mCursor.getDouble(column);
+                case Cursor.FIELD_TYPE_STRING:
+                    return mCursor.getString(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return mCursor.getBlob(column);
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+package de.k3b.android.util;
+
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.database.MatrixCursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.database.IncrementalQuery;
+import de.k3b.database.KeysetPager;
+import de.k3b.database.QueryParameter;
+
+/**
+ * Read only cursor over a huge query result that keeps only some pages in memory
+ * (see {@link KeysetPager}). While scrolling the next page is loaded in the background.
+ *
+ * Moving to a row whose page is not loaded (i.e. after a jump or eviction) does not query in the
+ * gui thread: the row is an empty placeholder until the page is loaded in the background.
+ * Then the {@link DataSetObserver}s are notified so that the adapter binds the row again.
+ *
+ * Used by the gallery and the image detail pager instead of one cursor with all rows.
+ */
+public class KeysetPagedCursor extends AbstractCursor {
+    private final IncrementalQuery mQuery;
+    private final KeysetPager<Cursor> mPager;
+    private final String[] mColumnNames;
+    private final AtomicBoolean mPrefetching = new AtomicBoolean(false);
+
+    /** one row with null values for positions whose page is not loaded yet */
+    private final MatrixCursor mPlaceholder;
+    /** numbers of the pages that are loaded in the background because of {@link #onMove(int, int)} */
+    private final Set<Integer> mLoadingPageNos = new HashSet<Integer>();
+    private final DataSetObservable mPageLoadedObservable = new DataSetObservable();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** page cursor positioned at the current row */
+    private Cursor mCurrent = null;
+
+    private final Runnable mPrefetch = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mPager.prefetch();
+            } catch (Exception ex) {
+                Log.w(Global.LOG_CONTEXT, "KeysetPagedCursor.prefetch failed " + mPager, ex);
+            } finally {
+                mPrefetching.set(false);
+            }
+        }
+    };
+
+    private final Runnable mNotifyPageLoaded = new Runnable() {
+        @Override
+        public void run() {
+            if (!isClosed()) mPageLoadedObservable.notifyChanged();
+        }
+    };
+
+    /**
+     * @param count number of rows of query. see {@link IncrementalQuery#createCountQuery()}
+     */
+    public KeysetPagedCursor(final Context context, final IncrementalQuery query, int count, int pageSize, int maxPages) {
+        final Context appContext = context.getApplicationContext();
+        mQuery = query;
+        mPager = new KeysetPager<Cursor>(query, new KeysetPager.PageLoader<Cursor>() {
+            @Override
+            public Cursor load(QueryParameter pageQuery) {
+                return FotoSql.createCursorForQuery("KeysetPagedCursor", appContext, pageQuery);
+            }
+
+            @Override
+            public IncrementalQuery.Rows getRows(Cursor page) {
+                return new DeltaMergedCursor.Rows(page, query);
+            }
+
+            @Override
+            public void close(Cursor page) {
+                page.close();
+            }
+        }, count, pageSize, maxPages);
+
+        // first page is loaded in the constructor (background thread of the loader)
+        mColumnNames = mPager.getPageForPosition(0).getColumnNames();
+        mPlaceholder = new MatrixCursor(mColumnNames, 1);
+        mPlaceholder.addRow(new Object[mColumnNames.length]);
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        Cursor page = mPager.getLoadedPageForPosition(newPosition);
+        if (page == null) {
+            loadPage(newPosition);
+            mCurrent = mPlaceholder;
+            return mPlaceholder.moveToFirst();
+        }
+
+        mCurrent = page;
+        boolean result = mCurrent.moveToPosition(mPager.getPositionInPage(newPosition));
+
+        if ((mPager.getPrefetchPageNo() >= 0) && mPrefetching.compareAndSet(false, true)) {
+            if (Global.debugEnabledSql) {
+                Log.i(Global.LOG_CONTEXT, "KeysetPagedCursor.prefetch page " + mPager.getPrefetchPageNo()
+                        + " at " + newPosition + " " + mPager);
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mPrefetch);
+        }
+        return result;
+    }
+
+    /** loads the page of position in the background and notifies the observers in the gui thread */
+    private void loadPage(final int position) {
+        final Integer pageNo = mPager.getPageNo(position);
+        synchronized (mLoadingPageNos) {
+            if (!mLoadingPageNos.add(pageNo)) return;
+        }
+        if (Global.debugEnabledSql) {
+            Log.i(Global.LOG_CONTEXT, "KeysetPagedCursor.loadPage " + pageNo + " at " + position + " " + mPager);
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mPager.loadPageForPosition(position)) mHandler.post(mNotifyPageLoaded);
+                } catch (Exception ex) {
+                    Log.w(Global.LOG_CONTEXT, "KeysetPagedCursor.loadPage " + pageNo + " failed " + mPager, ex);
+                } finally {
+                    synchronized (mLoadingPageNos) {
+                        mLoadingPageNos.remove(pageNo);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        super.registerDataSetObserver(observer);
+        mPageLoadedObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        super.unregisterDataSetObserver(observer);
+        mPageLoadedObservable.unregisterObserver(observer);
+    }
+
+    /**
+     * Finds the position via sort keys and count(*) instead of reading all rows
+     * (which would load every page).
+     *
+     * @return position of the row with path or -1 if not found
+     */
+    public int getPositionFromPath(Context context, String path) {
+        final String dbgContext = "KeysetPagedCursor.getPositionFromPath";
+        Cursor c = null;
+        try {
+            c = FotoSql.createCursorForQuery(dbgContext, context,
+                    mQuery.createFullQuery().addWhere(FotoSql.SQL_COL_PATH + " = ?", path));
+            if (!c.moveToFirst()) return -1;
+
+            int after = FotoSql.execGetCount(dbgContext, context,
+                    mQuery.createCountAfterQuery(new DeltaMergedCursor.Rows(c, mQuery), 0));
+            if (after < 0) return -1;
+
+            // the media db may have changed since the count of this cursor
+            return Math.max(0, Math.min(getCount() - 1, getCount() - 1 - after));
+        } catch (Exception ex) {
+            Log.w(Global.LOG_CONTEXT, dbgContext + "('" + path + "') failed " + mPager, ex);
+            return -1;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mPager.getCount();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrent.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrent.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrent.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrent.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrent.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrent.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrent.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrent.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrent.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mHandler.removeCallbacks(mNotifyPageLoaded);
+        mPager.close();
+        mPlaceholder.close();
+        mCurrent = null;
+    }
+
+    @Override
+    public String toString() {
+        return "KeysetPagedCursor[" + mPager + "]";
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.util;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.io.FileChangeBatcher;
+import de.k3b.io.FileUtils;
+import de.k3b.io.IGalleryFilter;
+
+/**
+ * Updates the media db when files in the watched photo folders are changed by other apps.
+ *
+ * Every folder has its own inotify based {@link FileObserver}. The events are merged into
+ * batches by {@link FileChangeBatcher} and then handed to {@link MediaScanner}.
+ * Renamed folders are renamed in the media db by path prefix so that the photos keep their ids.
+ * Other folder changes and lost events are handled by rescanning the folder.
+ */
+public class MediaFolderWatcher {
+    private static final String CONTEXT = "MediaFolderWatcher.";
+
+    // inotify flags that FileObserver passes through but does not define
+    private static final int IN_Q_OVERFLOW = 0x00004000;
+    private static final int IN_ISDIR = 0x40000000;
+
+    private static final int EVENT_MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    /** a batch is processed after 2 secs without changes or after 20 secs */
+    private static final long QUIET_MILLIS = 2000;
+    private static final long MAX_DELAY_MILLIS = 20000;
+    private static final int MAX_PENDING_FILES = 500;
+
+    /** every watched folder needs an inotify watch. The system limit is shared by all apps. */
+    private static final int MAX_WATCHED_FOLDERS = 1000;
+
+    private final Context mContext;
+    private final FileChangeBatcher mBatcher = new FileChangeBatcher(QUIET_MILLIS, MAX_DELAY_MILLIS, MAX_PENDING_FILES);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+
+    /**
+     * folder walks, media db updates and rescans in the order of the batches. Not AsyncTask.SERIAL_EXECUTOR
+     * so that a long rescan does not block the AsyncTasks of the gui.
+     */
+    private final ThreadPoolExecutor mDbUpdateExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    /** FileObservers must be referenced or they are garbage collected and stop watching */
+    private final Map<String, FolderObserver> mObservers = new HashMap<String, FolderObserver>();
+    /** false: no new folders are watched. Set by {@link #start(String...)} and {@link #stop()} */
+    private boolean mRunning = false;
+
+    private class FolderObserver extends FileObserver {
+        private final String mFolder;
+
+        FolderObserver(String folder) {
+            super(folder, EVENT_MASK);
+            mFolder = folder;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if ((event & IN_Q_OVERFLOW) != 0) {
+                onFileEvent(FileChangeBatcher.EVENT_OVERFLOW, mFolder, true);
+                return;
+            }
+            if ((path == null) || path.startsWith(".")) return;
+
+            final boolean isDir = (event & IN_ISDIR) != 0;
+            final String absolutePath = mFolder + "/" + path;
+            switch (event & FileObserver.ALL_EVENTS) {
+                case FileObserver.CREATE:
+                    // files are processed after CLOSE_WRITE when their content is complete
+                    if (isDir) onFileEvent(FileChangeBatcher.EVENT_CREATED, absolutePath, true);
+                    break;
+                case FileObserver.CLOSE_WRITE:
+                    onFileEvent(FileChangeBatcher.EVENT_MODIFIED, absolutePath, isDir);
+                    break;
+                case FileObserver.DELETE:
+                    onFileEvent(FileChangeBatcher.EVENT_DELETED, absolutePath, isDir);
+                    break;
+                case FileObserver.MOVED_FROM:
+                    onFileEvent(FileChangeBatcher.EVENT_MOVED_FROM, absolutePath, isDir);
+                    break;
+                case FileObserver.MOVED_TO:
+                    onFileEvent(FileChangeBatcher.EVENT_MOVED_TO, absolutePath, isDir);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            long delay = mBatcher.getFlushDelay(System.currentTimeMillis());
+            if (delay > 0) {
+                mHandler.postDelayed(this, delay);
+            } else {
+                mFlushScheduled.set(false);
+                mBatcher.flush(mUpdateMediaDb, System.currentTimeMillis());
+            }
+        }
+    };
+
+    /** called in gui thread */
+    private final FileChangeBatcher.Callback mUpdateMediaDb = new FileChangeBatcher.Callback() {
+        @Override
+        public void onRenamedDirs(final String[] oldDirs, final String[] newDirs) {
+            mDbUpdateExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    renameFolders(oldDirs, newDirs);
+                }
+            });
+        }
+
+        @Override
+        public void onChanges(final String[] oldPathNames, final String[] newPathNames) {
+            mDbUpdateExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    MediaScannerAsyncTask.updateMediaDBInBackground(MediaScanner.getInstance(mContext),
+                            mContext, CONTEXT + "onChanges", oldPathNames, newPathNames);
+                }
+            });
+        }
+
+        @Override
+        public void onRescan(final String[] pathNames) {
+            if (Global.debugEnabled) {
+                Log.i(Global.LOG_CONTEXT, CONTEXT + "onRescan " + pathNames.length + " folders " + pathNames[0] + "...");
+            }
+            mDbUpdateExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rescan(pathNames);
+                }
+            });
+        }
+    };
+
+    public MediaFolderWatcher(Context context) {
+        mContext = context.getApplicationContext();
+        mDbUpdateExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** starts watching the folders and their sub folders in the background. Does nothing if already running */
+    public void start(final String... rootFolders) {
+        synchronized (this) {
+            if (mRunning) return;
+            mRunning = true;
+        }
+        mDbUpdateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String rootFolder : rootFolders) {
+                    String canonicalPath = FileUtils.tryGetCanonicalPath(new File(rootFolder), null);
+                    if (canonicalPath != null) watch(new File(canonicalPath));
+                }
+                if (Global.debugEnabled) {
+                    Log.i(Global.LOG_CONTEXT, CONTEXT + "start: watching " + getWatchedCount() + " folders");
+                }
+            }
+        });
+    }
+
+    /** stops watching. Changes while stopped are not noticed. */
+    public synchronized void stop() {
+        if (Global.debugEnabled && mRunning) {
+            Log.i(Global.LOG_CONTEXT, CONTEXT + "stop: " + mObservers.size() + " folders");
+        }
+        mRunning = false;
+        for (FolderObserver observer : mObservers.values()) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled.set(false);
+    }
+
+    private synchronized int getWatchedCount() {
+        return mObservers.size();
+    }
+
+    /** called in the FileObserver thread */
+    private void onFileEvent(int event, String absolutePath, boolean isDir) {
+        mBatcher.onEvent(event, absolutePath, isDir, System.currentTimeMillis());
+        // mFlush reschedules itself until the batch is complete
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mFlush, QUIET_MILLIS);
+        }
+    }
+
+    /** watch folder and its sub folders unless hidden or .nomedia */
+    private void watch(File folder) {
+        List<File> todo = new ArrayList<File>();
+        todo.add(folder);
+        while (!todo.isEmpty()) {
+            File current = todo.remove(todo.size() - 1);
+            if (!current.isDirectory() || MediaScanner.isNoMedia(current.getPath(), MediaScanner.DEFAULT_SCAN_DEPTH)) continue;
+
+            synchronized (this) {
+                if (!mRunning) return;
+                String path = current.getPath();
+                if (mObservers.containsKey(path)) continue;
+                if (mObservers.size() >= MAX_WATCHED_FOLDERS) {
+                    Log.w(Global.LOG_CONTEXT, CONTEXT + "watch: more than " + MAX_WATCHED_FOLDERS
+                            + " folders. Not watching " + path);
+                    return;
+                }
+                FolderObserver observer = new FolderObserver(path);
+                observer.startWatching();
+                mObservers.put(path, observer);
+            }
+
+            File[] children = current.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!child.getName().startsWith(".") && child.isDirectory()) todo.add(child);
+                }
+            }
+        }
+    }
+
+    /** stop watching folder and its sub folders */
+    private synchronized void unwatch(String folder) {
+        String prefix = folder + "/";
+        for (Iterator<Map.Entry<String, FolderObserver>> iter = mObservers.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, FolderObserver> entry = iter.next();
+            if (entry.getKey().equals(folder) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                iter.remove();
+            }
+        }
+    }
+
+    /** called in background thread. updates media db and watches for pathNames */
+    private void rescan(String[] pathNames) {
+        MediaScanner scanner = MediaScanner.getInstance(mContext);
+        int modifyCount = 0;
+        for (String pathName : pathNames) {
+            File file = new File(pathName);
+            if (file.isDirectory()) {
+                // a renamed folder keeps its observers but they report the old path
+                unwatch(pathName);
+                watch(file);
+                modifyCount += scanFolder(scanner, file);
+            } else if (file.exists()) {
+                modifyCount += scanner.updateMediaDatabase_Android42(mContext, null, pathName);
+            } else {
+                unwatch(pathName);
+                modifyCount += FotoSql.execDeleteByPath(CONTEXT + "rescan", mContext, pathName,
+                        IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
+                modifyCount += scanner.updateMediaDatabase_Android42(mContext, new String[]{pathName});
+            }
+        }
+        if (modifyCount > 0) {
+            MediaScanner.notifyChanges(mContext, CONTEXT + "rescan");
+        }
+    }
+
+    /** called in background thread. updates media db and watches for renamed folders */
+    private void renameFolders(String[] oldDirs, String[] newDirs) {
+        MediaScanner scanner = MediaScanner.getInstance(mContext);
+        int modifyCount = 0;
+        for (int i = 0; i < oldDirs.length; i++) {
+            // a renamed folder keeps its observers but they report the old path
+            unwatch(oldDirs[i]);
+            watch(new File(newDirs[i]));
+            modifyCount += scanner.renameFolderInMediaDatabase(mContext, oldDirs[i], newDirs[i]);
+        }
+        if (modifyCount > 0) {
+            MediaScanner.notifyChanges(mContext, CONTEXT + "renameFolders");
+        }
+    }
+
+    /** inserts/updates the photos of folder and its sub folders */
+    private int scanFolder(MediaScanner scanner, File folder) {
+        int modifyCount = 0;
+        List<File> todo = new ArrayList<File>();
+        todo.add(folder);
+        while (!todo.isEmpty()) {
+            File current = todo.remove(todo.size() - 1);
+            String[] fileNames = current.list(MediaScanner.JPG_FILENAME_FILTER);
+            if ((fileNames != null) && (fileNames.length > 0)) {
+                for (int i = 0; i < fileNames.length; i++) {
+                    fileNames[i] = current.getPath() + "/" + fileNames[i];
+                }
+                modifyCount += scanner.updateMediaDatabase_Android42(mContext, null, fileNames);
+            }
+
+            File[] children = current.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!child.getName().startsWith(".") && child.isDirectory()) todo.add(child);
+                }
+            }
+        }
+        return modifyCount;
+    }
+}
@@ -109,6 +109,7 @@ public class MediaScanner {
             Log.i(Global.LOG_CONTEXT, CONTEXT + "notifyChanges(" + why + ") "
                     + FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI_FILE);
         }
+        FotoSql.invalidateQueryCache(why);
         context.getContentResolver().notifyChange(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI_FILE, null);
     }
 
@@ -230,18 +231,25 @@ public class MediaScanner {
     /**
      * delete oldPathNames from media database
      */
-    private int deleteInMediaDatabase(Context context, String[] oldPathNames) {
+    private int deleteInMediaDatabase(final Context context, String[] oldPathNames) {
         int modifyCount = 0;
 
         if ((oldPathNames != null) && (oldPathNames.length > 0)) {
-            String sqlWhere = FotoSql.getWhereInFileNames(oldPathNames);
             try {
-                modifyCount = FotoSql.deleteMedia(CONTEXT + "deleteInMediaDatabase", context, sqlWhere, null, true);
+                modifyCount = new QueryParameter().forEachInChunk(FotoSql.SQL_COL_PATH,
+                        FotoSql.getFileNamesWithoutSidecar(oldPathNames), QueryParameter.MAX_SQL_PARAMETERS,
+                        new QueryParameter.ChunkProcessor() {
+                            @Override
+                            public int process(QueryParameter chunk) {
+                                return FotoSql.deleteMedia(CONTEXT + "deleteInMediaDatabase", context,
+                                        chunk.toAndroidWhere(), chunk.toAndroidParameters(), true);
+                            }
+                        });
                 if (Global.debugEnabled) {
                     Log.d(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase(len=" + oldPathNames.length + ", files='" + oldPathNames[0] + "'...) result count=" + modifyCount);
                 }
             } catch (Exception ex) {
-                Log.e(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase(" + sqlWhere + ") error :", ex);
+                Log.e(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase(len=" + oldPathNames.length + ", files='" + oldPathNames[0] + "'...) error :", ex);
             }
         }
 
@@ -282,26 +290,36 @@ public class MediaScanner {
         return 0;
     }
 
-    private int renameInMediaDatabase(Context context, Map<String, String> old2NewFileNames) {
+    private int renameInMediaDatabase(final Context context, final Map<String, String> old2NewFileNames) {
         int modifyCount = 0;
         if (old2NewFileNames.size() > 0) {
             QueryParameter query = new QueryParameter(FotoSql.queryChangePath);
-            FotoSql.setWhereFileNames(query, old2NewFileNames.keySet().toArray(new String[old2NewFileNames.size()]));
-
-            Cursor c = null;
-            try {
-                c = FotoSql.createCursorForQuery("renameInMediaDatabase", context, query, IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
-                int pkColNo = c.getColumnIndex(FotoSql.SQL_COL_PK);
-                int pathColNo = c.getColumnIndex(FotoSql.SQL_COL_PATH);
-                while (c.moveToNext()) {
-                    String oldPath = c.getString(pathColNo);
-                    modifyCount += updatePathRelatedFields(context, c, old2NewFileNames.get(oldPath), pkColNo, pathColNo);
-                }
-            } catch (Exception ex) {
-                Log.e(Global.LOG_CONTEXT, CONTEXT + "execChangePaths() error :", ex);
-            } finally {
-                if (c != null) c.close();
-            }
+            FotoSql.setWhereVisibility(query, IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
+
+            modifyCount = query.forEachInChunk(FotoSql.SQL_COL_PATH,
+                    FotoSql.getFileNamesWithoutSidecar(old2NewFileNames.keySet().toArray(new String[old2NewFileNames.size()])),
+                    QueryParameter.MAX_SQL_PARAMETERS,
+                    new QueryParameter.ChunkProcessor() {
+                        @Override
+                        public int process(QueryParameter chunk) {
+                            int modifyCount = 0;
+                            Cursor c = null;
+                            try {
+                                c = FotoSql.createCursorForQuery("renameInMediaDatabase", context, chunk);
+                                int pkColNo = c.getColumnIndex(FotoSql.SQL_COL_PK);
+                                int pathColNo = c.getColumnIndex(FotoSql.SQL_COL_PATH);
+                                while (c.moveToNext()) {
+                                    String oldPath = c.getString(pathColNo);
+                                    modifyCount += updatePathRelatedFields(context, c, old2NewFileNames.get(oldPath), pkColNo, pathColNo);
+                                }
+                            } catch (Exception ex) {
+                                Log.e(Global.LOG_CONTEXT, CONTEXT + "execChangePaths() error :", ex);
+                            } finally {
+                                if (c != null) c.close();
+                            }
+                            return modifyCount;
+                        }
+                    });
 
             if (Global.debugEnabled) {
                 Log.d(Global.LOG_CONTEXT, CONTEXT + "execChangePaths() result count=" + modifyCount);
@@ -310,6 +328,43 @@ public class MediaScanner {
         return modifyCount;
     }
 
+    /**
+     * change path and path dependant fields of all files below oldFolder after it was renamed to newFolder.
+     * The media db rows (and their ids) are kept.
+     */
+    public int renameFolderInMediaDatabase(Context context, String oldFolder, String newFolder) {
+        int modifyCount = 0;
+        String oldPrefix = oldFolder + "/";
+        QueryParameter query = new QueryParameter(FotoSql.queryChangePath)
+                .addWhere(FotoSql.SQL_COL_PATH + " like ?", oldPrefix + "%");
+        FotoSql.setWhereVisibility(query, IGalleryFilter.VISIBILITY_PRIVATE_PUBLIC);
+
+        Cursor c = null;
+        try {
+            c = FotoSql.createCursorForQuery("renameFolderInMediaDatabase", context, query);
+            int pkColNo = c.getColumnIndex(FotoSql.SQL_COL_PK);
+            int pathColNo = c.getColumnIndex(FotoSql.SQL_COL_PATH);
+            while (c.moveToNext()) {
+                String oldPath = c.getString(pathColNo);
+                // "like" also matches "_" and "%" in oldFolder as wildcards
+                if ((oldPath != null) && oldPath.startsWith(oldPrefix)) {
+                    modifyCount += updatePathRelatedFields(context, c,
+                            newFolder + oldPath.substring(oldFolder.length()), pkColNo, pathColNo);
+                }
+            }
+        } catch (Exception ex) {
+            Log.e(Global.LOG_CONTEXT, CONTEXT + "renameFolderInMediaDatabase('" + oldFolder + "') error :", ex);
+        } finally {
+            if (c != null) c.close();
+        }
+
+        if (Global.debugEnabled) {
+            Log.d(Global.LOG_CONTEXT, CONTEXT + "renameFolderInMediaDatabase('" + oldFolder
+                    + "' to '" + newFolder + "') result count=" + modifyCount);
+        }
+        return modifyCount;
+    }
+
     /**
      * updates values with current values of file
      */
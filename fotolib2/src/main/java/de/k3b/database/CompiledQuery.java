@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, rendered form of a {@link QueryParameter} as used by android content-provider queries.
+ *
+ * Created by {@link QueryParameter#compile()}: the sql parts are rendered only once
+ * and the hashCode is precalculated so a CompiledQuery can be used as a cache key.
+ * Two CompiledQuery are equal if they have the same from, columns, where, parameters and order by.
+ */
+public final class CompiledQuery {
+    final int mID;
+    final String mFrom;
+    final String[] mColumns;
+    final String mAndroidWhere;
+    final String[] mAndroidParameters;
+    final String mOrderBy;
+    private final int mHashCode;
+
+    CompiledQuery(int id, String from, String[] columns, String androidWhere, String[] androidParameters, String orderBy) {
+        mID = id;
+        mFrom = from;
+        mColumns = columns;
+        mAndroidWhere = androidWhere;
+        mAndroidParameters = androidParameters;
+        mOrderBy = orderBy;
+
+        int hash = hashCode(from);
+        hash = 31 * hash + Arrays.hashCode(columns);
+        hash = 31 * hash + hashCode(androidWhere);
+        hash = 31 * hash + Arrays.hashCode(androidParameters);
+        hash = 31 * hash + hashCode(orderBy);
+        mHashCode = hash;
+    }
+
+    public int getID() {
+        return mID;
+    }
+
+    public String toFrom() {
+        return mFrom;
+    }
+
+    /** @return copy of the columns or null */
+    public String[] toColumns() {
+        return (mColumns == null) ? null : mColumns.clone();
+    }
+
+    /** see {@link QueryParameter#toAndroidWhere()} */
+    public String toAndroidWhere() {
+        return mAndroidWhere;
+    }
+
+    /** @return copy of where and having parameters or null */
+    public String[] toAndroidParameters() {
+        return (mAndroidParameters == null) ? null : mAndroidParameters.clone();
+    }
+
+    public String toOrderBy() {
+        return mOrderBy;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompiledQuery)) return false;
+        CompiledQuery other = (CompiledQuery) o;
+        return (mHashCode == other.mHashCode)
+                && equals(mFrom, other.mFrom)
+                && equals(mAndroidWhere, other.mAndroidWhere)
+                && equals(mOrderBy, other.mOrderBy)
+                && Arrays.equals(mColumns, other.mColumns)
+                && Arrays.equals(mAndroidParameters, other.mAndroidParameters);
+    }
+
+    @Override
+    public String toString() {
+        return QueryParameter.toString(mColumns, null, mFrom, mAndroidWhere, mAndroidParameters, mOrderBy, -1);
+    }
+
+    private static int hashCode(String value) {
+        return (value == null) ? 0 : value.hashCode();
+    }
+
+    private static boolean equals(String lhs, String rhs) {
+        return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+    }
+}
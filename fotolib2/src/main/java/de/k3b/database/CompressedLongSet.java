@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Sorted set of primitive longs (i.e. image ids) with the {@link Set} api.
+ *
+ * Roaring bitmap style: values are grouped by their upper 48 bits. The lower 16 bits of each group
+ * are either stored in a sorted char[] (up to 4096 values, 2 bytes per value) or in a
+ * 8 KByte bitmap (dense groups, 1 bit per possible value).
+ * Selecting all 150000 images of a gallery with consecutive ids needs about 20 KByte
+ * instead of about 40 bytes per value in a TreeSet&lt;Long&gt;.
+ *
+ * {@link #union(CompressedLongSet)} and {@link #intersect(CompressedLongSet)} work
+ * group by group and on 64 bits at a time for bitmaps.
+ * Use {@link #longIterator()} to iterate without boxing.
+ */
+public class CompressedLongSet extends AbstractSet<Long> implements Set<Long> {
+    /** groups with more values are stored as bitmap */
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    /** iterates over primitive values in ascending order without allocating */
+    public interface LongIterator {
+        boolean hasNext();
+
+        long nextLong();
+    }
+
+    /** sorted upper 48 bits of the values */
+    private long[] mKeys = new long[4];
+    /** lower 16 bits of the values belonging to mKeys[i] */
+    private Container[] mContainers = new Container[4];
+    private int mContainerCount = 0;
+    private int mSize = 0;
+
+    public CompressedLongSet() {
+    }
+
+    public CompressedLongSet(Collection<Long> values) {
+        addAll(values);
+    }
+
+    /************************** set api *********************/
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @Override
+    public boolean contains(Object value) {
+        return (value instanceof Long) && contains(((Long) value).longValue());
+    }
+
+    public boolean contains(long value) {
+        int index = indexOfKey(highBits(value));
+        return (index >= 0) && mContainers[index].contains(lowBits(value));
+    }
+
+    @Override
+    public boolean add(Long value) {
+        return add(value.longValue());
+    }
+
+    /** @return true if value was not in this set before */
+    public boolean add(long value) {
+        long key = highBits(value);
+        int index = indexOfKey(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer());
+        }
+        Container container = mContainers[index];
+        int oldCardinality = container.cardinality;
+        mContainers[index] = container.add(lowBits(value));
+        if (mContainers[index].cardinality == oldCardinality) return false;
+        mSize++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object value) {
+        return (value instanceof Long) && remove(((Long) value).longValue());
+    }
+
+    /** @return true if value was in this set */
+    public boolean remove(long value) {
+        int index = indexOfKey(highBits(value));
+        if (index < 0) return false;
+        Container container = mContainers[index];
+        int oldCardinality = container.cardinality;
+        container = container.remove(lowBits(value));
+        if (container.cardinality == oldCardinality) return false;
+        mSize--;
+        if (container.cardinality == 0) {
+            removeContainer(index);
+        } else {
+            mContainers[index] = container;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mContainers, 0, mContainerCount, null);
+        mContainerCount = 0;
+        mSize = 0;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Long> values) {
+        if (values instanceof CompressedLongSet) return union((CompressedLongSet) values);
+        return super.addAll(values);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> values) {
+        if (values instanceof CompressedLongSet) return intersect((CompressedLongSet) values);
+        return super.retainAll(values);
+    }
+
+    /** boxes every value. Use {@link #longIterator()} to avoid that. */
+    @Override
+    public Iterator<Long> iterator() {
+        final ValueIterator values = new ValueIterator();
+        return new Iterator<Long>() {
+            @Override
+            public boolean hasNext() {
+                return values.hasNext();
+            }
+
+            @Override
+            public Long next() {
+                return values.nextLong();
+            }
+
+            @Override
+            public void remove() {
+                values.remove();
+            }
+        };
+    }
+
+    public LongIterator longIterator() {
+        return new ValueIterator();
+    }
+
+    @Override
+    public int hashCode() {
+        // same as Set<Long>.hashCode() without boxing
+        int result = 0;
+        LongIterator iter = longIterator();
+        while (iter.hasNext()) {
+            long value = iter.nextLong();
+            result += (int) (value ^ (value >>> 32));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof CompressedLongSet)) return super.equals(o);
+
+        CompressedLongSet other = (CompressedLongSet) o;
+        if ((other.mSize != mSize) || (other.mContainerCount != mContainerCount)) return false;
+        for (int i = 0; i < mContainerCount; i++) {
+            if ((mKeys[i] != other.mKeys[i]) || !mContainers[i].sameValues(other.mContainers[i])) return false;
+        }
+        return true;
+    }
+
+    /************************** sorted set api *********************/
+
+    /** @return smallest value. Same as TreeSet.first() */
+    public long first() {
+        if (mSize == 0) throw new NoSuchElementException();
+        return value(mKeys[0], mContainers[0].valueAt(mContainers[0].seek(0)));
+    }
+
+    /** @return all values in ascending order */
+    public long[] toLongArray() {
+        long[] result = new long[mSize];
+        int i = 0;
+        LongIterator iter = longIterator();
+        while (iter.hasNext()) {
+            result[i++] = iter.nextLong();
+        }
+        return result;
+    }
+
+    /************************** bulk operations *********************/
+
+    /**
+     * Add all values of other to this.
+     *
+     * @return true if this changed
+     */
+    public boolean union(CompressedLongSet other) {
+        int oldSize = mSize;
+        int i = 0;
+        for (int o = 0; o < other.mContainerCount; o++) {
+            long key = other.mKeys[o];
+            while ((i < mContainerCount) && (mKeys[i] < key)) i++;
+            if ((i < mContainerCount) && (mKeys[i] == key)) {
+                mSize -= mContainers[i].cardinality;
+                mContainers[i] = mContainers[i].or(other.mContainers[o]);
+            } else {
+                insertContainer(i, key, other.mContainers[o].copy());
+            }
+            mSize += mContainers[i].cardinality;
+            i++;
+        }
+        return mSize != oldSize;
+    }
+
+    /**
+     * Remove all values from this that are not in other.
+     *
+     * @return true if this changed
+     */
+    public boolean intersect(CompressedLongSet other) {
+        int oldSize = mSize;
+        int count = 0;
+        int o = 0;
+        mSize = 0;
+        for (int i = 0; i < mContainerCount; i++) {
+            long key = mKeys[i];
+            while ((o < other.mContainerCount) && (other.mKeys[o] < key)) o++;
+            if ((o < other.mContainerCount) && (other.mKeys[o] == key)) {
+                Container container = mContainers[i].and(other.mContainers[o]);
+                if (container.cardinality > 0) {
+                    mKeys[count] = key;
+                    mContainers[count++] = container;
+                    mSize += container.cardinality;
+                }
+            }
+        }
+        Arrays.fill(mContainers, count, mContainerCount, null);
+        mContainerCount = count;
+        return mSize != oldSize;
+    }
+
+    /************************** implementation *********************/
+
+    private static long highBits(long value) {
+        return value >> 16;
+    }
+
+    private static int lowBits(long value) {
+        return (int) (value & 0xFFFF);
+    }
+
+    private static long value(long highBits, int lowBits) {
+        return (highBits << 16) | lowBits;
+    }
+
+    private int indexOfKey(long key) {
+        // most values are appended in ascending order
+        if ((mContainerCount > 0) && (mKeys[mContainerCount - 1] == key)) return mContainerCount - 1;
+        return Arrays.binarySearch(mKeys, 0, mContainerCount, key);
+    }
+
+    private void insertContainer(int index, long key, Container container) {
+        if (mContainerCount == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mContainerCount * 2);
+            mContainers = Arrays.copyOf(mContainers, mContainerCount * 2);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mContainerCount - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mContainerCount - index);
+        mKeys[index] = key;
+        mContainers[index] = container;
+        mContainerCount++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(mKeys, index + 1, mKeys, index, mContainerCount - index - 1);
+        System.arraycopy(mContainers, index + 1, mContainers, index, mContainerCount - index - 1);
+        mContainers[--mContainerCount] = null;
+    }
+
+    /** Iterates by container and position inside the container. */
+    private class ValueIterator implements LongIterator {
+        private int mContainerIndex = 0;
+        private int mPosition = -1;
+        private boolean mCanRemove = false;
+        private long mLast = 0;
+
+        ValueIterator() {
+            seek(0, 0);
+        }
+
+        /** go to the first value >= lowBits in container containerIndex or later */
+        private void seek(int containerIndex, int lowBits) {
+            mContainerIndex = containerIndex;
+            mPosition = (mContainerIndex < mContainerCount) ? mContainers[mContainerIndex].seek(lowBits) : -1;
+            while ((mPosition < 0) && (++mContainerIndex < mContainerCount)) {
+                mPosition = mContainers[mContainerIndex].seek(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mPosition >= 0;
+        }
+
+        @Override
+        public long nextLong() {
+            if (mPosition < 0) throw new NoSuchElementException();
+            Container container = mContainers[mContainerIndex];
+            int lowBits = container.valueAt(mPosition);
+            mLast = value(mKeys[mContainerIndex], lowBits);
+            mCanRemove = true;
+            mPosition = container.nextPosition(mPosition);
+            if (mPosition < 0) seek(mContainerIndex + 1, 0);
+            return mLast;
+        }
+
+        void remove() {
+            if (!mCanRemove) throw new IllegalStateException();
+            mCanRemove = false;
+            CompressedLongSet.this.remove(mLast);
+            // containers may have been converted or removed: continue after mLast
+            if (mLast == Long.MAX_VALUE) {
+                mPosition = -1;
+                return;
+            }
+            long next = mLast + 1;
+            int index = indexOfKey(highBits(next));
+            if (index < 0) {
+                seek(-index - 1, 0);
+            } else {
+                seek(index, lowBits(next));
+            }
+        }
+    }
+
+    /**
+     * Lower 16 bits of the values of one group.
+     *
+     * Positions are container specific: index for arrays, bit number for bitmaps.
+     * Operations that may change the representation return the container to use afterwards.
+     */
+    private abstract static class Container {
+        int cardinality = 0;
+
+        abstract boolean contains(int lowBits);
+
+        abstract Container add(int lowBits);
+
+        abstract Container remove(int lowBits);
+
+        /** @return position of the first value >= lowBits or -1 */
+        abstract int seek(int lowBits);
+
+        /** @return lowBits of the value at position */
+        abstract int valueAt(int position);
+
+        /** @return position of the value after position or -1 */
+        abstract int nextPosition(int position);
+
+        abstract Container copy();
+
+        abstract BitmapContainer toBitmap();
+
+        /** union. may modify this */
+        Container or(Container other) {
+            if ((this instanceof ArrayContainer) && (other instanceof ArrayContainer)
+                    && (cardinality + other.cardinality <= ARRAY_MAX)) {
+                return ((ArrayContainer) this).merge((ArrayContainer) other);
+            }
+            BitmapContainer result = toBitmap();
+            result.orInPlace(other);
+            return result;
+        }
+
+        /** intersection. may modify this */
+        Container and(Container other) {
+            if ((this instanceof BitmapContainer) && (other instanceof BitmapContainer)) {
+                return ((BitmapContainer) this).andInPlace((BitmapContainer) other);
+            }
+            ArrayContainer array = (this instanceof ArrayContainer) ? (ArrayContainer) this : (ArrayContainer) other;
+            Container filter = (array == this) ? other : this;
+            return array.filter(filter, array == this);
+        }
+
+        boolean sameValues(Container other) {
+            if (cardinality != other.cardinality) return false;
+            for (int p = seek(0), o = other.seek(0); p >= 0; p = nextPosition(p), o = other.nextPosition(o)) {
+                if (valueAt(p) != other.valueAt(o)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        private char[] mValues;
+
+        ArrayContainer() {
+            mValues = new char[4];
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            mValues = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(int lowBits) {
+            return Arrays.binarySearch(mValues, 0, cardinality, (char) lowBits) >= 0;
+        }
+
+        @Override
+        Container add(int lowBits) {
+            // most values are appended in ascending order
+            int index = ((cardinality == 0) || (mValues[cardinality - 1] < lowBits))
+                    ? -cardinality - 1
+                    : Arrays.binarySearch(mValues, 0, cardinality, (char) lowBits);
+            if (index >= 0) return this;
+            if (cardinality >= ARRAY_MAX) return toBitmap().add(lowBits);
+
+            index = -index - 1;
+            if (cardinality == mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(mValues, index, mValues, index + 1, cardinality - index);
+            mValues[index] = (char) lowBits;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(int lowBits) {
+            int index = Arrays.binarySearch(mValues, 0, cardinality, (char) lowBits);
+            if (index >= 0) {
+                System.arraycopy(mValues, index + 1, mValues, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        int seek(int lowBits) {
+            int index = Arrays.binarySearch(mValues, 0, cardinality, (char) lowBits);
+            if (index < 0) index = -index - 1;
+            return (index < cardinality) ? index : -1;
+        }
+
+        @Override
+        int valueAt(int position) {
+            return mValues[position];
+        }
+
+        @Override
+        int nextPosition(int position) {
+            return (position + 1 < cardinality) ? position + 1 : -1;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(mValues, Math.max(4, cardinality)), cardinality);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                result.add(mValues[i]);
+            }
+            return result;
+        }
+
+        /** union of two sorted arrays with at most ARRAY_MAX values */
+        ArrayContainer merge(ArrayContainer other) {
+            char[] result = new char[Math.max(4, cardinality + other.cardinality)];
+            int count = 0;
+            int i = 0;
+            int o = 0;
+            while ((i < cardinality) && (o < other.cardinality)) {
+                char value = mValues[i];
+                char otherValue = other.mValues[o];
+                if (value <= otherValue) {
+                    result[count++] = value;
+                    i++;
+                    if (value == otherValue) o++;
+                } else {
+                    result[count++] = otherValue;
+                    o++;
+                }
+            }
+            while (i < cardinality) result[count++] = mValues[i++];
+            while (o < other.cardinality) result[count++] = other.mValues[o++];
+            mValues = result;
+            cardinality = count;
+            return this;
+        }
+
+        /** @return values that are in filter. inPlace: result may reuse this */
+        ArrayContainer filter(Container filter, boolean inPlace) {
+            char[] result = inPlace ? mValues : mValues.clone();
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (filter.contains(mValues[i])) result[count++] = mValues[i];
+            }
+            return new ArrayContainer(result, count);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] mWords;
+
+        BitmapContainer() {
+            mWords = new long[BITMAP_WORDS];
+        }
+
+        private BitmapContainer(long[] words, int cardinality) {
+            mWords = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(int lowBits) {
+            return (mWords[lowBits >>> 6] & (1L << lowBits)) != 0;
+        }
+
+        @Override
+        Container add(int lowBits) {
+            long bit = 1L << lowBits;
+            if ((mWords[lowBits >>> 6] & bit) == 0) {
+                mWords[lowBits >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(int lowBits) {
+            long bit = 1L << lowBits;
+            if ((mWords[lowBits >>> 6] & bit) != 0) {
+                mWords[lowBits >>> 6] &= ~bit;
+                cardinality--;
+                // hysteresis so that add/remove at the limit does not convert every time
+                if (cardinality <= ARRAY_MAX / 2) return toArray();
+            }
+            return this;
+        }
+
+        @Override
+        int seek(int lowBits) {
+            int wordIndex = lowBits >>> 6;
+            if (wordIndex >= BITMAP_WORDS) return -1;
+            long word = mWords[wordIndex] & (-1L << lowBits);
+            while (word == 0) {
+                if (++wordIndex == BITMAP_WORDS) return -1;
+                word = mWords[wordIndex];
+            }
+            return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        int valueAt(int position) {
+            return position;
+        }
+
+        @Override
+        int nextPosition(int position) {
+            return (position < 0xFFFF) ? seek(position + 1) : -1;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(mWords.clone(), cardinality);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return this;
+        }
+
+        ArrayContainer toArray() {
+            char[] values = new char[Math.max(4, cardinality)];
+            int count = 0;
+            for (int position = seek(0); position >= 0; position = nextPosition(position)) {
+                values[count++] = (char) position;
+            }
+            return new ArrayContainer(values, count);
+        }
+
+        void orInPlace(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] otherWords = ((BitmapContainer) other).mWords;
+                int count = 0;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    mWords[i] |= otherWords[i];
+                    count += Long.bitCount(mWords[i]);
+                }
+                cardinality = count;
+            } else {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    add(array.mValues[i]);
+                }
+            }
+        }
+
+        Container andInPlace(BitmapContainer other) {
+            int count = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                mWords[i] &= other.mWords[i];
+                count += Long.bitCount(mWords[i]);
+            }
+            cardinality = count;
+            return (count <= ARRAY_MAX) ? toArray() : this;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Unmodifyable, front coded list of file paths.
+ *
+ * Every path is stored as the length of the prefix it shares with the previous path followed by
+ * the remaining suffix so "/storage/emulated/0/DCIM/Camera/" is only stored once per block.
+ * The first path of every block of {@link #BLOCK_SIZE} entries is stored in full so
+ * {@link #get(int)} has to decode at most {@link #BLOCK_SIZE} entries. Null entries are allowed.
+ *
+ * {@link #toCompactString()} / {@link #parse(CharSequence)} use the same coding as text
+ * so it can be used as intent extra instead of a quoted, comma separated list of full paths.
+ */
+public class CompressedPathList implements Iterable<String> {
+    /** number of entries per block. The first non null path of a block is stored in full. */
+    static final int BLOCK_SIZE = 16;
+
+    /** first char of {@link #toCompactString()} */
+    public static final char COMPACT_MARKER = '\0';
+
+    /** terminates every entry in {@link #toCompactString()}. Not allowed in file paths. */
+    private static final char COMPACT_DELIMITER = '\0';
+    private static final char COMPACT_PREFIX_DELIMITER = ':';
+
+    /** prefix length of a null entry */
+    private static final char NULL_ENTRY = '\uFFFF';
+
+    /** max number of chars that can be shared with the previous entry */
+    private static final int MAX_PREFIX = NULL_ENTRY - 1;
+
+    private static final String[] EMPTY = new String[0];
+
+    private final int mSize;
+
+    /** entry := prefixLen(1 char) suffixLen(2 chars) suffix */
+    private final char[] mData;
+
+    /** start position in mData of every {@link #BLOCK_SIZE}th entry */
+    private final int[] mBlockStart;
+
+    private CompressedPathList(int size, char[] data, int[] blockStart) {
+        mSize = size;
+        mData = data;
+        mBlockStart = blockStart;
+    }
+
+    public static CompressedPathList create(String... paths) {
+        Builder builder = new Builder((paths == null) ? 0 : paths.length);
+        if (paths != null) {
+            for (String path : paths) {
+                builder.add(path);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates list from text that was created by {@link #toCompactString()} in one pass
+     * without creating intermediate strings.
+     *
+     * @throws IllegalArgumentException if text is not in compact format
+     */
+    public static CompressedPathList parse(CharSequence text) {
+        if (!isCompact(text)) {
+            throw new IllegalArgumentException("CompressedPathList.parse: not in compact format");
+        }
+
+        Builder builder = new Builder(16);
+        int len = text.length();
+        int pos = 1;
+        while (pos < len) {
+            char c = text.charAt(pos);
+            if (c == COMPACT_DELIMITER) {
+                builder.add(null);
+                pos++;
+                continue;
+            }
+
+            int prefixLen = 0;
+            while ((c >= '0') && (c <= '9')) {
+                prefixLen = prefixLen * 10 + (c - '0');
+                c = (++pos < len) ? text.charAt(pos) : COMPACT_DELIMITER;
+            }
+            if ((c != COMPACT_PREFIX_DELIMITER) || (prefixLen > builder.mLastLength)) {
+                throw new IllegalArgumentException("CompressedPathList.parse: invalid entry at position " + pos);
+            }
+            pos++;
+
+            int end = pos;
+            while ((end < len) && (text.charAt(end) != COMPACT_DELIMITER)) end++;
+
+            builder.add(prefixLen, text, pos, end);
+            pos = end + 1;
+        }
+        return builder.build();
+    }
+
+    /** @return true if text was created by {@link #toCompactString()} */
+    public static boolean isCompact(CharSequence text) {
+        return (text != null) && (text.length() > 0) && (text.charAt(0) == COMPACT_MARKER);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** @return path number index (may be null) */
+    public String get(int index) {
+        if ((index < 0) || (index >= mSize)) {
+            throw new IndexOutOfBoundsException("CompressedPathList.get(" + index + ") size=" + mSize);
+        }
+
+        Cursor cursor = new Cursor(mBlockStart[index / BLOCK_SIZE]);
+        for (int i = index % BLOCK_SIZE; i >= 0; i--) {
+            cursor.next();
+        }
+        return cursor.toString();
+    }
+
+    /** @return number of non null entries */
+    public int getNonNullCount() {
+        int result = 0;
+        int pos = 0;
+        while (pos < mData.length) {
+            if (mData[pos] != NULL_ENTRY) result++;
+            pos += 3 + getSuffixLength(pos);
+        }
+        return result;
+    }
+
+    public String[] toArray() {
+        if (mSize == 0) return EMPTY;
+
+        String[] result = new String[mSize];
+        Cursor cursor = new Cursor(0);
+        for (int i = 0; i < mSize; i++) {
+            cursor.next();
+            result[i] = cursor.toString();
+        }
+        return result;
+    }
+
+    /** iterates over all paths in order decoding each entry once. */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private final Cursor mCursor = new Cursor(0);
+            private int mIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < mSize;
+            }
+
+            @Override
+            public String next() {
+                if (mIndex >= mSize) throw new NoSuchElementException();
+                mIndex++;
+                mCursor.next();
+                return mCursor.toString();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("CompressedPathList is unmodifyable");
+            }
+        };
+    }
+
+    /** @return text that can be converted back via {@link #parse(CharSequence)} */
+    public String toCompactString() {
+        StringBuilder result = new StringBuilder(mData.length + 3 * mSize + 1);
+        try {
+            writeCompact(result);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return result.toString();
+    }
+
+    /** streams {@link #toCompactString()} to out without creating the full text in memory */
+    public void writeCompact(Appendable out) throws IOException {
+        out.append(COMPACT_MARKER);
+        Cursor cursor = new Cursor(0);
+        for (int i = 0; i < mSize; i++) {
+            boolean notNull = cursor.next();
+            if (notNull) {
+                // block heads are stored in full but in text they can share the prefix, too
+                int prefixLen = Math.min(cursor.mSharedWithPrevious, MAX_PREFIX);
+                out.append(Integer.toString(prefixLen)).append(COMPACT_PREFIX_DELIMITER);
+                for (int c = prefixLen; c < cursor.mLength; c++) {
+                    out.append(cursor.mBuffer[c]);
+                }
+            }
+            out.append(COMPACT_DELIMITER);
+        }
+    }
+
+    /** @return approximate number of bytes used on the heap */
+    public long getMemorySize() {
+        return 48 + 16 + 2L * mData.length + 16 + 4L * mBlockStart.length;
+    }
+
+    private int getSuffixLength(int pos) {
+        return (mData[pos + 1] << 16) | mData[pos + 2];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompressedPathList)) return false;
+        CompressedPathList other = (CompressedPathList) o;
+        return (mSize == other.mSize) && Arrays.equals(mData, other.mData);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mData);
+    }
+
+    /** the quoted, comma separated format of {@link SelectedFiles#toString()} */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(mData.length + 4 * mSize);
+        Cursor cursor = new Cursor(0);
+        boolean mustAddDelimiter = false;
+        for (int i = 0; i < mSize; i++) {
+            if (cursor.next()) {
+                if (mustAddDelimiter) result.append(',');
+                mustAddDelimiter = true;
+                result.append('\'').append(cursor.mBuffer, 0, cursor.mLength).append('\'');
+            }
+        }
+        return result.toString();
+    }
+
+    /** Sequentially decodes entries starting at a block head into a reusable buffer. */
+    private class Cursor {
+        private int mPos;
+        private char[] mBuffer = new char[256];
+        private int mLength = 0;
+        private boolean mNull = true;
+
+        /** number of chars the current entry shares with the previous non null entry */
+        private int mSharedWithPrevious = 0;
+
+        Cursor(int pos) {
+            mPos = pos;
+        }
+
+        /** @return false if next entry is null */
+        boolean next() {
+            int prefixLen = mData[mPos];
+            int suffixLen = getSuffixLength(mPos);
+            int start = mPos + 3;
+            mPos = start + suffixLen;
+
+            mNull = (prefixLen == NULL_ENTRY);
+            if (mNull) return false;
+
+            int newLength = prefixLen + suffixLen;
+            if (newLength > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(newLength, 2 * mBuffer.length));
+            }
+
+            int shared = prefixLen;
+            if (prefixLen == 0) {
+                // block head: compare with previous entry to find shared prefix for writeCompact
+                int max = Math.min(mLength, suffixLen);
+                while ((shared < max) && (mBuffer[shared] == mData[start + shared])) shared++;
+            }
+            mSharedWithPrevious = shared;
+            System.arraycopy(mData, start, mBuffer, prefixLen, suffixLen);
+            mLength = newLength;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return mNull ? null : new String(mBuffer, 0, mLength);
+        }
+    }
+
+    /** Appends paths in order. */
+    public static class Builder {
+        private char[] mData;
+        private int mDataLength = 0;
+        private int[] mBlockStart;
+        private int mSize = 0;
+
+        /** last non null path */
+        private char[] mLast = new char[256];
+        private int mLastLength = 0;
+        private boolean mBlockHasPath = false;
+
+        public Builder(int expectedSize) {
+            int size = Math.max(expectedSize, 1);
+            mData = new char[Math.min(size * 24, 1 << 20)];
+            mBlockStart = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        }
+
+        public Builder add(String path) {
+            if (path == null) {
+                startEntry(NULL_ENTRY, 0);
+                return this;
+            }
+            return add(0, path, 0, path.length());
+        }
+
+        /**
+         * add path that consists of the first prefixLen chars of the previous non null path
+         * followed by suffix[start..end[
+         */
+        private Builder add(int prefixLen, CharSequence suffix, int start, int end) {
+            int length = prefixLen + end - start;
+            if (length > mLast.length) {
+                mLast = Arrays.copyOf(mLast, Math.max(length, 2 * mLast.length));
+            }
+
+            // extend the given prefix by chars that are equal to the previous path
+            int shared = prefixLen;
+            int max = Math.min(mLastLength, length);
+            while ((shared < max) && (mLast[shared] == suffix.charAt(start + shared - prefixLen))) {
+                shared++;
+            }
+            for (int i = shared; i < length; i++) {
+                mLast[i] = suffix.charAt(start + i - prefixLen);
+            }
+            mLastLength = length;
+
+            // first non null entry of a block is stored in full so get() can start decoding there
+            if (((mSize % BLOCK_SIZE) == 0) || !mBlockHasPath) shared = 0;
+            if (shared > MAX_PREFIX) shared = MAX_PREFIX;
+
+            int suffixLen = length - shared;
+            startEntry(shared, suffixLen);
+            mBlockHasPath = true;
+            System.arraycopy(mLast, shared, mData, mDataLength, suffixLen);
+            mDataLength += suffixLen;
+            return this;
+        }
+
+        private void startEntry(int prefixLen, int suffixLen) {
+            if ((mSize % BLOCK_SIZE) == 0) {
+                int block = mSize / BLOCK_SIZE;
+                if (block >= mBlockStart.length) {
+                    mBlockStart = Arrays.copyOf(mBlockStart, 2 * mBlockStart.length);
+                }
+                mBlockStart[block] = mDataLength;
+                mBlockHasPath = false;
+            }
+            ensureCapacity(mDataLength + 3 + suffixLen);
+            mData[mDataLength++] = (char) prefixLen;
+            mData[mDataLength++] = (char) (suffixLen >>> 16);
+            mData[mDataLength++] = (char) suffixLen;
+            mSize++;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(capacity, mData.length + (mData.length >> 1)));
+            }
+        }
+
+        public CompressedPathList build() {
+            int blocks = (mSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            return new CompressedPathList(mSize,
+                    Arrays.copyOf(mData, mDataLength),
+                    Arrays.copyOf(mBlockStart, blocks));
+        }
+    }
+}
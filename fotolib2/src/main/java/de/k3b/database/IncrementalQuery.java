@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Updates a sorted query result with the rows that changed since it was loaded
+ * instead of executing the full query again.
+ *
+ * Usage:
+ * <pre>
+ * IncrementalQuery incremental = new IncrementalQuery(query, "_id");
+ * current = execute(incremental.createFullQuery()); // remember watermark
+ * ...
+ * changedIds = ids from transaction log since watermark
+ * delta = execute(incremental.createDeltaQuery(changedIds, "date_modified >= ?", watermarkTime));
+ * // delta == null: too many changes. execute full query again
+ * int[] merged = incremental.merge(current, changedIds, delta);
+ * // row i of the new result is current[merged[i]] or delta[toDeltaPosition(merged[i])]
+ * </pre>
+ *
+ * {@link #createFullQuery()} adds the order by expressions as columns {@link #SORT_KEY_PREFIX}0,1,...
+ * and the id as last order by so the rows of current and delta can be compared in java
+ * the same way as sqlite sorts them.
+ */
+public class IncrementalQuery {
+    /** column name prefix of the sort expressions added by {@link #createFullQuery()} */
+    public static final String SORT_KEY_PREFIX = "sort_key_";
+
+    /**
+     * {@link #createDeltaQuery(Collection, String, String...)} inlines the changed ids.
+     * With more ids the statement may exceed sqlite limits and a full query is cheaper anyway.
+     */
+    public static final int MAX_DELTA_IDS = 500;
+
+    /** Read access to a sorted query result. */
+    public interface Rows {
+        int getCount();
+
+        long getId(int position);
+
+        /** @return value of column {@link #SORT_KEY_PREFIX}key: null, Long, Double, String or byte[] */
+        Object getSortKey(int position, int key);
+    }
+
+    private final QueryParameter mQuery;
+    private final String mIdColumn;
+    private final String[] mSortExpressions;
+    private final boolean[] mDescending;
+    private final boolean mSupported;
+
+    /**
+     * @param query    sorted query where every row has a unique id
+     * @param idColumn expression of the unique id
+     */
+    public IncrementalQuery(QueryParameter query, String idColumn) {
+        mQuery = query;
+        mIdColumn = idColumn;
+
+        int count = query.mOrderBy.size();
+        mSortExpressions = new String[count];
+        mDescending = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            String expression = query.mOrderBy.get(i).trim();
+            String lower = expression.toLowerCase();
+            if (lower.endsWith(" desc")) {
+                mDescending[i] = true;
+                expression = expression.substring(0, expression.length() - 5).trim();
+            } else if (lower.endsWith(" asc")) {
+                expression = expression.substring(0, expression.length() - 4).trim();
+            }
+            mSortExpressions[i] = expression;
+        }
+
+        // grouped rows have no id
+        mSupported = query.mGroupBy.isEmpty() && query.mHaving.isEmpty();
+    }
+
+    /** @return false if result cannot be updated incrementally (i.e. "group by" query) */
+    public boolean isSupported() {
+        return mSupported;
+    }
+
+    /** @return copy of query with sort key columns and id as additional order by */
+    public QueryParameter createFullQuery() {
+        QueryParameter result = new QueryParameter(mQuery);
+        if (mSupported) {
+            for (int i = 0; i < mSortExpressions.length; i++) {
+                result.addColumn(mSortExpressions[i] + " AS " + SORT_KEY_PREFIX + i);
+            }
+            result.addOrderBy(mIdColumn);
+        }
+        return result;
+    }
+
+    /**
+     * @param changedIds              ids of rows that were changed, deleted or inserted since the last query.
+     * @param modifiedSinceExpression optional where expression to find rows that have been modified
+     *                                since the last query without being in changedIds.
+     * @return query that returns only the rows of {@link #createFullQuery()} that are in
+     * changedIds or match modifiedSinceExpression. null if there are more than {@link #MAX_DELTA_IDS} changedIds.
+     */
+    public QueryParameter createDeltaQuery(Collection<Long> changedIds, String modifiedSinceExpression, String... parameters) {
+        if ((changedIds != null) && (changedIds.size() > MAX_DELTA_IDS)) return null;
+
+        StringBuilder where = new StringBuilder();
+        if ((changedIds != null) && (changedIds.size() > 0)) {
+            // ids are numbers so they can be inlined without parameters
+            where.append(mIdColumn).append(" IN (");
+            boolean first = true;
+            for (Long id : changedIds) {
+                if (!first) where.append(",");
+                where.append(id);
+                first = false;
+            }
+            where.append(")");
+        }
+        if (modifiedSinceExpression != null) {
+            if (where.length() > 0) where.append(" OR ");
+            where.append(modifiedSinceExpression);
+        }
+        if (where.length() == 0) where.append("0");
+
+        return createFullQuery().addWhere("(" + where + ")", parameters);
+    }
+
+    /**
+     * @return query that returns up to limit rows of {@link #createFullQuery()} starting at offset.
+     * Cost grows with offset: use {@link #createKeysetQuery(Rows, int, int)} to continue after a known row.
+     */
+    public QueryParameter createPageQuery(int offset, int limit) {
+        return setLimit(createFullQuery(), offset, limit);
+    }
+
+    /**
+     * Keyset pagination: the rows of {@link #createFullQuery()} that come after row position of rows.
+     * Uses the sort key and id of that row instead of an offset so sqlite can use indexes
+     * and does not have to skip all previous rows.
+     *
+     * @return query that returns up to limit rows
+     */
+    public QueryParameter createKeysetQuery(Rows rows, int position, int limit) {
+        return setLimit(addAfterWhere(createFullQuery(), rows, position), 0, limit);
+    }
+
+    /**
+     * The position of a row in the result is {@link #createCountQuery()} - 1 - this count.
+     * No rows before it have to be read.
+     *
+     * @return query that counts the rows of {@link #createFullQuery()} that come after row position of rows
+     */
+    public QueryParameter createCountAfterQuery(Rows rows, int position) {
+        if (!mSupported) {
+            throw new IllegalStateException("IncrementalQuery: keyset is not supported for " + mQuery);
+        }
+        return addAfterWhere(createCountQuery(), rows, position);
+    }
+
+    /** adds where condition for the rows that are sorted after row position of rows */
+    private QueryParameter addAfterWhere(QueryParameter result, Rows rows, int position) {
+        StringBuilder where = new StringBuilder();
+        List<String> parameters = new ArrayList<String>();
+
+        // (k0 after v0) OR (k0 = v0 AND k1 after v1) OR ... OR (k0 = v0 AND ... AND id > vId)
+        StringBuilder equalsBefore = new StringBuilder();
+        for (int i = 0; i <= mSortExpressions.length; i++) {
+            boolean isId = (i == mSortExpressions.length);
+            String expression = isId ? mIdColumn : mSortExpressions[i];
+            Object value = isId ? (Object) rows.getId(position) : rows.getSortKey(position, i);
+
+            String after = getAfterExpression(expression, value, !isId && mDescending[i], parameters);
+            if (after != null) {
+                if (where.length() > 0) where.append(" OR ");
+                where.append("(").append(equalsBefore).append(after).append(")");
+            }
+
+            if (value == null) {
+                equalsBefore.append(expression).append(" IS NULL AND ");
+            } else {
+                equalsBefore.append(expression).append(" = ").append(toSqlValue(value, parameters)).append(" AND ");
+            }
+        }
+
+        return result.addWhere("(" + where + ")", parameters.toArray(new String[parameters.size()]));
+    }
+
+    /** @return where expression for values that are sorted after value or null if there are none */
+    private static String getAfterExpression(String expression, Object value, boolean descending, List<String> parameters) {
+        if (value == null) {
+            // sqlite sorts null first
+            return descending ? null : (expression + " IS NOT NULL");
+        }
+        String sqlValue = toSqlValue(value, parameters);
+        if (descending) {
+            return "(" + expression + " < " + sqlValue + " OR " + expression + " IS NULL)";
+        }
+        return expression + " > " + sqlValue;
+    }
+
+    /**
+     * Numbers are inlined because expressions without column affinity (i.e. "length(_data)")
+     * would compare a text parameter as text.
+     */
+    private static String toSqlValue(Object value, List<String> parameters) {
+        if (value instanceof Number) return value.toString();
+        if (value instanceof byte[]) {
+            StringBuilder result = new StringBuilder("X'");
+            for (byte b : (byte[]) value) {
+                result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return result.append("'").toString();
+        }
+        parameters.add(value.toString());
+        return "?";
+    }
+
+    /** appends limit to the last order by. Android content providers have no separate limit parameter */
+    private QueryParameter setLimit(QueryParameter query, int offset, int limit) {
+        if (!mSupported) {
+            throw new IllegalStateException("IncrementalQuery: paging is not supported for " + mQuery);
+        }
+
+        // createFullQuery() has at least the id as order by
+        int last = query.mOrderBy.size() - 1;
+        return query.replaceOrderBy(last, query.mOrderBy.get(last)
+                + " LIMIT " + limit + ((offset > 0) ? (" OFFSET " + offset) : ""));
+    }
+
+    /** @return query that returns the number of rows of {@link #createFullQuery()} as its only column */
+    public QueryParameter createCountQuery() {
+        QueryParameter result = new QueryParameter(mQuery);
+        return result.clearColumns().clearOrderBy().addColumn("count(*)");
+    }
+
+    /**
+     * Merges delta into current.
+     *
+     * @param current    result of {@link #createFullQuery()} before the change
+     * @param changedIds ids of changed or deleted rows. Rows in delta are treated as changed, too.
+     * @param delta      result of {@link #createDeltaQuery(Collection, String, String...)}
+     * @return positions of the new result: values >= 0 are positions in current,
+     * other values are positions in delta encoded by {@link #fromDeltaPosition(int)}
+     */
+    public int[] merge(final Rows current, Collection<Long> changedIds, final Rows delta) {
+        CompressedLongSet removed = new CompressedLongSet();
+        if (changedIds != null) removed.addAll(changedIds);
+
+        int deltaCount = delta.getCount();
+        Integer[] deltaOrder = new Integer[deltaCount];
+        for (int i = 0; i < deltaCount; i++) {
+            deltaOrder[i] = i;
+            removed.add(delta.getId(i));
+        }
+        Arrays.sort(deltaOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return IncrementalQuery.this.compare(delta, lhs, delta, rhs);
+            }
+        });
+
+        // insert position of every delta row. current is sorted so binary search can be used.
+        int currentCount = current.getCount();
+        int[] insertAt = new int[deltaCount];
+        int low = 0;
+        for (int d = 0; d < deltaCount; d++) {
+            int high = currentCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(current, middle, delta, deltaOrder[d]) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            insertAt[d] = low;
+        }
+
+        int[] result = new int[currentCount + deltaCount];
+        int count = 0;
+        int d = 0;
+        for (int c = 0; c < currentCount; c++) {
+            while ((d < deltaCount) && (insertAt[d] == c)) {
+                result[count++] = fromDeltaPosition(deltaOrder[d++]);
+            }
+            if (!removed.contains(current.getId(c))) {
+                result[count++] = c;
+            }
+        }
+        while (d < deltaCount) {
+            result[count++] = fromDeltaPosition(deltaOrder[d++]);
+        }
+        return (count == result.length) ? result : Arrays.copyOf(result, count);
+    }
+
+    /** @return encoded value of a delta position in the result of {@link #merge(Rows, Collection, Rows)} */
+    public static int fromDeltaPosition(int deltaPosition) {
+        return -1 - deltaPosition;
+    }
+
+    /** @return position in delta if mergedValue belongs to delta. Else -1 */
+    public static int toDeltaPosition(int mergedValue) {
+        return (mergedValue < 0) ? (-1 - mergedValue) : -1;
+    }
+
+    /**
+     * @return new position of the row that was at oldPosition in current or of its
+     * next surviving row if it was removed. Can be used to keep the scroll position.
+     */
+    public static int getNewPosition(int[] merged, int oldPosition) {
+        for (int i = 0; i < merged.length; i++) {
+            if (merged[i] >= oldPosition) return i;
+        }
+        return Math.max(0, merged.length - 1);
+    }
+
+    /** compares rows the same way as "ORDER BY" of {@link #createFullQuery()} */
+    public int compare(Rows lhs, int lhsPosition, Rows rhs, int rhsPosition) {
+        for (int i = 0; i < mSortExpressions.length; i++) {
+            int result = compareSqlValues(lhs.getSortKey(lhsPosition, i), rhs.getSortKey(rhsPosition, i));
+            if (result != 0) return mDescending[i] ? -result : result;
+        }
+        long lhsId = lhs.getId(lhsPosition);
+        long rhsId = rhs.getId(rhsPosition);
+        return (lhsId < rhsId) ? -1 : ((lhsId == rhsId) ? 0 : 1);
+    }
+
+    /** sqlite sort order: null &lt; numbers &lt; text &lt; blob */
+    static int compareSqlValues(Object lhs, Object rhs) {
+        int lhsType = getSqlTypeOrder(lhs);
+        int rhsType = getSqlTypeOrder(rhs);
+        if (lhsType != rhsType) return (lhsType < rhsType) ? -1 : 1;
+
+        switch (lhsType) {
+            case 1:
+                Number lhsNumber = (Number) lhs;
+                Number rhsNumber = (Number) rhs;
+                if ((lhs instanceof Double) || (rhs instanceof Double)) {
+                    return Double.compare(lhsNumber.doubleValue(), rhsNumber.doubleValue());
+                }
+                long lhsLong = lhsNumber.longValue();
+                long rhsLong = rhsNumber.longValue();
+                return (lhsLong < rhsLong) ? -1 : ((lhsLong == rhsLong) ? 0 : 1);
+            case 2:
+                return ((String) lhs).compareTo((String) rhs);
+            case 3:
+                byte[] lhsBytes = (byte[]) lhs;
+                byte[] rhsBytes = (byte[]) rhs;
+                int len = Math.min(lhsBytes.length, rhsBytes.length);
+                for (int i = 0; i < len; i++) {
+                    int result = (lhsBytes[i] & 0xff) - (rhsBytes[i] & 0xff);
+                    if (result != 0) return result;
+                }
+                return lhsBytes.length - rhsBytes.length;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getSqlTypeOrder(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Number) return 1;
+        if (value instanceof byte[]) return 3;
+        return 2;
+    }
+
+    /**
+     * Immutable copy of the ids and sort keys of {@link Rows}.
+     * Can be merged in a background thread while the original cursor is used by the gui.
+     */
+    public static class RowKeys implements Rows {
+        private final long[] mIds;
+        /** mSortKeys[position][key] */
+        private final Object[][] mSortKeys;
+
+        private RowKeys(long[] ids, Object[][] sortKeys) {
+            mIds = ids;
+            mSortKeys = sortKeys;
+        }
+
+        /** @return copy of rows which has sortKeyCount keys per row */
+        public static RowKeys copy(Rows rows, int sortKeyCount) {
+            int count = rows.getCount();
+            long[] ids = new long[count];
+            Object[][] sortKeys = new Object[count][];
+            for (int position = 0; position < count; position++) {
+                ids[position] = rows.getId(position);
+                Object[] keys = new Object[sortKeyCount];
+                for (int key = 0; key < sortKeyCount; key++) {
+                    keys[key] = rows.getSortKey(position, key);
+                }
+                sortKeys[position] = keys;
+            }
+            return new RowKeys(ids, sortKeys);
+        }
+
+        /**
+         * @param merged result of {@link IncrementalQuery#merge(Rows, Collection, Rows)} with this as current
+         * @return keys of the merged result
+         */
+        public RowKeys merge(int[] merged, RowKeys delta) {
+            long[] ids = new long[merged.length];
+            Object[][] sortKeys = new Object[merged.length][];
+            for (int i = 0; i < merged.length; i++) {
+                int deltaPosition = toDeltaPosition(merged[i]);
+                RowKeys source = (deltaPosition >= 0) ? delta : this;
+                int position = (deltaPosition >= 0) ? deltaPosition : merged[i];
+                ids[i] = source.mIds[position];
+                sortKeys[i] = source.mSortKeys[position];
+            }
+            return new RowKeys(ids, sortKeys);
+        }
+
+        @Override
+        public int getCount() {
+            return mIds.length;
+        }
+
+        @Override
+        public long getId(int position) {
+            return mIds[position];
+        }
+
+        @Override
+        public Object getSortKey(int position, int key) {
+            return mSortKeys[position][key];
+        }
+    }
+
+    /** @return the query this was created from */
+    public QueryParameter getQuery() {
+        return mQuery;
+    }
+
+    public int getSortKeyCount() {
+        return mSortExpressions.length;
+    }
+
+    public String getIdColumn() {
+        return mIdColumn;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Position indexed access to a huge query result that keeps only a few pages of
+ * {@link #getPageSize()} rows in memory.
+ *
+ * A page that follows a known page is loaded via {@link IncrementalQuery#createKeysetQuery(IncrementalQuery.Rows, int, int)}
+ * (sort key and id of the previous row). Only jumps to a page without known predecessor
+ * use {@link IncrementalQuery#createPageQuery(int, int)} with an offset.
+ * {@link #prefetch()} loads the next page in the current scroll direction.
+ * If more than maxPages are loaded the page that is farthest away from the last used page is closed.
+ *
+ * Thread safe so {@link #prefetch()} can be called from a background thread. Page queries run
+ * outside the lock: {@link #getLoadedPageForPosition(int)} does not wait for a load in an other thread.
+ *
+ * @param <P> a page i.e. an android cursor
+ */
+public class KeysetPager<P> {
+    /** Executes page queries */
+    public interface PageLoader<P> {
+        P load(QueryParameter pageQuery);
+
+        /** @return rows of a loaded page to get sort key and id of its last row */
+        IncrementalQuery.Rows getRows(P page);
+
+        void close(P page);
+    }
+
+    private final IncrementalQuery mQuery;
+    private final PageLoader<P> mLoader;
+    private final int mCount;
+    private final int mPageSize;
+    private final int mMaxPages;
+
+    /** pageNo -> loaded page */
+    private final Map<Integer, P> mPages = new HashMap<Integer, P>();
+
+    /** pageNo -> copy of the last row of a full page. Kept after the page was closed. */
+    private final Map<Integer, LastRow> mLastRows = new HashMap<Integer, LastRow>();
+
+    /** pageNo of the pages that are being loaded */
+    private final Set<Integer> mLoadingPageNos = new HashSet<Integer>();
+
+    private boolean mClosed = false;
+    private int mLastPageNo = 0;
+    private int mDirection = 1;
+
+    private int mKeysetLoadCount = 0;
+    private int mOffsetLoadCount = 0;
+
+    /**
+     * @param count    number of rows of the full query
+     * @param maxPages max number of pages in memory. At least 3.
+     */
+    public KeysetPager(IncrementalQuery query, PageLoader<P> loader, int count, int pageSize, int maxPages) {
+        mQuery = query;
+        mLoader = loader;
+        mCount = count;
+        mPageSize = pageSize;
+        mMaxPages = Math.max(3, maxPages);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public int getPositionInPage(int position) {
+        return position % mPageSize;
+    }
+
+    public int getPageNo(int position) {
+        return position / mPageSize;
+    }
+
+    /**
+     * Loads the page if necessary.
+     *
+     * @return page containing position or null if closed. Remembers the scroll direction for {@link #prefetch()}
+     */
+    public P getPageForPosition(int position) {
+        int pageNo;
+        synchronized (this) {
+            pageNo = setLastPageNo(getPageNo(position));
+        }
+        return getPage(pageNo);
+    }
+
+    /**
+     * Same as {@link #getPageForPosition(int)} without loading the page.
+     *
+     * @return null if the page is not loaded. Use {@link #loadPageForPosition(int)} in a background thread.
+     */
+    public synchronized P getLoadedPageForPosition(int position) {
+        return mPages.get(setLastPageNo(getPageNo(position)));
+    }
+
+    /**
+     * Loads the page containing position if it is not loaded yet.
+     *
+     * @return true if a page was loaded
+     */
+    public boolean loadPageForPosition(int position) {
+        int pageNo = getPageNo(position);
+        synchronized (this) {
+            if (mClosed || mPages.containsKey(pageNo)) return false;
+        }
+        return getPage(pageNo) != null;
+    }
+
+    private int setLastPageNo(int pageNo) {
+        if (pageNo != mLastPageNo) {
+            mDirection = (pageNo > mLastPageNo) ? 1 : -1;
+            mLastPageNo = pageNo;
+        }
+        return pageNo;
+    }
+
+    /** @return page number of the next page in scroll direction that is not loaded yet or -1 */
+    public synchronized int getPrefetchPageNo() {
+        int pageNo = mLastPageNo + mDirection;
+        if ((pageNo < 0) || (pageNo * mPageSize >= mCount) || mPages.containsKey(pageNo)) return -1;
+        return pageNo;
+    }
+
+    /**
+     * Loads the next page in scroll direction if it is not loaded yet.
+     *
+     * @return true if a page was loaded
+     */
+    public boolean prefetch() {
+        int pageNo;
+        synchronized (this) {
+            pageNo = getPrefetchPageNo();
+            if ((pageNo < 0) || mClosed) return false;
+        }
+        return getPage(pageNo) != null;
+    }
+
+    /**
+     * The page query runs outside the lock. If an other thread is loading the same page
+     * this waits for its result.
+     *
+     * @return loaded page or null if closed
+     */
+    private P getPage(int pageNo) {
+        QueryParameter pageQuery;
+        synchronized (this) {
+            while (true) {
+                P result = mPages.get(pageNo);
+                if ((result != null) || mClosed) return result;
+                if (!mLoadingPageNos.contains(pageNo)) break;
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            mLoadingPageNos.add(pageNo);
+            pageQuery = createPageQuery(pageNo);
+        }
+
+        P result = null;
+        LastRow lastRow = null;
+        try {
+            result = mLoader.load(pageQuery);
+            IncrementalQuery.Rows rows = mLoader.getRows(result);
+            if (rows.getCount() == mPageSize) {
+                lastRow = new LastRow(rows, mQuery.getSortKeyCount());
+            }
+        } finally {
+            synchronized (this) {
+                mLoadingPageNos.remove(pageNo);
+                notifyAll();
+                if ((result != null) && mClosed) {
+                    mLoader.close(result);
+                    result = null;
+                } else if (result != null) {
+                    mPages.put(pageNo, result);
+                    if (lastRow != null) mLastRows.put(pageNo, lastRow);
+                    evict(pageNo);
+                }
+            }
+        }
+        return result;
+    }
+
+    private QueryParameter createPageQuery(int pageNo) {
+        LastRow previous = mLastRows.get(pageNo - 1);
+        if (previous != null) {
+            mKeysetLoadCount++;
+            return mQuery.createKeysetQuery(previous, 0, mPageSize);
+        }
+        mOffsetLoadCount++;
+        return mQuery.createPageQuery(pageNo * mPageSize, mPageSize);
+    }
+
+    /**
+     * closes the page farthest away from the last used page if there are too many pages.
+     * loadedPageNo is kept: it is returned to the thread that loaded it.
+     */
+    private void evict(int loadedPageNo) {
+        while (mPages.size() > mMaxPages) {
+            int farthest = -1;
+            for (Integer pageNo : mPages.keySet()) {
+                if ((pageNo != loadedPageNo) && ((farthest < 0)
+                        || (Math.abs(pageNo - mLastPageNo) > Math.abs(farthest - mLastPageNo)))) {
+                    farthest = pageNo;
+                }
+            }
+            mLoader.close(mPages.remove(farthest));
+        }
+    }
+
+    /** closes all loaded pages. Later {@link #prefetch()} calls are ignored. Pages that are being loaded are closed when complete */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+        Iterator<P> iter = mPages.values().iterator();
+        while (iter.hasNext()) {
+            mLoader.close(iter.next());
+            iter.remove();
+        }
+        mLastRows.clear();
+    }
+
+    /** number of pages that are currently loaded */
+    public synchronized int getLoadedPageCount() {
+        return mPages.size();
+    }
+
+    public synchronized boolean isLoaded(int pageNo) {
+        return mPages.containsKey(pageNo);
+    }
+
+    /** number of pages that were loaded via keyset */
+    public synchronized int getKeysetLoadCount() {
+        return mKeysetLoadCount;
+    }
+
+    /** number of pages that were loaded via offset */
+    public synchronized int getOffsetLoadCount() {
+        return mOffsetLoadCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeysetPager[" + mCount + " rows, " + mPages.size() + "/" + mMaxPages + " pages of " + mPageSize
+                + ", keyset loads=" + mKeysetLoadCount + ", offset loads=" + mOffsetLoadCount + "]";
+    }
+
+    /** sort keys and id of the last row of a page so the page itself can be closed */
+    private static class LastRow implements IncrementalQuery.Rows {
+        private final long mId;
+        private final Object[] mSortKeys;
+
+        LastRow(IncrementalQuery.Rows rows, int sortKeyCount) {
+            int last = rows.getCount() - 1;
+            mId = rows.getId(last);
+            mSortKeys = new Object[sortKeyCount];
+            for (int i = 0; i < sortKeyCount; i++) {
+                mSortKeys[i] = rows.getSortKey(last, i);
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return 1;
+        }
+
+        @Override
+        public long getId(int position) {
+            return mId;
+        }
+
+        @Override
+        public Object getSortKey(int position, int key) {
+            return mSortKeys[key];
+        }
+    }
+}
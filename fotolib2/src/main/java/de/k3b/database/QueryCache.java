@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory limited LRU cache of query results keyed by {@link CompiledQuery}
+ * (see {@link QueryParameter#compileNormalized()}).
+ *
+ * Visibility and other filters are part of the key since they are added to the where before compiling.
+ *
+ * To avoid caching stale results a query must fetch {@link #getGeneration()} before it is executed
+ * and pass it to {@link #put(CompiledQuery, Object, long)}: results of queries that were started
+ * before the last {@link #invalidate(String)} of the same table are not cached.
+ * Tables are identified by the from of the query (i.e. the content uri of a media store table)
+ * so that a change of one table does not remove the cached results of other tables.
+ */
+public class QueryCache<V> {
+    /** Estimates the memory used by a cached value */
+    public interface SizeEstimator<V> {
+        long getSize(V value);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long size;
+
+        Entry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final long mMaxSize;
+    private final SizeEstimator<V> mSizeEstimator;
+
+    /** in access order: least recently used first */
+    private final LinkedHashMap<CompiledQuery, Entry<V>> mEntries = new LinkedHashMap<CompiledQuery, Entry<V>>(16, 0.75f, true);
+
+    /** table -> value of mGeneration when it was invalidated last */
+    private final Map<String, Long> mInvalidated = new HashMap<String, Long>();
+
+    private long mGeneration = 0;
+    private long mInvalidatedAll = 0;
+    private long mSize = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mPutCount = 0;
+    private int mEvictionCount = 0;
+    private int mInvalidationCount = 0;
+
+    /**
+     * @param maxSize maximum sum of {@link SizeEstimator#getSize(Object)} of all cached values.
+     */
+    public QueryCache(long maxSize, SizeEstimator<V> sizeEstimator) {
+        mMaxSize = maxSize;
+        mSizeEstimator = sizeEstimator;
+    }
+
+    /** @return cached result of query or null */
+    public synchronized V get(CompiledQuery query) {
+        Entry<V> entry = (query == null) ? null : mEntries.get(query);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.value;
+    }
+
+    /** @return value to be passed to {@link #put(CompiledQuery, Object, long)} after the query was executed. */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache the result of query.
+     *
+     * @param generation value of {@link #getGeneration()} before the query was executed.
+     * @return false if value was not cached because it is too big or the table was invalidated while querying.
+     */
+    public synchronized boolean put(CompiledQuery query, V value, long generation) {
+        if ((query == null) || (value == null) || isInvalidatedSince(query.toFrom(), generation)) return false;
+
+        long size = mSizeEstimator.getSize(value);
+        if (size > mMaxSize) return false;
+
+        Entry<V> old = mEntries.put(query, new Entry<V>(value, size));
+        if (old != null) mSize -= old.size;
+        mSize += size;
+        mPutCount++;
+
+        // least recently used first
+        Iterator<Entry<V>> iter = mEntries.values().iterator();
+        while ((mSize > mMaxSize) && iter.hasNext()) {
+            mSize -= iter.next().size;
+            iter.remove();
+            mEvictionCount++;
+        }
+        return true;
+    }
+
+    private boolean isInvalidatedSince(String from, long generation) {
+        if (mInvalidatedAll > generation) return true;
+        for (Map.Entry<String, Long> invalidated : mInvalidated.entrySet()) {
+            if ((invalidated.getValue() > generation) && invalidated.getKey().equals(from)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove all results of queries where {@link CompiledQuery#toFrom()} is table.
+     *
+     * @return number of removed results
+     */
+    public synchronized int invalidate(String table) {
+        if (table == null) return invalidateAll();
+
+        mGeneration++;
+        mInvalidated.put(table, mGeneration);
+        int removed = 0;
+        Iterator<Map.Entry<CompiledQuery, Entry<V>>> iter = mEntries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<CompiledQuery, Entry<V>> entry = iter.next();
+            if (table.equals(entry.getKey().toFrom())) {
+                mSize -= entry.getValue().size;
+                iter.remove();
+                removed++;
+            }
+        }
+        mInvalidationCount++;
+        return removed;
+    }
+
+    /**
+     * Remove all results.
+     *
+     * @return number of removed results
+     */
+    public synchronized int invalidateAll() {
+        mGeneration++;
+        mInvalidatedAll = mGeneration;
+        mInvalidated.clear();
+        int removed = mEntries.size();
+        mEntries.clear();
+        mSize = 0;
+        mInvalidationCount++;
+        return removed;
+    }
+
+    /** number of cached results */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** sum of {@link SizeEstimator#getSize(Object)} of all cached results */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized int getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int requests = mHitCount + mMissCount;
+        return "QueryCache[" + mEntries.size() + " items, " + mSize + "/" + mMaxSize + " bytes, "
+                + "hits=" + mHitCount + ", misses=" + mMissCount
+                + ((requests > 0) ? " (" + (mHitCount * 100 / requests) + "% hits)" : "")
+                + ", puts=" + mPutCount + ", evictions=" + mEvictionCount
+                + ", invalidations=" + mInvalidationCount + "]";
+    }
+}
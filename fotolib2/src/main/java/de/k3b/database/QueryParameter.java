@@ -19,7 +19,12 @@
  
 package de.k3b.database;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -30,6 +35,9 @@ import java.util.List;
  * GROUP BY ({mGroupBy}) HAVING ({mHaving}) ORDER BY ({mOrderBy})
  * PARAMETERS {mParameters[]} PARAMETERS {mHavingParameters[]}
  *
+ * The android specific parts (toFrom(), toColumns(), toAndroidWhere(), ...) are rendered
+ * by {@link #compile()} and cached until the part changes.
+ *
  * Created by k3b on 04.06.2015.
  */
 public class QueryParameter {
@@ -45,6 +53,15 @@ public class QueryParameter {
     /** added to parsed Query if it does not contain fields belonging to the "SELECT"  keyword */
     public static List<String> sParserDefaultSelect = null;
 
+    /** default SQLITE_MAX_VARIABLE_NUMBER: sqlite rejects statements with more bound parameters */
+    public static final int MAX_SQL_PARAMETERS = 999;
+
+    /** Executes one chunk of {@link #forEachInChunk(String, List, int, ChunkProcessor)} */
+    public interface ChunkProcessor {
+        /** @return number of processed items. Added to the result of forEachInChunk */
+        int process(QueryParameter chunk);
+    }
+
     // the members are protected to allow serialisation via android specific Parcles
     protected int mID = 0;
     protected final List<String> mColumns = new ArrayList<String>();
@@ -57,6 +74,22 @@ public class QueryParameter {
     protected final List<String> mHavingParameters = new ArrayList<String>();
     // protected String mCurrentSelection = null;
 
+    // parts of mCompiled that must be rendered again
+    private static final int CHANGED_ID = 1;
+    private static final int CHANGED_COLUMNS = 2;
+    private static final int CHANGED_FROM = 4;
+    /** where, group by and having */
+    private static final int CHANGED_WHERE = 8;
+    /** where and having parameters */
+    private static final int CHANGED_PARAMETERS = 16;
+    private static final int CHANGED_ORDER_BY = 32;
+
+    /** result of last {@link #compile()}. null if not compiled yet */
+    private volatile CompiledQuery mCompiled = null;
+
+    /** CHANGED_XXX bits of parts that changed since mCompiled was created */
+    private int mChanged = 0;
+
     public QueryParameter() {
     }
 
@@ -76,6 +109,10 @@ public class QueryParameter {
             copy(mOrderBy, src.mOrderBy);
             copy(mParameters, src.mParameters);
             copy(mHavingParameters, src.mHavingParameters);
+
+            // same content so the rendered parts can be shared
+            mCompiled = src.mCompiled;
+            mChanged = src.mChanged;
         }
         return this;
     }
@@ -83,14 +120,22 @@ public class QueryParameter {
     /************************** begin properties *********************/
 
     public QueryParameter addColumn(String... columns) {
+        changed(CHANGED_COLUMNS);
         return addToList(mColumns, false, columns);
     }
 
+    public QueryParameter clearColumns() {
+        changed(CHANGED_COLUMNS);
+        mColumns.clear();
+        return this;
+    }
+
     public String[] toColumns() {
-        return Helper.toList(mColumns);
+        return compile().toColumns();
     }
 
     public QueryParameter addFrom(String... froms) {
+        changed(CHANGED_FROM);
         return addToList(mFrom, false, froms);
     }
 
@@ -100,6 +145,10 @@ public class QueryParameter {
     }
 
     public String toFrom() {
+        return compile().toFrom();
+    }
+
+    private String renderFrom() {
         StringBuilder result = new StringBuilder();
         if (!Helper.append(result, null, mFrom, ", ", "", "")) {
             return null;
@@ -110,6 +159,7 @@ public class QueryParameter {
 
     public QueryParameter getWhereFrom(QueryParameter src, boolean append) {
         if (src != null) {
+            changed(CHANGED_WHERE | CHANGED_PARAMETERS);
             copy(mWhere, src.mWhere, append);
             copy(mParameters, src.mParameters, append);
         }
@@ -117,16 +167,53 @@ public class QueryParameter {
     }
 
     public QueryParameter clearWhere() {
+        changed(CHANGED_WHERE | CHANGED_PARAMETERS);
         mWhere.clear();
         mParameters.clear();
         return this;
     }
 
     public QueryParameter addWhere(String where, String... parameters) {
+        changed(CHANGED_WHERE | CHANGED_PARAMETERS);
         mWhere.add(where);
         return addToList(mParameters, true, parameters);
     }
 
+    /**
+     * Add "expression in (?, ?, ...)" with values as bound parameters.
+     * Values need no quoting or escaping.
+     */
+    public QueryParameter addWhereIn(String expression, List<String> values) {
+        StringBuilder where = new StringBuilder(expression.length() + 6 + 3 * values.size());
+        where.append(expression).append(" in (");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) where.append(",");
+            where.append("?");
+        }
+        where.append(")");
+        return addWhere(where.toString(), values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * Execute this query for all values in chunks: every chunk is a copy of this query with
+     * {@link #addWhereIn(String, List)} so that no chunk has more than maxParameters bound parameters.
+     * Full chunks have the same sql so the database can reuse the compiled statement.
+     *
+     * @param maxParameters i.e. {@link #MAX_SQL_PARAMETERS}
+     * @return sum of the results of processor
+     */
+    public int forEachInChunk(String expression, List<String> values, int maxParameters, ChunkProcessor processor) {
+        int count = (values == null) ? 0 : values.size();
+        int chunkSize = Math.max(1, maxParameters - mParameters.size() - mHavingParameters.size());
+        int result = 0;
+        for (int start = 0; start < count; start += chunkSize) {
+            QueryParameter chunk = new QueryParameter(this)
+                    .addWhereIn(expression, values.subList(start, Math.min(count, start + chunkSize)));
+            result += processor.process(chunk);
+        }
+        return result;
+    }
+
     public QueryParameter removeWhere(String where) {
         getWhereParameter(where,true);
         return this;
@@ -134,6 +221,7 @@ public class QueryParameter {
 
     /** @return return all params for sqlExprWithParameters inside this. null if sqlExprWithParameters is not in this */
     public String[] getWhereParameter(String sqlExprWithParameters, boolean remove) {
+        if (remove) changed(CHANGED_WHERE | CHANGED_PARAMETERS);
         return getExpresionParameter(sqlExprWithParameters, mWhere, mParameters, remove);
     }
 
@@ -183,6 +271,10 @@ public class QueryParameter {
      * Therefore this sql is added to the WHERE part.
      * [select ... from ... where (] [[mWhere][) GROUP BY (mGroupBy][) HAVING (mHaving]] [) ORDER BY ] [mOrderBy]*/
     public String toAndroidWhere() {
+        return compile().toAndroidWhere();
+    }
+
+    private String renderAndroidWhere() {
         boolean hasWhere = Helper.isNotEmpty(mWhere);
         boolean hasGroup = Helper.isNotEmpty(mGroupBy);
         boolean hasHaving = Helper.isNotEmpty(mHaving);
@@ -201,20 +293,23 @@ public class QueryParameter {
     }
 
     public String[] toAndroidParameters() {
-        return Helper.toList(mParameters, mHavingParameters);
+        return compile().toAndroidParameters();
     }
 
     public QueryParameter addGroupBy(String... parameters) {
+        changed(CHANGED_WHERE);
         return addToList(mGroupBy, false, parameters);
     }
 
     public QueryParameter addHaving(String having, String... parameters) {
+        changed(CHANGED_WHERE | CHANGED_PARAMETERS);
         mHaving.add(having);
         return addToList(mHavingParameters, true, parameters);
     }
 
     public QueryParameter getOrderByFrom(QueryParameter src, boolean append) {
         if (src != null) {
+            changed(CHANGED_ORDER_BY);
             copy(mOrderBy, src.mOrderBy, append);
         }
         return this;
@@ -224,11 +319,29 @@ public class QueryParameter {
         mOrderBy.clear();
         return addOrderBy(orders);
     }
+
+    /** replaces the order by at index */
+    public QueryParameter replaceOrderBy(int index, String order) {
+        changed(CHANGED_ORDER_BY);
+        mOrderBy.set(index, order);
+        return this;
+    }
+
+    public QueryParameter clearOrderBy() {
+        changed(CHANGED_ORDER_BY);
+        mOrderBy.clear();
+        return this;
+    }
     public QueryParameter addOrderBy(String... orders) {
+        changed(CHANGED_ORDER_BY);
         return addToList(mOrderBy, false, orders);
     }
 
     public String toOrderBy() {
+        return compile().toOrderBy();
+    }
+
+    private String renderOrderBy() {
         StringBuilder result = new StringBuilder();
         if (!Helper.append(result, null, mOrderBy, ", ", "", "")) {
             return null;
@@ -237,6 +350,92 @@ public class QueryParameter {
         return result.toString();
     }
 
+    /**
+     * Immutable rendered form of this query that can be used as cache key.
+     * Only the parts that changed since the last call are rendered again.
+     */
+    public CompiledQuery compile() {
+        CompiledQuery old = mCompiled;
+        int changed = mChanged;
+        if ((old != null) && (changed == 0)) return old;
+
+        boolean all = (old == null);
+        CompiledQuery result = new CompiledQuery(mID,
+                (all || isChanged(changed, CHANGED_FROM)) ? renderFrom() : old.mFrom,
+                (all || isChanged(changed, CHANGED_COLUMNS)) ? Helper.toList(mColumns) : old.mColumns,
+                (all || isChanged(changed, CHANGED_WHERE)) ? renderAndroidWhere() : old.mAndroidWhere,
+                (all || isChanged(changed, CHANGED_PARAMETERS)) ? Helper.toList(mParameters, mHavingParameters) : old.mAndroidParameters,
+                (all || isChanged(changed, CHANGED_ORDER_BY)) ? renderOrderBy() : old.mOrderBy);
+        mCompiled = result;
+        mChanged = 0;
+        return result;
+    }
+
+    /**
+     * Same as {@link #compile()} but the where expressions are sorted (together with their parameters)
+     * so that queries that only differ in the order of their AND-ed conditions get the same cache key.
+     * The sql is equivalent to {@link #compile()}.
+     */
+    public CompiledQuery compileNormalized() {
+        int count = mWhere.size();
+        if (count < 2) return compile();
+
+        // [where, param1, param2, ...]
+        String[][] items = new String[count][];
+        int paramNo = 0;
+        for (int i = 0; i < count; i++) {
+            String where = mWhere.get(i);
+            int paramCount = (where == null) ? 0 : getParamCount(where, mParameters);
+            if (paramNo + paramCount > mParameters.size()) return compile(); // params do not match: do not reorder
+            String[] item = new String[paramCount + 1];
+            item[0] = where;
+            for (int p = 1; p <= paramCount; p++) {
+                item[p] = mParameters.get(paramNo++);
+            }
+            items[i] = item;
+        }
+        if (paramNo != mParameters.size()) return compile();
+
+        String[][] sorted = items.clone();
+        Arrays.sort(sorted, COMPARATOR_WHERE);
+        if (Arrays.equals(sorted, items)) return compile();
+
+        QueryParameter normalized = new QueryParameter(this);
+        normalized.clearWhere();
+        for (String[] item : sorted) {
+            normalized.addWhere(item[0], Arrays.copyOfRange(item, 1, item.length));
+        }
+        return normalized.compile();
+    }
+
+    /** compares [where, param1, param2, ...] */
+    private static final Comparator<String[]> COMPARATOR_WHERE = new Comparator<String[]>() {
+        @Override
+        public int compare(String[] lhs, String[] rhs) {
+            int len = Math.min(lhs.length, rhs.length);
+            for (int i = 0; i < len; i++) {
+                int result = compareNullFirst(lhs[i], rhs[i]);
+                if (result != 0) return result;
+            }
+            return lhs.length - rhs.length;
+        }
+
+        private int compareNullFirst(String lhs, String rhs) {
+            if (lhs == null) return (rhs == null) ? 0 : -1;
+            if (rhs == null) return 1;
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    private static boolean isChanged(int changed, int part) {
+        return (changed & part) != 0;
+    }
+
+    /** part of {@link #mCompiled} must be rendered again */
+    private void changed(int part) {
+        mChanged |= part;
+    }
+
     /************************** end properties *********************/
     public String toReParseableString() {
         StringBuilder result = new StringBuilder();
@@ -258,7 +457,19 @@ public class QueryParameter {
         return result.toString();
     }
 
-    private static final String PARSER_KEYWORDS = ";FROM;QUERY-TYPE-ID;SELECT;WHERE;WHERE-PARAMETERS;GROUP-BY;HAVING;HAVING-PARAMETERS;ORDER-BY;";
+    // parser keywords. All keywords differ in (length, first char) which is used as perfect hash in getKeyword()
+    private static final int KEYWORD_NONE = -1;
+    private static final int KEYWORD_FROM = 0;
+    private static final int KEYWORD_QUERY_TYPE_ID = 1;
+    private static final int KEYWORD_SELECT = 2;
+    private static final int KEYWORD_WHERE = 3;
+    private static final int KEYWORD_WHERE_PARAMETERS = 4;
+    private static final int KEYWORD_GROUP_BY = 5;
+    private static final int KEYWORD_HAVING = 6;
+    private static final int KEYWORD_HAVING_PARAMETERS = 7;
+    private static final int KEYWORD_ORDER_BY = 8;
+    private static final String[] PARSER_KEYWORDS = {"FROM", "QUERY-TYPE-ID", "SELECT", "WHERE",
+            "WHERE-PARAMETERS", "GROUP-BY", "HAVING", "HAVING-PARAMETERS", "ORDER-BY"};
 
     public static QueryParameter parse(String stringToBeParsed) {
         List<QueryParameter> result = (stringToBeParsed != null) ? parseMultiple(stringToBeParsed) : null;
@@ -266,21 +477,83 @@ public class QueryParameter {
         return result.get(0);
     }
 
+    public static QueryParameter parse(Reader reader) throws IOException {
+        List<QueryParameter> result = (reader != null) ? parseMultiple(reader) : null;
+        if (result == null) return null;
+        return result.get(0);
+    }
+
     public static List<QueryParameter> parseMultiple(String stringToBeParsed) {
-        List<QueryParameter> result = new ArrayList<QueryParameter>();
-        QueryParameter currentParseItem = null;
+        try {
+            return parseMultiple(new StringReader(stringToBeParsed));
+        } catch (IOException e) {
+            // cannot happen with StringReader
+            throw new IllegalStateException(e);
+        }
+    }
 
-        List<String> params = null;
+    /**
+     * Parses the format of {@link #toReParseableString()} in one pass without allocating per line.
+     * Lines may end with LF or CRLF.
+     *
+     * @return null if nothing found
+     */
+    public static List<QueryParameter> parseMultiple(Reader reader) throws IOException {
+        Parser parser = new Parser();
+        char[] buffer = new char[4096];
+        char[] line = new char[256];
+        int lineLength = 0;
+
+        // empty lines are only processed if a non empty line follows (same as String.split("\n"))
+        int emptyLineCount = 0;
+
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (c == '\n') {
+                    // CRLF
+                    if ((lineLength > 0) && (line[lineLength - 1] == '\r')) lineLength--;
+
+                    if (lineLength == 0) {
+                        emptyLineCount++;
+                    } else {
+                        for (; emptyLineCount > 0; emptyLineCount--) parser.onLine(line, 0, 0);
+                        parser.onLine(line, 0, lineLength);
+                    }
+                    lineLength = 0;
+                } else {
+                    if (lineLength == line.length) line = Arrays.copyOf(line, lineLength * 2);
+                    line[lineLength++] = c;
+                }
+            }
+        }
+        if (lineLength > 0) {
+            for (; emptyLineCount > 0; emptyLineCount--) parser.onLine(line, 0, 0);
+            parser.onLine(line, 0, lineLength);
+        }
+
+        return parser.getResult();
+    }
 
-        String[] lines = stringToBeParsed.split("\n");
-        int i = 0;
-        String line = null;
-        while(i < lines.length) {
-            line = lines[i++].trim();
-            if (isKeyword(line)) {
-                final String keyword = line.toUpperCase();
+    /** State of {@link #parseMultiple(Reader)} */
+    private static class Parser {
+        private final List<QueryParameter> result = new ArrayList<QueryParameter>();
+        private QueryParameter currentParseItem = null;
+        private List<String> params = null;
 
-                if (keyword.compareTo("FROM") == 0) {
+        /** true after QUERY-TYPE-ID: next line is the id if it is not a keyword */
+        private boolean expectId = false;
+
+        void onLine(char[] line, int start, int end) {
+            // same as String.trim()
+            while ((start < end) && (line[start] <= ' ')) start++;
+            while ((start < end) && (line[end - 1] <= ' ')) end--;
+
+            int keyword = getKeyword(line, start, end);
+            if (keyword != KEYWORD_NONE) {
+                expectId = false;
+                if (keyword == KEYWORD_FROM) {
                     // next "FROM" occured. finish previos query if available
                     fixQuery(currentParseItem);
                     currentParseItem = null;
@@ -293,38 +566,39 @@ public class QueryParameter {
                 }
                 switch (keyword)
                 {
-                    case "QUERY-TYPE-ID":
-                        line = (i < lines.length) ? lines[i].trim() : "0";
-                        if (!isKeyword(line)) {
-                            i++;
-                            currentParseItem.setID(Integer.parseInt(line));
-                        }
-                        continue;
-
-                    case "FROM": params = currentParseItem.mFrom; break;
-                    case "SELECT": params = currentParseItem.mColumns; break;
-                    case "WHERE": params = currentParseItem.mWhere; break;
-                    case "WHERE-PARAMETERS": params = currentParseItem.mParameters; break;
-                    case "GROUP-BY": params = currentParseItem.mGroupBy; break;
-                    case "HAVING": params = currentParseItem.mHaving; break;
-                    case "HAVING-PARAMETERS": params = currentParseItem.mHavingParameters; break;
-                    case "ORDER-BY": params = currentParseItem.mOrderBy; break;
+                    case KEYWORD_QUERY_TYPE_ID: expectId = true; break;
+                    case KEYWORD_FROM: params = currentParseItem.mFrom; break;
+                    case KEYWORD_SELECT: params = currentParseItem.mColumns; break;
+                    case KEYWORD_WHERE: params = currentParseItem.mWhere; break;
+                    case KEYWORD_WHERE_PARAMETERS: params = currentParseItem.mParameters; break;
+                    case KEYWORD_GROUP_BY: params = currentParseItem.mGroupBy; break;
+                    case KEYWORD_HAVING: params = currentParseItem.mHaving; break;
+                    case KEYWORD_HAVING_PARAMETERS: params = currentParseItem.mHavingParameters; break;
+                    case KEYWORD_ORDER_BY: params = currentParseItem.mOrderBy; break;
                     default:break;
                 }
-            } else if ((params != null) && (isNoComment(line)) && (line.trim().length() > 0)) {
-                params.add(line);
+            } else if (expectId) {
+                expectId = false;
+                currentParseItem.setID(Integer.parseInt(new String(line, start, end - start)));
+            } else if ((params != null) && (end > start) && isNoComment(line, start, end)) {
+                params.add(new String(line, start, end - start));
             }
         }
 
-        if (result.size() > 0) {
-            // make shure that last query has been fixed.
-            fixQuery(currentParseItem);
+        List<QueryParameter> getResult() {
+            if (result.size() > 0) {
+                // QUERY-TYPE-ID without id at the end
+                if (expectId) currentParseItem.setID(0);
 
-            return result;
-        }
+                // make shure that last query has been fixed.
+                fixQuery(currentParseItem);
 
-        // indicate nothing found
-        return null;
+                return result;
+            }
+
+            // indicate nothing found
+            return null;
+        }
     }
 
     private static void fixQuery(QueryParameter current) {
@@ -336,13 +610,31 @@ public class QueryParameter {
         }
     }
 
-    private static boolean isNoComment(String line) {
-        return ((line != null) && !line.startsWith("#") && !line.startsWith("//") && !line.startsWith("--") );
-    }
+    private static boolean isNoComment(char[] line, int start, int end) {
+        char first = line[start];
+        if (first == '#') return false;
+        return !((end - start >= 2) && (line[start + 1] == first) && ((first == '/') || (first == '-')));
+    }
+
+    /** @return KEYWORD_XXX of line[start..end[ ignoring case or KEYWORD_NONE */
+    private static int getKeyword(char[] line, int start, int end) {
+        int candidate;
+        switch (end - start) {
+            case 4: candidate = KEYWORD_FROM; break;
+            case 5: candidate = KEYWORD_WHERE; break;
+            case 6: candidate = (Character.toUpperCase(line[start]) == 'S') ? KEYWORD_SELECT : KEYWORD_HAVING; break;
+            case 8: candidate = (Character.toUpperCase(line[start]) == 'G') ? KEYWORD_GROUP_BY : KEYWORD_ORDER_BY; break;
+            case 13: candidate = KEYWORD_QUERY_TYPE_ID; break;
+            case 16: candidate = KEYWORD_WHERE_PARAMETERS; break;
+            case 17: candidate = KEYWORD_HAVING_PARAMETERS; break;
+            default: return KEYWORD_NONE;
+        }
 
-    private static boolean isKeyword(String line) {
-        String fixedLine = (line != null) ? (";" + line.trim().toUpperCase() + ";") : null;
-        return ((fixedLine != null) && (PARSER_KEYWORDS.indexOf(fixedLine) >= 0));
+        String keyword = PARSER_KEYWORDS[candidate];
+        for (int i = keyword.length() - 1; i >= 0; i--) {
+            if (Character.toUpperCase(line[start + i]) != keyword.charAt(i)) return KEYWORD_NONE;
+        }
+        return candidate;
     }
 
     public String toSqlString() {
@@ -508,6 +800,7 @@ public class QueryParameter {
     }
 
     public QueryParameter setID(int mID) {
+        if (this.mID != mID) changed(CHANGED_ID);
         this.mID = mID;
         return this;
     }
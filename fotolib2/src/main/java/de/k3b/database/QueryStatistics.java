@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency and row count of executed queries per {@link QueryParameter#getID()}.
+ *
+ * Usage:
+ * <pre>
+ * long start = QueryStatistics.now();
+ * Cursor c = resolver.query(...);
+ * long queried = QueryStatistics.now();
+ * int rows = c.getCount(); // fills the cursor
+ * QueryStatistics.add(query.getID(), start, queried, QueryStatistics.now(), rows);
+ * </pre>
+ *
+ * If not {@link #enabled} this costs one volatile read per call.
+ * Percentiles are taken from a histogram with power of two microsecond buckets
+ * so memory does not grow with the number of queries.
+ */
+public class QueryStatistics {
+    /** true: collect statistics. Can be changed at any time */
+    public static volatile boolean enabled = false;
+
+    /** bucket i counts durations of less than 2^i microseconds */
+    private static final int BUCKET_COUNT = 40;
+
+    /** queryTypeId -> statistics */
+    private static final Map<Integer, QueryStatistics> sStatistics = new TreeMap<Integer, QueryStatistics>();
+
+    private final int mQueryTypeId;
+    private int mCount = 0;
+    private int mCacheHitCount = 0;
+    private long mRowCount = 0;
+    private long mTotalNanos = 0;
+    private long mFillNanos = 0;
+    private long mMaxNanos = 0;
+    private final int[] mBuckets = new int[BUCKET_COUNT];
+
+    private QueryStatistics(int queryTypeId) {
+        mQueryTypeId = queryTypeId;
+    }
+
+    /** @return current time for {@link #add(int, long, long, long, int)} or 0 if not enabled */
+    public static long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record one executed query.
+     *
+     * @param startNanos   {@link #now()} before the query was executed. 0 means statistics were disabled.
+     * @param queriedNanos {@link #now()} when the cursor was returned
+     * @param filledNanos  {@link #now()} after the cursor was filled (i.e. by getCount())
+     */
+    public static void add(int queryTypeId, long startNanos, long queriedNanos, long filledNanos, int rowCount) {
+        if (!enabled || (startNanos == 0)) return;
+
+        QueryStatistics statistics = get(queryTypeId);
+        synchronized (statistics) {
+            long nanos = filledNanos - startNanos;
+            statistics.mCount++;
+            statistics.mRowCount += rowCount;
+            statistics.mTotalNanos += nanos;
+            statistics.mFillNanos += filledNanos - queriedNanos;
+            if (nanos > statistics.mMaxNanos) statistics.mMaxNanos = nanos;
+            statistics.mBuckets[getBucket(nanos)]++;
+        }
+    }
+
+    /** Record a query that was answered from {@link QueryCache} */
+    public static void addCacheHit(int queryTypeId, int rowCount) {
+        if (!enabled) return;
+
+        QueryStatistics statistics = get(queryTypeId);
+        synchronized (statistics) {
+            statistics.mCacheHitCount++;
+            statistics.mRowCount += rowCount;
+        }
+    }
+
+    private static QueryStatistics get(int queryTypeId) {
+        synchronized (sStatistics) {
+            QueryStatistics result = sStatistics.get(queryTypeId);
+            if (result == null) {
+                result = new QueryStatistics(queryTypeId);
+                sStatistics.put(queryTypeId, result);
+            }
+            return result;
+        }
+    }
+
+    private static int getBucket(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /** @return statistics of all query types ordered by id */
+    public static List<QueryStatistics> getAll() {
+        synchronized (sStatistics) {
+            return new ArrayList<QueryStatistics>(sStatistics.values());
+        }
+    }
+
+    public static void reset() {
+        synchronized (sStatistics) {
+            sStatistics.clear();
+        }
+    }
+
+    /** @return one line per query type. Empty if nothing was recorded */
+    public static String dump() {
+        StringBuilder result = new StringBuilder();
+        for (QueryStatistics statistics : getAll()) {
+            result.append(statistics).append("\n");
+        }
+        return result.toString();
+    }
+
+    public int getQueryTypeId() {
+        return mQueryTypeId;
+    }
+
+    /** number of executed queries (without cache hits) */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized int getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /** rows returned by executed and cached queries */
+    public synchronized long getRowCount() {
+        return mRowCount;
+    }
+
+    public synchronized long getTotalMillis() {
+        return mTotalNanos / 1000000;
+    }
+
+    /**
+     * @param percent 0..100
+     * @return upper bound in microseconds of the latency that percent of the executed queries did not exceed.
+     * 0 if there were no executed queries.
+     */
+    public synchronized long getPercentileMicros(int percent) {
+        long limit = ((long) mCount * percent + 99) / 100;
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += mBuckets[i];
+            if ((sum >= limit) && (sum > 0)) return 1L << i;
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("query#").append(mQueryTypeId)
+                .append(" count=").append(mCount)
+                .append(" cached=").append(mCacheHitCount)
+                .append(" rows=").append(mRowCount)
+                .append(" total=").append(mTotalNanos / 1000000).append("ms");
+        if (mCount > 0) {
+            result.append(" avg=").append(mTotalNanos / mCount / 1000).append("us")
+                    .append(" fill(avg)=").append(mFillNanos / mCount / 1000).append("us")
+                    .append(" p50<=").append(getPercentileMicros(50)).append("us")
+                    .append(" p90<=").append(getPercentileMicros(90)).append("us")
+                    .append(" p99<=").append(getPercentileMicros(99)).append("us")
+                    .append(" max=").append(mMaxNanos / 1000).append("us");
+        }
+        return result.toString();
+    }
+}
@@ -24,16 +24,23 @@ import java.io.File;
 /**
  * Unmodifyable list of file names and optional their IDs.
  *
+ * File names are kept front coded in a {@link CompressedPathList}.
+ * Use {@link #toCompactString()} instead of {@link #toString()} to pass many names via intent.
+ *
  * Created by k3b on 17.05.2016.
  */
 public class SelectedFiles  {
     private static final String DELIMITER = ",";
     private static final String SORUNDER = "'";
-    private final String[] mFileNames;
+    private final CompressedPathList mFileNames;
     private final Long[] mIds;
 
+    /**
+     * @param fileNameListAsString either {@link #toCompactString()} or comma seperated list of
+     *                             optionally quoted names as created by {@link #toString()}
+     */
     public SelectedFiles(String fileNameListAsString, String idListAsString) {
-        this((fileNameListAsString != null) ? fileNameListAsString.split(DELIMITER) : null, idListAsString);
+        this(parseFileNames(fileNameListAsString), parseIds(idListAsString));
     }
 
     public SelectedFiles(String[] fileNameList, String idListAsString) {
@@ -41,12 +48,11 @@ public class SelectedFiles  {
     }
 
     public SelectedFiles(String[] fileNameList, Long[] ids) {
-        mFileNames = fileNameList;
-        if (mFileNames != null) {
-            for (int i = mFileNames.length -1; i >= 0; i--) {
-                mFileNames[i] = reomoveApostrophes(mFileNames[i]);
-            }
-        }
+        this(toPathList(fileNameList), ids);
+    }
+
+    public SelectedFiles(CompressedPathList fileNames, Long[] ids) {
+        mFileNames = fileNames;
         mIds = ids;
     }
 
@@ -54,6 +60,24 @@ public class SelectedFiles  {
         this(items.getFileNames(id2FileNameConverter), items.getIds());
     }
 
+    private static CompressedPathList parseFileNames(String fileNameListAsString) {
+        if (fileNameListAsString == null) return null;
+        if (CompressedPathList.isCompact(fileNameListAsString)) {
+            return CompressedPathList.parse(fileNameListAsString);
+        }
+        return toPathList(fileNameListAsString.split(DELIMITER));
+    }
+
+    private static CompressedPathList toPathList(String[] fileNameList) {
+        if (fileNameList == null) return null;
+
+        CompressedPathList.Builder builder = new CompressedPathList.Builder(fileNameList.length);
+        for (String fileName : fileNameList) {
+            builder.add(reomoveApostrophes(fileName));
+        }
+        return builder.build();
+    }
+
     private static Long[] parseIds(String idListAsString) {
         if (idListAsString == null) return null;
 
@@ -86,22 +110,34 @@ public class SelectedFiles  {
         return result;
     }
 
-    public int getNonEmptyNameCount() {
-        int result = 0;
-        if (mFileNames != null) {
-            for (String item : mFileNames) {
-                if (item != null) {
-                    result++;
-                }
+    /** @return array of Files of the non empty names or null if there are none */
+    public File[] getFiles() {
+        if ((mFileNames == null) || (mFileNames.size() == 0)) return null;
+
+        File[] result = new File[mFileNames.size()];
+        int i = 0;
+        for (String name : mFileNames) {
+            if (name != null) {
+                result[i++] = new File(name);
             }
         }
+
+        if (i == 0) return null;
         return result;
     }
 
-    /** converts this into komma seperated list of names */
+    public int getNonEmptyNameCount() {
+        return (mFileNames == null) ? 0 : mFileNames.getNonNullCount();
+    }
+
+    /** converts this into komma seperated list of quoted names. Can be used in sql "in (...)" */
     public String toString() {
-        String[] mFileNames = this.mFileNames;
-        return toString(SORUNDER, mFileNames);
+        return (mFileNames == null) ? "" : mFileNames.toString();
+    }
+
+    /** converts names to the front coded format of {@link CompressedPathList#toCompactString()} */
+    public String toCompactString() {
+        return (mFileNames == null) ? "" : mFileNames.toCompactString();
     }
 
     public static <T> String toString(String SORUNDER, T[] values) {
@@ -128,15 +164,16 @@ public class SelectedFiles  {
     }
 
     public int size() {
-        return (mFileNames == null) ? 0 : mFileNames.length;
+        return (mFileNames == null) ? 0 : mFileNames.size();
     }
 
+    /** @return new array with all names or null */
     public String[] getFileNames() {
-        return mFileNames;
+        return (mFileNames == null) ? null : mFileNames.toArray();
     }
 
     public String getFileName(int i) {
-        if ((mFileNames != null) && (i >= 0) && (i < mFileNames.length)) return mFileNames[i];
+        if ((mFileNames != null) && (i >= 0) && (i < mFileNames.size())) return mFileNames.get(i);
         return null;
     }
 
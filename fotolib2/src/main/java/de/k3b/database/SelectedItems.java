@@ -26,24 +26,36 @@ import java.util.Set;
  * #1 Gallery-Multiselection
  * Container for selected items via ImageID.
  *
+ * The ids are kept as compressed primitive longs (see {@link CompressedLongSet})
+ * so "select all" in a big gallery does not create a boxed Long per image.
+ *
  * Created by k3b on 01.08.2015.
  */
-public class SelectedItems extends java.util.TreeSet<Long> implements Set<Long> {
+public class SelectedItems extends CompressedLongSet implements Set<Long> {
     public interface Id2FileNameConverter {
         /** converts items.id-s to string array of filenNames via media database. */
         public String[] getFileNames(SelectedItems items);
     }
 
     private static final String DELIMITER = ",";
+    private static final int MAX_TO_STRING_COUNT = 32767;
 
     /** converts this into komma seperated list of ID-s */
     public String toString() {
-        Iterator<Long> iter = this.iterator();
-        return toString(iter);
+        StringBuilder result = new StringBuilder(Math.min(size(), MAX_TO_STRING_COUNT) * 7);
+        LongIterator iter = this.longIterator();
+        int i = MAX_TO_STRING_COUNT;
+        while (iter.hasNext() && (--i >= 0)) {
+            if (result.length() > 0) {
+                result.append(DELIMITER);
+            }
+            result.append(iter.nextLong());
+        }
+        return result.toString();
     }
 
     public static <T> String toString(Iterator<T> iter) {
-        return toString(iter, 32767);
+        return toString(iter, MAX_TO_STRING_COUNT);
     }
 
     public static <T> String toString(Iterator<T> iter, int intMaxCount) {
@@ -64,17 +76,48 @@ public class SelectedItems extends java.util.TreeSet<Long> implements Set<Long>
     public SelectedItems parse(String itemListAsString) {
 
         if ((itemListAsString != null) && (itemListAsString.length() > 0)) {
-            String itemsAsString[] = itemListAsString.split(DELIMITER);
-            for (String itemAsString : itemsAsString) {
-                Long key = Long.valueOf(itemAsString);
-                this.add(key);
+            int len = itemListAsString.length();
+
+            // same as String.split(): trailing empty items are ignored
+            while ((len > 0) && (itemListAsString.charAt(len - 1) == DELIMITER.charAt(0))) len--;
+
+            int start = 0;
+            for (int i = 0; (len > 0) && (i <= len); i++) {
+                if ((i == len) || (itemListAsString.charAt(i) == DELIMITER.charAt(0))) {
+                    this.add(parseLong(itemListAsString, start, i));
+                    start = i + 1;
+                }
             }
         }
         return this;
     }
 
+    /** same as Long.valueOf(value.substring(start, end)) without creating the substring */
+    private static long parseLong(String value, int start, int end) {
+        int first = start;
+        if ((first < end) && ((value.charAt(first) == '-') || (value.charAt(first) == '+'))) first++;
+        if ((first == end) || (end - first > 18)) {
+            // empty or may overflow
+            return Long.parseLong(value.substring(start, end));
+        }
+
+        long result = 0;
+        for (int i = first; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9)) throw new NumberFormatException("For input string: \"" + value.substring(start, end) + "\"");
+            result = result * 10 + digit;
+        }
+        return (value.charAt(start) == '-') ? -result : result;
+    }
+
     public Long[]  getIds() {
-        return toArray(new Long[this.size()]);
+        Long[] result = new Long[this.size()];
+        int i = 0;
+        LongIterator iter = this.longIterator();
+        while (iter.hasNext()) {
+            result[i++] = iter.nextLong();
+        }
+        return result;
     }
 
     /** converts internal ID-list to string array of filenNames. */
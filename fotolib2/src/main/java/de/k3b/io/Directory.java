@@ -43,6 +43,10 @@ public class Directory implements IDirectory {
     private IDirectory parent = null;
     private List<IDirectory> children = null;
 
+    /** lazy created by {@link #findChild(String, boolean)} */
+    private DirectoryChildIndex childIndex = null;
+    private DirectoryChildIndex childIndexIgnoreCase = null;
+
     private int nonDirItemCount = 0;
     private int nonDirSubItemCount = 0;
     private int dirCount = 0;
@@ -75,7 +79,21 @@ public class Directory implements IDirectory {
         if (this.children == null)
             this.children = new ArrayList<>();
         this.children.add(child);
+        if (childIndex != null) childIndex.onAdded(children, child);
+        if (childIndexIgnoreCase != null) childIndexIgnoreCase.onAdded(children, child);
+    }
 
+    /**
+     * @param name first path segment of the child's relPath
+     * @return first child with this name or null. Uses a hash index for dirs with many children.
+     */
+    public IDirectory findChild(String name, boolean ignoreCase) {
+        if (ignoreCase) {
+            if (childIndexIgnoreCase == null) childIndexIgnoreCase = new DirectoryChildIndex(true);
+            return childIndexIgnoreCase.find(children, name);
+        }
+        if (childIndex == null) childIndex = new DirectoryChildIndex(false);
+        return childIndex.find(children, name);
     }
 
     /*------------------- simple properties ------------------------*/
@@ -87,6 +105,12 @@ public class Directory implements IDirectory {
 
     public void setRelPath(String relPath) {
         this.relPath = relPath;
+        if (parent instanceof Directory) ((Directory) parent).invalidateChildIndex();
+    }
+
+    private void invalidateChildIndex() {
+        if (childIndex != null) childIndex.invalidate();
+        if (childIndexIgnoreCase != null) childIndexIgnoreCase.invalidate();
     }
 
     @Override
@@ -105,6 +129,7 @@ public class Directory implements IDirectory {
 
     public void setChildren(List<IDirectory> children) {
         this.children = children;
+        invalidateChildIndex();
     }
 
     /*------------------- formatting ------------------------*/
@@ -223,34 +248,49 @@ public class Directory implements IDirectory {
     @Override
     public IDirectory find(String path) {
         if (path != null) {
-            return find(this, new StringBuilder(path));
+            return find(this, path);
         }
         return null;
     }
 
-    private static IDirectory find(IDirectory parent, StringBuilder path) {
-        while (path.indexOf(PATH_DELIMITER) == 0) {
-            path.delete(0, PATH_DELIMITER.length());
+    private static IDirectory find(IDirectory parent, String path) {
+        final int pathLen = path.length();
+        final char delimiter = PATH_DELIMITER.charAt(0);
+        int start = 0;
+        while (parent != null) {
+            while ((start < pathLen) && (path.charAt(start) == delimiter)) {
+                start++;
+            }
+            if (start == pathLen) return parent;
+
+            int end = path.indexOf(delimiter, start);
+            if (end < 0) end = pathLen;
+            String name = path.substring(start, end);
+
+            IDirectory child = (parent instanceof Directory)
+                    ? ((Directory) parent).findChild(name, false)
+                    : findChildLinear(parent.getChildren(), name);
+            if (child == null) return null;
+
+            // relPath of a merged child may contain more than one path segment
+            String relPath = child.getRelPath();
+            int childEnd = start + relPath.length();
+            if (!path.startsWith(relPath, start)
+                    || ((childEnd < pathLen) && (path.charAt(childEnd) != delimiter))) {
+                return null;
+            }
+            parent = child;
+            start = childEnd;
         }
+        return null;
+    }
 
-        int pathLen = path.length();
-        if (pathLen == 0) return parent;
-
-        if (parent.getChildren() != null) {
-            for(IDirectory child : parent.getChildren()) {
-                if (path.indexOf(child.getRelPath()) == 0) {
-                    int childLen = child.getRelPath().length();
-                    if (childLen == pathLen) return child; // found last path element
-                    int end = path.indexOf(PATH_DELIMITER, childLen);
-
-                    if (end == childLen) {
-                        path.delete(0,childLen);
-                        return find(child, path);
-                    }
-                }
+    private static IDirectory findChildLinear(List<IDirectory> children, String name) {
+        if (children != null) {
+            for (IDirectory child : children) {
+                if (name.equals(child.getRelPath())) return child;
             }
         }
-
         return null;
     }
 
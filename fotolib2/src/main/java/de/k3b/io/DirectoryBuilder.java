@@ -19,129 +19,180 @@
  
 package de.k3b.io;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 /**
  * Class to collect Directories and results in a normalized
  * Directory-Structure, where paths can be combined.
  *
+ * Built for huge sorted group-by results: paths are split without regex, the nodes of the
+ * previous path are reused for the common prefix and children are found by hash
+ * (see {@link Directory#findChild(String, boolean)}).
+ * {@link #getRoot()} needs no recursion so deep trees cannot overflow the stack.
+ *
  * Created by k3b on 04.06.2015.
  */
 public class DirectoryBuilder {
+    private static final char DELIMITER = Directory.PATH_DELIMITER.charAt(0);
+
     private Directory root;
 
+    /** path of the previous {@link #add(String, int, int)} with its nodes and segment ends */
+    private String lastPath = null;
+    private final List<Directory> lastNodes = new ArrayList<Directory>();
+    private int[] lastEnds = new int[16];
+
     public DirectoryBuilder() {
         root = null;
     }
 
     public IDirectory getRoot() {
         if (root != null) {
-            List<IDirectory> children = root.getChildren();
-            compress(children);
-            createStatistics(children);
+            // compress changes the nodes
+            lastPath = null;
+            lastNodes.clear();
+
+            compressAndCreateStatistics(root.getChildren(), true);
         }
         return root;
     }
 
     public static void createStatistics(List<IDirectory> children) {
-        if (children != null) {
-            for (IDirectory _child: children) {
-                Directory child = (Directory) _child;
-                child.setNonDirSubItemCount(child.getNonDirItemCount()).setDirCount(0).setSubDirCount(0);
-                createStatistics(child.getChildren());
-                IDirectory parent = child.getParent();
-                if (parent != null) {
-                    ((Directory)parent).addChildStatistics(child.getSubDirCount(), child.getNonDirSubItemCount(), child.getSelectionIconID());
-                }
-            }
-        }
+        compressAndCreateStatistics(children, false);
     }
 
-    private void compress(Directory firstChild) {
-        int mergeCound = 0;
-        Directory item = firstChild;
-        while ((item != null) && (item.getNonDirItemCount() <= 0)) {
-            item = mergeDirWithChildIfPossible(firstChild);
-            mergeCound++;
+    /**
+     * Visits the tree in pre order with an explicit stack: single child chains are merged
+     * before the children of a dir are visited. Then the statistics are added to the
+     * parents in reverse visit order where every child comes before its parent.
+     */
+    private static void compressAndCreateStatistics(List<IDirectory> children, boolean compress) {
+        if (children == null) return;
+
+        List<Directory> visited = new ArrayList<Directory>();
+        Deque<Directory> todo = new ArrayDeque<Directory>();
+        push(todo, children);
+        while (!todo.isEmpty()) {
+            Directory child = todo.pop();
+            if (compress) compress(child);
+            child.setNonDirSubItemCount(child.getNonDirItemCount()).setDirCount(0).setSubDirCount(0);
+            visited.add(child);
+            push(todo, child.getChildren());
         }
-        List<IDirectory> children = (firstChild != null) ? firstChild.getChildren() : null;
 
-        if ((mergeCound > 0) && (children != null)) {
-            for (IDirectory _child: children) {
-                Directory child = (Directory) _child;
-                child.setParent(firstChild);
+        for (int i = visited.size() - 1; i >= 0; i--) {
+            Directory child = visited.get(i);
+            IDirectory parent = child.getParent();
+            if (parent != null) {
+                ((Directory)parent).addChildStatistics(child.getSubDirCount(), child.getNonDirSubItemCount(), child.getSelectionIconID());
             }
-
         }
-        compress(children);
     }
 
-    private void compress(List<IDirectory> children) {
+    private static void push(Deque<Directory> todo, List<IDirectory> children) {
         if (children != null) {
-            for (IDirectory _child: children) {
-                Directory child = (Directory) _child;
-                compress(child);
+            for (IDirectory child : children) {
+                todo.push((Directory) child);
             }
         }
     }
 
-    private Directory mergeDirWithChildIfPossible(Directory firstChild) {
-        List<IDirectory> children = (firstChild != null) ? firstChild.getChildren() : null;
+    /** merges dir with its only child as long as dir has no own items */
+    private static void compress(Directory dir) {
+        List<IDirectory> children = dir.getChildren();
+        int nonDirItemCount = dir.getNonDirItemCount();
+        if ((nonDirItemCount > 0) || (children == null) || (children.size() != 1)) return;
 
-        if ((children != null) && children.size() == 1) {
+        StringBuilder relPath = new StringBuilder(dir.getRelPath());
+        do {
             Directory child = (Directory) children.get(0);
-            firstChild.setRelPath(firstChild.getRelPath() + Directory.PATH_DELIMITER + child.getRelPath());
-            firstChild.setNonDirItemCount(firstChild.getNonDirItemCount() + child.getNonDirItemCount());
+            relPath.append(Directory.PATH_DELIMITER).append(child.getRelPath());
+            nonDirItemCount += child.getNonDirItemCount();
 
             children = child.getChildren();
-            firstChild.setChildren(children);
-
             child.setParent(null);
             child.setChildren(null);
-            return firstChild;
+        } while ((nonDirItemCount <= 0) && (children != null) && (children.size() == 1));
+
+        dir.setRelPath(relPath.toString());
+        dir.setNonDirItemCount(nonDirItemCount);
+        dir.setChildren(children);
+        if (children != null) {
+            for (IDirectory child : children) {
+                ((Directory) child).setParent(dir);
+            }
         }
-        return null;
     }
 
     public DirectoryBuilder add(String absolutePath, int nonDirItemCount, int iconID) {
         if (root == null) {
             root = new Directory("", null, 0);
         }
-        addPath(absolutePath.split(Directory.PATH_DELIMITER), 0, root, nonDirItemCount, iconID);
+        Directory result = addPath(absolutePath, iconID);
+        result.setNonDirItemCount(result.getNonDirItemCount() + nonDirItemCount);
         return this;
     }
 
-    private IDirectory addPath(String[] elements, int level, Directory root, int nonDirItemCount, int iconID) {
-        Directory result = addPath(elements, level, root, iconID);
-
-        if (result != null) {
-            result.setNonDirItemCount(result.getNonDirItemCount() + nonDirItemCount);
+    private Directory addPath(String path, int iconID) {
+        final int pathLen = path.length();
+
+        // reuse the nodes of the previous path for the common prefix
+        Directory current = root;
+        int level = 0;
+        int start = 0;
+        if (lastPath != null) {
+            int common = getCommonPrefixLength(path, lastPath);
+            while ((level < lastNodes.size()) && (lastEnds[level] <= common)
+                    && ((lastEnds[level] == pathLen) || (path.charAt(lastEnds[level]) == DELIMITER))) {
+                current = lastNodes.get(level);
+                start = lastEnds[level];
+                level++;
+            }
+        }
+        while (lastNodes.size() > level) {
+            lastNodes.remove(lastNodes.size() - 1);
         }
-        return result;
-    }
-
-    private Directory addPath(String[] elements, int level, Directory root, int iconID) {
 
-        if ((elements == null) || (level >= elements.length))
-            return root; // end of recursion
+        while (true) {
+            while ((start < pathLen) && (path.charAt(start) == DELIMITER)) {
+                start++;
+            }
+            if (start >= pathLen) break;
 
-        String serach = elements[level];
+            int end = path.indexOf(DELIMITER, start);
+            if (end < 0) end = pathLen;
+            String serach = path.substring(start, end);
 
-        if ((serach == null) || (serach.length() == 0))
-            return addPath(elements, level + 1, root, iconID);
+            Directory child = (Directory) current.findChild(serach, true);
+            if (child == null) {
+                child = new Directory(serach, current, 0);
+                child.setIconID(iconID);
+            }
 
-        List<IDirectory> children = root.getChildren();
-        if (children != null) {
-            for (IDirectory _child: children) {
-                Directory child = (Directory) _child;
-                if (serach.compareToIgnoreCase(child.getRelPath()) == 0) {
-                    return addPath(elements, level+1, child, iconID);
-                }
+            if (level == lastEnds.length) {
+                int[] ends = new int[level * 2];
+                System.arraycopy(lastEnds, 0, ends, 0, level);
+                lastEnds = ends;
             }
+            lastNodes.add(child);
+            lastEnds[level++] = end;
+
+            current = child;
+            start = end;
         }
+        lastPath = path;
+        return current;
+    }
 
-        Directory result = new Directory(serach, root, 0);
-        result.setIconID(iconID);
-        return addPath(elements, level+1, result, iconID);
+    private static int getCommonPrefixLength(String lhs, String rhs) {
+        int max = Math.min(lhs.length(), rhs.length());
+        int i = 0;
+        while ((i < max) && (lhs.charAt(i) == rhs.charAt(i))) {
+            i++;
+        }
+        return i;
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds a child of an {@link IDirectory} by name without scanning all children.
+ *
+ * The children list stays the ordered list for display. The hash index is only built for
+ * lists with at least {@link #MIN_INDEXED_SIZE} children when it is used the first time.
+ * It is rebuilt if the list was changed by someone else (different list or size).
+ *
+ * The key is the first path segment of {@link IDirectory#getRelPath()}, because
+ * {@link DirectoryBuilder} merges a dir with its only child into "parent/child".
+ * If several children have the same key the first one wins, same as a linear search.
+ *
+ * Not thread safe.
+ */
+class DirectoryChildIndex {
+    /** smaller lists are searched linearly */
+    static final int MIN_INDEXED_SIZE = 8;
+
+    private final boolean mIgnoreCase;
+
+    private Map<String, IDirectory> mIndex = null;
+    private List<IDirectory> mIndexedList = null;
+    private int mIndexedSize = 0;
+
+    DirectoryChildIndex(boolean ignoreCase) {
+        mIgnoreCase = ignoreCase;
+    }
+
+    /** @return first child whose first relPath segment is name or null */
+    IDirectory find(List<IDirectory> children, String name) {
+        if ((children == null) || (name == null)) return null;
+
+        final int size = children.size();
+        if (size < MIN_INDEXED_SIZE) {
+            for (IDirectory child : children) {
+                if (matches(child, name)) return child;
+            }
+            return null;
+        }
+
+        if ((mIndex == null) || (mIndexedList != children) || (mIndexedSize != size)) {
+            build(children);
+        }
+        return mIndex.get(toKey(name, name.length()));
+    }
+
+    /** must be called for every child appended to the indexed list */
+    void onAdded(List<IDirectory> children, IDirectory child) {
+        if ((mIndex != null) && (mIndexedList == children) && (mIndexedSize + 1 == children.size())) {
+            put(child);
+            mIndexedSize++;
+        }
+    }
+
+    /** the index is rebuilt the next time it is used */
+    void invalidate() {
+        mIndex = null;
+        mIndexedList = null;
+        mIndexedSize = 0;
+    }
+
+    private void build(List<IDirectory> children) {
+        mIndex = new HashMap<String, IDirectory>(children.size() * 2);
+        for (IDirectory child : children) {
+            put(child);
+        }
+        mIndexedList = children;
+        mIndexedSize = children.size();
+    }
+
+    private void put(IDirectory child) {
+        String relPath = (child != null) ? child.getRelPath() : null;
+        if (relPath != null) {
+            String key = toKey(relPath, getFirstSegmentEnd(relPath));
+            if (!mIndex.containsKey(key)) mIndex.put(key, child);
+        }
+    }
+
+    private boolean matches(IDirectory child, String name) {
+        String relPath = (child != null) ? child.getRelPath() : null;
+        if (relPath == null) return false;
+        int end = getFirstSegmentEnd(relPath);
+        return (end == name.length()) && relPath.regionMatches(mIgnoreCase, 0, name, 0, end);
+    }
+
+    private static int getFirstSegmentEnd(String relPath) {
+        int end = relPath.indexOf(Directory.PATH_DELIMITER);
+        return (end < 0) ? relPath.length() : end;
+    }
+
+    /** same chars are equal as in {@link String#compareToIgnoreCase(String)} */
+    private String toKey(String value, int end) {
+        if (!mIgnoreCase) return (end == value.length()) ? value : value.substring(0, end);
+
+        char[] result = new char[end];
+        for (int i = 0; i < end; i++) {
+            result[i] = Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+        }
+        return new String(result);
+    }
+}
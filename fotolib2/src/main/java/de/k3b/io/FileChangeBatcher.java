@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Collects file system events (i.e. from inotify) and hands them out in debounced batches
+ * in the format of the media db updater: arrays of old and new path names.
+ *
+ * Several events for the same file are merged: create+modify+move is one insert
+ * of the final name, create+delete is nothing, moves a to b to c is one move from a to c.
+ * The target of a move may have been overwritten so it is deleted first.
+ *
+ * inotify pairs {@link #EVENT_MOVED_FROM} and {@link #EVENT_MOVED_TO} by a cookie that is not
+ * available here. Instead they are paired by time order: the kernel queues both events of a move
+ * directly after each other, so a {@link #EVENT_MOVED_TO} that directly follows a
+ * {@link #EVENT_MOVED_FROM} of the same kind is the same file or dir whatever its new name is.
+ * Renamed files keep their media db rows. The files of a renamed dir are renamed by path prefix.
+ * A {@link #EVENT_MOVED_FROM} without its {@link #EVENT_MOVED_TO} was moved out of the watched dirs.
+ *
+ * Other events for directories and lost events ({@link #EVENT_OVERFLOW}) cannot be mapped
+ * to single files. They result in a rescan of the directory.
+ * If more than maxPending files are pending their parent directories are rescanned instead.
+ *
+ * Thread safe: events may come from a different thread than {@link #flush(Callback, long)}.
+ */
+public class FileChangeBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    public static final int EVENT_CREATED = 1;
+    public static final int EVENT_MODIFIED = 2;
+    public static final int EVENT_DELETED = 3;
+    /** followed by {@link #EVENT_MOVED_TO} if renamed inside the watched dirs */
+    public static final int EVENT_MOVED_FROM = 4;
+    public static final int EVENT_MOVED_TO = 5;
+    /** events below path were lost: path must be rescanned */
+    public static final int EVENT_OVERFLOW = 6;
+
+    /** receives the changes of one batch */
+    public interface Callback {
+        /**
+         * Called first if directories were renamed or moved: all files below oldDirs[i]
+         * are now below newDirs[i]. The paths of the following calls refer to the state
+         * after these renames.
+         */
+        void onRenamedDirs(String[] oldDirs, String[] newDirs);
+
+        /**
+         * Called up to three times per batch in this order:
+         * deleted (newPathNames == null), renamed (oldPathNames[i] to newPathNames[i]),
+         * created or modified (oldPathNames == null).
+         */
+        void onChanges(String[] oldPathNames, String[] newPathNames);
+
+        /** Directories (or files) whose content must be compared with the media db. May not exist any more. */
+        void onRescan(String[] pathNames);
+    }
+
+    /** file before and after the changes of the current batch */
+    private static class Change {
+        /** null: did not exist before */
+        private String oldPath;
+        /** null: does not exist any more */
+        private String newPath;
+
+        Change(String oldPath, String newPath) {
+            this.oldPath = oldPath;
+            this.newPath = newPath;
+        }
+    }
+
+    private final long mQuietMillis;
+    private final long mMaxDelayMillis;
+    private final int mMaxPending;
+
+    /** changes that still exist by newPath */
+    private final Map<String, Change> mExisting = new LinkedHashMap<String, Change>();
+    /** changes that do not exist any more by oldPath */
+    private final Map<String, Change> mDeleted = new LinkedHashMap<String, Change>();
+    private final Set<String> mRescan = new LinkedHashSet<String>();
+    /** renamed dirs in the order of the events */
+    private final List<Change> mRenamedDirs = new ArrayList<Change>();
+
+    /** not null: last event was {@link #EVENT_MOVED_FROM}, waiting for {@link #EVENT_MOVED_TO} */
+    private String mMovedFrom = null;
+    private boolean mMovedFromIsDir = false;
+
+    private long mFirstEventTime = 0;
+    private long mLastEventTime = 0;
+
+    /**
+     * @param quietMillis a batch is complete if there was no event for this time
+     * @param maxDelayMillis a batch is complete after this time even if events continue
+     * @param maxPending more pending files are replaced by a rescan of their dirs
+     */
+    public FileChangeBatcher(long quietMillis, long maxDelayMillis, int maxPending) {
+        mQuietMillis = quietMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * @param event one of the EVENT_XXX constants
+     * @param path absolute path of the file or dir
+     * @param now current time in millis
+     */
+    public synchronized void onEvent(int event, String path, boolean isDir, long now) {
+        if (path == null) return;
+
+        if (mMovedFrom != null) {
+            String from = mMovedFrom;
+            mMovedFrom = null;
+            if ((event == EVENT_MOVED_TO) && (isDir == mMovedFromIsDir)) {
+                if (isDir) {
+                    onDirMoved(from, path);
+                } else {
+                    onMoved(from, path);
+                }
+                onEventAdded(now);
+                return;
+            }
+            // moved out of the watched dirs. EVENT_MOVED_TO of an other item is handled below as insert.
+            onGone(from, mMovedFromIsDir);
+        }
+
+        switch (event) {
+            case EVENT_CREATED:
+            case EVENT_MOVED_TO:
+                if (isDir) {
+                    addRescan(path);
+                } else {
+                    onAppeared(path);
+                }
+                break;
+            case EVENT_MODIFIED:
+                if (!isDir) onModified(path);
+                break;
+            case EVENT_DELETED:
+                onGone(path, isDir);
+                break;
+            case EVENT_MOVED_FROM:
+                mMovedFrom = path;
+                mMovedFromIsDir = isDir;
+                break;
+            case EVENT_OVERFLOW:
+                addRescan(path);
+                break;
+            default:
+                return;
+        }
+        onEventAdded(now);
+    }
+
+    private void onEventAdded(long now) {
+        if (mFirstEventTime == 0) mFirstEventTime = now;
+        mLastEventTime = now;
+
+        if (mExisting.size() + mDeleted.size() > mMaxPending) {
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("FileChangeBatcher: more than " + mMaxPending + " files pending. Rescanning dirs instead.");
+            }
+            for (Change change : getChanges()) {
+                addRescan(getParent(change.oldPath));
+                addRescan(getParent(change.newPath));
+            }
+            mExisting.clear();
+            mDeleted.clear();
+        }
+    }
+
+    private void onAppeared(String path) {
+        if (mExisting.containsKey(path)) return;
+
+        Change change = mDeleted.remove(path);
+        if (change != null) {
+            // deleted and created again: modified
+            change.newPath = path;
+        } else {
+            change = new Change(null, path);
+        }
+        mExisting.put(path, change);
+    }
+
+    private void onModified(String path) {
+        if (!mExisting.containsKey(path)) {
+            mExisting.put(path, new Change(path, path));
+        }
+    }
+
+    private void onGone(String path, boolean isDir) {
+        if (isDir) {
+            addRescan(path);
+            return;
+        }
+
+        Change change = mExisting.remove(path);
+        if (change == null) {
+            change = new Change(path, null);
+        }
+        change.newPath = null;
+        if (change.oldPath != null) {
+            mDeleted.put(change.oldPath, change);
+        } // else created and deleted in the same batch: nothing to do
+    }
+
+    private void onMoved(String from, String to) {
+        if (from.equals(to)) return;
+
+        // overwritten file is deleted
+        onGone(to, false);
+
+        Change change = mExisting.remove(from);
+        if (change == null) {
+            change = new Change(from, from);
+        }
+        change.newPath = to;
+        if (to.equals(change.oldPath)) {
+            // renamed back: the file must be deleted before the rename to the same name. modified instead
+            mDeleted.remove(to);
+        }
+        mExisting.put(to, change);
+    }
+
+    private void onDirMoved(String from, String to) {
+        if (from.equals(to)) return;
+
+        // pending paths below from are now below to. Earlier dir renames are applied before this one.
+        List<Change> changes = getChanges();
+        mExisting.clear();
+        mDeleted.clear();
+        for (Change change : changes) {
+            change.oldPath = getMovedPath(change.oldPath, from, to);
+            change.newPath = getMovedPath(change.newPath, from, to);
+            if (change.newPath != null) {
+                mExisting.put(change.newPath, change);
+            } else {
+                mDeleted.put(change.oldPath, change);
+            }
+        }
+        List<String> rescan = new ArrayList<String>(mRescan);
+        mRescan.clear();
+        for (String path : rescan) {
+            mRescan.add(getMovedPath(path, from, to));
+        }
+
+        mRenamedDirs.add(new Change(from, to));
+    }
+
+    /** @return path with dir from replaced by to */
+    private static String getMovedPath(String path, String from, String to) {
+        if ((path == null) || !isSameOrBelow(path, from)) return path;
+        return to + path.substring(from.length());
+    }
+
+    private void addRescan(String path) {
+        if (path == null) return;
+        for (Iterator<String> iter = mRescan.iterator(); iter.hasNext(); ) {
+            String existing = iter.next();
+            if (isSameOrBelow(path, existing)) return;
+            if (isSameOrBelow(existing, path)) iter.remove();
+        }
+        mRescan.add(path);
+    }
+
+    private static boolean isSameOrBelow(String path, String dir) {
+        return path.startsWith(dir)
+                && ((path.length() == dir.length()) || (path.charAt(dir.length()) == '/'));
+    }
+
+    private static String getParent(String path) {
+        if (path == null) return null;
+        int end = path.lastIndexOf('/');
+        return (end > 0) ? path.substring(0, end) : null;
+    }
+
+    private List<Change> getChanges() {
+        List<Change> result = new ArrayList<Change>(mDeleted.size() + mExisting.size());
+        result.addAll(mDeleted.values());
+        result.addAll(mExisting.values());
+        return result;
+    }
+
+    private boolean isRescanned(String path) {
+        if (path != null) {
+            for (String dir : mRescan) {
+                if (isSameOrBelow(path, dir)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if there are no pending events */
+    public synchronized boolean isEmpty() {
+        return mFirstEventTime == 0;
+    }
+
+    /**
+     * @return -1: nothing pending; 0: batch is complete; else millis until the batch is complete
+     */
+    public synchronized long getFlushDelay(long now) {
+        if (mFirstEventTime == 0) return -1;
+        long due = Math.min(mLastEventTime + mQuietMillis, mFirstEventTime + mMaxDelayMillis);
+        return Math.max(0, due - now);
+    }
+
+    /**
+     * Hands out the current batch if it is complete (see {@link #getFlushDelay(long)}).
+     * The callback is called outside the lock so it may take its time.
+     *
+     * @return true if a batch was handed out
+     */
+    public boolean flush(Callback callback, long now) {
+        List<String> deleted = new ArrayList<String>();
+        List<String> renamedFrom = new ArrayList<String>();
+        List<String> renamedTo = new ArrayList<String>();
+        List<String> modified = new ArrayList<String>();
+        List<String> renamedDirsFrom = new ArrayList<String>();
+        List<String> renamedDirsTo = new ArrayList<String>();
+        String[] rescan;
+
+        synchronized (this) {
+            if (getFlushDelay(now) != 0) return false;
+
+            if (mMovedFrom != null) {
+                onGone(mMovedFrom, mMovedFromIsDir);
+                mMovedFrom = null;
+            }
+
+            for (Change change : mRenamedDirs) {
+                renamedDirsFrom.add(change.oldPath);
+                renamedDirsTo.add(change.newPath);
+            }
+            for (Change change : getChanges()) {
+                // files below rescanned dirs are handled by the rescan
+                String oldPath = isRescanned(change.oldPath) ? null : change.oldPath;
+                String newPath = isRescanned(change.newPath) ? null : change.newPath;
+                if (newPath == null) {
+                    if (oldPath != null) deleted.add(oldPath);
+                } else if ((oldPath == null) || oldPath.equals(newPath)) {
+                    modified.add(newPath);
+                } else {
+                    renamedFrom.add(oldPath);
+                    renamedTo.add(newPath);
+                }
+            }
+            rescan = mRescan.toArray(new String[mRescan.size()]);
+
+            mExisting.clear();
+            mDeleted.clear();
+            mRescan.clear();
+            mRenamedDirs.clear();
+            mFirstEventTime = 0;
+            mLastEventTime = 0;
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("FileChangeBatcher.flush: " + renamedDirsFrom.size() + " dirs renamed, " + deleted.size() + " deleted, " + renamedFrom.size()
+                    + " renamed, " + modified.size() + " modified, " + rescan.length + " rescan");
+        }
+        if (!renamedDirsFrom.isEmpty()) callback.onRenamedDirs(toArray(renamedDirsFrom), toArray(renamedDirsTo));
+        if (!deleted.isEmpty()) callback.onChanges(toArray(deleted), null);
+        if (!renamedFrom.isEmpty()) callback.onChanges(toArray(renamedFrom), toArray(renamedTo));
+        if (!modified.isEmpty()) callback.onChanges(null, toArray(modified));
+        if (rescan.length > 0) callback.onRescan(rescan);
+        return true;
+    }
+
+    private static String[] toArray(List<String> values) {
+        return values.toArray(new String[values.size()]);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable canonical form of a {@link IGalleryFilter} that can be used as a (cache) key.
+ * It is a plain value object and not a {@link IGalleryFilter} itself:
+ * use {@link #toFilter()} to get a modifiable filter with the same values.
+ *
+ * Filters that select the same photos are equal:
+ * empty texts are null, tag order and duplicate tags are ignored,
+ * lat/lon is ignored if {@link #isNonGeoOnly()} and sort direction is ignored without sort.
+ *
+ * The hash is calculated once so {@link #equals(Object)} of different filters is usually
+ * decided by the hash alone.
+ */
+public final class GalleryFilterKey {
+    private static final String[] NO_TAGS = new String[0];
+
+    private final double mLatitudeMin;
+    private final double mLatitudeMax;
+    private final double mLogituedMin;
+    private final double mLogituedMax;
+    private final String mPath;
+    private final long mDateMin;
+    private final long mDateMax;
+    private final boolean mNonGeoOnly;
+    private final boolean mWithNoTags;
+    private final int mVisibility;
+    private final int mSortId;
+    private final boolean mSortAscending;
+    private final String mInAnyField;
+
+    /** sorted without duplicates */
+    private final String[] mTagsAllIncluded;
+    private final String[] mTagsAllExcluded;
+
+    private final int mHash;
+
+    /** lazy created result of {@link #toString()} */
+    private String mString = null;
+
+    private GalleryFilterKey(IGalleryFilter src) {
+        mNonGeoOnly = src.isNonGeoOnly();
+        mLatitudeMin = mNonGeoOnly ? Double.NaN : src.getLatitudeMin();
+        mLatitudeMax = mNonGeoOnly ? Double.NaN : src.getLatitudeMax();
+        mLogituedMin = mNonGeoOnly ? Double.NaN : src.getLogituedMin();
+        mLogituedMax = mNonGeoOnly ? Double.NaN : src.getLogituedMax();
+        mPath = emptyAsNull(src.getPath());
+        mDateMin = src.getDateMin();
+        mDateMax = src.getDateMax();
+        mWithNoTags = src.isWithNoTags();
+        mVisibility = src.getVisibility();
+
+        int sortId = src.getSortID();
+        mSortId = (sortId == IGalleryFilter.SORT_BY_NONE_OLD) ? IGalleryFilter.SORT_BY_NONE : sortId;
+        mSortAscending = (mSortId != IGalleryFilter.SORT_BY_NONE) && src.isSortAscending();
+        mInAnyField = emptyAsNull(src.getInAnyField());
+        mTagsAllIncluded = toSortedSet(src.getTagsAllIncluded());
+        mTagsAllExcluded = toSortedSet(src.getTagsAllExcluded());
+
+        int hash = hash(mLatitudeMin);
+        hash = 31 * hash + hash(mLatitudeMax);
+        hash = 31 * hash + hash(mLogituedMin);
+        hash = 31 * hash + hash(mLogituedMax);
+        hash = 31 * hash + ((mPath != null) ? mPath.hashCode() : 0);
+        hash = 31 * hash + (int) (mDateMin ^ (mDateMin >>> 32));
+        hash = 31 * hash + (int) (mDateMax ^ (mDateMax >>> 32));
+        hash = 31 * hash + (mNonGeoOnly ? 1 : 0);
+        hash = 31 * hash + (mWithNoTags ? 1 : 0);
+        hash = 31 * hash + mVisibility;
+        hash = 31 * hash + mSortId;
+        hash = 31 * hash + (mSortAscending ? 1 : 0);
+        hash = 31 * hash + ((mInAnyField != null) ? mInAnyField.hashCode() : 0);
+        hash = 31 * hash + Arrays.hashCode(mTagsAllIncluded);
+        hash = 31 * hash + Arrays.hashCode(mTagsAllExcluded);
+        mHash = hash;
+    }
+
+    /** @return canonical form of filter or null if filter is null */
+    public static GalleryFilterKey create(IGalleryFilter filter) {
+        if (filter == null) return null;
+        return new GalleryFilterKey(filter);
+    }
+
+    /** @return canonical form of a filter in {@link GalleryFilterParameter#toString()} format. Thread safe. */
+    public static GalleryFilterKey parse(String filter) {
+        return new GalleryFilterKey(GalleryFilterParameter.parse(filter, new GalleryFilterParameter()));
+    }
+
+    /** @return true if both filters select the same photos */
+    public static boolean equals(IGalleryFilter lhs, IGalleryFilter rhs) {
+        if (lhs == rhs) return true;
+        if ((lhs == null) || (rhs == null)) return false;
+        return create(lhs).equals(create(rhs));
+    }
+
+    private static String emptyAsNull(String value) {
+        return ((value == null) || (value.length() == 0)) ? null : value;
+    }
+
+    private static String[] toSortedSet(List<String> values) {
+        if ((values == null) || values.isEmpty()) return NO_TAGS;
+
+        // without null and empty: Arrays.sort() cannot handle null
+        String[] result = new String[values.size()];
+        int count = 0;
+        for (String value : values) {
+            if ((value != null) && (value.length() > 0)) result[count++] = value;
+        }
+        Arrays.sort(result, 0, count);
+
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if ((unique == 0) || !result[i].equals(result[unique - 1])) {
+                result[unique++] = result[i];
+            }
+        }
+        if (unique == 0) return NO_TAGS;
+        return (unique == result.length) ? result : Arrays.copyOf(result, unique);
+    }
+
+    private static int hash(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GalleryFilterKey)) return false;
+        GalleryFilterKey other = (GalleryFilterKey) o;
+        return (mHash == other.mHash)
+                && (mDateMin == other.mDateMin)
+                && (mDateMax == other.mDateMax)
+                && (mNonGeoOnly == other.mNonGeoOnly)
+                && (mWithNoTags == other.mWithNoTags)
+                && (mVisibility == other.mVisibility)
+                && (mSortId == other.mSortId)
+                && (mSortAscending == other.mSortAscending)
+                && (Double.compare(mLatitudeMin, other.mLatitudeMin) == 0)
+                && (Double.compare(mLatitudeMax, other.mLatitudeMax) == 0)
+                && (Double.compare(mLogituedMin, other.mLogituedMin) == 0)
+                && (Double.compare(mLogituedMax, other.mLogituedMax) == 0)
+                && equals(mPath, other.mPath)
+                && equals(mInAnyField, other.mInAnyField)
+                && Arrays.equals(mTagsAllIncluded, other.mTagsAllIncluded)
+                && Arrays.equals(mTagsAllExcluded, other.mTagsAllExcluded);
+    }
+
+    private static boolean equals(String lhs, String rhs) {
+        return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    /** @return filter in {@link GalleryFilterParameter#toString()} format */
+    @Override
+    public String toString() {
+        String result = mString;
+        if (result == null) {
+            // benign race: all threads calculate the same value
+            result = toFilter().toString();
+            mString = result;
+        }
+        return result;
+    }
+
+    /** @return new modifiable filter with the values of this key */
+    public GalleryFilterParameter toFilter() {
+        GalleryFilterParameter result = new GalleryFilterParameter()
+                .setPath(mPath)
+                .setDate(mDateMin, mDateMax)
+                .setNonGeoOnly(mNonGeoOnly)
+                .setWithNoTags(mWithNoTags)
+                .setVisibility(mVisibility)
+                .setSort(mSortId, mSortAscending)
+                .setTagsAllIncluded(Arrays.asList(mTagsAllIncluded))
+                .setTagsAllExcluded(Arrays.asList(mTagsAllExcluded))
+                .setInAnyField(mInAnyField);
+        result.setLatitudeMin(mLatitudeMin);
+        result.setLatitudeMax(mLatitudeMax);
+        result.setLogituedMin(mLogituedMin);
+        result.setLogituedMax(mLogituedMax);
+        return result;
+    }
+
+    /******************** properties **************************/
+    public double getLatitudeMin() {
+        return mLatitudeMin;
+    }
+
+    public double getLatitudeMax() {
+        return mLatitudeMax;
+    }
+
+    public double getLogituedMin() {
+        return mLogituedMin;
+    }
+
+    public double getLogituedMax() {
+        return mLogituedMax;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getDateMin() {
+        return mDateMin;
+    }
+
+    public long getDateMax() {
+        return mDateMax;
+    }
+
+    public boolean isNonGeoOnly() {
+        return mNonGeoOnly;
+    }
+
+    public int getSortID() {
+        return mSortId;
+    }
+
+    public boolean isSortAscending() {
+        return mSortAscending;
+    }
+
+    public boolean isWithNoTags() {
+        return mWithNoTags;
+    }
+
+    /** @return null if there are no tags like {@link GalleryFilterParameter#parse(String, GalleryFilterParameter)} */
+    public List<String> getTagsAllIncluded() {
+        return asList(mTagsAllIncluded);
+    }
+
+    public List<String> getTagsAllExcluded() {
+        return asList(mTagsAllExcluded);
+    }
+
+    private static List<String> asList(String[] values) {
+        return (values.length == 0) ? null : Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    public String getInAnyField() {
+        return mInAnyField;
+    }
+
+    public int getVisibility() {
+        return mVisibility;
+    }
+}
@@ -19,10 +19,9 @@
  
 package de.k3b.io;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
 
 import de.k3b.FotoLibGlobal;
@@ -30,10 +29,20 @@ import de.k3b.database.SelectedItems;
 
 /**
  * parameter for foto filter: only fotos from certain filepath, date and/or lat/lon will be visible.
+ *
+ * {@link #toString()} and {@link #parse(String, GalleryFilterParameter)} are thread safe.
+ * Use {@link GalleryFilterKey} to compare filters or as immutable key i.e. for caches.
+ *
  * Created by k3b on 11.07.2015.
  */
 public class GalleryFilterParameter extends GeoRectangle implements IGalleryFilter {
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    /** date format "yyyy-MM-dd" in local time. Calendar is not thread safe */
+    private static final ThreadLocal<Calendar> calendar = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            return Calendar.getInstance();
+        }
+    };
     private static final String NON_GEO_ONLY      = "noGeoInfo";
     private static final String NON_GEO_ONLY_FIND = NON_GEO_ONLY.substring(0, 1);
     private String path = null;
@@ -235,7 +244,19 @@ public class GalleryFilterParameter extends GeoRectangle implements IGalleryFilt
 
     private static String format(long millisecs) {
         if (millisecs==0) return "";
-        return dateFormat.format(new Date(millisecs));
+        Calendar c = calendar.get();
+        c.setTimeInMillis(millisecs);
+        StringBuilder result = new StringBuilder(10);
+        appendDigits(result, c.get(Calendar.YEAR), 4).append('-');
+        appendDigits(result, c.get(Calendar.MONTH) + 1, 2).append('-');
+        return appendDigits(result, c.get(Calendar.DAY_OF_MONTH), 2).toString();
+    }
+
+    private static StringBuilder appendDigits(StringBuilder result, int value, int minDigits) {
+        for (int digits = Integer.toString(value).length(); digits < minDigits; digits++) {
+            result.append('0');
+        }
+        return result.append(value);
     }
 
     private static String format(String value) {
@@ -245,23 +266,32 @@ public class GalleryFilterParameter extends GeoRectangle implements IGalleryFilt
 
     public static GalleryFilterParameter parse(String s, GalleryFilterParameter result) {
         if (s != null) {
-            String[] fields = s.split(DELIM_FIELD);
-            for (int fieldIndex=0; fieldIndex < fields.length; fieldIndex++) {
-                result.assign(fieldIndex, fields[fieldIndex].split(DELIM_SUB_FIELD));
+            // same as s.split(DELIM_FIELD) and field.split(DELIM_SUB_FIELD) without the arrays
+            final char delimField = DELIM_FIELD.charAt(0);
+            final char delimSubField = DELIM_SUB_FIELD.charAt(0);
+            final int len = s.length();
+            int fieldIndex = 0;
+            int subFieldIndex = 0;
+            int start = 0;
+            for (int pos = 0; pos <= len; pos++) {
+                char c = (pos < len) ? s.charAt(pos) : delimField;
+                if ((c == delimField) || (c == delimSubField)) {
+                    if (pos > start) {
+                        result.assign(fieldIndex, subFieldIndex, s.substring(start, pos));
+                    }
+                    start = pos + 1;
+                    if (c == delimField) {
+                        fieldIndex++;
+                        subFieldIndex = 0;
+                    } else {
+                        subFieldIndex++;
+                    }
+                }
             }
         }
         return result;
     }
 
-    private void assign(int fieldIndex, String[] subfields) {
-        for (int subFieldIndex=0; subFieldIndex < subfields.length; subFieldIndex++) {
-            String subfieldValue = subfields[subFieldIndex];
-            if ((subfieldValue != null) && (subfieldValue.length() > 0)) {
-                this.assign(fieldIndex, subFieldIndex, subfieldValue);
-            }
-        }
-    }
-
     // field and subfield must be the same order as toString(Builder)()
     private void assign(int field, int subfield, String value) {
         switch (field) {
@@ -328,15 +358,38 @@ public class GalleryFilterParameter extends GeoRectangle implements IGalleryFilt
 
     private static long parseDate(String value) {
         if ((value == null) || value.isEmpty()) return 0;
-        try {
-            return dateFormat.parse(value).getTime();
-        } catch (Exception e1) {
-            try {
-                return Long.parseLong(value);
-            } catch (Exception e2) {
-                return 0;
+
+        // "yyyy-MM-dd" with optional trailing text. Out of range values are lenient like SimpleDateFormat
+        int[] yearMonthDay = new int[3];
+        int pos = 0;
+        final int len = value.length();
+        for (int part = 0; part < yearMonthDay.length; part++) {
+            if ((part > 0) && ((pos >= len) || (value.charAt(pos++) != '-'))) {
+                pos = -1;
+                break;
+            }
+            int start = pos;
+            while ((pos < len) && (pos - start < 9) && Character.isDigit(value.charAt(pos))) {
+                yearMonthDay[part] = yearMonthDay[part] * 10 + (value.charAt(pos++) - '0');
+            }
+            if (pos == start) {
+                pos = -1;
+                break;
             }
         }
+
+        if (pos >= 0) {
+            Calendar c = calendar.get();
+            c.clear();
+            c.set(yearMonthDay[0], yearMonthDay[1] - 1, yearMonthDay[2]);
+            return c.getTimeInMillis();
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (Exception e2) {
+            return 0;
+        }
     }
 
     public static boolean isEmpty(IGalleryFilter filter) {
@@ -24,7 +24,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import de.k3b.FotoLibGlobal;
 
@@ -38,11 +41,15 @@ public class OSDirectory implements IDirectory {
 
     private File mCurrent = null;
     private List<IDirectory> mChilden = null;
+    private final DirectoryChildIndex mChildIndex = new DirectoryChildIndex(false);
 
     private OSDirectory mParent = null;
 
     private int mDirFlags = DIR_FLAG_NONE;
 
+    /** {@link File#lastModified()} when the children were listed. 0: unknown */
+    private long mLastModified = 0;
+
     public OSDirectory(String current, OSDirectory parent) {
         this(FileUtils.tryGetCanonicalFile(current), parent);
     }
@@ -63,6 +70,14 @@ public class OSDirectory implements IDirectory {
         }
     }
 
+    /** for {@link OSDirectorySnapshot}: values from the snapshot without file system access */
+    OSDirectory(File current, OSDirectory parent, int dirFlags, long lastModified) {
+        mCurrent = current;
+        mParent = parent;
+        mDirFlags = dirFlags;
+        mLastModified = lastModified;
+    }
+
     public OSDirectory setCurrent(File current) {
         destroy();
         mCurrent = current;
@@ -101,19 +116,16 @@ public class OSDirectory implements IDirectory {
         return (OSDirectory) current;
     }
 
+    /** synchronized because {@link OSDirectoryCrawler} may load children in the background */
     @Override
-    public List<IDirectory> getChildren() {
+    public synchronized List<IDirectory> getChildren() {
         if ((mCurrent != null) && (mChilden == null)) {
+            mLastModified = mCurrent.lastModified();
             mChilden = new ArrayList<IDirectory>();
             File[] files = mCurrent.listFiles();
             if (files != null) {
                 for (File file : files) {
-                    if ((file != null)
-                            && file.isDirectory()
-                            && !file.isHidden()
-                            && !file.getName().startsWith(".")
-                            // && file.canWrite() // bugfix: must be visible because writeprotected parentdir may contain writeenabled subdirs
-                            && !FileUtils.isSymlinkDir(file,true)) {
+                    if (isChildDir(file)) {
                         mChilden.add(new OSDirectory(file, this));
 //                    } else if (FotoLibGlobal.debugEnabled) {
 //                        logger.debug(FileUtils.getDebugString("OSDirectory.getChildren() rejected ", file));
@@ -124,6 +136,72 @@ public class OSDirectory implements IDirectory {
         return mChilden;
     }
 
+    /** @return true if file is a dir that is visible as child */
+    static boolean isChildDir(File file) {
+        // cheap name check first: isDirectory() and isSymlinkDir() need file system access
+        return (file != null)
+                && !file.getName().startsWith(".")
+                && file.isDirectory()
+                && !file.isHidden()
+                // && file.canWrite() // bugfix: must be visible because writeprotected parentdir may contain writeenabled subdirs
+                && !FileUtils.isSymlinkDir(file,true);
+    }
+
+    /**
+     * Replaces the children without changing the old list, so that other threads can
+     * continue to iterate the old list.
+     */
+    synchronized void setChildren(List<IDirectory> children, long lastModified) {
+        mChilden = children;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Replaces the children with the listed ones like {@link #setChildren(List, long)} but keeps
+     * children that were added after the listing and the current instance of every listed child.
+     *
+     * @param before children at the time the listing started
+     */
+    synchronized void mergeChildren(List<IDirectory> listed, List<IDirectory> before, long lastModified) {
+        List<IDirectory> current = mChilden;
+        List<IDirectory> result = new ArrayList<IDirectory>(listed.size());
+        Set<IDirectory> added = Collections.newSetFromMap(new IdentityHashMap<IDirectory, Boolean>());
+        for (IDirectory child : listed) {
+            IDirectory existing = mChildIndex.find(current, child.getRelPath());
+            if (existing == null) existing = child;
+            if (added.add(existing)) result.add(existing);
+        }
+
+        if (current != null) {
+            Set<IDirectory> old = Collections.newSetFromMap(new IdentityHashMap<IDirectory, Boolean>());
+            if (before != null) old.addAll(before);
+            for (IDirectory child : current) {
+                if (!old.contains(child) && added.add(child)) result.add(child);
+            }
+        }
+        setChildren(result, lastModified);
+    }
+
+    /** {@link File#lastModified()} when the children were listed. 0: unknown */
+    synchronized long getLastModified() {
+        return mLastModified;
+    }
+
+    File getFile() {
+        return mCurrent;
+    }
+
+    /** @return true if {@link #getChildren()} does not need file system access */
+    public synchronized boolean isLoaded() {
+        return (mCurrent == null) || (mChilden != null);
+    }
+
+    /** @return copy of {@link #getChildren()} that can be iterated while other threads add children */
+    synchronized List<IDirectory> getChildrenCopy() {
+        List<IDirectory> children = getChildren();
+        return (children == null) ? null : new ArrayList<IDirectory>(children);
+    }
+
     // package to allow unit testing
     protected IDirectory find(OSDirectory root, String path) {
         return find(root, FileUtils.tryGetCanonicalFile(path));
@@ -140,14 +218,15 @@ public class OSDirectory implements IDirectory {
         if (parentDir == null) return null;
 
         String name = file.getName();
-        List<IDirectory> children = parentDir.getChildren();
-        OSDirectory result = (OSDirectory) findChildByRelPath(children, name);
-
-        if (result == null) {
-            result = new OSDirectory(file, (OSDirectory) parentDir);
-            children.add(result);
+        OSDirectory parent = (OSDirectory) parentDir;
+        synchronized (parent) {
+            OSDirectory result = parent.findChild(name);
+            if (result == null) {
+                result = new OSDirectory(file, parent);
+                parent.addChild(result);
+            }
+            return result;
         }
-        return result;
     }
 
     public static IDirectory findChildByRelPath(List<IDirectory> children, String name) {
@@ -159,6 +238,32 @@ public class OSDirectory implements IDirectory {
         return null;
     }
 
+    private synchronized void addChild(OSDirectory child) {
+        List<IDirectory> children = getChildren();
+        children.add(child);
+        mChildIndex.onAdded(children, child);
+    }
+
+    /**
+     * Removes child without changing the old list like {@link #setChildren(List, long)}.
+     * Synchronized with {@link OSDirectoryCrawler} that may merge children in the background.
+     *
+     * @return true if child was removed
+     */
+    public synchronized boolean removeChild(IDirectory child) {
+        if ((mChilden == null) || !mChilden.contains(child)) return false;
+
+        List<IDirectory> children = new ArrayList<IDirectory>(mChilden);
+        children.remove(child);
+        setChildren(children, mLastModified);
+        return true;
+    }
+
+    /** @return loaded child with name or null. Uses a hash index for dirs with many children */
+    public synchronized OSDirectory findChild(String name) {
+        return (OSDirectory) mChildIndex.find(getChildren(), name);
+    }
+
     @Override
     public IDirectory find(String path) {
         if (path == null) return null;
@@ -170,7 +275,7 @@ public class OSDirectory implements IDirectory {
     }
 
     @Override
-    public void destroy() {
+    public synchronized void destroy() {
         destroy(mChilden);
         mChilden = null;
         mCurrent = null;
@@ -220,15 +325,14 @@ public class OSDirectory implements IDirectory {
     }
 
     /** for unittesting without load on demand */
-    protected OSDirectory addChildFolder(String newCildFolderName, List<IDirectory> grandChilden) {
-        List<IDirectory> children = this.getChildren();
-        OSDirectory result = (OSDirectory) findChildByRelPath(children, newCildFolderName);
+    protected synchronized OSDirectory addChildFolder(String newCildFolderName, List<IDirectory> grandChilden) {
+        OSDirectory result = findChild(newCildFolderName);
 
         if (result == null) {
             File newChildFile = FileUtils.tryGetCanonicalFile(new File(mCurrent, newCildFolderName), null);
             result = new OSDirectory(newChildFile, this, grandChilden);
             if (result != null) {
-                children.add(result);
+                addChild(result);
             }
         }
 
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Loads the children of an {@link OSDirectory} tree in parallel instead of on demand
+ * in the gui thread. Every directory is a task that loads its children and queues
+ * a task for every child.
+ *
+ * The result is the same tree that load on demand would create:
+ * directories below maxDepth or not loaded because of {@link #cancel()} are loaded on demand later.
+ *
+ * Either {@link #load(OSDirectory)} with an own thread pool and wait or {@link #start(OSDirectory)}
+ * in an executor that is shared with other crawlers. {@link #cancel()} removes the queued tasks
+ * from a {@link ThreadPoolExecutor}. Tasks that the executor rejects are loaded on demand later.
+ *
+ * One instance can only load once.
+ */
+public class OSDirectoryCrawler {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    public static final int DEPTH_UNLIMITED = Integer.MAX_VALUE;
+
+    private final int mThreadCount;
+    private final int mMaxDepth;
+    /** null: {@link #load(OSDirectory)} creates an own thread pool */
+    private final ExecutorService mSharedExecutor;
+
+    private volatile boolean mCancelled = false;
+    private volatile ExecutorService mExecutor = null;
+    private OSDirectory mRoot = null;
+    private long mStartTime = 0;
+
+    /** number of queued or running tasks */
+    private final AtomicInteger mPending = new AtomicInteger(0);
+    private final AtomicInteger mLoadCount = new AtomicInteger(0);
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /** tasks that are submitted but not started yet */
+    private final Set<Runnable> mQueued = new HashSet<Runnable>();
+
+    /**
+     * @param maxDepth 1: load children of root only. {@link #DEPTH_UNLIMITED}: load all
+     */
+    public OSDirectoryCrawler(int threadCount, int maxDepth) {
+        mThreadCount = Math.max(1, threadCount);
+        mMaxDepth = maxDepth;
+        mSharedExecutor = null;
+    }
+
+    /**
+     * @param executor shared with other crawlers. Should be bounded, i.e. a {@link ThreadPoolExecutor}
+     *                 with a bounded queue.
+     * @param maxDepth 1: load children of root only. {@link #DEPTH_UNLIMITED}: load all
+     */
+    public OSDirectoryCrawler(ExecutorService executor, int maxDepth) {
+        mThreadCount = 0;
+        mMaxDepth = maxDepth;
+        mSharedExecutor = executor;
+    }
+
+    /**
+     * Loads the sub directories of root. Blocks until all are loaded or {@link #cancel()}.
+     *
+     * @return number of directories whose children were loaded from the file system
+     */
+    public int load(OSDirectory root) throws InterruptedException {
+        ExecutorService ownExecutor = (mSharedExecutor == null) ? Executors.newFixedThreadPool(mThreadCount) : null;
+        try {
+            start(root, (ownExecutor != null) ? ownExecutor : mSharedExecutor);
+            mDone.await();
+        } finally {
+            if (ownExecutor != null) ownExecutor.shutdownNow();
+        }
+        return mLoadCount.get();
+    }
+
+    /** Loads the sub directories of root in the shared executor without waiting. */
+    public void start(OSDirectory root) {
+        if (mSharedExecutor == null) throw new IllegalStateException("OSDirectoryCrawler.start() needs a shared executor");
+        start(root, mSharedExecutor);
+    }
+
+    private void start(OSDirectory root, ExecutorService executor) {
+        synchronized (this) {
+            if (mExecutor != null) throw new IllegalStateException("OSDirectoryCrawler can only load once");
+            mExecutor = executor;
+            mRoot = root;
+            mStartTime = System.currentTimeMillis();
+        }
+        submit(root, 0);
+    }
+
+    /** stops loading. Queued tasks are dropped. Running tasks finish their current directory. */
+    public void cancel() {
+        mCancelled = true;
+
+        List<Runnable> dropped;
+        synchronized (mQueued) {
+            dropped = new ArrayList<Runnable>(mQueued);
+            mQueued.clear();
+        }
+        for (Runnable task : dropped) {
+            if (mExecutor instanceof ThreadPoolExecutor) ((ThreadPoolExecutor) mExecutor).remove(task);
+            onTaskDone();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private void submit(final OSDirectory dir, final int depth) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mQueued) {
+                    // else dropped by cancel()
+                    if (!mQueued.remove(this)) return;
+                }
+                try {
+                    loadChildren(dir, depth);
+                } catch (RuntimeException ex) {
+                    logger.warn("OSDirectoryCrawler cannot load " + dir, ex);
+                } finally {
+                    onTaskDone();
+                }
+            }
+        };
+
+        mPending.incrementAndGet();
+        synchronized (mQueued) {
+            mQueued.add(task);
+        }
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // executor is full or was shut down because load() was interrupted
+            boolean queued;
+            synchronized (mQueued) {
+                queued = mQueued.remove(task);
+            }
+            if (queued) onTaskDone();
+        }
+    }
+
+    private void loadChildren(OSDirectory dir, int depth) {
+        if (mCancelled || (depth >= mMaxDepth)) return;
+
+        if (!dir.isLoaded()) mLoadCount.incrementAndGet();
+        List<IDirectory> children = dir.getChildrenCopy();
+        if (children != null) {
+            for (IDirectory child : children) {
+                if (mCancelled) return;
+                if (child instanceof OSDirectory) {
+                    submit((OSDirectory) child, depth + 1);
+                }
+            }
+        }
+    }
+
+    private void onTaskDone() {
+        if (mPending.decrementAndGet() == 0) {
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("OSDirectoryCrawler.load(" + mRoot + ") " + mLoadCount.get() + " dirs in "
+                        + (System.currentTimeMillis() - mStartTime) + " ms" + (mCancelled ? " (cancelled)" : ""));
+            }
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Persists the loaded part of an {@link OSDirectory} tree (names, dir flags and dir modification times)
+ * so that it is available without file system access the next time.
+ *
+ * After {@link #load(Reader, File)} the tree may be outdated. {@link #refresh(OSDirectory, OnDirectoryChangedListener)}
+ * lists the children again only for dirs whose {@link File#lastModified()} has changed.
+ *
+ * Format: one line per dir in pre order: "depth TAB flags TAB lastModified TAB loaded TAB name"
+ * where loaded=1 means the children of the dir are in the snapshot.
+ */
+public class OSDirectorySnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private static final String HEADER = "OSDirectorySnapshot\t1";
+    private static final char DELIMITER = '\t';
+
+    /** Called from the thread that executes {@link #refresh(OSDirectory, OnDirectoryChangedListener)} */
+    public interface OnDirectoryChangedListener {
+        /**
+         * The children of dir have changed. The listener must run apply to merge them into the
+         * current children, i.e. in the gui thread followed by a notification of the adapter that shows dir.
+         */
+        void onDirectoryChanged(OSDirectory dir, Runnable apply);
+    }
+
+    private volatile boolean mCancelled = false;
+
+    /** writes the loaded part of the tree below root */
+    public static void save(OSDirectory root, Writer out) throws IOException {
+        out.write(HEADER);
+        out.write('\n');
+        save(root, 0, root.getAbsolute(), out);
+        out.flush();
+    }
+
+    private static void save(OSDirectory dir, int depth, String name, Writer out) throws IOException {
+        List<IDirectory> children = dir.isLoaded() ? dir.getChildrenCopy() : null;
+        if ((children != null) && !canSave(children)) children = null;
+
+        out.write(Integer.toString(depth));
+        out.write(DELIMITER);
+        out.write(Integer.toString(dir.getDirFlags()));
+        out.write(DELIMITER);
+        out.write(Long.toString((children != null) ? dir.getLastModified() : 0));
+        out.write(DELIMITER);
+        out.write((children != null) ? '1' : '0');
+        out.write(DELIMITER);
+        out.write(name);
+        out.write('\n');
+
+        if (children != null) {
+            for (IDirectory child : children) {
+                save((OSDirectory) child, depth + 1, child.getRelPath(), out);
+            }
+        }
+    }
+
+    /** names with line breaks cannot be saved. Such dirs are loaded on demand. */
+    private static boolean canSave(List<IDirectory> children) {
+        for (IDirectory child : children) {
+            String name = child.getRelPath();
+            if ((name.indexOf('\n') >= 0) || (name.indexOf('\r') >= 0)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return tree from snapshot or null if the snapshot is invalid or belongs to an other root
+     */
+    public static OSDirectory load(Reader in, File root) throws IOException {
+        BufferedReader reader = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in);
+        if (!HEADER.equals(reader.readLine())) return null;
+
+        // parents.get(depth) is the dir of the last line with that depth
+        List<OSDirectory> parents = new ArrayList<OSDirectory>();
+        List<List<IDirectory>> parentChildren = new ArrayList<List<IDirectory>>();
+        OSDirectory result = null;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int end0 = line.indexOf(DELIMITER);
+            int end1 = line.indexOf(DELIMITER, end0 + 1);
+            int end2 = line.indexOf(DELIMITER, end1 + 1);
+            int end3 = line.indexOf(DELIMITER, end2 + 1);
+            if ((end0 < 0) || (end1 < 0) || (end2 < 0) || (end3 < 0)) return null;
+
+            int depth;
+            int flags;
+            long lastModified;
+            try {
+                depth = Integer.parseInt(line.substring(0, end0));
+                flags = Integer.parseInt(line.substring(end0 + 1, end1));
+                lastModified = Long.parseLong(line.substring(end1 + 1, end2));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            boolean loaded = line.charAt(end2 + 1) == '1';
+            String name = line.substring(end3 + 1);
+
+            OSDirectory dir;
+            if (depth == 0) {
+                if ((result != null) || !root.getAbsolutePath().equals(name)) return null;
+                dir = new OSDirectory(root, null, flags, lastModified);
+                result = dir;
+            } else {
+                if ((depth > parents.size()) || (parentChildren.get(depth - 1) == null)) return null;
+                OSDirectory parent = parents.get(depth - 1);
+                dir = new OSDirectory(new File(parent.getFile(), name), parent, flags, lastModified);
+                parentChildren.get(depth - 1).add(dir);
+            }
+
+            List<IDirectory> children = loaded ? new ArrayList<IDirectory>() : null;
+            if (loaded) dir.setChildren(children, lastModified);
+            while (parents.size() > depth) {
+                parents.remove(parents.size() - 1);
+                parentChildren.remove(parentChildren.size() - 1);
+            }
+            parents.add(dir);
+            parentChildren.add(children);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the children of all loaded dirs below root again whose modification time has changed.
+     * Children that still exist are kept with their subtrees.
+     *
+     * @param listener if not null: called for every dir whose children have changed.
+     *                 if null the children are replaced immediately.
+     * @return number of changed dirs
+     */
+    public int refresh(OSDirectory root, OnDirectoryChangedListener listener) {
+        long start = System.currentTimeMillis();
+        int checked = 0;
+        int changed = 0;
+
+        Deque<OSDirectory> todo = new ArrayDeque<OSDirectory>();
+        todo.add(root);
+        while (!todo.isEmpty() && !mCancelled) {
+            OSDirectory dir = todo.removeFirst();
+            if (!dir.isLoaded()) continue;
+            checked++;
+
+            File file = dir.getFile();
+            if (file == null) continue; // destroyed
+
+            List<IDirectory> children;
+            final long lastModified = file.lastModified();
+            if (lastModified != dir.getLastModified()) {
+                final OSDirectory changedDir = dir;
+                // children added after the listing must survive apply
+                final List<IDirectory> before = dir.getChildrenCopy();
+                final List<IDirectory> newChildren = listChildren(dir, file);
+                Runnable apply = new Runnable() {
+                    @Override
+                    public void run() {
+                        changedDir.mergeChildren(newChildren, before, lastModified);
+                    }
+                };
+                // copy: newChildren may be modified by other threads after apply
+                children = new ArrayList<IDirectory>(newChildren);
+                changed++;
+                if (listener != null) {
+                    listener.onDirectoryChanged(dir, apply);
+                } else {
+                    apply.run();
+                }
+            } else {
+                children = dir.getChildrenCopy();
+            }
+
+            if (children != null) {
+                for (IDirectory child : children) {
+                    todo.add((OSDirectory) child);
+                }
+            }
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("OSDirectorySnapshot.refresh(" + root + ") " + changed + " of " + checked
+                    + " dirs changed in " + (System.currentTimeMillis() - start) + " ms"
+                    + (mCancelled ? " (cancelled)" : ""));
+        }
+        return changed;
+    }
+
+    /** @return new children list of dir that reuses the existing children */
+    private static List<IDirectory> listChildren(OSDirectory dir, File file) {
+        List<IDirectory> result = new ArrayList<IDirectory>();
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File childFile : files) {
+                if (OSDirectory.isChildDir(childFile)) {
+                    OSDirectory child = dir.findChild(childFile.getName());
+                    result.add((child != null) ? child : new OSDirectory(childFile, dir));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** stops a running {@link #refresh(OSDirectory, OnDirectoryChangedListener)} */
+    public void cancel() {
+        mCancelled = true;
+    }
+}
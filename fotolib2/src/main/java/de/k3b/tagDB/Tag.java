@@ -20,6 +20,7 @@
 package de.k3b.tagDB;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -40,24 +41,50 @@ public class Tag{
         }
     };
 
+    /** Same order as comparing {@link #getPath()} with compareToIgnoreCase but uses cached {@link #getPathKey()} */
     public static final Comparator<Tag> COMPARATOR_HIERARCHY = new Comparator<Tag>() {
         @Override
         public int compare(Tag lhs, Tag rhs) {
-            String lhsName = (lhs == null) ? null : lhs.getPath();
-            String rhsName = (rhs == null) ? null : rhs.getPath();
+            String lhsName = (lhs == null) ? null : lhs.getPathKey();
+            String rhsName = (rhs == null) ? null : rhs.getPathKey();
             if (lhsName == null) return (rhsName == null) ? 0 : -1;
-            return lhsName.compareToIgnoreCase(rhsName);
+            return lhsName.compareTo(rhsName);
+        }
+    };
+
+    /** Same order as {@link #COMPARATOR_HIERARCHY} but reads the cached path key without validating it.
+     * Only use after {@link #getPathKey()} has been called for every item (see {@link #sortByHierarchy(List)}) */
+    private static final Comparator<Tag> COMPARATOR_HIERARCHY_PRECALCULATED = new Comparator<Tag>() {
+        @Override
+        public int compare(Tag lhs, Tag rhs) {
+            String lhsName = (lhs == null) ? null : lhs.pathKey;
+            String rhsName = (rhs == null) ? null : rhs.pathKey;
+            if (lhsName == null) return (rhsName == null) ? 0 : -1;
+            return lhsName.compareTo(rhsName);
         }
     };
 
     private String name;
     private Tag parent;
 
+    /** if not null the indexed list this tag belongs to. Will be informed about name or parent changes. */
+    private TagList owner = null;
+
+    /** cache for {@link #getPath()}. Only valid if {@link #pathParent} is (identical to) parent.getPath() */
+    private String path = null;
+    /** the parent path that was used to calculate {@link #path}. */
+    private String pathParent = null;
+    /** cache for {@link #getPathKey()}. Only valid together with {@link #path} */
+    private String pathKey = null;
+
     public String getName() {
         return name;
     }
     public Tag setName(String name) {
+        String oldName = this.name;
         this.name = name;
+        this.path = null;
+        if (owner != null) owner.onNameChanged(this, oldName);
         return this;
     }
 
@@ -73,10 +100,21 @@ public class Tag{
         }
 
         // there is no recursion
+        Tag oldParent = this.parent;
         this.parent = parent;
+        this.path = null;
+        if ((owner != null) && (oldParent != parent)) owner.onParentChanged(this, oldParent);
         return this;
     }
 
+    TagList getOwner() {
+        return owner;
+    }
+
+    void setOwner(TagList owner) {
+        this.owner = owner;
+    }
+
     @Override
     public String toString() {
         return getName();
@@ -129,19 +167,54 @@ public class Tag{
     }
 
     /** return item as path where parents are prependet.
-     * /grandparent/parent/child */
+     * /grandparent/parent/child
+     *
+     * The result is cached and recalculated only if name or parent of this or an ancestor changed. */
     public String getPath() {
-        StringBuilder result = new StringBuilder();
-        Tag cur = this;
-        while (cur != null) {
-            if (result.length() > 0) result.insert(0,"/");
-            result.insert(0,cur.getName());
-            cur = cur.getParent();
+        String parentPath = (parent == null) ? "" : parent.getPath();
+        if ((path == null) || (pathParent != parentPath)) {
+            // identity compare: parent path was recalculated since last call
+            path = parentPath + "/" + name;
+            pathParent = parentPath;
+            pathKey = null;
         }
-		
-		// leading "/"
-		result.insert(0,"/");
-        return result.toString();
+        return path;
+    }
+
+    /** case folded {@link #getPath()} used for sorting.
+     *
+     * keyA.compareTo(keyB) has the same result as pathA.compareToIgnoreCase(pathB). */
+    public String getPathKey() {
+        String path = getPath();
+        if (pathKey == null) {
+            pathKey = toKey(path);
+        }
+        return pathKey;
+    }
+
+    /** sorts items by {@link #COMPARATOR_HIERARCHY} where every path key is validated only once instead of per compare */
+    public static void sortByHierarchy(List<Tag> items) {
+        if (items != null) {
+            for (Tag item : items) {
+                if (item != null) item.getPathKey();
+            }
+            Collections.sort(items, COMPARATOR_HIERARCHY_PRECALCULATED);
+        }
+    }
+
+    /** folds every char the same way as {@link String#compareToIgnoreCase(String)} does */
+    static String toKey(String path) {
+        final int len = path.length();
+        char[] result = null;
+        for (int i = 0; i < len; i++) {
+            char c = path.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(c));
+            if ((folded != c) && (result == null)) {
+                result = path.toCharArray();
+            }
+            if (result != null) result[i] = folded;
+        }
+        return (result == null) ? path : new String(result);
     }
 
     public int getParentCount() {
@@ -160,7 +233,15 @@ public class Tag{
 
     private List<Tag> getChildren(List<Tag> result, List<Tag> all, boolean recursive, boolean includeThis) {
         if (includeThis) result.add(this);
-        if (all != null) {
+        if (all instanceof TagList) {
+            List<Tag> children = ((TagList) all).getChildren(this);
+            if (children != null) {
+                for (Tag candidate : children) {
+                    result.add(candidate);
+                    if (recursive) candidate.getChildren(result, all, true, includeThis);
+                }
+            }
+        } else if (all != null) {
             for(Tag candidate : all) {
                 if ((candidate != null) && (candidate.parent == this)) {
                     result.add(candidate);
@@ -173,6 +254,9 @@ public class Tag{
     }
 
     public static Tag findFirstChildByName(List<Tag> all, Tag parent, String name) {
+        if (all instanceof TagList) {
+            return ((TagList) all).findFirstChildByName(parent, name);
+        }
         if (all != null) {
             for(Tag candidate : all) {
                 if ((candidate != null) && (candidate.parent == parent) && name.equals(candidate.getName())) {
@@ -183,28 +267,9 @@ public class Tag{
         return null;
     }
 
-	
-    public int delete(List<Tag> all, boolean recursive) {
-        int result = 0;
-        if (all != null) {
-            List<Tag> children = getChildren(all, false, false);
-            if (children != null) {
-                for (Tag child : children) {
-                    if (child != null) {
-                        if (recursive) {
-                            result += child.delete(all, recursive);
-                        } else {
-                            child.parent = this.parent;
-                        }
-                    }
-                }
-            }
 
-            if (all.contains(this)) {
-                all.remove(this);
-                result++;
-            }
-        }
-        return result;
+    /** see {@link TagRepository#deleteSubtree(List, Tag, boolean)}. @return number of removed tags */
+    public int delete(List<Tag> all, boolean recursive) {
+        return TagRepository.deleteSubtree(all, this, recursive);
     }
 }
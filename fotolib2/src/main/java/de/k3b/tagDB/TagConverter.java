@@ -23,54 +23,47 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import de.k3b.io.ListUtils;
-
 /**
+ * Converts tags from/to the db format ";tag1;;tag2;", the csv/xmp format "tag1, tag2"
+ * and the bat format "\"tag1\" \"tag2\"".
+ *
+ * The static methods are used for every db row so they use a per thread
+ * reusable instance that keeps its buffers instead of regex, String.replace and array copies.
+ *
  * Created by k3b on 29.09.2016.
  */
 
 public class TagConverter {
     public static final String TAG_DB_DELIMITER = ";";
 
+    private static final ThreadLocal<TagConverter> sInstance = new ThreadLocal<TagConverter>() {
+        @Override
+        protected TagConverter initialValue() {
+            return new TagConverter();
+        }
+    };
+
+    /** reused output buffer */
+    private final StringBuilder mBuffer = new StringBuilder();
+
+    /** reused buffer for sorting */
+    private String[] mSortBuffer = new String[16];
+
     public static String asDbString(String wildcard, List<String> tags) {
-        String[] tagsArray = ListUtils.asStringArray(tags);
-        if (tagsArray == null) return null;
+        if ((tags == null) || (tags.size() == 0)) return null;
         if (wildcard == null)
-            return asDbString("","", ", ", "", tagsArray);
-        return asDbString(wildcard, tagsArray);
-    }
-
-    private static String asDbString(String wildcard, String prefix, String seperator, String Suffix, String... tags) {
-        StringBuilder result = null;
-        if ((tags != null) && (tags.length > 0)) {
-            Arrays.sort(tags);
-            String nextSeperator = "";
-            for (String tag : tags) {
-                if ((tag != null) && (tag.length() > 0)) {
-                    if (result == null) result = new StringBuilder().append(wildcard);
-                    result  .append(nextSeperator)
-                            .append(prefix)
-                            .append(tag.replace(",", "").replace(" ", ""))
-                            .append(Suffix).append(wildcard);
-                    nextSeperator = seperator;
-                }
-            }
-        }
-        if (result == null) return null;
-        return result.toString();
+            return sInstance.get().format("", "", ", ", "", tags);
+        return sInstance.get().format(wildcard, TAG_DB_DELIMITER, "", TAG_DB_DELIMITER, tags);
     }
 
     /** format tags for bat-command "tag1" "tag2" .... */
     public static String asBatString(List<String> tags) {
-        String[] tagsArray = ListUtils.asStringArray(tags);
-
-        return asBatString(tagsArray);
+        if ((tags == null) || (tags.size() == 0)) return null;
+        return sInstance.get().format("", "\"", " ", "\"", tags);
     }
 
     public static String asBatString(String... tagsArray) {
-        String tagsString = (tagsArray != null) ? asDbString("", "\"", " ", "\"", tagsArray) : null;
-
-        return tagsString;
+        return (tagsArray != null) ? asBatString(Arrays.asList(tagsArray)) : null;
     }
 
     /**
@@ -78,17 +71,90 @@ public class TagConverter {
      * @param tags  @return i.e. "%;tag1;%;tag2;%" or ";tag1;;tag2;%"
      * */
     public static String asDbString(String wildcard, String... tags) {
-        return asDbString(wildcard,TAG_DB_DELIMITER, "", TAG_DB_DELIMITER, tags);
+        return (tags != null) ? asDbString(wildcard, Arrays.asList(tags)) : null;
     }
+
     public static List<String> fromString(Object tags) {
         if (tags == null) return null;
         ArrayList<String> result = new ArrayList<String>();
-        for(String elem : tags.toString().split("[,;:]")) {
-            if ((elem != null) && (elem.length() > 0) && ("%".compareTo(elem) != 0)) {
-                result.add(elem.trim());
-            }
-        }
+        parse(tags.toString(), result);
         if (result.size() == 0) return null;
         return result;
     }
+
+    /**
+     * Add all tags in tags seperated by "," or ";" or ":" to result.
+     * Empty elements and "%" are ignored, elements are trimmed.
+     *
+     * @return number of tags added to result
+     */
+    public static int parse(CharSequence tags, List<String> result) {
+        int added = 0;
+        int len = (tags == null) ? 0 : tags.length();
+        int start = 0;
+        for (int i = 0; i <= len; i++) {
+            if ((i == len) || isDelimiter(tags.charAt(i))) {
+                if ((i > start) && !((i == start + 1) && (tags.charAt(start) == '%'))) {
+                    // same as String.trim()
+                    int first = start;
+                    int last = i;
+                    while ((first < last) && (tags.charAt(first) <= ' ')) first++;
+                    while ((first < last) && (tags.charAt(last - 1) <= ' ')) last--;
+                    result.add(tags.subSequence(first, last).toString());
+                    added++;
+                }
+                start = i + 1;
+            }
+        }
+        return added;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return (c == ',') || (c == ';') || (c == ':');
+    }
+
+    /**
+     * Sorted, non empty tags without "," and " " each surrounded by prefix and suffix
+     * and seperated by seperator. wildcard is added before and after every tag.
+     *
+     * @return null if there are no non empty tags.
+     */
+    private String format(String wildcard, String prefix, String seperator, String suffix, List<String> tags) {
+        int count = 0;
+        for (String tag : tags) {
+            if ((tag != null) && (tag.length() > 0)) {
+                if (count == mSortBuffer.length) mSortBuffer = Arrays.copyOf(mSortBuffer, count * 2);
+                mSortBuffer[count++] = tag;
+            }
+        }
+        if (count == 0) return null;
+
+        Arrays.sort(mSortBuffer, 0, count);
+
+        StringBuilder result = mBuffer;
+        result.setLength(0);
+        result.append(wildcard);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) result.append(seperator);
+            result.append(prefix);
+            appendWithoutCommaAndBlank(result, mSortBuffer[i]);
+            result.append(suffix).append(wildcard);
+            mSortBuffer[i] = null;
+        }
+        String formatted = result.toString();
+        if (result.capacity() > 4096) {
+            // do not keep huge buffers
+            result.setLength(0);
+            result.trimToSize();
+        }
+        return formatted;
+    }
+
+    private static void appendWithoutCommaAndBlank(StringBuilder result, String tag) {
+        int len = tag.length();
+        for (int i = 0; i < len; i++) {
+            char c = tag.charAt(i);
+            if ((c != ',') && (c != ' ')) result.append(c);
+        }
+    }
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.tagDB;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Append only write-ahead log for {@link TagRepository}.
+ *
+ * Instead of rewriting the whole tagDB.txt on every change, add/delete/rename/reparent
+ * operations are collected while they happen ({@link TagList.ChangeListener}),
+ * appended to the journal file on {@link #flush()} and folded into tagDB.txt by
+ * {@link TagRepository#compact()}.
+ *
+ * One operation per line (UTF-8). path is "/parent/child" where "\", "/", tab and newline
+ * within names are escaped with "\":
+ * <pre>
+ * +path                  tag added
+ * -path                  tag removed
+ * =path{tab}newName      tag renamed
+ * &gt;path{tab}newParentPath  tag moved. newParentPath is empty for root
+ * </pre>
+ *
+ * Methods that access pending operations are synchronized because tags may be changed
+ * by several threads.
+ *
+ * Replaying is tolerant: operations that refer to missing tags are ignored and adding an
+ * existing tag is a no-op, so replaying a journal that was already folded into tagDB.txt is harmless.
+ * Removing a tag also removes its remaining children, because a parent may be logged before its children.
+ */
+public class TagJournal implements TagList.ChangeListener {
+    private static final String dbg_context = "TagJournal: ";
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private static final char OP_ADD = '+';
+    private static final char OP_REMOVE = '-';
+    private static final char OP_RENAME = '=';
+    private static final char OP_MOVE = '>';
+    private static final char FIELD_DELIMITER = '\t';
+    private static final char PATH_DELIMITER = '/';
+    private static final char ESCAPE = '\\';
+
+    private static final String ENCODING = "UTF-8";
+
+    /** if the journal file grows bigger than this, {@link #isCompactionNeeded()} becomes true */
+    public static int compactThresholdInBytes = 64 * 1024;
+
+    private final File mFile;
+
+    /** operations not written to {@link #mFile} yet. */
+    private final StringBuilder mPending = new StringBuilder();
+
+    public TagJournal(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized boolean hasPending() {
+        return mPending.length() > 0;
+    }
+
+    /** true if there are no operations: neither pending nor in the journal file. */
+    public synchronized boolean isEmpty() {
+        return (mPending.length() == 0) && (mFile.length() == 0);
+    }
+
+    /** true if the journal should be folded into the repository file. */
+    public synchronized boolean isCompactionNeeded() {
+        return (mFile.length() + mPending.length()) > compactThresholdInBytes;
+    }
+
+    /** append pending operations to journal file */
+    public synchronized void flush() throws IOException {
+        if (mPending.length() > 0) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(mFile, true), ENCODING);
+            try {
+                writer.write(mPending.toString());
+            } finally {
+                writer.close();
+            }
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug(dbg_context + "flush(): " + mPending.length() + " chars to " + mFile);
+            }
+            mPending.setLength(0);
+        }
+    }
+
+    /** forget operations that have not been flushed yet */
+    public synchronized void discardPending() {
+        mPending.setLength(0);
+    }
+
+    /** forget everything: the content has been saved to the repository file */
+    public synchronized void clear() {
+        mPending.setLength(0);
+        if (mFile.exists()) mFile.delete();
+    }
+
+    /** apply all operations from the journal file to items.
+     * @return number of operations that changed items */
+    public int replay(List<Tag> items) throws IOException {
+        int changes = 0;
+        if (mFile.exists()) {
+            changes = replay(items, new InputStreamReader(new FileInputStream(mFile), ENCODING));
+            logger.debug(dbg_context + "replay(): " + changes + " changes from " + mFile);
+        }
+        return changes;
+    }
+
+    /** apply all operations from reader to items.
+     * @return number of operations that changed items */
+    public static int replay(List<Tag> items, Reader reader) throws IOException {
+        int changes = 0;
+        BufferedReader br = new BufferedReader(reader);
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.length() > 1) {
+                    if (replay(items, line)) changes++;
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return changes;
+    }
+
+    private static boolean replay(List<Tag> items, String line) {
+        int fieldStart = line.indexOf(FIELD_DELIMITER);
+        String path = (fieldStart < 0) ? line.substring(1) : line.substring(1, fieldStart);
+        String arg = (fieldStart < 0) ? null : line.substring(fieldStart + 1);
+        List<String> names = toNames(path);
+        if (names.size() == 0) return false;
+
+        switch (line.charAt(0)) {
+            case OP_ADD:
+                return include(items, names) > 0;
+            case OP_REMOVE: {
+                // children that were not moved away before are removed with their parent.
+                // else they could not be found by path any more and would remain as orphans.
+                Tag tag = find(items, names, true);
+                return (tag != null) && (TagRepository.deleteSubtree(items, tag, true) > 0);
+            }
+            case OP_RENAME: {
+                Tag tag = find(items, names, false);
+                if ((tag == null) || (arg == null)) return false;
+                tag.setName(unescape(arg));
+                return true;
+            }
+            case OP_MOVE: {
+                Tag tag = find(items, names, false);
+                if ((tag == null) || (arg == null)) return false;
+                List<String> parentNames = toNames(arg);
+                Tag parent = (parentNames.size() == 0) ? null : find(items, parentNames, false);
+                if ((parent == null) && (parentNames.size() > 0)) return false;
+                tag.setParent(parent);
+                return true;
+            }
+            default:
+                logger.warn(dbg_context + "replay: ignoring unknown operation " + line);
+                return false;
+        }
+    }
+
+    /** make shure that all names of path exist. @return number of created tags */
+    private static int include(List<Tag> items, List<String> names) {
+        int changes = 0;
+        Tag parent = null;
+        for (String name : names) {
+            Tag tag = Tag.findFirstChildByName(items, parent, name);
+            if (tag == null) {
+                tag = new Tag().setName(name).setParent(parent);
+                items.add(tag);
+                changes++;
+            }
+            parent = tag;
+        }
+        return changes;
+    }
+
+    /** @param preferLeaf if there are several tags with the same path, prefer one without children. */
+    private static Tag find(List<Tag> items, List<String> names, boolean preferLeaf) {
+        Tag parent = null;
+        int last = names.size() - 1;
+        for (int i = 0; i < last; i++) {
+            parent = Tag.findFirstChildByName(items, parent, names.get(i));
+            if (parent == null) return null;
+        }
+
+        String name = names.get(last);
+        Tag found = Tag.findFirstChildByName(items, parent, name);
+        if (preferLeaf && (found != null) && (found.getChildren(items, false, false) != null)) {
+            for (Tag candidate : items) {
+                if ((candidate.getParent() == parent) && name.equals(candidate.getName())
+                        && (candidate.getChildren(items, false, false) == null)) {
+                    return candidate;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void onAdded(Tag tag) {
+        appendPath(mPending.append(OP_ADD), tag).append('\n');
+    }
+
+    @Override
+    public synchronized void onRemoved(Tag tag) {
+        appendPath(mPending.append(OP_REMOVE), tag).append('\n');
+    }
+
+    @Override
+    public synchronized void onNameChanged(Tag tag, String oldName) {
+        appendPath(mPending.append(OP_RENAME), tag.getParent());
+        appendEscaped(mPending.append(PATH_DELIMITER), oldName).append(FIELD_DELIMITER);
+        appendEscaped(mPending, tag.getName()).append('\n');
+    }
+
+    @Override
+    public synchronized void onParentChanged(Tag tag, Tag oldParent) {
+        appendPath(mPending.append(OP_MOVE), oldParent);
+        appendEscaped(mPending.append(PATH_DELIMITER), tag.getName()).append(FIELD_DELIMITER);
+        appendPath(mPending, tag.getParent()).append('\n');
+    }
+
+    private static StringBuilder appendPath(StringBuilder result, Tag tag) {
+        if (tag != null) {
+            appendPath(result, tag.getParent());
+            appendEscaped(result.append(PATH_DELIMITER), tag.getName());
+        }
+        return result;
+    }
+
+    private static StringBuilder appendEscaped(StringBuilder result, String name) {
+        if (name != null) {
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                switch (c) {
+                    case ESCAPE:
+                    case PATH_DELIMITER:
+                        result.append(ESCAPE).append(c);
+                        break;
+                    case FIELD_DELIMITER:
+                        result.append(ESCAPE).append('t');
+                        break;
+                    case '\n':
+                        result.append(ESCAPE).append('n');
+                        break;
+                    case '\r':
+                        result.append(ESCAPE).append('r');
+                        break;
+                    default:
+                        result.append(c);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** "/a\/b/c" -> ["a/b", "c"] */
+    private static List<String> toNames(String path) {
+        List<String> result = new ArrayList<String>();
+        StringBuilder name = new StringBuilder();
+        int len = path.length();
+        for (int i = 0; i < len; i++) {
+            char c = path.charAt(i);
+            if (c == PATH_DELIMITER) {
+                if (name.length() > 0) result.add(name.toString());
+                name.setLength(0);
+            } else if ((c == ESCAPE) && (i + 1 < len)) {
+                name.append(unescape(path.charAt(++i)));
+            } else {
+                name.append(c);
+            }
+        }
+        if (name.length() > 0) result.add(name.toString());
+        return result;
+    }
+
+    private static String unescape(String escaped) {
+        if (escaped.indexOf(ESCAPE) < 0) return escaped;
+        StringBuilder result = new StringBuilder(escaped.length());
+        int len = escaped.length();
+        for (int i = 0; i < len; i++) {
+            char c = escaped.charAt(i);
+            if ((c == ESCAPE) && (i + 1 < len)) {
+                result.append(unescape(escaped.charAt(++i)));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static char unescape(char c) {
+        switch (c) {
+            case 't': return FIELD_DELIMITER;
+            case 'n': return '\n';
+            case 'r': return '\r';
+            default: return c;
+        }
+    }
+}
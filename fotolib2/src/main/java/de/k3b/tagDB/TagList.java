@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.tagDB;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A {@link List} of {@link Tag}s that additionally maintains a
+ * name->tags and a parent->children index so that
+ * {@link TagRepository#findFirstByName(List, String)}, {@link Tag#findFirstChildByName(List, Tag, String)},
+ * {@link Tag#getChildren(List, boolean, boolean)} and {@link #contains(Object)}
+ * do not have to scan all items.
+ *
+ * The index is kept in sync on add, remove, {@link Tag#setName(String)} and {@link Tag#setParent(Tag)}.
+ * Operations that may reorder items (i.e. {@link #set(int, Tag)} used by sorting or inserting in the middle)
+ * invalidate the index which is then rebuilt on next lookup.
+ *
+ * Index entries are kept in list order so lookups return the same item as a linear scan would.
+ * Every indexed item has an ascending order number, so a renamed or reparented item is inserted
+ * at its list position into its new index entry without rebuilding the index.
+ *
+ * All methods are synchronized on the list. Iterating while other threads modify the list is not
+ * safe: use {@link TagRepository#getSnapshot()} instead.
+ */
+public class TagList extends AbstractList<Tag> implements RandomAccess {
+    /** Gets informed about changes of items that belong to a {@link TagList}. Reordering is not reported. */
+    public interface ChangeListener {
+        void onAdded(Tag tag);
+        void onRemoved(Tag tag);
+        void onNameChanged(Tag tag, String oldName);
+        void onParentChanged(Tag tag, Tag oldParent);
+    }
+
+    private final ArrayList<Tag> mItems;
+
+    private static final ChangeListener[] NO_LISTENERS = new ChangeListener[0];
+
+    /** get informed about changes */
+    private ChangeListener[] mListeners = NO_LISTENERS;
+
+    /** see {@link #getVersion()} */
+    private volatile int mVersion = 0;
+
+    /** name -> tags with this name. null if index must be rebuilt */
+    private Map<String, List<Tag>> mByName = null;
+
+    /** parent -> direct children. Tag.equals() is not identity so an IdentityHashMap is used. null key is root. */
+    private Map<Tag, List<Tag>> mByParent = null;
+
+    /** tag -> ascending number in list order. Removing items keeps the order of the others. */
+    private Map<Tag, Integer> mOrder = null;
+    private int mNextOrder = 0;
+
+    /** number of times the index was built. package to allow unit testing */
+    int mIndexBuildCount = 0;
+
+    public TagList() {
+        mItems = new ArrayList<Tag>();
+    }
+
+    public TagList(Collection<? extends Tag> items) {
+        mItems = new ArrayList<Tag>(items);
+        for (Tag item : mItems) {
+            if (item != null) item.setOwner(this);
+        }
+    }
+
+    public synchronized TagList addListener(ChangeListener listener) {
+        if (listener != null) {
+            ChangeListener[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+            listeners[mListeners.length] = listener;
+            mListeners = listeners;
+        }
+        return this;
+    }
+
+    public synchronized TagList removeListener(ChangeListener listener) {
+        List<ChangeListener> listeners = new ArrayList<ChangeListener>(Arrays.asList(mListeners));
+        if (listeners.remove(listener)) {
+            mListeners = listeners.toArray(new ChangeListener[listeners.size()]);
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized Tag get(int index) {
+        return mItems.get(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    @Override
+    public synchronized boolean add(Tag tag) {
+        mItems.add(tag);
+        modCount++;
+        mVersion++;
+        if (tag != null) {
+            tag.setOwner(this);
+            if (mByName != null) addToIndex(tag);
+            for (ChangeListener listener : mListeners) listener.onAdded(tag);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int index, Tag tag) {
+        if (index == mItems.size()) {
+            add(tag);
+        } else {
+            mItems.add(index, tag);
+            modCount++;
+            mVersion++;
+            invalidateIndex();
+            if (tag != null) {
+                tag.setOwner(this);
+                for (ChangeListener listener : mListeners) listener.onAdded(tag);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Tag set(int index, Tag tag) {
+        Tag old = mItems.set(index, tag);
+        mVersion++;
+        if (tag != null) tag.setOwner(this);
+        if (old != tag) invalidateIndex();
+        return old;
+    }
+
+    @Override
+    public synchronized Tag remove(int index) {
+        Tag old = mItems.remove(index);
+        modCount++;
+        mVersion++;
+        if (old != null) {
+            if (mByName != null) removeFromIndex(old);
+            if (!containsIdentity(old)) {
+                old.setOwner(null);
+                if (mOrder != null) mOrder.remove(old);
+            }
+            for (ChangeListener listener : mListeners) listener.onRemoved(old);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) return false;
+        remove(index);
+        return true;
+    }
+
+    /**
+     * Removes all items contained in c in one compaction pass.
+     *
+     * Listeners are informed in reverse list order so that children are reported
+     * before their parents in a hierarchy sorted list.
+     */
+    @Override
+    public synchronized boolean removeAll(Collection<?> c) {
+        if ((c == null) || c.isEmpty()) return false;
+
+        List<Tag> removed = new ArrayList<Tag>();
+        int size = mItems.size();
+        int newSize = 0;
+        for (int i = 0; i < size; i++) {
+            Tag item = mItems.get(i);
+            if (c.contains(item)) {
+                removed.add(item);
+            } else {
+                mItems.set(newSize++, item);
+            }
+        }
+        if (removed.size() == 0) return false;
+
+        mItems.subList(newSize, size).clear();
+        modCount++;
+        mVersion++;
+        invalidateIndex();
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            Tag old = removed.get(i);
+            if (old != null) {
+                // all occurences of old are removed
+                if (old.getOwner() == this) old.setOwner(null);
+                for (ChangeListener listener : mListeners) listener.onRemoved(old);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Tag item : mItems) {
+            if (item != null) {
+                if (item.getOwner() == this) item.setOwner(null);
+                for (ChangeListener listener : mListeners) listener.onRemoved(item);
+            }
+        }
+        mItems.clear();
+        modCount++;
+        mVersion++;
+        invalidateIndex();
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public synchronized int indexOf(Object o) {
+        if (o instanceof Tag) {
+            // fast negative answer without scanning the list
+            Tag tag = (Tag) o;
+            if ((tag.getName() == null) || (findFirstEqual(tag) == null)) return -1;
+        }
+        return mItems.indexOf(o);
+    }
+
+    /** @return all tags with the given name in list order or null if there is none. */
+    private List<Tag> findByName(String name) {
+        return getByName().get(name);
+    }
+
+    /** @return first tag with the given name or null if not found. */
+    public synchronized Tag findFirstByName(String name) {
+        List<Tag> candidates = findByName(name);
+        return ((candidates != null) && (candidates.size() > 0)) ? candidates.get(0) : null;
+    }
+
+    /** @return first direct child of parent with the given name. parent==null means root. */
+    public synchronized Tag findFirstChildByName(Tag parent, String name) {
+        List<Tag> candidates = findByName(name);
+        if (candidates != null) {
+            for (Tag candidate : candidates) {
+                if (candidate.getParent() == parent) return candidate;
+            }
+        }
+        return null;
+    }
+
+    /** @return copy of direct children of parent in list order or null if there is none. parent==null means root. */
+    public synchronized List<Tag> getChildren(Tag parent) {
+        getByName();
+        List<Tag> children = mByParent.get(parent);
+        return (children == null) ? null : new ArrayList<Tag>(children);
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        return mItems.toArray();
+    }
+
+    @Override
+    public synchronized <T> T[] toArray(T[] a) {
+        return mItems.toArray(a);
+    }
+
+    /** Incremented whenever items are added, removed or reordered. */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /** @return first item in this list that {@link Tag#equals(Object)} tag or null. */
+    private Tag findFirstEqual(Tag tag) {
+        List<Tag> candidates = findByName(tag.getName());
+        if (candidates != null) {
+            for (Tag candidate : candidates) {
+                if (tag.equals(candidate)) return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean containsIdentity(Tag tag) {
+        if (mByName != null) {
+            return containsIdentity(mByName.get(tag.getName()), tag);
+        }
+        return containsIdentity(mItems, tag);
+    }
+
+    private static boolean containsIdentity(List<Tag> items, Tag tag) {
+        if (items != null) {
+            for (Tag item : items) {
+                if (item == tag) return true;
+            }
+        }
+        return false;
+    }
+
+    /** called by {@link Tag#setName(String)} if tag belongs to this list */
+    synchronized void onNameChanged(Tag tag, String oldName) {
+        for (ChangeListener listener : mListeners) listener.onNameChanged(tag, oldName);
+        if (mByName != null) {
+            if (!removeIdentity(mByName, oldName, tag)) {
+                // tag is not indexed: it was removed or belongs to a different list
+                return;
+            }
+            putInListOrder(mByName, oldName, tag.getName(), tag);
+        }
+    }
+
+    /** called by {@link Tag#setParent(Tag)} if tag belongs to this list */
+    synchronized void onParentChanged(Tag tag, Tag oldParent) {
+        for (ChangeListener listener : mListeners) listener.onParentChanged(tag, oldParent);
+        if (mByParent != null) {
+            if (!removeIdentity(mByParent, oldParent, tag)) return;
+            putInListOrder(mByParent, oldParent, tag.getParent(), tag);
+        }
+    }
+
+    /**
+     * Moves tag that has just been removed from the index entry of oldKey into the entry of key
+     * at its list position. Only this entry changes: the children of a reparented tag are still indexed by tag.
+     */
+    private <K> void putInListOrder(Map<K, List<Tag>> index, K oldKey, K key, Tag tag) {
+        Integer order = mOrder.get(tag);
+        if ((order == null) || containsIdentity(index.get(oldKey), tag)) {
+            // tag is in the list more than once: only a rebuild can index all occurences
+            invalidateIndex();
+            return;
+        }
+
+        List<Tag> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Tag>(2);
+            index.put(key, bucket);
+        }
+
+        // binary search for the first entry behind tag
+        int low = 0;
+        int high = bucket.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mOrder.get(bucket.get(mid)) < order) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        bucket.add(low, tag);
+    }
+
+    private void invalidateIndex() {
+        mByName = null;
+        mByParent = null;
+        mOrder = null;
+    }
+
+    private Map<String, List<Tag>> getByName() {
+        if (mByName == null) {
+            mByName = new HashMap<String, List<Tag>>();
+            mByParent = new IdentityHashMap<Tag, List<Tag>>();
+            mOrder = new IdentityHashMap<Tag, Integer>();
+            mNextOrder = 0;
+            mIndexBuildCount++;
+            for (Tag item : mItems) {
+                if (item != null) addToIndex(item);
+            }
+        }
+        return mByName;
+    }
+
+    /** index tag that has been appended to the list */
+    private void addToIndex(Tag tag) {
+        if (!mOrder.containsKey(tag)) mOrder.put(tag, mNextOrder++);
+        put(mByName, tag.getName(), tag);
+        put(mByParent, tag.getParent(), tag);
+    }
+
+    private void removeFromIndex(Tag tag) {
+        removeIdentity(mByName, tag.getName(), tag);
+        removeIdentity(mByParent, tag.getParent(), tag);
+    }
+
+    private static <K> void put(Map<K, List<Tag>> index, K key, Tag tag) {
+        List<Tag> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Tag>(2);
+            index.put(key, bucket);
+        }
+        bucket.add(tag);
+    }
+
+    private static <K> boolean removeIdentity(Map<K, List<Tag>> index, K key, Tag tag) {
+        List<Tag> bucket = index.get(key);
+        if (bucket != null) {
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                if (bucket.get(i) == tag) {
+                    bucket.remove(i);
+                    if (bucket.size() == 0) index.remove(key);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.tagDB;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Case insensitive prefix index over tag names for autocomplete.
+ *
+ * Tags are kept in sorted maps by case folded name, one map per name length.
+ * Since shorter names rank better, {@link #find(String, int)} visits the maps from short to long
+ * and stops as soon as maxCount results are found. Every map needs one O(log n) lookup plus
+ * iterating the range of names that start with the prefix.
+ *
+ * Registered as {@link TagList.ChangeListener} it is updated incrementally
+ * (see {@link TagRepository#getPrefixIndex()}).
+ */
+public class TagPrefixIndex implements TagList.ChangeListener {
+    /** [name length]: folded name -> tags with this name */
+    private final List<TreeMap<String, List<Tag>>> mByLength = new ArrayList<TreeMap<String, List<Tag>>>();
+
+    /** Ranking of completions: exact match, shorter name, fewer parents, path. */
+    private static class Ranked {
+        final Tag tag;
+        final boolean exact;
+        final int nameLength;
+        final int depth;
+
+        Ranked(Tag tag, boolean exact) {
+            this.tag = tag;
+            this.exact = exact;
+            this.nameLength = tag.getName().length();
+            this.depth = tag.getParentCount();
+        }
+    }
+
+    private static final Comparator<Ranked> COMPARATOR_RANK = new Comparator<Ranked>() {
+        @Override
+        public int compare(Ranked lhs, Ranked rhs) {
+            if (lhs.exact != rhs.exact) return lhs.exact ? -1 : 1;
+            if (lhs.nameLength != rhs.nameLength) return lhs.nameLength - rhs.nameLength;
+            if (lhs.depth != rhs.depth) return lhs.depth - rhs.depth;
+            return Tag.COMPARATOR_HIERARCHY.compare(lhs.tag, rhs.tag);
+        }
+    };
+
+    /** worst ranked first so the heap can drop it */
+    private static final Comparator<Ranked> COMPARATOR_RANK_REVERSE = Collections.reverseOrder(COMPARATOR_RANK);
+
+    public TagPrefixIndex(Collection<Tag> tags) {
+        if (tags != null) {
+            for (Tag tag : tags) {
+                onAdded(tag);
+            }
+        }
+    }
+
+    /**
+     * Find the best matching tags.
+     *
+     * @param expression case insensitive name prefix. "pa/ch" finds tags starting with "ch"
+     *                   whose parent starts with "pa". A leading "/" means the first segment must be a root tag.
+     * @param maxCount   maximum number of results
+     * @return best matches first. Never null.
+     */
+    public synchronized List<Tag> find(String expression, int maxCount) {
+        List<Tag> result = new ArrayList<Tag>();
+        if ((expression == null) || (maxCount <= 0)) return result;
+
+        String[] segments = toSegments(expression);
+        if (segments.length == 0) return result;
+        boolean anchored = expression.startsWith("/") || expression.startsWith("\\");
+        String prefix = segments[segments.length - 1];
+
+        PriorityQueue<Ranked> best = new PriorityQueue<Ranked>(maxCount + 1, COMPARATOR_RANK_REVERSE);
+
+        // all names of one length rank better than longer names so we can stop if enough were found
+        for (int length = prefix.length(); (length < mByLength.size()) && (best.size() < maxCount); length++) {
+            TreeMap<String, List<Tag>> byName = mByLength.get(length);
+            if (byName == null) continue;
+
+            boolean exact = (length == prefix.length());
+            for (Map.Entry<String, List<Tag>> entry : byName.tailMap(prefix, true).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) break;
+
+                for (Tag tag : entry.getValue()) {
+                    if (matchesParents(tag, segments, anchored)) {
+                        best.add(new Ranked(tag, exact));
+                        if (best.size() > maxCount) best.poll();
+                    }
+                }
+            }
+        }
+
+        List<Ranked> sorted = new ArrayList<Ranked>(best);
+        Collections.sort(sorted, COMPARATOR_RANK);
+        for (Ranked ranked : sorted) {
+            result.add(ranked.tag);
+        }
+        return result;
+    }
+
+    /** true if all segments but the last are prefixes of the parents of tag. */
+    private static boolean matchesParents(Tag tag, String[] segments, boolean anchored) {
+        Tag parent = tag.getParent();
+        for (int i = segments.length - 2; i >= 0; i--) {
+            if ((parent == null) || (parent.getName() == null)
+                    || !Tag.toKey(parent.getName()).startsWith(segments[i])) {
+                return false;
+            }
+            parent = parent.getParent();
+        }
+        return !anchored || (parent == null);
+    }
+
+    /** "/Pa/ch" -> ["pa", "ch"] */
+    private static String[] toSegments(String expression) {
+        List<String> result = new ArrayList<String>();
+        for (String segment : expression.split("[\\/]+")) {
+            String trimmed = segment.trim();
+            if (trimmed.length() > 0) result.add(Tag.toKey(trimmed));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public synchronized int size() {
+        int result = 0;
+        for (TreeMap<String, List<Tag>> byName : mByLength) {
+            if (byName != null) {
+                for (List<Tag> tags : byName.values()) {
+                    result += tags.size();
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void onAdded(Tag tag) {
+        if ((tag != null) && (tag.getName() != null)) {
+            String key = Tag.toKey(tag.getName());
+            while (mByLength.size() <= key.length()) mByLength.add(null);
+            TreeMap<String, List<Tag>> byName = mByLength.get(key.length());
+            if (byName == null) {
+                byName = new TreeMap<String, List<Tag>>();
+                mByLength.set(key.length(), byName);
+            }
+            List<Tag> tags = byName.get(key);
+            if (tags == null) {
+                tags = new ArrayList<Tag>(1);
+                byName.put(key, tags);
+            }
+            tags.add(tag);
+        }
+    }
+
+    @Override
+    public synchronized void onRemoved(Tag tag) {
+        if (tag != null) remove(tag, tag.getName());
+    }
+
+    @Override
+    public synchronized void onNameChanged(Tag tag, String oldName) {
+        if (remove(tag, oldName)) onAdded(tag);
+    }
+
+    @Override
+    public void onParentChanged(Tag tag, Tag oldParent) {
+        // index key does not depend on parent
+    }
+
+    private boolean remove(Tag tag, String name) {
+        if (name == null) return false;
+        String key = Tag.toKey(name);
+        TreeMap<String, List<Tag>> byName = (key.length() < mByLength.size()) ? mByLength.get(key.length()) : null;
+        List<Tag> tags = (byName == null) ? null : byName.get(key);
+        if (tags != null) {
+            for (int i = tags.size() - 1; i >= 0; i--) {
+                if (tags.get(i) == tag) {
+                    tags.remove(i);
+                    if (tags.isEmpty()) byName.remove(key);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -19,86 +19,146 @@
 package de.k3b.tagDB;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Calculate from each selected image the tags:
+ *
+ * Tags are interned to small int ids (in order of first occurence) so that the tags of an image
+ * are a {@link BitSet} and union/intersection/difference work on 64 tags at a time.
+ * The List&lt;String&gt; methods are adapters to the bitsets.
+ *
  * Created by k3b on 09.01.2017.
  */
 
 public class TagProcessor {
-    /** all tags that occoured at least once in {@link #registerExistingTags(List)} call. */
-    private List<String> affected = null;
+    /** tag -> id */
+    private final Map<String, Integer> mIds = new HashMap<String, Integer>();
 
-    /** all tags that occured in all {@link #registerExistingTags(List)} calls */
-    private List<String> allSet = null;
+    /** id -> tag */
+    private final List<String> mNames = new ArrayList<String>();
+
+    /** ids of all tags that occoured at least once in {@link #registerExistingTags(List)} call. */
+    private BitSet affected = null;
+
+    /** ids of all tags that occured in all {@link #registerExistingTags(List)} calls */
+    private BitSet allSet = null;
+
+    /** cached result of {@link #getAffected()}. null if it must be recalculated */
+    private List<String> affectedNames = null;
+
+    /** cached result of {@link #getAllSet()}. null if it must be recalculated */
+    private List<String> allSetNames = null;
 
     /** Remember tags for later processing.
      * Called for every selected image. */
     public void registerExistingTags(List<String> tags) {
         if ((tags != null) && (tags.size() > 0)) {
+            BitSet imageTags = toBitSet(tags, null);
             if (allSet == null) {
-                affected = new ArrayList<String>(tags);
-                allSet = new ArrayList<String>(tags);
+                affected = imageTags;
+                allSet = (BitSet) imageTags.clone();
             } else {
-                for (String tag : tags) {
-                    if (!affected.contains(tag)) {
-                        affected.add(tag);
-                    }
-                }
-                for (int i = allSet.size() - 1; i >= 0; i--) {
-                    String tag = allSet.get(i);
-                    if (!tags.contains(tag)) {
-                        allSet.remove(i);
-                    }
-                }
+                affected.or(imageTags);
+                allSet.and(imageTags);
             }
+            affectedNames = null;
+            allSetNames = null;
         }
     }
 
     /** all tags that occoured at least once in {@link #registerExistingTags(List)} call. */
     public List<String> getAffected() {
-        return affected;
-    }
-
-    /** all tags that occoured at least once in {@link #registerExistingTags(List)} call. */
-    private void setAffected(List<String> affected) {
-        this.affected = affected;
+        if ((affectedNames == null) && (affected != null)) {
+            affectedNames = toList(affected);
+        }
+        return affectedNames;
     }
 
     /** all tags that occured in all {@link #registerExistingTags(List)} calls */
     public List<String> getAllSet() {
-        return allSet;
-    }
-
-    /** all tags that occured in all {@link #registerExistingTags(List)} calls */
-    private void setAllSet(List<String> allSet) {
-        this.allSet = allSet;
+        if ((allSetNames == null) && (allSet != null)) {
+            allSetNames = toList(allSet);
+        }
+        return allSetNames;
     }
 
-    /** calculate the new tags out of added and removed tags. returns null if there is no change neccessary */
+    /**
+     * calculate the new tags out of added and removed tags. returns null if there is no change neccessary.
+     *
+     * Tags are added before they are removed: a tag that is both in addedTags and in removedTags
+     * is not in the result. Each occurence in removedTags removes one occurence of the tag.
+     */
     public List<String> getUpdated(List<String> originalCurrentTags, List<String> addedTags, List<String> removedTags) {
-        ArrayList<String> currentTags = (originalCurrentTags == null) ? new ArrayList<String>() : new ArrayList<String>(originalCurrentTags);
-        int modifyCount = 0;
+        BitSet current = toBitSet(originalCurrentTags, null);
+
+        // addedTags that are not in current
+        BitSet added = toBitSet(addedTags, null);
+        added.andNot(current);
+
+        // removedTags that are in current or added
+        BitSet removed = toBitSet(removedTags, null);
+        BitSet existing = (BitSet) current.clone();
+        existing.or(added);
+        removed.and(existing);
+
+        if (added.isEmpty() && removed.isEmpty()) return null;
+
+        ArrayList<String> currentTags = new ArrayList<String>(existing.cardinality());
+        if (originalCurrentTags != null) {
+            currentTags.addAll(originalCurrentTags);
+        }
         if (addedTags != null) {
             for (String tag : addedTags) {
-                if (!currentTags.contains(tag)) {
+                int id = getId(tag);
+                if (added.get(id)) {
                     currentTags.add(tag);
-                    modifyCount++;
+                    // do not add duplicates in addedTags twice
+                    added.clear(id);
                 }
             }
-
         }
-        if (removedTags != null) {
-            for (int i= removedTags.size()-1; i >= 0; i--) {
-                String tag = removedTags.get(i);
-                if (currentTags.contains(tag)) {
+        if (!removed.isEmpty()) {
+            for (String tag : removedTags) {
+                if (removed.get(getId(tag))) {
                     currentTags.remove(tag);
-                    modifyCount++;
                 }
             }
+        }
+        return currentTags;
+    }
+
+    /** @return id of tag. a new id is assigned if tag is not known yet. */
+    protected int getId(String tag) {
+        Integer id = mIds.get(tag);
+        if (id == null) {
+            id = mNames.size();
+            mIds.put(tag, id);
+            mNames.add(tag);
+        }
+        return id;
+    }
+
+    /** @return ids of tags added to result. result==null means create a new BitSet */
+    protected BitSet toBitSet(List<String> tags, BitSet result) {
+        if (result == null) result = new BitSet(mNames.size());
+        if (tags != null) {
+            for (String tag : tags) {
+                result.set(getId(tag));
+            }
+        }
+        return result;
+    }
 
+    /** @return tags in ids in order of first occurence */
+    protected List<String> toList(BitSet ids) {
+        List<String> result = new ArrayList<String>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            result.add(mNames.get(id));
         }
-        return (modifyCount > 0) ? currentTags : null;
+        return result;
     }
 }
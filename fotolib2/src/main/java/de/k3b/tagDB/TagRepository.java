@@ -23,21 +23,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import de.k3b.FotoLibGlobal;
 
 /**
  * Persistence for all known tags.
  *
+ * Thread safe: modifying methods are synchronized on the repository and
+ * {@link #getSnapshot()} gives lock free readers an immutable copy of the items.
+ *
  * Created by k3b on 04.10.2016.
  */
 
@@ -51,18 +64,54 @@ public class TagRepository {
     private static final String DB_NAME = "tagDB.txt";
     private static final String IMPORT_ROOT = "unsorted";
     public static final String INDENT = "\t";
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private static TagRepository sInstance = null;
+    private static volatile TagRepository sInstance = null;
 
     /** Where data is loaded from/saved to */
     private final File mFile;
 
-    /** The items contained in this repository */
-    protected List<Tag> mItemList = null;
+    /** Changes since last {@link #compact()}. null if there is no {@link #mFile} */
+    private final TagJournal mJournal;
+
+    /** The items contained in this repository. A {@link TagList} so that lookups are indexed. */
+    protected volatile List<Tag> mItemList = null;
+
+    /** for autocomplete. null if not used yet. See {@link #getPrefixIndex()} */
+    private TagPrefixIndex mPrefixIndex = null;
+
+    /** Last published immutable copy of {@link #mItemList}. See {@link #getSnapshot()} */
+    private volatile Snapshot mSnapshot = null;
+
+    /** immutable copy of the items at a specific {@link TagList#getVersion()} */
+    private static class Snapshot {
+        private final List<Tag> source;
+        private final int version;
+        private final List<Tag> items;
+
+        Snapshot(List<Tag> source, int version, Tag[] items) {
+            this.source = source;
+            this.version = version;
+            this.items = Collections.unmodifiableList(Arrays.asList(items));
+        }
+    }
+
+    /** Modifies the repository in one batch. See {@link #edit(Editor)} */
+    public interface Editor {
+        /** @return number of changes */
+        int edit(List<Tag> items);
+    }
 
     /** Connect repository to a {@link File}. */
     public TagRepository(File file) {
         this.mFile = file;
+        this.mJournal = (file == null) ? null : new TagJournal(getJournalFile(file));
+    }
+
+    /** where changes are logged between two {@link #compact()}s */
+    static File getJournalFile(File repositoryFile) {
+        return new File(repositoryFile.getPath() + ".journal");
     }
 
     public static TagRepository getInstance() {
@@ -73,7 +122,7 @@ public class TagRepository {
         TagRepository.sInstance = instance;
     }
 
-    public static void setInstance(File parentDir) {
+    public static synchronized void setInstance(File parentDir) {
         if (parentDir == null) throw new IllegalArgumentException("TagRepository.setInstance(null)");
 
         List<Tag> old = null;
@@ -90,7 +139,49 @@ public class TagRepository {
         }
     }
 
-    public int includeChildTags(Tag parent, List<Tag> newItems) {
+    /**
+     * All modifying methods of the repository are synchronized on the repository.
+     * Use this to execute several modifications as one batch.
+     * Readers of {@link #getSnapshot()} see either none or all changes of the batch.
+     */
+    public synchronized int edit(Editor editor) {
+        return editor.edit(load());
+    }
+
+    /**
+     * Lock free access to the current items.
+     *
+     * @return an immutable copy of the items that can be iterated while other threads modify the repository.
+     * The copy is only rebuilt if items have been added, removed or reordered since the last call.
+     */
+    public List<Tag> getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        List<Tag> items = mItemList;
+        if ((snapshot != null) && (items instanceof TagList) && (snapshot.source == items)
+                && (snapshot.version == ((TagList) items).getVersion())) {
+            return snapshot.items;
+        }
+
+        synchronized (this) {
+            items = load();
+            int version = (items instanceof TagList) ? ((TagList) items).getVersion() : -1;
+            snapshot = new Snapshot(items, version, items.toArray(new Tag[items.size()]));
+            mSnapshot = snapshot;
+            return snapshot.items;
+        }
+    }
+
+    /** @return case insensitive prefix index over tag names that is updated when tags are added, removed or renamed. */
+    public synchronized TagPrefixIndex getPrefixIndex() {
+        if (mPrefixIndex == null) {
+            List<Tag> items = load();
+            mPrefixIndex = new TagPrefixIndex(items);
+            if (items instanceof TagList) ((TagList) items).addListener(mPrefixIndex);
+        }
+        return mPrefixIndex;
+    }
+
+    public synchronized int includeChildTags(Tag parent, List<Tag> newItems) {
         int changes = 0;
         if ((newItems != null) && (newItems.size() > 0)) {
             List<Tag> existingItems = this.load();
@@ -105,7 +196,7 @@ public class TagRepository {
         return changes;
     }
 
-    public int include(Tag parent, List<String> children) {
+    public synchronized int include(Tag parent, List<String> children) {
         int changes = 0;
         if ((children != null) && (children.size() > 0)) {
             List<Tag> existingItems = this.load();
@@ -186,18 +277,37 @@ public class TagRepository {
      *
      * @return data loaded
      */
-    public List<Tag> load() {
+    public synchronized List<Tag> load() {
         if (mItemList == null) {
-            mItemList = new ArrayList<>();
-            if (this.mFile.exists()) {
-                try {
-                    load(mItemList, new FileReader(this.mFile));
-
-                    sortByNameIgnoreCase();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            TagList items = new TagList();
+            mItemList = items;
+            // the snapshot is saved sorted so sorting is only neccessary if the journal changed something
+            boolean sorted = false;
+            try {
+                if (this.mFile.exists()) {
+                    sorted = TagSnapshotFile.load(this, mItemList, this.mFile);
+                    if (!sorted) {
+                        CheckedInputStream in = new CheckedInputStream(new FileInputStream(this.mFile), new CRC32());
+                        load(mItemList, new InputStreamReader(in, ENCODING));
+                        sortByNameIgnoreCase();
+                        sorted = true;
+
+                        // next time the binary snapshot can be used
+                        TagSnapshotFile.save(mItemList, this.mFile, in.getChecksum().getValue());
+                    }
                 }
+
+                // crash recovery: changes that were not compacted into mFile yet
+                if (mJournal.replay(mItemList) > 0) sorted = false;
+            } catch (IOException e) {
+                e.printStackTrace();
+                sorted = false;
             }
+            if (!sorted) sortByNameIgnoreCase();
+
+            // from now on all changes are logged
+            mJournal.discardPending();
+            items.addListener(mJournal);
 
             logger.debug(dbg_context + "load(): " + mItemList.size() + " items from " + this.mFile);
 
@@ -208,7 +318,7 @@ public class TagRepository {
     }
 
     public void sortByNameIgnoreCase() {
-        Collections.sort(mItemList, Tag.COMPARATOR_HIERARCHY);
+        Tag.sortByHierarchy(mItemList);
     }
 
     /**
@@ -216,8 +326,12 @@ public class TagRepository {
      *
      * @return data loaded
      */
-    public List<Tag> reload() {
+    public synchronized List<Tag> reload() {
+        if (this.mItemList instanceof TagList) {
+            ((TagList) this.mItemList).removeListener(mJournal).removeListener(mPrefixIndex);
+        }
         this.mItemList = null;
+        this.mPrefixIndex = null;
         return load();
     }
 
@@ -228,7 +342,7 @@ public class TagRepository {
      *
      * @return true if successful
      */
-    public TagRepository delete(Tag item) {
+    public synchronized TagRepository delete(Tag item) {
         if ((item != null) && load().remove(item)) {
             save();
         }
@@ -236,37 +350,141 @@ public class TagRepository {
         return this;
     }
 
-    /** Save from meomory to repositoryfile.
+    /**
+     * Removes item and (if recursive) all its sub-tags from repository-momory and file.
+     *
+     * @return number of removed tags
+     */
+    public synchronized int deleteSubtree(Tag item, boolean recursive) {
+        int result = deleteSubtree(load(), item, recursive);
+        if (result > 0) save();
+        return result;
+    }
+
+    /**
+     * Removes root and (if recursive) all its sub-tags from all.
+     *
+     * The tags to be removed are collected in one traversal and removed from all
+     * with one {@link List#removeAll(java.util.Collection)} compaction pass.
+     * If not recursive the direct children of root become children of root's parent.
+     *
+     * @return number of removed tags
+     */
+    public static int deleteSubtree(List<Tag> all, Tag root, boolean recursive) {
+        if ((all == null) || (root == null)) return 0;
+
+        // Tag.equals() is not identity
+        Set<Tag> deleted = Collections.newSetFromMap(new IdentityHashMap<Tag, Boolean>());
+        deleted.add(root);
+
+        if (recursive) {
+            Map<Tag, List<Tag>> childrenByParent = new IdentityHashMap<Tag, List<Tag>>();
+            for (Tag item : all) {
+                if ((item != null) && (item.getParent() != null)) {
+                    List<Tag> children = childrenByParent.get(item.getParent());
+                    if (children == null) {
+                        children = new ArrayList<Tag>(2);
+                        childrenByParent.put(item.getParent(), children);
+                    }
+                    children.add(item);
+                }
+            }
+
+            ArrayDeque<Tag> todo = new ArrayDeque<Tag>();
+            todo.add(root);
+            while (!todo.isEmpty()) {
+                List<Tag> children = childrenByParent.get(todo.poll());
+                if (children != null) {
+                    for (Tag child : children) {
+                        if (deleted.add(child)) todo.add(child);
+                    }
+                }
+            }
+        } else {
+            Tag newParent = root.getParent();
+            for (Tag item : all) {
+                if ((item != null) && (item.getParent() == root)) {
+                    item.setParent(newParent);
+                }
+            }
+        }
+
+        int oldSize = all.size();
+        all.removeAll(deleted);
+        return oldSize - all.size();
+    }
+
+    /** Save changes from meomory to repositoryfile.
+     *
+     * Changes are appended to the journal. The repositoryfile itself is only rewritten
+     * if it does not exist yet or if the journal became too big.
+     */
+    public synchronized TagRepository save() {
+        if (mItemList != null) {
+            if (!this.mFile.exists() || mJournal.isCompactionNeeded()) {
+                compact();
+            } else {
+                try {
+                    mJournal.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return this;
+    }
+
+    /** true if there are changes that {@link #compact()} would fold into the repositoryfile */
+    public boolean isCompactionPending() {
+        return (mJournal != null) && !mJournal.isEmpty();
+    }
+
+    /** Fold all changes into the repositoryfile and remove the journal.
+     * Should be called when the app is not used any more.
+     * An empty list is written, too: else replaying the old repositoryfile would restore deleted tags.
      *
      * @return false: error.
      */
-    public TagRepository save() {
+    public synchronized TagRepository compact() {
         try {
-            if ((mItemList != null) && (mItemList.size() > 0)) {
+            if (mItemList != null) {
                 if (!this.mFile.exists()) {
                     this.mFile.getParentFile().mkdirs();
                 }
 
                 logger.debug(dbg_context + "save(): " + mItemList.size() + " items to " + this.mFile);
 
-                save(mItemList, new FileWriter(this.mFile, false), INDENT);
+                // write to temp file first so a crash while saving does not destroy the old data
+                File tempFile = new File(this.mFile.getPath() + ".tmp");
+                save(mItemList, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile, false), ENCODING), BUFFER_SIZE), INDENT);
+                if (!tempFile.renameTo(this.mFile)) {
+                    this.mFile.delete();
+                    if (!tempFile.renameTo(this.mFile)) {
+                        throw new IOException("Cannot rename " + tempFile + " to " + this.mFile);
+                    }
+                }
+                mJournal.clear();
+                TagSnapshotFile.delete(this.mFile);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        if (FotoLibGlobal.debugEnabled) {
-            logger.debug(dbg_context + "save(): no items for " + this.mFile);
-        }
         return this;
     }
 
-    // Load(new InputStreamReader(inputStream, "UTF-8"))
-    /** Load points from reader */
+    /** Load points from reader.
+     *
+     * Single pass: the parent of an item is the nearest previous item with a smaller indent.
+     * These candidates are kept on a stack so parents are assigned while lines arrive. */
     public void load(List<Tag> result, Reader reader) throws IOException {
         String rawLine;
-        BufferedReader br = new BufferedReader(reader);
-        int initialResultSize = result.size();
-        List<Integer> indents = new ArrayList<Integer>();
+        BufferedReader br = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader, BUFFER_SIZE);
+
+        // stack of possible parents with strictly increasing indents
+        int[] parentIndents = new int[16];
+        Tag[] parents = new Tag[16];
+        int parentCount = 0;
+
         while ((rawLine = br.readLine()) != null) {
             String line = rawLine.trim();
             if ((line.length() > 0) && (!line.startsWith(COMMENT))) {
@@ -277,45 +495,24 @@ public class TagRepository {
                 }
 
                 if (valid) {
-                    result.add((Tag) item);
-                    indents.add(getIndent(rawLine));
+                    int indent = getIndent(rawLine);
+                    while ((parentCount > 0) && (parentIndents[parentCount - 1] >= indent)) parentCount--;
+
+                    item.setParent((parentCount > 0) ? parents[parentCount - 1] : null);
+                    result.add(item);
+
+                    if (parentCount == parents.length) {
+                        parents = Arrays.copyOf(parents, parentCount * 2);
+                        parentIndents = Arrays.copyOf(parentIndents, parentCount * 2);
+                    }
+                    parents[parentCount] = item;
+                    parentIndents[parentCount] = indent;
+                    parentCount++;
                 }
 
             }
         }
         br.close();
-
-        inferParentsFromIndents(result, initialResultSize, indents);
-    }
-
-    private void inferParentsFromIndents(List<Tag> result, int initialResultSize, List<Integer> indents) {
-        Tag lastTag     = null;
-        int lastIndent  = indents.get(0);
-        Tag lastParent     = null;
-
-        for (int i = 0; i < indents.size(); i++) {
-            Tag cur = result.get(initialResultSize + i);
-            int indent = indents.get(i);
-            if (indent > lastIndent) {
-                lastParent = lastTag;
-            } else if (indent < lastIndent) {
-                int parentIndex = findParentIndexByIndent(indents, i, indent);
-                if (parentIndex >= 0) {
-                    lastParent  = result.get(initialResultSize + parentIndex);
-                } else {
-                    lastParent     = null;
-                }
-            } // else if (indent == lastIndent) lastParent remains the same
-            cur.setParent(lastParent);
-            lastIndent = indent;
-            lastTag = cur;
-        }
-    }
-
-    private int findParentIndexByIndent(List<Integer> indents, int index, int indent) {
-        int i = index;
-        while ((i >= 0) && (indents.get(i) >= indent)) i--;
-        return i;
     }
 
     private int getIndent(String rawLine) {
@@ -346,7 +543,7 @@ public class TagRepository {
     /** Save source-points to writer */
     protected void save(List<Tag> source, Writer writer, String indent) throws IOException {
         List<Tag> sorted = new ArrayList<>(source);
-        Collections.sort(sorted, Tag.COMPARATOR_HIERARCHY);
+        Tag.sortByHierarchy(sorted);
 
         for (Tag item : sorted) {
             saveItem(writer, item, indent);
@@ -399,6 +596,9 @@ public class TagRepository {
     }
 
     public static Tag findFirstByName(List<Tag> items, String name) {
+        if (items instanceof TagList) {
+            return ((TagList) items).findFirstByName(name);
+        }
         if (items != null) {
             for (Tag item : items) {
                 if (name.equals(item.getName())) return item;
@@ -408,7 +608,7 @@ public class TagRepository {
     }
 
     /** get or create parent-tag where alle imports are appendend as children */
-    public Tag getImportRoot() {
+    public synchronized Tag getImportRoot() {
         Tag result = findFirstByName(IMPORT_ROOT);
         if (result == null) {
             List<Tag> existingItems = this.load();
@@ -418,7 +618,7 @@ public class TagRepository {
         return result;
     }
 
-    public int includeIfNotFound(List<String>... lists) {
+    public synchronized int includeIfNotFound(List<String>... lists) {
         List<Tag> allTags = load();
         int modified = 0;
         Tag root = null;
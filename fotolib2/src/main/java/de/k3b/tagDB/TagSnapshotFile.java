@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.tagDB;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Binary copy of tagDB.txt that is faster to load than parsing the text.
+ *
+ * The text file stays the source of truth: the snapshot is only used if
+ * lastModified, length and CRC32 of the text file are the same as when the snapshot was written.
+ * Items are stored in {@link Tag#sortByHierarchy(List)} order so they need not be sorted again.
+ *
+ * Format (big endian, memory mapped while loading):
+ * <pre>
+ * int magic, int version
+ * long textLastModified, long textLength, long textCrc32
+ * int nameCount, nameCount * (int charCount, char[charCount])   string table
+ * int tagCount, tagCount * int nameIndex, tagCount * int parentIndex (-1 is root)
+ * </pre>
+ */
+public class TagSnapshotFile {
+    private static final String dbg_context = "TagSnapshotFile: ";
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private static final int MAGIC = 0x54616744; // "TagD"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** false: always parse the text file */
+    public static boolean enabled = true;
+
+    /** where the snapshot of repositoryFile is stored */
+    static File getFile(File repositoryFile) {
+        return new File(repositoryFile.getPath() + ".bin");
+    }
+
+    /**
+     * Add the tags of the snapshot of source to result.
+     *
+     * @param factory creates the tags via {@link TagRepository#loadItem(String)}
+     * @return false if there is no valid snapshot for source. result is unchanged then.
+     */
+    static boolean load(TagRepository factory, List<Tag> result, File source) {
+        File file = getFile(source);
+        if (!enabled || !file.exists()) return false;
+
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)
+                        || (buffer.getLong() != source.lastModified())
+                        || (buffer.getLong() != source.length())
+                        || (buffer.getLong() != checksum(source))) {
+                    if (FotoLibGlobal.debugEnabled) {
+                        logger.debug(dbg_context + "load(): outdated " + file);
+                    }
+                    return false;
+                }
+
+                String[] names = new String[buffer.getInt()];
+                char[] chars = new char[64];
+                for (int i = 0; i < names.length; i++) {
+                    int length = buffer.getInt();
+                    if (length > chars.length) chars = new char[length];
+                    for (int c = 0; c < length; c++) {
+                        chars[c] = buffer.getChar();
+                    }
+                    names[i] = new String(chars, 0, length);
+                }
+
+                Tag[] tags = new Tag[buffer.getInt()];
+                for (int i = 0; i < tags.length; i++) {
+                    tags[i] = factory.loadItem(names[buffer.getInt()]);
+                }
+                for (Tag tag : tags) {
+                    int parent = buffer.getInt();
+                    tag.setParent((parent < 0) ? null : tags[parent]);
+                }
+
+                result.addAll(Arrays.asList(tags));
+                logger.debug(dbg_context + "load(): " + tags.length + " items from " + file);
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            // IOException or a damaged file (BufferUnderflowException, IndexOutOfBoundsException, ...)
+            logger.warn(dbg_context + "load(" + file + ") failed: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Write items that were just loaded from source and sorted into the snapshot of source.
+     * Errors are only logged since the snapshot is just a cache.
+     *
+     * @param sourceChecksum CRC32 of the content of source
+     */
+    static void save(List<Tag> items, File source, long sourceChecksum) {
+        if (!enabled) return;
+
+        File file = getFile(source);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            Map<String, Integer> nameIndexes = new HashMap<String, Integer>();
+            Map<Tag, Integer> tagIndexes = new IdentityHashMap<Tag, Integer>();
+            int[] nameIndex = new int[items.size()];
+            int count = 0;
+            for (Tag item : items) {
+                String name = (item.getName() == null) ? "" : item.getName();
+                Integer index = nameIndexes.get(name);
+                if (index == null) {
+                    index = nameIndexes.size();
+                    nameIndexes.put(name, index);
+                }
+                nameIndex[count] = index;
+                tagIndexes.put(item, count++);
+            }
+
+            String[] names = new String[nameIndexes.size()];
+            for (Map.Entry<String, Integer> entry : nameIndexes.entrySet()) {
+                names[entry.getValue()] = entry.getKey();
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.lastModified());
+                out.writeLong(source.length());
+                out.writeLong(sourceChecksum);
+
+                out.writeInt(names.length);
+                for (String name : names) {
+                    out.writeInt(name.length());
+                    out.writeChars(name);
+                }
+
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(nameIndex[i]);
+                }
+                for (Tag item : items) {
+                    Integer parent = (item.getParent() == null) ? null : tagIndexes.get(item.getParent());
+                    out.writeInt((parent == null) ? -1 : parent);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Cannot rename " + tempFile + " to " + file);
+                }
+            }
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug(dbg_context + "save(): " + count + " items to " + file);
+            }
+        } catch (IOException ex) {
+            logger.warn(dbg_context + "save(" + file + ") failed: " + ex.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    /** remove the snapshot of repositoryFile */
+    static void delete(File repositoryFile) {
+        File file = getFile(repositoryFile);
+        if (file.exists()) file.delete();
+    }
+
+    /** @return CRC32 of the content of file */
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
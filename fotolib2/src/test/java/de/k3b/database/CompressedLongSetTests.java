@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class CompressedLongSetTests {
+    @Test
+    public void shouldBehaveLikeTreeSet() {
+        Random random = new Random(4711);
+        CompressedLongSet sut = new CompressedLongSet();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < 50000; i++) {
+            // dense and sparse values so that array and bitmap containers are used
+            long value = (i % 3 == 0) ? random.nextInt(200000) - 100 : random.nextInt(8000) + 70000;
+            if (random.nextInt(4) == 0) {
+                Assert.assertEquals("remove " + value, expected.remove(value), sut.remove(value));
+            } else {
+                Assert.assertEquals("add " + value, expected.add(value), sut.add(value));
+            }
+        }
+
+        Assert.assertEquals(expected.size(), sut.size());
+        Assert.assertEquals(new ArrayList<Long>(expected), new ArrayList<Long>(sut));
+        Assert.assertEquals(expected.first().longValue(), sut.first());
+        Assert.assertEquals(expected, sut);
+        Assert.assertEquals(expected.hashCode(), sut.hashCode());
+        Assert.assertTrue(sut.contains(expected.last()));
+        Assert.assertFalse(sut.contains(-101L));
+    }
+
+    @Test
+    public void shouldUnionAndIntersect() {
+        CompressedLongSet dense = new CompressedLongSet();
+        TreeSet<Long> expectedDense = new TreeSet<Long>();
+        for (long i = 0; i < 100000; i += 2) {
+            dense.add(i);
+            expectedDense.add(i);
+        }
+        CompressedLongSet sparse = new CompressedLongSet();
+        TreeSet<Long> expectedSparse = new TreeSet<Long>();
+        for (long i = 0; i < 300000; i += 333) {
+            sparse.add(i);
+            expectedSparse.add(i);
+        }
+
+        CompressedLongSet union = new CompressedLongSet(dense);
+        Assert.assertTrue(union.addAll(sparse));
+        TreeSet<Long> expectedUnion = new TreeSet<Long>(expectedDense);
+        expectedUnion.addAll(expectedSparse);
+        Assert.assertEquals(new ArrayList<Long>(expectedUnion), new ArrayList<Long>(union));
+
+        CompressedLongSet intersection = new CompressedLongSet(sparse);
+        Assert.assertTrue(intersection.retainAll(dense));
+        TreeSet<Long> expectedIntersection = new TreeSet<Long>(expectedSparse);
+        expectedIntersection.retainAll(expectedDense);
+        Assert.assertEquals(new ArrayList<Long>(expectedIntersection), new ArrayList<Long>(intersection));
+
+        Assert.assertEquals("unchanged", expectedDense.size(), dense.size());
+        Assert.assertFalse("no change", dense.addAll(new CompressedLongSet(expectedDense)));
+    }
+
+    @Test
+    public void shouldRemoveWhileIterating() {
+        CompressedLongSet sut = new CompressedLongSet();
+        for (long i = 0; i < 20000; i++) {
+            sut.add(i);
+        }
+        Iterator<Long> iter = sut.iterator();
+        while (iter.hasNext()) {
+            if (iter.next() % 5 != 0) iter.remove();
+        }
+        Assert.assertEquals(4000, sut.size());
+        CompressedLongSet.LongIterator values = sut.longIterator();
+        for (long i = 0; i < 20000; i += 5) {
+            Assert.assertEquals(i, values.nextLong());
+        }
+        Assert.assertFalse(values.hasNext());
+    }
+}
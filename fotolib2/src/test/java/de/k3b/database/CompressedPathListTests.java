@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompressedPathListTests {
+    private static String[] createPaths(int count) {
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = (i % 7 == 3) ? null : "/storage/emulated/0/DCIM/" + (i / 10) + "/IMG_" + i + ".jpg";
+        }
+        result[count - 1] = "/a";
+        return result;
+    }
+
+    @Test
+    public void shouldGetByIndex() {
+        String[] paths = createPaths(100);
+        CompressedPathList sut = CompressedPathList.create(paths);
+
+        Assert.assertEquals(paths.length, sut.size());
+        for (int i = paths.length - 1; i >= 0; i--) {
+            Assert.assertEquals("#" + i, paths[i], sut.get(i));
+        }
+    }
+
+    @Test
+    public void shouldIterate() {
+        String[] paths = createPaths(100);
+        List<String> result = new ArrayList<String>();
+        for (String path : CompressedPathList.create(paths)) {
+            result.add(path);
+        }
+
+        Assert.assertArrayEquals(paths, result.toArray(new String[result.size()]));
+        Assert.assertArrayEquals(paths, CompressedPathList.create(paths).toArray());
+    }
+
+    @Test
+    public void shouldParseCompactString() {
+        String[] paths = createPaths(100);
+        CompressedPathList expected = CompressedPathList.create(paths);
+        String compact = expected.toCompactString();
+        CompressedPathList sut = CompressedPathList.parse(compact);
+
+        Assert.assertTrue(CompressedPathList.isCompact(compact));
+        Assert.assertEquals(expected, sut);
+        Assert.assertArrayEquals(paths, sut.toArray());
+        Assert.assertTrue("compact string should be smaller", compact.length() < expected.toString().length() / 3);
+    }
+
+    @Test
+    public void shouldParseEmpty() {
+        CompressedPathList sut = CompressedPathList.parse(CompressedPathList.create().toCompactString());
+        Assert.assertEquals(0, sut.size());
+        Assert.assertEquals("", sut.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotParseInvalidPrefix() {
+        CompressedPathList.parse("\u00005:/a\u0000");
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class IncrementalQueryTests {
+    private static final QueryParameter QUERY = new QueryParameter()
+            .addColumn("_id", "_data").addFrom("files")
+            .addWhere("media_type=1").addOrderBy("datetaken DESC", "_data");
+
+    /** simulates a result row: id, datetaken, _data */
+    private static class Row {
+        final long id;
+        final Long date;
+        final String name;
+
+        Row(long id, Long date, String name) {
+            this.id = id;
+            this.date = date;
+            this.name = name;
+        }
+    }
+
+    private static class TestRows implements IncrementalQuery.Rows {
+        private final List<Row> mRows;
+
+        TestRows(List<Row> rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public long getId(int position) {
+            return mRows.get(position).id;
+        }
+
+        @Override
+        public Object getSortKey(int position, int key) {
+            Row row = mRows.get(position);
+            return (key == 0) ? row.date : row.name;
+        }
+    }
+
+    /** what sqlite would return for "order by datetaken DESC, _data, _id" */
+    private static List<Row> fullRequery(List<Row> table) {
+        List<Row> result = new ArrayList<Row>(table);
+        Collections.sort(result, new Comparator<Row>() {
+            @Override
+            public int compare(Row lhs, Row rhs) {
+                // DESC: null is last
+                if ((lhs.date == null) != (rhs.date == null)) return (lhs.date == null) ? 1 : -1;
+                if ((lhs.date != null) && !lhs.date.equals(rhs.date)) return rhs.date.compareTo(lhs.date);
+                int result = lhs.name.compareTo(rhs.name);
+                if (result != 0) return result;
+                return Long.valueOf(lhs.id).compareTo(rhs.id);
+            }
+        });
+        return result;
+    }
+
+    private static Row createRow(Random random, long id) {
+        Long date = (random.nextInt(10) == 0) ? null : Long.valueOf(random.nextInt(50));
+        return new Row(id, date, "/DCIM/" + (char) ('a' + random.nextInt(5)));
+    }
+
+    private static long[] getIds(List<Row> rows) {
+        long[] result = new long[rows.size()];
+        for (int i = 0; i < result.length; i++) result[i] = rows.get(i).id;
+        return result;
+    }
+
+    private static long[] getIds(int[] merged, List<Row> current, List<Row> delta) {
+        long[] result = new long[merged.length];
+        for (int i = 0; i < result.length; i++) {
+            int deltaPosition = IncrementalQuery.toDeltaPosition(merged[i]);
+            result[i] = (deltaPosition >= 0) ? delta.get(deltaPosition).id : current.get(merged[i]).id;
+        }
+        return result;
+    }
+
+    @Test
+    public void shouldMergeSameAsFullRequery() {
+        IncrementalQuery sut = new IncrementalQuery(QUERY, "_id");
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            List<Row> table = new ArrayList<Row>();
+            long nextId = 1;
+            for (int i = random.nextInt(200); i > 0; i--) table.add(createRow(random, nextId++));
+            List<Row> current = fullRequery(table);
+
+            // change, delete and insert some rows
+            Set<Long> changedIds = new HashSet<Long>();
+            Set<Long> insertedIds = new HashSet<Long>();
+            for (int i = random.nextInt(20); i > 0; i--) {
+                int op = random.nextInt(3);
+                if ((op == 0) && !table.isEmpty()) {
+                    changedIds.add(table.remove(random.nextInt(table.size())).id);
+                } else if ((op == 1) && !table.isEmpty()) {
+                    int pos = random.nextInt(table.size());
+                    long id = table.get(pos).id;
+                    table.set(pos, createRow(random, id));
+                    changedIds.add(id);
+                } else {
+                    table.add(createRow(random, nextId));
+                    insertedIds.add(nextId++);
+                }
+            }
+
+            // delta query: changed ids or found by modifiedSince (inserted). Order does not matter
+            List<Row> delta = new ArrayList<Row>();
+            for (Row row : table) {
+                if (changedIds.contains(row.id) || insertedIds.contains(row.id)) delta.add(row);
+            }
+            Collections.shuffle(delta, random);
+
+            int[] merged = sut.merge(new TestRows(current), changedIds, new TestRows(delta));
+            Assert.assertArrayEquals("seed " + seed,
+                    getIds(fullRequery(table)), getIds(merged, current, delta));
+        }
+    }
+
+    @Test
+    public void shouldKeepPositionOfUnchangedRows() {
+        IncrementalQuery sut = new IncrementalQuery(QUERY, "_id");
+        List<Row> current = Arrays.asList(new Row(1, 5L, "a"), new Row(2, 4L, "a"), new Row(3, 3L, "a"));
+        List<Row> delta = Arrays.asList(new Row(4, 6L, "a"));
+
+        int[] merged = sut.merge(new TestRows(current), Arrays.asList(1L), new TestRows(delta));
+        Assert.assertEquals("[-1, 1, 2]", Arrays.toString(merged));
+        Assert.assertEquals("row 2 was at 1", 1, IncrementalQuery.getNewPosition(merged, 1));
+        Assert.assertEquals("deleted row 1 continues with next", 1, IncrementalQuery.getNewPosition(merged, 0));
+    }
+
+    @Test
+    public void shouldMergeRowKeysAgain() {
+        IncrementalQuery sut = new IncrementalQuery(QUERY, "_id");
+        List<Row> current = Arrays.asList(new Row(1, 5L, "a"), new Row(2, 4L, "a"), new Row(3, 3L, "a"));
+        List<Row> delta = Arrays.asList(new Row(4, 6L, "a"), new Row(2, 2L, "a"));
+
+        IncrementalQuery.RowKeys currentKeys = IncrementalQuery.RowKeys.copy(new TestRows(current), sut.getSortKeyCount());
+        IncrementalQuery.RowKeys deltaKeys = IncrementalQuery.RowKeys.copy(new TestRows(delta), sut.getSortKeyCount());
+        IncrementalQuery.RowKeys mergedKeys = currentKeys.merge(
+                sut.merge(currentKeys, Arrays.asList(1L), deltaKeys), deltaKeys);
+
+        List<Row> delta2 = Arrays.asList(new Row(5, 3L, "b"));
+        int[] merged2 = sut.merge(mergedKeys, null, new TestRows(delta2));
+        Assert.assertEquals("[0, 1, -1, 2]", Arrays.toString(merged2));
+        Assert.assertEquals(3L, mergedKeys.getId(1));
+        Assert.assertEquals(2L, mergedKeys.getSortKey(2, 0));
+    }
+
+    @Test
+    public void shouldCreateQueries() {
+        IncrementalQuery sut = new IncrementalQuery(QUERY, "_id");
+
+        Assert.assertTrue(sut.isSupported());
+        Assert.assertEquals("SELECT _id, _data, datetaken AS sort_key_0, _data AS sort_key_1 FROM files"
+                        + " WHERE (media_type=1) AND ((_id IN (3,7) OR date_modified >= ?)) PARAMETERS 42"
+                        + " ORDER BY datetaken DESC, _data, _id",
+                normalize(sut.createDeltaQuery(Arrays.asList(3L, 7L), "date_modified >= ?", "42").toSqlString()));
+        Assert.assertEquals("SELECT count(*) FROM files WHERE (media_type=1)",
+                normalize(sut.createCountQuery().toSqlString()));
+
+        List<Long> tooManyIds = new ArrayList<Long>();
+        for (long id = 0; id <= IncrementalQuery.MAX_DELTA_IDS; id++) tooManyIds.add(id);
+        Assert.assertNull("full query instead", sut.createDeltaQuery(tooManyIds, null));
+        Assert.assertFalse(new IncrementalQuery(new QueryParameter(QUERY).addGroupBy("_data"), "_id").isSupported());
+    }
+
+    @Test
+    public void shouldRenderQueriesCreatedFromCompiledQuery() {
+        QueryParameter compiled = new QueryParameter(QUERY);
+        compiled.toOrderBy();
+        IncrementalQuery sut = new IncrementalQuery(compiled, "_id");
+
+        QueryParameter count = sut.createCountQuery();
+        Assert.assertEquals(null, count.toOrderBy());
+        Assert.assertEquals("[count(*)]", Arrays.toString(count.toColumns()));
+
+        QueryParameter full = sut.createFullQuery();
+        full.toOrderBy();
+        Assert.assertEquals("datetaken DESC, _data, _id LIMIT 10 OFFSET 20",
+                normalize(sut.createPageQuery(20, 10).toOrderBy()));
+    }
+
+    @Test
+    public void shouldCreatePageQueries() {
+        IncrementalQuery sut = new IncrementalQuery(QUERY, "_id");
+        List<Row> page = Arrays.asList(new Row(7, 5L, "a"), new Row(3, null, "b"));
+
+        Assert.assertEquals("datetaken DESC, _data, _id LIMIT 10 OFFSET 20",
+                normalize(sut.createPageQuery(20, 10).toOrderBy()));
+        Assert.assertEquals("(media_type=1) AND ((((datetaken < 5 OR datetaken IS NULL))"
+                        + " OR (datetaken = 5 AND _data > ?)"
+                        + " OR (datetaken = 5 AND _data = ? AND _id > 7)))",
+                normalize(sut.createKeysetQuery(new TestRows(page), 0, 10).toAndroidWhere()));
+
+        // datetaken DESC: nothing comes after null
+        QueryParameter afterNull = sut.createKeysetQuery(new TestRows(page), 1, 10);
+        Assert.assertEquals("(media_type=1) AND (((datetaken IS NULL AND _data > ?)"
+                        + " OR (datetaken IS NULL AND _data = ? AND _id > 3)))",
+                normalize(afterNull.toAndroidWhere()));
+        Assert.assertEquals("[b, b]", Arrays.toString(afterNull.toAndroidParameters()));
+    }
+
+    @Test
+    public void shouldCountRowsAfterKeyset() {
+        IncrementalQuery sut = new IncrementalQuery(QUERY, "_id");
+        List<Row> row = Arrays.asList(new Row(7, 5L, "a"));
+
+        QueryParameter count = sut.createCountAfterQuery(new TestRows(row), 0);
+        Assert.assertEquals("SELECT count(*) FROM files WHERE (media_type=1) AND ((((datetaken < 5 OR datetaken IS NULL))"
+                        + " OR (datetaken = 5 AND _data > ?)"
+                        + " OR (datetaken = 5 AND _data = ? AND _id > 7))) PARAMETERS a, a",
+                normalize(count.toSqlString()));
+    }
+
+    @Test
+    public void shouldCompareLikeSqlite() {
+        Assert.assertTrue(IncrementalQuery.compareSqlValues(null, 1L) < 0);
+        Assert.assertTrue(IncrementalQuery.compareSqlValues(2L, 1.5) > 0);
+        Assert.assertTrue(IncrementalQuery.compareSqlValues(99L, "1") < 0);
+        Assert.assertTrue(IncrementalQuery.compareSqlValues("b", new byte[0]) < 0);
+        Assert.assertEquals(0, IncrementalQuery.compareSqlValues(3L, 3.0));
+    }
+
+    private static String normalize(String sql) {
+        return sql.replaceAll("\\s+", " ").trim();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class KeysetPagerTests {
+    private static final int COUNT = 95;
+    private static final int PAGE_SIZE = 10;
+
+    private static final QueryParameter QUERY = new QueryParameter()
+            .addColumn("_id", "_data").addFrom("files").addOrderBy("_data");
+
+    /** table sorted by _data: row i has _id i + 1 and _data "f000i" */
+    private static String getName(int row) {
+        return String.format("f%04d", row);
+    }
+
+    /** a page is the list of row numbers. Simulates sqlite for the page queries */
+    private static class TestLoader implements KeysetPager.PageLoader<List<Integer>> {
+        private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)( OFFSET (\\d+))?");
+        int closed = 0;
+
+        @Override
+        public List<Integer> load(QueryParameter pageQuery) {
+            Matcher matcher = LIMIT.matcher(pageQuery.toOrderBy());
+            Assert.assertTrue(pageQuery.toOrderBy(), matcher.find());
+            int limit = Integer.parseInt(matcher.group(1));
+            int start = (matcher.group(3) != null) ? Integer.parseInt(matcher.group(3)) : 0;
+
+            String[] parameters = pageQuery.toAndroidParameters();
+            if ((parameters != null) && (parameters.length > 0)) {
+                // keyset: rows after _data
+                start = Integer.parseInt(parameters[0].substring(1)) + 1;
+            }
+
+            List<Integer> result = new ArrayList<Integer>();
+            for (int row = start; (row < COUNT) && (result.size() < limit); row++) result.add(row);
+            return result;
+        }
+
+        @Override
+        public IncrementalQuery.Rows getRows(final List<Integer> page) {
+            return new IncrementalQuery.Rows() {
+                @Override
+                public int getCount() {
+                    return page.size();
+                }
+
+                @Override
+                public long getId(int position) {
+                    return page.get(position) + 1;
+                }
+
+                @Override
+                public Object getSortKey(int position, int key) {
+                    return getName(page.get(position));
+                }
+            };
+        }
+
+        @Override
+        public void close(List<Integer> page) {
+            closed++;
+        }
+    }
+
+    private static int getRow(KeysetPager<List<Integer>> sut, int position) {
+        return sut.getPageForPosition(position).get(sut.getPositionInPage(position));
+    }
+
+    @Test
+    public void shouldScrollForwardWithKeyset() {
+        KeysetPager<List<Integer>> sut = new KeysetPager<List<Integer>>(
+                new IncrementalQuery(QUERY, "_id"), new TestLoader(), COUNT, PAGE_SIZE, 3);
+        for (int position = 0; position < COUNT; position++) {
+            Assert.assertEquals(position, getRow(sut, position));
+            sut.prefetch();
+        }
+        Assert.assertEquals("only first page by offset", 1, sut.getOffsetLoadCount());
+        Assert.assertEquals(9, sut.getKeysetLoadCount());
+        Assert.assertEquals(3, sut.getLoadedPageCount());
+        Assert.assertTrue("last page", sut.isLoaded(9));
+    }
+
+    @Test
+    public void shouldPrefetchInScrollDirection() {
+        KeysetPager<List<Integer>> sut = new KeysetPager<List<Integer>>(
+                new IncrementalQuery(QUERY, "_id"), new TestLoader(), COUNT, PAGE_SIZE, 3);
+        Assert.assertEquals(55, getRow(sut, 55));
+        Assert.assertEquals(45, getRow(sut, 45));
+        Assert.assertEquals("scrolling backwards", 3, sut.getPrefetchPageNo());
+        Assert.assertTrue(sut.prefetch());
+        Assert.assertTrue(sut.isLoaded(3));
+    }
+
+    @Test
+    public void shouldNotLoadPageWhenAskingForLoadedPage() {
+        KeysetPager<List<Integer>> sut = new KeysetPager<List<Integer>>(
+                new IncrementalQuery(QUERY, "_id"), new TestLoader(), COUNT, PAGE_SIZE, 3);
+        Assert.assertNull(sut.getLoadedPageForPosition(55));
+        Assert.assertEquals(0, sut.getLoadedPageCount());
+
+        Assert.assertTrue(sut.loadPageForPosition(55));
+        Assert.assertFalse("already loaded", sut.loadPageForPosition(59));
+        Assert.assertEquals(55, (int) sut.getLoadedPageForPosition(55).get(sut.getPositionInPage(55)));
+
+        sut.close();
+        Assert.assertFalse("closed", sut.loadPageForPosition(0));
+    }
+
+    @Test
+    public void shouldNotBlockWhileLoadingPageInOtherThread() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TestLoader loader = new TestLoader() {
+            @Override
+            public List<Integer> load(QueryParameter pageQuery) {
+                loading.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignore) {
+                }
+                return super.load(pageQuery);
+            }
+        };
+        final KeysetPager<List<Integer>> sut = new KeysetPager<List<Integer>>(
+                new IncrementalQuery(QUERY, "_id"), loader, COUNT, PAGE_SIZE, 3);
+
+        Thread background = new Thread() {
+            @Override
+            public void run() {
+                sut.loadPageForPosition(55);
+            }
+        };
+        background.start();
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        // would block until release if the query ran inside the lock
+        Assert.assertNull(sut.getLoadedPageForPosition(55));
+        Assert.assertEquals(0, sut.getLoadedPageCount());
+
+        release.countDown();
+        background.join(10000);
+        Assert.assertEquals(55, (int) sut.getLoadedPageForPosition(55).get(sut.getPositionInPage(55)));
+    }
+
+    @Test
+    public void shouldEvictFarthestPage() {
+        TestLoader loader = new TestLoader();
+        KeysetPager<List<Integer>> sut = new KeysetPager<List<Integer>>(
+                new IncrementalQuery(QUERY, "_id"), loader, COUNT, PAGE_SIZE, 3);
+        getRow(sut, 0);
+        getRow(sut, 10);
+        getRow(sut, 20);
+        getRow(sut, 90);
+
+        Assert.assertEquals(3, sut.getLoadedPageCount());
+        Assert.assertFalse(sut.isLoaded(0));
+        Assert.assertEquals(1, loader.closed);
+
+        // page 1 is still known so page 2 can be reloaded via keyset
+        int keysetLoads = sut.getKeysetLoadCount();
+        sut.close();
+        Assert.assertEquals(4, loader.closed);
+        Assert.assertEquals(0, sut.getLoadedPageCount());
+        Assert.assertEquals(2, keysetLoads);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryCacheTests {
+    private static final QueryCache.SizeEstimator<String> SIZE = new QueryCache.SizeEstimator<String>() {
+        @Override
+        public long getSize(String value) {
+            return value.length();
+        }
+    };
+
+    private static CompiledQuery createQuery(String from, String where) {
+        return new QueryParameter().addColumn("c").addFrom(from).addWhere(where).compile();
+    }
+
+    @Test
+    public void shouldFindNormalizedQuery() {
+        QueryCache<String> sut = new QueryCache<String>(100, SIZE);
+        QueryParameter query = new QueryParameter().addFrom("f").addWhere("a=?", "1").addWhere("b=?", "2");
+        sut.put(query.compileNormalized(), "result", sut.getGeneration());
+
+        QueryParameter reordered = new QueryParameter().addFrom("f").addWhere("b=?", "2").addWhere("a=?", "1");
+        Assert.assertEquals("result", sut.get(reordered.compileNormalized()));
+        Assert.assertNull(sut.get(new QueryParameter().addFrom("f").addWhere("b=?", "1").addWhere("a=?", "2").compileNormalized()));
+        Assert.assertEquals(1, sut.getHitCount());
+        Assert.assertEquals(1, sut.getMissCount());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() {
+        QueryCache<String> sut = new QueryCache<String>(10, SIZE);
+        sut.put(createQuery("f", "1"), "aaaa", sut.getGeneration());
+        sut.put(createQuery("f", "2"), "bbbb", sut.getGeneration());
+        sut.get(createQuery("f", "1"));
+        sut.put(createQuery("f", "3"), "cccc", sut.getGeneration());
+
+        Assert.assertEquals("aaaa", sut.get(createQuery("f", "1")));
+        Assert.assertNull(sut.get(createQuery("f", "2")));
+        Assert.assertEquals(8, sut.getSize());
+        Assert.assertEquals(1, sut.getEvictionCount());
+        Assert.assertFalse("too big", sut.put(createQuery("f", "4"), "01234567890", sut.getGeneration()));
+    }
+
+    @Test
+    public void shouldInvalidateOnlyAffectedTable() {
+        QueryCache<String> sut = new QueryCache<String>(100, SIZE);
+        sut.put(createQuery("images/media", "1"), "i", sut.getGeneration());
+        sut.put(createQuery("images/thumbnails", "1"), "t", sut.getGeneration());
+        sut.put(createQuery("tags", "1"), "t", sut.getGeneration());
+
+        Assert.assertEquals(1, sut.invalidate("images/media"));
+        Assert.assertNull(sut.get(createQuery("images/media", "1")));
+        Assert.assertEquals("t", sut.get(createQuery("images/thumbnails", "1")));
+        Assert.assertEquals("t", sut.get(createQuery("tags", "1")));
+    }
+
+    @Test
+    public void shouldNotCacheResultStartedBeforeInvalidate() {
+        QueryCache<String> sut = new QueryCache<String>(100, SIZE);
+        long generation = sut.getGeneration();
+        sut.invalidate("images/media");
+
+        Assert.assertFalse(sut.put(createQuery("images/media", "1"), "stale", generation));
+        Assert.assertTrue(sut.put(createQuery("tags", "1"), "t", generation));
+        Assert.assertTrue(sut.put(createQuery("images/media", "1"), "i", sut.getGeneration()));
+    }
+}
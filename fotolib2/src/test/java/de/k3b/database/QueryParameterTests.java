@@ -22,7 +22,9 @@ package de.k3b.database;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -87,6 +89,21 @@ public class QueryParameterTests {
                 normalize(sut.get(0).toReParseableString()));
     }
 
+    @Test
+    public void shoudParseCrLfFromReader() throws Exception {
+        QueryParameter original = new QueryParameter()
+                .addFrom("f")
+                .setID(4711)
+                .addColumn("c1")
+                .addWhere("w1=?", "w1Value")
+                .addOrderBy("o");
+
+        final String stringToBeParsed = original.toReParseableString();
+        QueryParameter sut = QueryParameter.parse(new StringReader(stringToBeParsed.replace("\n", "\r\n") + "\r\n\r\n"));
+        Assert.assertEquals(stringToBeParsed, sut.toReParseableString());
+        Assert.assertEquals(4711, sut.getID());
+    }
+
     @Test
     public void shoudParseNoDefaults() {
         QueryParameter original = new QueryParameter()
@@ -151,6 +168,52 @@ public class QueryParameterTests {
     }
 
 
+    @Test
+    public void shouldRenderOnlyChangedParts() {
+        QueryParameter template = new QueryParameter().addColumn("c").addFrom("f").addWhere("w1=?", "p1").addOrderBy("o");
+        CompiledQuery compiled = template.compile();
+        Assert.assertSame("unchanged", compiled, template.compile());
+
+        QueryParameter sut = new QueryParameter(template);
+        Assert.assertSame("copy shares compiled", compiled, sut.compile());
+
+        sut.clearWhere().addWhere("w2=?", "p2");
+        CompiledQuery changed = sut.compile();
+        Assert.assertSame("from reused", compiled.toFrom(), changed.toFrom());
+        Assert.assertEquals("(w2=?)", changed.toAndroidWhere());
+        Assert.assertEquals("p2", changed.toAndroidParameters()[0]);
+        Assert.assertEquals("template unchanged", "(w1=?)", template.toAndroidWhere());
+    }
+
+    @Test
+    public void shouldCompileToCacheKey() {
+        CompiledQuery first = new QueryParameter().addColumn("c").addFrom("f").addWhere("w=?", "1").compile();
+        CompiledQuery same = new QueryParameter().addFrom("f").addWhere("w=?", "1").addColumn("c").compile();
+        CompiledQuery other = new QueryParameter().addColumn("c").addFrom("f").addWhere("w=?", "2").compile();
+
+        Assert.assertEquals(first, same);
+        Assert.assertEquals(first.hashCode(), same.hashCode());
+        Assert.assertNotEquals(first, other);
+    }
+
+    @Test
+    public void shouldExecuteInChunks() {
+        QueryParameter sut = new QueryParameter().addFrom("f").addWhere("w=?", "w1");
+        final List<String> executed = new ArrayList<String>();
+        int count = sut.forEachInChunk("p", Arrays.asList("a", "b'c", "d", "e"), 3, new QueryParameter.ChunkProcessor() {
+            @Override
+            public int process(QueryParameter chunk) {
+                executed.add(chunk.toAndroidWhere() + " " + Arrays.asList(chunk.toAndroidParameters()));
+                return chunk.toAndroidParameters().length - 1;
+            }
+        });
+
+        Assert.assertEquals(4, count);
+        Assert.assertEquals("[(w=?) AND (p in (?,?)) [w1, a, b'c], "
+                + "(w=?) AND (p in (?,?)) [w1, d, e]]", executed.toString());
+        Assert.assertEquals("unchanged", "(w=?)", sut.toAndroidWhere());
+    }
+
     private String normalize(String unnormalized) {
         return unnormalized
                 .replace("\t", " ").replace("\n", " ").replace("  ", " ").replace("  ", " ").toLowerCase().trim();
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+public class QueryStatisticsTests {
+    @Before
+    public void setup() {
+        QueryStatistics.reset();
+    }
+
+    @After
+    public void teardown() {
+        QueryStatistics.enabled = false;
+        QueryStatistics.reset();
+    }
+
+    @Test
+    public void shouldNotRecordIfDisabled() {
+        QueryStatistics.enabled = false;
+        QueryStatistics.add(12, QueryStatistics.now(), 1, 2, 5);
+        QueryStatistics.addCacheHit(12, 5);
+
+        Assert.assertEquals("", QueryStatistics.dump());
+    }
+
+    @Test
+    public void shouldRecordPerQueryType() {
+        QueryStatistics.enabled = true;
+        // 1ms, 2ms, ... 10ms with 100us fill time
+        for (int i = 1; i <= 10; i++) {
+            QueryStatistics.add(12, 1000, 1000 + i * 1000000L - 100000, 1000 + i * 1000000L, i);
+        }
+        QueryStatistics.add(13, 1000, 2000, 3000, 7);
+        QueryStatistics.addCacheHit(12, 4);
+
+        List<QueryStatistics> all = QueryStatistics.getAll();
+        Assert.assertEquals(2, all.size());
+
+        QueryStatistics sut = all.get(0);
+        Assert.assertEquals(12, sut.getQueryTypeId());
+        Assert.assertEquals(10, sut.getCount());
+        Assert.assertEquals(1, sut.getCacheHitCount());
+        Assert.assertEquals(55 + 4, sut.getRowCount());
+        Assert.assertEquals(55, sut.getTotalMillis());
+
+        // 5ms is in bucket [4096us, 8192us)
+        Assert.assertEquals(8192, sut.getPercentileMicros(50));
+        // 10ms is in bucket [8192us, 16384us)
+        Assert.assertEquals(16384, sut.getPercentileMicros(99));
+        Assert.assertTrue(sut.toString(), sut.toString().contains("fill(avg)=100us"));
+    }
+}
@@ -17,4 +17,13 @@ public class SelectedFilesTests {
         Assert.assertEquals("ids", ids, sut.toIdString());
     }
 
+    @Test
+    public void shoudParseAndFormatCompactString() {
+        String[] names = new String[]{"/storage/DCIM/Camera/a,b.jpg", null, "/storage/DCIM/Camera/c.jpg", "/x.jpg"};
+        SelectedFiles sut = new SelectedFiles(new SelectedFiles(names, new Long[]{1L, 2L, 3L, 4L}).toCompactString(), "1,2,3,4");
+
+        Assert.assertArrayEquals("names", names, sut.getFileNames());
+        Assert.assertEquals("count", 3, sut.getNonEmptyNameCount());
+        Assert.assertEquals("sql", "'/storage/DCIM/Camera/a,b.jpg','/storage/DCIM/Camera/c.jpg','/x.jpg'", sut.toString());
+    }
 }
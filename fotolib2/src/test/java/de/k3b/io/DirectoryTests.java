@@ -124,6 +124,64 @@ public class DirectoryTests {
         Assert.assertEquals(expected, root.find("/a/b/c/d/"));
     }
 
+    @Test
+    public void shoudFindInWideDir() {
+        Directory root = new Directory("", null, 0);
+        for (int i = 0; i < 100; i++) {
+            new Directory("d" + i, root, 0);
+        }
+        Directory merged = new Directory("x/y", root, 0);
+        IDirectory expected = new Directory("z", merged, 0);
+
+        Assert.assertEquals(expected, root.find("/x/y/z"));
+        Assert.assertEquals("d42", root.find("d42").getRelPath());
+        Assert.assertEquals(null, root.find("/x/z"));
+        Assert.assertEquals(null, root.find("/D42"));
+
+        new Directory("d100", root, 0);
+        Assert.assertEquals("added after index was built", "d100", root.find("/d100/").getRelPath());
+    }
+
+    @Test
+    public void shoudAddIgnoringCaseInWideDir() {
+        DirectoryBuilder builder = new DirectoryBuilder();
+        for (int i = 0; i < 20; i++) {
+            builder.add("/root/Dir" + i, 1, 0);
+        }
+        builder.add("/root/DIR7", 2, 0);
+        IDirectory root = builder.getRoot().getChildren().get(0);
+        Assert.assertEquals(20, root.getChildren().size());
+        Assert.assertEquals(3, ((Directory) root.find("Dir7")).getNonDirItemCount());
+    }
+
+    @Test
+    public void shoudNotReusePreviousPathForPartialSegment() {
+        DirectoryBuilder builder = new DirectoryBuilder();
+        builder.add("/r/a/bc", 1, 0);
+        builder.add("/r/a/b", 2, 0);
+        builder.add("/r/a/bc/d", 4, 0);
+        builder.add("r/a/b/", 8, 0);
+        IDirectory root = builder.getRoot().getChildren().get(0);
+        assertTree("r/a(2+1):(+15)|bc(1):(1+4)|d:(4)|b:(10)|", root);
+    }
+
+    @Test
+    public void shoudBuildDeepTreeWithoutStackOverflow() {
+        final int depth = 50000;
+        StringBuilder path = new StringBuilder();
+        DirectoryBuilder builder = new DirectoryBuilder();
+        for (int i = 0; i < depth; i++) {
+            path.append("/d").append(i % 2);
+            // items every second level: pairs of levels are merged
+            if (i % 2 == 1) builder.add(path.toString(), 1, 0);
+        }
+
+        Directory root = (Directory) builder.getRoot().getChildren().get(0);
+        Assert.assertEquals("d0/d1", root.getRelPath());
+        Assert.assertEquals(depth / 2 - 1, root.getSubDirCount());
+        Assert.assertEquals(depth / 2, root.getNonDirSubItemCount());
+    }
+
     protected void assertTree(String expected, IDirectory root) {
         Assert.assertEquals(expected, Directory.toTreeString(new StringBuilder(),(Directory) root, "|", Directory.OPT_ALL - Directory.OPT_AS_HTML).toString());
     }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class FileChangeBatcherTests {
+    private static final long QUIET = 100;
+    private static final long MAX_DELAY = 1000;
+
+    private FileChangeBatcher sut;
+    private StringBuilder result;
+
+    private final FileChangeBatcher.Callback callback = new FileChangeBatcher.Callback() {
+        @Override
+        public void onRenamedDirs(String[] oldDirs, String[] newDirs) {
+            result.append("dirs ").append(Arrays.toString(oldDirs))
+                    .append(" ").append(Arrays.toString(newDirs)).append(";");
+        }
+
+        @Override
+        public void onChanges(String[] oldPathNames, String[] newPathNames) {
+            result.append("changes ").append(Arrays.toString(oldPathNames))
+                    .append(" ").append(Arrays.toString(newPathNames)).append(";");
+        }
+
+        @Override
+        public void onRescan(String[] pathNames) {
+            result.append("rescan ").append(Arrays.toString(pathNames)).append(";");
+        }
+    };
+
+    @Before
+    public void setup() {
+        sut = new FileChangeBatcher(QUIET, MAX_DELAY, 3);
+        result = new StringBuilder();
+    }
+
+    private String flush() {
+        Assert.assertTrue(sut.flush(callback, 10000));
+        return result.toString();
+    }
+
+    @Test
+    public void shouldWaitUntilQuiet() {
+        Assert.assertEquals(-1, sut.getFlushDelay(0));
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MODIFIED, "/d/a.jpg", false, 50);
+
+        Assert.assertEquals(100, sut.getFlushDelay(50));
+        Assert.assertFalse(sut.flush(callback, 149));
+        Assert.assertTrue(sut.flush(callback, 150));
+        Assert.assertEquals("changes null [/d/a.jpg];", result.toString());
+        Assert.assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void shouldFlushAfterMaxDelayEvenIfNotQuiet() {
+        for (long time = 10; time < 1010; time += 50) {
+            sut.onEvent(FileChangeBatcher.EVENT_MODIFIED, "/d/a.jpg", false, time);
+        }
+        Assert.assertEquals(0, sut.getFlushDelay(1010));
+    }
+
+    @Test
+    public void shouldIgnoreCreatedAndDeleted() {
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_DELETED, "/d/a.jpg", false, 10);
+        Assert.assertEquals("", flush());
+    }
+
+    @Test
+    public void shouldMergeMoves() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/e/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/e/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/f/a.jpg", false, 10);
+        // move targets might have been overwritten
+        Assert.assertEquals("changes [/e/a.jpg, /f/a.jpg] null;changes [/d/a.jpg] [/f/a.jpg];", flush());
+    }
+
+    @Test
+    public void shouldDeleteOverwrittenFileBeforeMove() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/e/a.jpg", false, 10);
+        Assert.assertEquals("changes [/e/a.jpg] null;changes [/d/a.jpg] [/e/a.jpg];", flush());
+    }
+
+    @Test
+    public void shouldModifyIfMovedBack() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/e/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/e/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/d/a.jpg", false, 10);
+        Assert.assertEquals("changes [/e/a.jpg] null;changes null [/d/a.jpg];", flush());
+    }
+
+    @Test
+    public void shouldRenameInPlace() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/d/b.jpg", false, 10);
+        Assert.assertEquals("changes [/d/b.jpg] null;changes [/d/a.jpg] [/d/b.jpg];", flush());
+    }
+
+    @Test
+    public void shouldRenameAndMoveToOtherDir() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/e/b.jpg", false, 10);
+        Assert.assertEquals("changes [/e/b.jpg] null;changes [/d/a.jpg] [/e/b.jpg];", flush());
+    }
+
+    @Test
+    public void shouldDeleteAndInsertIfNotConsecutive() {
+        // moved out, an other file created and an other file moved in
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/c.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/d/b.jpg", false, 10);
+        Assert.assertEquals("changes [/d/a.jpg] null;changes null [/d/c.jpg, /d/b.jpg];", flush());
+    }
+
+    @Test
+    public void shouldDeleteIfMovedOut() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/b.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/c.jpg", false, 10);
+        Assert.assertEquals("changes [/d/a.jpg, /d/c.jpg] null;changes null [/d/b.jpg];", flush());
+    }
+
+    @Test
+    public void shouldRenameDirAndItsPendingFiles() {
+        sut.onEvent(FileChangeBatcher.EVENT_MODIFIED, "/d/sub/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_OVERFLOW, "/d/sub/deeper", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/sub", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/d/new", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MODIFIED, "/d/new/b.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/new", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/e/new", true, 10);
+        Assert.assertEquals("dirs [/d/sub, /d/new] [/d/new, /e/new];"
+                + "changes null [/e/new/a.jpg, /e/new/b.jpg];rescan [/e/new/deeper];", flush());
+    }
+
+    @Test
+    public void shouldRenameAndMoveDirToOtherParent() {
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/sub", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/e/other", true, 10);
+        Assert.assertEquals("dirs [/d/sub] [/e/other];", flush());
+    }
+
+    @Test
+    public void shouldRescanDirsIfNotRenamed() {
+        // dir moved out and a file moved in
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_FROM, "/d/sub", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_MOVED_TO, "/d/sub.jpg", false, 10);
+        Assert.assertEquals("changes null [/d/sub.jpg];rescan [/d/sub];", flush());
+    }
+
+    @Test
+    public void shouldRescanOnOverflow() {
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/sub/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_OVERFLOW, "/d/sub/deeper", true, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_OVERFLOW, "/d", true, 10);
+        Assert.assertEquals("rescan [/d];", flush());
+    }
+
+    @Test
+    public void shouldRescanDirsIfTooManyFilesPending() {
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/a.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/b.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/e/c.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/d/d.jpg", false, 10);
+        sut.onEvent(FileChangeBatcher.EVENT_CREATED, "/f/e.jpg", false, 10);
+        Assert.assertEquals("changes null [/f/e.jpg];rescan [/d, /e];", flush());
+    }
+}
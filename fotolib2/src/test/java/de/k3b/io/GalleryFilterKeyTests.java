@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class GalleryFilterKeyTests {
+    @Test
+    public void shouldBeBackwardCompatible() {
+        GalleryFilterKey sut = GalleryFilterKey.parse(GalleryFilterParameterTest.FILTER_STRING_FULL_EXAMPLE);
+        Assert.assertEquals(GalleryFilterParameterTest.FILTER_STRING_FULL_EXAMPLE, sut.toString());
+        Assert.assertEquals(sut, GalleryFilterKey.parse(sut.toString()));
+    }
+
+    @Test
+    public void shouldIgnoreTagOrderAndEmptyTexts() {
+        GalleryFilterKey sut = GalleryFilterKey.parse(";;;;;;tag1,tag2;;;;");
+        GalleryFilterParameter other = new GalleryFilterParameter()
+                .setTagsAllIncluded(GalleryFilterParameter.convertList("tag2,tag1,tag2"))
+                .setTagsAllExcluded(null)
+                .setInAnyField("")
+                .setPath("");
+
+        Assert.assertEquals(sut, GalleryFilterKey.create(other));
+        Assert.assertEquals(sut.hashCode(), GalleryFilterKey.create(other).hashCode());
+        Assert.assertNotEquals(sut, GalleryFilterKey.parse(";;;;;;tag1;;;;"));
+    }
+
+    @Test
+    public void shouldIgnoreNullTags() {
+        GalleryFilterParameter other = new GalleryFilterParameter()
+                .setTagsAllIncluded(Arrays.asList("tag2", null, "", "tag1"))
+                .setTagsAllExcluded(Arrays.asList((String) null));
+
+        Assert.assertEquals(GalleryFilterKey.parse(";;;;;;tag1,tag2;;;;"), GalleryFilterKey.create(other));
+        Assert.assertNull(GalleryFilterKey.create(other).getTagsAllExcluded());
+    }
+
+    @Test
+    public void shouldIgnoreUnusedValues() {
+        GalleryFilterParameter geo = new GalleryFilterParameter();
+        geo.setLatitude(1.0, 2.0);
+        geo.setNonGeoOnly(true);
+        geo.setSort(IGalleryFilter.SORT_BY_NONE_OLD, true);
+
+        Assert.assertTrue(GalleryFilterKey.equals(geo, new GalleryFilterParameter().setNonGeoOnly(true)));
+        Assert.assertFalse(GalleryFilterKey.equals(geo, null));
+    }
+
+    @Test
+    public void shouldBeUsableAsHashKey() {
+        Map<GalleryFilterKey, String> cache = new HashMap<GalleryFilterKey, String>();
+        cache.put(GalleryFilterKey.parse("1.23,2.34;3.45,4.56;;/some/path/;;;;;;;"), "found");
+
+        GalleryFilterParameter filter = new GalleryFilterParameter().setPath("/some/path/");
+        filter.setLatitude(1.23, 3.45).setLogitude(2.34, 4.56);
+        Assert.assertEquals("found", cache.get(GalleryFilterKey.create(filter)));
+    }
+
+    @Test
+    public void shouldNotChangeIfFilterIsModified() {
+        GalleryFilterKey sut = GalleryFilterKey.parse(";;;;;;tag1,tag2;;;;");
+        GalleryFilterParameter filter = sut.toFilter();
+        filter.setPath("/some/path/").getTagsAllIncluded().add("tag3");
+
+        Assert.assertEquals(";;;;;;tag1,tag2;;;;", sut.toString());
+        Assert.assertNotEquals(sut, GalleryFilterKey.create(filter));
+    }
+}
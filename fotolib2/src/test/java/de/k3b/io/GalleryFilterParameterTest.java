@@ -22,6 +22,12 @@ package de.k3b.io;
 import org.junit.Test;
 
 import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -72,4 +78,46 @@ public class GalleryFilterParameterTest {
         GalleryFilterParameter sut = new GalleryFilterParameter().get(sutParsed);
         assertEquals("noGeoInfo;;2001-02-03,2005-12-31;/some/path/;q,^;a;b;c;notags;3;", sut.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldParseDateLenientOrAsMillis() {
+        GalleryFilterParameter sut = new GalleryFilterParameter().setDate("2001-2-3", "1234567890123");
+        assertEquals(Date.valueOf("2001-02-03").getTime(), sut.getDateMin());
+        assertEquals(1234567890123L, sut.getDateMax());
+        assertEquals(0, new GalleryFilterParameter().setDate("invalid", "").getDateMin());
+    }
+
+    @Test
+    public void shouldBeEqualIfSameFilter() {
+        GalleryFilterParameter sut = GalleryFilterParameter.parse(FILTER_STRING_FULL_EXAMPLE, new GalleryFilterParameter());
+        GalleryFilterParameter other = new GalleryFilterParameter().get(sut);
+        assertTrue(GalleryFilterKey.equals(sut, other));
+
+        other.setPath("/other/path/");
+        assertFalse(GalleryFilterKey.equals(sut, other));
+    }
+
+    @Test
+    public void shouldParseAndFormatInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final int day = 1 + (i % 28);
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String filter = ";;2001-02-" + ((day < 10) ? "0" : "") + day + ",2005-12-31;;;;;;;;";
+                        return filter + "=" + GalleryFilterParameter.parse(filter, new GalleryFilterParameter());
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                String[] expectedAndActual = result.get().split("=");
+                assertEquals(expectedAndActual[0], expectedAndActual[1]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
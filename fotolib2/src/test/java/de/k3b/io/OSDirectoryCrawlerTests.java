@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class OSDirectoryCrawlerTests {
+    private static final File OUTDIR = FileUtils.tryGetCanonicalFile("./build/testresults/OSDirectoryCrawlerTests");
+
+    /** 3 levels with 3 sub dirs each plus one hidden dir per level */
+    @BeforeClass
+    public static void createTestTree() {
+        createTree(OUTDIR, 3);
+    }
+
+    private static void createTree(File dir, int depth) {
+        new File(dir, ".hidden").mkdirs();
+        if (depth > 0) {
+            for (int i = 0; i < 3; i++) {
+                File child = new File(dir, "d" + i);
+                child.mkdirs();
+                createTree(child, depth - 1);
+            }
+        }
+    }
+
+    /** load on demand for all dirs */
+    private static void loadAll(IDirectory dir) {
+        for (IDirectory child : dir.getChildren()) {
+            loadAll(child);
+        }
+    }
+
+    @Test
+    public void shouldLoadSameTreeAsLoadOnDemand() throws InterruptedException {
+        OSDirectory expected = new OSDirectory(OUTDIR, null);
+        loadAll(expected);
+
+        OSDirectory sut = new OSDirectory(OUTDIR, null);
+        int count = new OSDirectoryCrawler(4, OSDirectoryCrawler.DEPTH_UNLIMITED).load(sut);
+
+        Assert.assertEquals(1 + 3 + 9 + 27, count);
+        Assert.assertEquals(expected.toTreeString(), sut.toTreeString());
+    }
+
+    @Test
+    public void shouldStopAtMaxDepth() throws InterruptedException {
+        OSDirectory sut = new OSDirectory(OUTDIR, null);
+        int count = new OSDirectoryCrawler(2, 2).load(sut);
+
+        Assert.assertEquals(1 + 3, count);
+        IDirectory child = sut.getChildren().get(0);
+        Assert.assertTrue(((OSDirectory) child).isLoaded());
+        Assert.assertFalse("loaded on demand", ((OSDirectory) child.getChildren().get(0)).isLoaded());
+        Assert.assertEquals(3, child.getChildren().get(0).getChildren().size());
+    }
+
+    @Test
+    public void shouldNotLoadIfCancelled() throws InterruptedException {
+        OSDirectory sut = new OSDirectory(OUTDIR, null);
+        OSDirectoryCrawler crawler = new OSDirectoryCrawler(2, OSDirectoryCrawler.DEPTH_UNLIMITED);
+        crawler.cancel();
+
+        Assert.assertEquals(0, crawler.load(sut));
+        Assert.assertFalse(sut.isLoaded());
+    }
+
+    @Test
+    public void shouldLoadInSharedBoundedExecutor() throws InterruptedException {
+        OSDirectory expected = new OSDirectory(OUTDIR, null);
+        loadAll(expected);
+
+        // queue is too small for all dirs: rejected dirs are loaded on demand
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(4));
+        try {
+            OSDirectory sut = new OSDirectory(OUTDIR, null);
+            new OSDirectoryCrawler(executor, OSDirectoryCrawler.DEPTH_UNLIMITED).load(sut);
+            loadAll(sut);
+
+            Assert.assertEquals(expected.toTreeString(), sut.toTreeString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldDropQueuedTasksOnCancel() throws InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        final CountDownLatch busy = new CountDownLatch(1);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            });
+
+            OSDirectory sut = new OSDirectory(OUTDIR, null);
+            OSDirectoryCrawler crawler = new OSDirectoryCrawler(executor, OSDirectoryCrawler.DEPTH_UNLIMITED);
+            crawler.start(sut);
+            Assert.assertEquals(1, executor.getQueue().size());
+
+            crawler.cancel();
+            Assert.assertEquals(0, executor.getQueue().size());
+
+            busy.countDown();
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            Assert.assertFalse(sut.isLoaded());
+        } finally {
+            busy.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
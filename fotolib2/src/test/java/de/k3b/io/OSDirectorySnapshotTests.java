@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OSDirectorySnapshotTests {
+    private static final File OUTDIR = FileUtils.tryGetCanonicalFile("./build/testresults/OSDirectorySnapshotTests");
+
+    @Before
+    public void createTestTree() {
+        delete(OUTDIR);
+        new File(OUTDIR, "a/a1").mkdirs();
+        new File(OUTDIR, "a/a2").mkdirs();
+        new File(OUTDIR, "b/b1").mkdirs();
+    }
+
+    private static void delete(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        dir.delete();
+    }
+
+    private static String save(OSDirectory root) throws IOException {
+        StringWriter result = new StringWriter();
+        OSDirectorySnapshot.save(root, result);
+        return result.toString();
+    }
+
+    private static OSDirectory loadAll() {
+        OSDirectory result = new OSDirectory(OUTDIR, null);
+        for (IDirectory child : result.getChildren()) {
+            child.getChildren();
+        }
+        return result;
+    }
+
+    @Test
+    public void shouldLoadSavedTree() throws IOException {
+        OSDirectory original = loadAll();
+        String snapshot = save(original);
+
+        OSDirectory sut = OSDirectorySnapshot.load(new StringReader(snapshot), OUTDIR);
+
+        Assert.assertEquals(original.toTreeString(), sut.toTreeString());
+        Assert.assertEquals(snapshot, save(sut));
+        Assert.assertFalse("a1 loaded on demand", ((OSDirectory) sut.findChild("a").findChild("a1")).isLoaded());
+    }
+
+    @Test
+    public void shouldNotLoadSnapshotOfOtherRoot() throws IOException {
+        String snapshot = save(loadAll());
+
+        Assert.assertNull(OSDirectorySnapshot.load(new StringReader(snapshot), new File(OUTDIR, "a")));
+        Assert.assertNull(OSDirectorySnapshot.load(new StringReader("garbage\n"), OUTDIR));
+    }
+
+    @Test
+    public void shouldNotChangeUnmodifiedTree() throws IOException {
+        OSDirectory sut = OSDirectorySnapshot.load(new StringReader(save(loadAll())), OUTDIR);
+        IDirectory a = sut.findChild("a");
+
+        Assert.assertEquals(0, new OSDirectorySnapshot().refresh(sut, null));
+        Assert.assertSame(a, sut.findChild("a"));
+    }
+
+    @Test
+    public void shouldRefreshModifiedDirOnly() throws IOException {
+        OSDirectory sut = OSDirectorySnapshot.load(new StringReader(save(loadAll())), OUTDIR);
+        OSDirectory a = sut.findChild("a");
+        OSDirectory a1 = a.findChild("a1");
+
+        File newDir = new File(OUTDIR, "a/a3");
+        newDir.mkdirs();
+        // file systems with a resolution of seconds may not notice the change
+        new File(OUTDIR, "a").setLastModified(a.getLastModified() + 2000);
+
+        final List<IDirectory> changed = new ArrayList<IDirectory>();
+        int count = new OSDirectorySnapshot().refresh(sut, new OSDirectorySnapshot.OnDirectoryChangedListener() {
+            @Override
+            public void onDirectoryChanged(OSDirectory dir, Runnable apply) {
+                Assert.assertNull("not applied yet", dir.findChild("a3"));
+                apply.run();
+                changed.add(dir);
+            }
+        });
+
+        Assert.assertEquals(1, count);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertSame(a, changed.get(0));
+        Assert.assertNotNull(a.findChild("a3"));
+        Assert.assertSame("existing child is kept", a1, a.findChild("a1"));
+        Assert.assertEquals(3, a.getChildren().size());
+    }
+
+    @Test
+    public void shouldKeepChildrenAddedBeforeApply() throws IOException {
+        OSDirectory sut = OSDirectorySnapshot.load(new StringReader(save(loadAll())), OUTDIR);
+        final OSDirectory a = sut.findChild("a");
+
+        new File(OUTDIR, "a/a3").mkdirs();
+        new File(OUTDIR, "a/a2").delete();
+        new File(OUTDIR, "a").setLastModified(a.getLastModified() + 2000);
+
+        final List<OSDirectory> added = new ArrayList<OSDirectory>();
+        new OSDirectorySnapshot().refresh(sut, new OSDirectorySnapshot.OnDirectoryChangedListener() {
+            @Override
+            public void onDirectoryChanged(OSDirectory dir, Runnable apply) {
+                // i.e. created by the user while the refresh was running
+                added.add(a.addChildFolder("a4"));
+                added.add(a.addChildFolder("a3"));
+                apply.run();
+            }
+        });
+
+        Assert.assertSame(added.get(0), a.findChild("a4"));
+        Assert.assertSame("instance that is in use is kept", added.get(1), a.findChild("a3"));
+        Assert.assertNull("deleted", a.findChild("a2"));
+        Assert.assertEquals(3, a.getChildren().size());
+    }
+}
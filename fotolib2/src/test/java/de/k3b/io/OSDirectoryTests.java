@@ -25,6 +25,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by k3b on 04.08.2015.
@@ -99,6 +100,32 @@ public class OSDirectoryTests {
         assertEquals(null, mRoot.find("DoesReallyNotExist"));
     }
 
+    @Test
+    public void shoudFindInWideDir() {
+        for (int i = 0; i < 50; i++) {
+            mRoot.addChildFolder("w" + i, new ArrayList<IDirectory>());
+        }
+        IDirectory found = OSDirectory.find(mRoot, new File("a/w33"));
+        assertEquals("w33", found.getRelPath());
+        assertEquals(51, mRoot.getChildren().size());
+        assertEquals(found, mRoot.findChild("w33"));
+    }
+
+    @Test
+    public void shoudRemoveChildWithoutChangingOldList() {
+        for (int i = 0; i < 50; i++) {
+            mRoot.addChildFolder("w" + i, new ArrayList<IDirectory>());
+        }
+        List<IDirectory> before = mRoot.getChildren();
+        OSDirectory removed = mRoot.findChild("w33");
+
+        assertTrue(mRoot.removeChild(removed));
+        assertFalse(mRoot.removeChild(removed));
+        assertEquals(51, before.size());
+        assertEquals(50, mRoot.getChildren().size());
+        assertNull(mRoot.findChild("w33"));
+    }
+
     private OSDirectory createTestData(String... elements) {
         OSDirectory root = null;
         if ((elements != null) && (elements.length > 0)) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.tagDB;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that the index of {@link TagList} gives the same results as a linear scan over an {@link ArrayList}.
+ */
+public class TagListTests {
+    private static final String TAG_DATA =
+            "a\n" +
+            " ab\n" +
+            " ac\n" +
+            "   acz\n" +
+            "b\n" +
+            " ab\n" +
+            "";
+
+    private List<Tag> load(List<Tag> result) throws Exception {
+        new TagRepository(null).load(result, new StringReader(TAG_DATA));
+        return result;
+    }
+
+    @Test
+    public void shouldFindLikeLinearScan() throws Exception {
+        List<Tag> indexed = load(new TagList());
+        List<Tag> linear = load(new ArrayList<Tag>());
+
+        for (String name : new String[] {"a", "ab", "ac", "acz", "b", "x"}) {
+            Assert.assertEquals(name, asPath(TagRepository.findFirstByName(linear, name)),
+                    asPath(TagRepository.findFirstByName(indexed, name)));
+        }
+
+        Tag b = TagRepository.findFirstByName(indexed, "b");
+        Assert.assertEquals("/b/ab", Tag.findFirstChildByName(indexed, b, "ab").getPath());
+        Assert.assertEquals(3, TagRepository.findFirstByName(indexed, "a").getChildren(indexed, true, false).size());
+        Assert.assertEquals(null, Tag.findFirstChildByName(indexed, null, "ab"));
+    }
+
+    @Test
+    public void shouldUpdateIndexOnRenameAndReparent() throws Exception {
+        List<Tag> items = load(new TagList());
+        Tag acz = TagRepository.findFirstByName(items, "acz");
+        Tag b = TagRepository.findFirstByName(items, "b");
+
+        acz.setName("renamed");
+        Assert.assertEquals(null, TagRepository.findFirstByName(items, "acz"));
+        Assert.assertSame(acz, TagRepository.findFirstByName(items, "renamed"));
+
+        acz.setParent(b);
+        Assert.assertSame(acz, Tag.findFirstChildByName(items, b, "renamed"));
+        Assert.assertEquals(null, TagRepository.findFirstByName(items, "ac").getChildren(items, false, false));
+    }
+
+    @Test
+    public void shouldKeepListOrderOnRenameAndReparentWithoutRebuild() throws Exception {
+        TagList indexed = (TagList) load(new TagList());
+        List<Tag> linear = load(new ArrayList<Tag>());
+        TagRepository.findFirstByName(indexed, "a");
+        int buildCount = indexed.mIndexBuildCount;
+
+        // renamed/moved tags are between the other tags with the same name/parent in list order
+        for (List<Tag> items : Arrays.asList(indexed, linear)) {
+            items.add(new Tag().setName("ab").setParent(TagRepository.findFirstByName(items, "acz")));
+            TagRepository.findFirstByName(items, "ab").setName("x");
+            Tag ac = TagRepository.findFirstByName(items, "ac");
+            ac.setName("ab");
+            TagRepository.findFirstByName(items, "b").setName("a");
+            ac.setParent(null);
+        }
+
+        for (String name : new String[] {"a", "ab", "x", "acz"}) {
+            Assert.assertEquals(name, asPath(TagRepository.findFirstByName(linear, name)),
+                    asPath(TagRepository.findFirstByName(indexed, name)));
+        }
+        Assert.assertEquals("/ab", asPath(TagRepository.findFirstByName(indexed, "ab")));
+        Assert.assertEquals("[/a, /ab, /a]", asPaths(indexed.getChildren(null)));
+        Assert.assertEquals("no rebuild", buildCount, indexed.mIndexBuildCount);
+    }
+
+    @Test
+    public void shouldUpdateIndexOnDeleteAndSort() throws Exception {
+        List<Tag> items = load(new TagList());
+        Tag a = TagRepository.findFirstByName(items, "a");
+
+        Assert.assertEquals("delCount", 1, a.delete(items, false));
+        Assert.assertEquals(null, TagRepository.findFirstByName(items, "a"));
+        Assert.assertEquals(false, items.contains(a));
+        Assert.assertEquals("/ac/acz", TagRepository.findFirstByName(items, "acz").getPath());
+
+        Collections.sort(items, Tag.COMPARATOR_HIERARCHY);
+        Assert.assertEquals("/ab", TagRepository.findFirstByName(items, "ab").getPath());
+        Assert.assertEquals(true, items.contains(new Tag().setName("acz").setParent(new Tag().setName("ac"))));
+    }
+
+    private static String asPath(Tag tag) {
+        return (tag == null) ? null : tag.getPath();
+    }
+
+    private static String asPaths(List<Tag> tags) {
+        List<String> result = new ArrayList<String>();
+        for (Tag tag : tags) {
+            result.add(asPath(tag));
+        }
+        return result.toString();
+    }
+}
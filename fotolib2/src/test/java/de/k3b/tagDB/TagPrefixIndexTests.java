@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 by k3b.
+ *
+ * This file is part of AndroFotoFinder / #APhotoManager.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.tagDB;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for autocomplete via {@link TagPrefixIndex}.
+ */
+public class TagPrefixIndexTests {
+    private TagList items;
+    private TagPrefixIndex sut;
+
+    @Before
+    public void setup() throws Exception {
+        String tagData =
+                "Family\n" +
+                " Father\n" +
+                " Mother\n" +
+                "Holiday\n" +
+                " fam\n" +
+                " Italy\n" +
+                "  Rome\n" +
+                "unsorted\n" +
+                " famous\n" +
+                "";
+        items = new TagList();
+        new TagRepository(null).load(items, new StringReader(tagData));
+        sut = new TagPrefixIndex(items);
+        items.addListener(sut);
+    }
+
+    @Test
+    public void shouldRankCompletions() throws Exception {
+        Assert.assertEquals("[/Holiday/fam, /Family, /unsorted/famous]", toPaths(sut.find("FAM", 10)));
+        Assert.assertEquals("[/Holiday/fam, /Family]", toPaths(sut.find("fam", 2)));
+        Assert.assertEquals("[]", toPaths(sut.find("xyz", 10)));
+    }
+
+    @Test
+    public void shouldMatchPathSegments() throws Exception {
+        Assert.assertEquals("[/Holiday/Italy/Rome]", toPaths(sut.find("it/ro", 10)));
+        Assert.assertEquals("[/Holiday/fam]", toPaths(sut.find("hol/fa", 10)));
+        Assert.assertEquals("[/Holiday/fam]", toPaths(sut.find("/hol/fa", 10)));
+        Assert.assertEquals("[]", toPaths(sut.find("/it/ro", 10)));
+    }
+
+    @Test
+    public void shouldUpdateIncrementally() throws Exception {
+        TagRepository.include(items, null, null, "/Holiday/Faroe");
+        Assert.assertEquals("[/Holiday/fam, /Holiday/Faroe]", toPaths(sut.find("hol/fa", 10)));
+
+        TagRepository.findFirstByName(items, "Faroe").setName("Spain");
+        Assert.assertEquals("[/Holiday/fam]", toPaths(sut.find("hol/fa", 10)));
+        Assert.assertEquals("[/Holiday/Spain]", toPaths(sut.find("sp", 10)));
+
+        TagRepository.findFirstByName(items, "Spain").delete(items, false);
+        Assert.assertEquals("[]", toPaths(sut.find("sp", 10)));
+        Assert.assertEquals(items.size(), sut.size());
+    }
+
+    private static String toPaths(List<Tag> tags) {
+        List<String> result = new ArrayList<String>();
+        for (Tag tag : tags) {
+            result.add(tag.getPath());
+        }
+        return result.toString();
+    }
+}
@@ -69,11 +69,47 @@ public class TagProcessorTests {
         Assert.assertEquals(ListUtils.toString(updated), 1, updated.size());
     }
 
+    @Test
+    public void shouldRemoveTagThatIsAlsoAdded() throws Exception {
+        List<String> updated = sut.getUpdated(Arrays.asList("all", "single1"),
+                Arrays.asList("new", "single1"), Arrays.asList("new", "single1"));
+        Assert.assertEquals("[all]", updated.toString());
+    }
+
+    @Test
+    public void shouldRemoveOneOccurencePerRemovedTag() throws Exception {
+        List<String> current = Arrays.asList("all", "dup", "single1", "dup");
+        Assert.assertEquals("[all, single1, dup]",
+                sut.getUpdated(current, null, Arrays.asList("dup")).toString());
+        Assert.assertEquals("[all, single1]",
+                sut.getUpdated(current, null, Arrays.asList("dup", "dup", "dup")).toString());
+    }
+
+    @Test
+    public void shouldKeepOrderOfFirstOccurence() throws Exception {
+        sut.registerExistingTags(Arrays.asList("single3", "all", "single1"));
+        Assert.assertEquals("[all, single1, single2, single3]", sut.getAffected().toString());
+        Assert.assertEquals("[all]", sut.getAllSet().toString());
+
+        List<String> updated = sut.getUpdated(Arrays.asList("single2", "all", "single1"),
+                Arrays.asList("new", "all", "new"), Arrays.asList("all"));
+        Assert.assertEquals("[single2, single1, new]", updated.toString());
+    }
+
     @Test
     public void shouldFormatTagsForBat() throws Exception {
         Assert.assertEquals("empty", null, TagConverter.asBatString());
         Assert.assertEquals("empty", "'a' 'b'".replaceAll("'","\""), TagConverter.asBatString("a","b"));
     }
 
+    @Test
+    public void shouldConvertTagsForDb() throws Exception {
+        Assert.assertEquals(";a;;bc;", TagConverter.asDbString("", Arrays.asList("b, c", "", "a")));
+        Assert.assertEquals("%;a;%;b;%", TagConverter.asDbString("%", "b", "a"));
+        Assert.assertEquals("a, b", TagConverter.asDbString(null, Arrays.asList("b", "a")));
+        Assert.assertEquals("[a, b c, ]", TagConverter.fromString(";a;%; b c ;: ;").toString());
+        Assert.assertEquals(null, TagConverter.fromString(";%;;"));
+    }
+
 
 }
\ No newline at end of file
@@ -26,10 +26,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by k3b on 04.10.2016.
@@ -56,6 +62,8 @@ public class TagRepositoryTests {
     private TagRepository createUnsavedRepo(String name, int numberOfItems) {
         this.repositoryFile = new File(OUTDIR, name + "-repo.txt");
         repositoryFile.delete();
+        TagRepository.getJournalFile(repositoryFile).delete();
+        TagSnapshotFile.getFile(repositoryFile).delete();
 
         TagRepository result = new TagRepository(this.repositoryFile);
 
@@ -305,4 +313,302 @@ public class TagRepositoryTests {
         Assert.assertEquals("delCount", 4, delCount);
     }
 
+    @Test
+    public void shouldDeleteSubtreeInOnePass() throws Exception {
+        TagList items = new TagList();
+        TagRepository.include(items, null, null, "/unsorted/a/a1,/unsorted/a/a2,/unsorted/b,/keep/k1");
+        final List<String> removed = new ArrayList<String>();
+        items.addListener(new TagList.ChangeListener() {
+            @Override public void onAdded(Tag tag) {}
+            @Override public void onRemoved(Tag tag) {removed.add(tag.getName());}
+            @Override public void onNameChanged(Tag tag, String oldName) {}
+            @Override public void onParentChanged(Tag tag, Tag oldParent) {}
+        });
+
+        Assert.assertEquals("non recursive", 1, TagRepository.deleteSubtree(items, TagRepository.findFirstByName(items, "a"), false));
+        Assert.assertEquals("/unsorted/a1", TagRepository.findFirstByName(items, "a1").getPath());
+
+        Assert.assertEquals("recursive", 4, TagRepository.deleteSubtree(items, TagRepository.findFirstByName(items, "unsorted"), true));
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals("/keep/k1", TagRepository.findFirstByName(items, "k1").getPath());
+
+        // children are reported before their parents
+        Assert.assertEquals("[a, b, a2, a1, unsorted]", removed.toString());
+    }
+
+    @Test
+    public void shouldRecalculatePathAfterAncestorChange() throws Exception {
+        String tagData =
+                "a\n" +
+                " ab\n" +
+                "  abc\n" +
+                "B\n" +
+                "";
+
+        ArrayList<Tag> items = new ArrayList<>();
+        TagRepository sut = new TagRepository(null);
+        sut.load(items, new StringReader(tagData));
+
+        Tag abc = sut.findFirstByName(items, "abc");
+        Assert.assertEquals("/a/ab/abc", abc.getPath());
+
+        sut.findFirstByName(items, "a").setName("Z");
+        Assert.assertEquals("after rename", "/Z/ab/abc", abc.getPath());
+        Assert.assertEquals("after rename key", "/z/ab/abc", abc.getPathKey());
+
+        sut.findFirstByName(items, "ab").setParent(sut.findFirstByName(items, "B"));
+        Assert.assertEquals("after reparent", "/B/ab/abc", abc.getPath());
+
+        StringWriter wr = new StringWriter();
+        sut.save(items, wr, " ");
+        Assert.assertEquals("B\n ab\n  abc\nZ\n", wr.toString());
+    }
+
+    @Test
+    public void shouldSortHierarchyLikeCompareToIgnoreCase() throws Exception {
+        String[] names = {"a", "B", "\u00c4rger", "\u00e4rger", "a b", "A-b", "ab", "_x", "\u0130", "i", "\u00df", "SS"};
+        List<Tag> items = new ArrayList<>();
+        for (String name : names) {
+            Tag parent = new Tag().setName(name);
+            items.add(parent);
+            items.add(new Tag().setName(name.toUpperCase()).setParent(parent));
+        }
+
+        for (Tag lhs : items) {
+            for (Tag rhs : items) {
+                int expected = Integer.signum(lhs.getPath().compareToIgnoreCase(rhs.getPath()));
+                Assert.assertEquals(lhs.getPath() + " <=> " + rhs.getPath(), expected,
+                        Integer.signum(Tag.COMPARATOR_HIERARCHY.compare(lhs, rhs)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldLoadUnevenIndents() throws Exception {
+        String tagData =
+                "  first\n" +
+                "a\n" +
+                "    ab\n" +
+                "   # comment\n" +
+                "  ac\n" +
+                "      aca\n" +
+                " ad\n" +
+                "b\n" +
+                "";
+
+        ArrayList<Tag> items = new ArrayList<>();
+        TagRepository sut = new TagRepository(null);
+        sut.load(items, new StringReader(tagData));
+
+        Assert.assertEquals("/first", sut.findFirstByName(items, "first").getPath());
+        Assert.assertEquals("/a/ab", sut.findFirstByName(items, "ab").getPath());
+        Assert.assertEquals("/a/ac", sut.findFirstByName(items, "ac").getPath());
+        Assert.assertEquals("/a/ac/aca", sut.findFirstByName(items, "aca").getPath());
+        Assert.assertEquals("/a/ad", sut.findFirstByName(items, "ad").getPath());
+        Assert.assertEquals("/b", sut.findFirstByName(items, "b").getPath());
+    }
+
+    @Test
+    public void shouldSaveLoadUtf8() throws Exception {
+        TagRepository repo = createUnsavedRepo("shouldSaveLoadUtf8", 0);
+        TagRepository.include(repo.load(), null, null, "/\u00c4rger/\u65e5\u672c");
+        repo.save();
+
+        Tag loaded = new TagRepository(this.repositoryFile).findFirstByName("\u65e5\u672c");
+        Assert.assertEquals("/\u00c4rger/\u65e5\u672c", loaded.getPath());
+    }
+
+    @Test
+    public void shouldReplayRemoveOfParentBeforeChildren() throws Exception {
+        TagRepository repo = createUnsavedRepo("shouldReplayRemoveOfParentBeforeChildren", 0);
+        List<Tag> items = repo.load();
+        TagRepository.include(items, null, null, "/a/ab/abc,/b");
+        repo.save();
+
+        // "a" is moved below a tag that is later in the list, so removeAll() logs "z" before its children
+        Tag z = new Tag().setName("z");
+        items.add(z);
+        repo.findFirstByName("a").setParent(z);
+        TagRepository.deleteSubtree(items, z, true);
+        repo.save();
+
+        List<Tag> reloaded = new TagRepository(this.repositoryFile).load();
+        Assert.assertEquals("no orphans", 1, reloaded.size());
+        Assert.assertEquals("b", reloaded.get(0).getName());
+    }
+
+    @Test
+    public void shouldCompactEmptyRepository() throws Exception {
+        TagRepository repo = createUnsavedRepo("shouldCompactEmptyRepository", 0);
+        List<Tag> items = repo.load();
+        TagRepository.include(items, null, null, "/a,/b");
+        repo.save();
+
+        TagRepository.deleteSubtree(items, repo.findFirstByName("a"), true);
+        TagRepository.deleteSubtree(items, repo.findFirstByName("b"), true);
+        repo.compact();
+
+        Assert.assertEquals("journal removed", false, TagRepository.getJournalFile(repositoryFile).exists());
+        Assert.assertEquals("after reload", 0, new TagRepository(this.repositoryFile).load().size());
+    }
+
+    @Test
+    public void shouldReplayJournal() throws Exception {
+        TagRepository repo = createUnsavedRepo("shouldReplayJournal", 0);
+        List<Tag> items = repo.load();
+        TagRepository.include(items, null, null, "/a/ab/abc,/b,/x/y");
+        repo.save();
+        long sizeAfterCompact = repositoryFile.length();
+        Assert.assertEquals("nothing to compact after first save", false, repo.isCompactionPending());
+
+        // add, rename, move, delete recursive and non recursive
+        items.add(new Tag().setName("with/slash").setParent(repo.findFirstByName("a")));
+        items.add(new Tag().setName("child").setParent(repo.findFirstByName("with/slash")));
+        repo.findFirstByName("ab").setName("ab-renamed");
+        repo.findFirstByName("abc").setParent(repo.findFirstByName("b"));
+        repo.findFirstByName("x").delete(items, false);
+        repo.findFirstByName("with/slash").delete(items, true);
+        repo.save();
+
+        Assert.assertEquals("repo file unchanged", sizeAfterCompact, repositoryFile.length());
+        Assert.assertEquals("journal exists", true, TagRepository.getJournalFile(repositoryFile).exists());
+        Assert.assertEquals("compaction pending", true, repo.isCompactionPending());
+
+        StringWriter expected = new StringWriter();
+        repo.save(items, expected, " ");
+
+        TagRepository reloaded = new TagRepository(this.repositoryFile);
+        StringWriter actual = new StringWriter();
+        reloaded.save(reloaded.load(), actual, " ");
+        Assert.assertEquals(
+                "a\n" +
+                " ab-renamed\n" +
+                "b\n" +
+                " abc\n" +
+                "y\n", actual.toString());
+        Assert.assertEquals(expected.toString(), actual.toString());
+
+        reloaded.compact();
+        Assert.assertEquals("journal removed", false, TagRepository.getJournalFile(repositoryFile).exists());
+        Assert.assertEquals("nothing to compact after compact", false, reloaded.isCompactionPending());
+        actual = new StringWriter();
+        new TagRepository(this.repositoryFile).save(new TagRepository(this.repositoryFile).load(), actual, " ");
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void shouldLoadFromSnapshotOnlyIfTextIsUnchanged() throws Exception {
+        TagRepository repo = createUnsavedRepo("shouldLoadFromSnapshot", 0);
+        TagRepository.include(repo.load(), null, null, "/a/ab/abc,/b,/b/ab");
+        repo.compact();
+        File snapshotFile = TagSnapshotFile.getFile(repositoryFile);
+        Assert.assertEquals("no snapshot after compact", false, snapshotFile.exists());
+
+        StringWriter expected = new StringWriter();
+        repo.save(repo.load(), expected, " ");
+
+        // first load parses text and creates the snapshot
+        new TagRepository(repositoryFile).load();
+        Assert.assertEquals("snapshot created", true, snapshotFile.exists());
+
+        List<Tag> items = new ArrayList<Tag>();
+        Assert.assertEquals("snapshot valid", true, TagSnapshotFile.load(repo, items, repositoryFile));
+        Assert.assertEquals(5, items.size());
+        StringWriter actual = new StringWriter();
+        repo.save(new TagRepository(repositoryFile).load(), actual, " ");
+        Assert.assertEquals(expected.toString(), actual.toString());
+
+        // same length and lastModified but different content
+        long lastModified = repositoryFile.lastModified();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(repositoryFile), "UTF-8");
+        writer.write(expected.toString().replace("abc", "xyz"));
+        writer.close();
+        repositoryFile.setLastModified(lastModified);
+        Assert.assertEquals("snapshot outdated", false, TagSnapshotFile.load(repo, new ArrayList<Tag>(), repositoryFile));
+        Assert.assertNotNull(new TagRepository(repositoryFile).findFirstByName("xyz"));
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentUpdates() throws Throwable {
+        final TagRepository repo = createUnsavedRepo("shouldNotLoseConcurrentUpdates", 0);
+        final int scannerCount = 4;
+        final int itemsPerThread = 500;
+        final int sharedCount = 50;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < scannerCount; t++) {
+            final int threadNo = t;
+            // simulates MediaScannerEx.loadXmp
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < itemsPerThread; i++) {
+                        repo.include(repo.getImportRoot(), Arrays.asList("t" + threadNo + "_" + i, "shared" + (i % sharedCount)));
+                        if ((i % 100) == 0) repo.save();
+                    }
+                }
+            });
+        }
+        // simulates tagging from gui
+        writers.add(new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < itemsPerThread; i++) {
+                    final int itemNo = i;
+                    repo.edit(new TagRepository.Editor() {
+                        @Override
+                        public int edit(List<Tag> items) {
+                            int changes = TagRepository.include(items, null, null, "/edit/e" + itemNo + "/tmp");
+                            Tag tmp = TagRepository.findFirstByName(items, "tmp");
+                            return changes + tmp.delete(items, false);
+                        }
+                    });
+                }
+            }
+        });
+
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        for (Tag tag : repo.getSnapshot()) {
+                            Assert.assertEquals("no tmp in snapshot", false, "tmp".equals(tag.getName()));
+                        }
+                    }
+                }
+            });
+        }
+
+        Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                errors.add(e);
+            }
+        };
+        for (Thread thread : readers) {
+            thread.setUncaughtExceptionHandler(handler);
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.setUncaughtExceptionHandler(handler);
+            thread.start();
+        }
+        for (Thread thread : writers) thread.join();
+        done.set(true);
+        for (Thread thread : readers) thread.join();
+
+        if (errors.size() > 0) throw errors.get(0);
+
+        // unsorted + scanned + shared + edit + edited
+        int expectedCount = 1 + scannerCount * itemsPerThread + sharedCount + 1 + itemsPerThread;
+        Assert.assertEquals("in memory", expectedCount, repo.getSnapshot().size());
+
+        repo.save();
+        Assert.assertEquals("after reload", expectedCount, new TagRepository(this.repositoryFile).load().size());
+    }
+
 }